@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import cloud.cave.common.MarshallingKeys;
+import cloud.cave.common.PlayerDataTransferObject;
+import cloud.cave.domain.LoginResult;
+import cloud.cave.domain.LogoutResult;
+
+import frds.broker.IPCException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The asynchronous counterpart of the CaveProxy, returning at once
+ * with CompletableFutures of the outcome of the operations on the
+ * cave, and handing out AsyncPlayers on login.
+ */
+public class AsyncCaveProxy {
+
+  private final AsyncRequestor requestor;
+
+  /**
+   * Create the cave proxy with the given requestor.
+   *
+   * @param requestor the AsyncRequestor delegate to use
+   */
+  public AsyncCaveProxy(AsyncRequestor requestor) {
+    this.requestor = requestor;
+  }
+
+  /**
+   * Login a player, as Cave.login.
+   *
+   * @param loginName the login name of the player
+   * @param password  the password of the player
+   * @return future of the player; check its authentication status
+   * before using it, as a rejected login completes the future with a
+   * player whose status tells why
+   */
+  public CompletableFuture<AsyncPlayer> login(String loginName, String password) {
+    CompletableFuture<PlayerDataTransferObject> dto = requestor.sendRequestAsync("ignore-player-id",
+        MarshallingKeys.LOGIN_METHOD_KEY, PlayerDataTransferObject.class, loginName, password);
+    return dto.handle((player, failure) -> {
+      if (failure == null) {
+        return new AsyncPlayerProxy(requestor, player.getAuthenticationStatus(),
+            player.getPlayerId(), player.getPlayerName(), player.getAccessToken());
+      }
+      // A HTTP UNAUTHORIZED status code is used to signal
+      // rejected login, as for the CaveProxy
+      Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+      if (cause instanceof IPCException
+          && ((IPCException) cause).getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
+        return new AsyncPlayerProxy(requestor, LoginResult.LOGIN_FAILED_UNKNOWN_SUBSCRIPTION,
+            null, null, null);
+      }
+      throw failure instanceof CompletionException
+          ? (CompletionException) failure : new CompletionException(failure);
+    });
+  }
+
+  /**
+   * Logout a player, as Cave.logout.
+   *
+   * @param playerID the id of the player
+   * @return future of the result of the logout
+   */
+  public CompletableFuture<LogoutResult> logout(String playerID) {
+    return requestor.sendRequestAsync(playerID, MarshallingKeys.LOGOUT_METHOD_KEY,
+        LogoutResult.class, playerID);
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.util.concurrent.CompletableFuture;
+
+import frds.broker.ClientRequestHandler;
+
+/**
+ * A ClientRequestHandler which may also send requests without
+ * blocking the calling thread: the reply is delivered by a future,
+ * completed by the threads of the handler once it arrives.
+ * <p>
+ * Used by the AsyncRequestor, to keep many requests in flight from
+ * a few threads.
+ */
+public interface AsyncClientRequestHandler extends ClientRequestHandler {
+
+  /**
+   * Send a request to the server, and return at once.
+   *
+   * @param request the marshalled request
+   * @return future of the marshalled reply; it completes exceptionally
+   * with an IPCException if the communication fails
+   */
+  CompletableFuture<String> sendToServerAsync(String request);
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import cloud.cave.common.RoomSnapshotDataTransferObject;
+import cloud.cave.common.WallMessageDataTransferObject;
+import cloud.cave.domain.*;
+
+/**
+ * The asynchronous, client side, view of a Player: every operation
+ * that calls the server returns at once with a CompletableFuture of
+ * its outcome, so many sessions may be kept busy from a few threads.
+ * See Player for the meaning of each operation; the properties known
+ * from the login are returned directly.
+ * <p>
+ * A future whose request is rejected because the session has expired
+ * completes exceptionally with a PlayerSessionExpiredException; other
+ * failures complete it with an IPCException.
+ */
+public interface AsyncPlayer {
+
+  LoginResult getAuthenticationStatus();
+
+  String getName();
+
+  String getID();
+
+  String getAccessToken();
+
+  CompletableFuture<String> getPosition();
+
+  CompletableFuture<String> getShortRoomDescription();
+
+  CompletableFuture<Region> getRegion();
+
+  CompletableFuture<List<String>> getPlayersHere();
+
+  CompletableFuture<List<String>> getLongRoomDescription();
+
+  CompletableFuture<List<Direction>> getExitSet();
+
+  CompletableFuture<String> getQuote(int quoteIndex);
+
+  CompletableFuture<List<WallMessageDataTransferObject>> getMessageList(int pageNumber);
+
+  CompletableFuture<RoomSnapshotDataTransferObject> getRoomSnapshot();
+
+  CompletableFuture<UpdateResult> move(Direction direction);
+
+  CompletableFuture<UpdateResult> digRoom(Direction direction, String description);
+
+  CompletableFuture<UpdateResult> updateRoom(String newDescription);
+
+  CompletableFuture<Void> addMessage(String message);
+
+  CompletableFuture<UpdateResult> updateMessage(String messageId, String newContents);
+
+  CompletableFuture<List<String>> execute(String commandName, String... parameters);
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.*;
+
+import cloud.cave.common.Marshalling;
+import cloud.cave.common.MarshallingKeys;
+import cloud.cave.common.PlayerSessionExpiredException;
+import cloud.cave.common.RoomSnapshotDataTransferObject;
+import cloud.cave.common.WallMessageDataTransferObject;
+import cloud.cave.domain.*;
+
+import com.google.gson.reflect.TypeToken;
+import frds.broker.IPCException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * ClientProxy for the AsyncPlayer role; it sends the same requests as
+ * the PlayerProxy, through an AsyncRequestor.
+ * <p>
+ * Never instantiate it directly, instead use the login method of the
+ * AsyncCaveProxy.
+ */
+public class AsyncPlayerProxy implements AsyncPlayer {
+
+  private static final Type LIST_OF_STRING_TYPE = new TypeToken<ArrayList<String>>(){}.getType();
+  private static final Type LIST_OF_DIRECTION_TYPE = new TypeToken<ArrayList<Direction>>(){}.getType();
+  private static final Type LIST_OF_MESSAGE_TYPE =
+      new TypeToken<ArrayList<WallMessageDataTransferObject>>(){}.getType();
+
+  private final AsyncRequestor requestor;
+
+  private final String playerID;
+  private final String playerName;
+  private final String accessToken;
+  private final LoginResult authenticationStatus;
+
+  AsyncPlayerProxy(AsyncRequestor requestor, LoginResult authenticationStatus,
+                   String playerID, String playerName, String accessToken) {
+    this.requestor = requestor;
+    this.authenticationStatus = authenticationStatus;
+    this.playerID = playerID;
+    this.playerName = playerName;
+    this.accessToken = accessToken;
+  }
+
+  @Override
+  public LoginResult getAuthenticationStatus() {
+    return authenticationStatus;
+  }
+
+  @Override
+  public String getName() {
+    return playerName;
+  }
+
+  @Override
+  public String getID() {
+    return playerID;
+  }
+
+  @Override
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  @Override
+  public CompletableFuture<String> getPosition() {
+    return send(MarshallingKeys.GET_POSITION_METHOD_KEY, String.class);
+  }
+
+  @Override
+  public CompletableFuture<String> getShortRoomDescription() {
+    return send(MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY, String.class);
+  }
+
+  @Override
+  public CompletableFuture<Region> getRegion() {
+    return send(MarshallingKeys.GET_REGION_METHOD_KEY, Region.class);
+  }
+
+  @Override
+  public CompletableFuture<List<String>> getPlayersHere() {
+    return send(MarshallingKeys.GET_PLAYERS_HERE_METHOD_KEY, LIST_OF_STRING_TYPE);
+  }
+
+  @Override
+  public CompletableFuture<List<String>> getLongRoomDescription() {
+    return send(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, LIST_OF_STRING_TYPE);
+  }
+
+  @Override
+  public CompletableFuture<List<Direction>> getExitSet() {
+    return send(MarshallingKeys.GET_EXITSET_METHOD_KEY, LIST_OF_DIRECTION_TYPE);
+  }
+
+  @Override
+  public CompletableFuture<String> getQuote(int quoteIndex) {
+    return send(MarshallingKeys.GET_QUOTE_METHOD_KEY, String.class, quoteIndex);
+  }
+
+  @Override
+  public CompletableFuture<List<WallMessageDataTransferObject>> getMessageList(int pageNumber) {
+    return send(MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY, LIST_OF_MESSAGE_TYPE, pageNumber);
+  }
+
+  @Override
+  public CompletableFuture<RoomSnapshotDataTransferObject> getRoomSnapshot() {
+    return send(MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY, RoomSnapshotDataTransferObject.class);
+  }
+
+  @Override
+  public CompletableFuture<UpdateResult> move(Direction direction) {
+    return send(MarshallingKeys.MOVE_METHOD_KEY, UpdateResult.class, direction);
+  }
+
+  @Override
+  public CompletableFuture<UpdateResult> digRoom(Direction direction, String description) {
+    return send(MarshallingKeys.DIG_ROOM_METHOD_KEY, UpdateResult.class, direction, description);
+  }
+
+  @Override
+  public CompletableFuture<UpdateResult> updateRoom(String newDescription) {
+    return send(MarshallingKeys.UPDATE_ROOM_METHOD_KEY, UpdateResult.class, newDescription);
+  }
+
+  @Override
+  public CompletableFuture<Void> addMessage(String message) {
+    return send(MarshallingKeys.ADD_MESSAGE_METHOD_KEY, null, message);
+  }
+
+  @Override
+  public CompletableFuture<UpdateResult> updateMessage(String messageId, String newContents) {
+    return send(MarshallingKeys.UPDATE_MESSAGE_METHOD_KEY, UpdateResult.class, messageId, newContents);
+  }
+
+  @Override
+  public CompletableFuture<List<String>> execute(String commandName, String... parameters) {
+    // Merge into one array, as for the PlayerProxy
+    Object[] merged = new String[parameters.length + 1];
+    merged[0] = commandName;
+    System.arraycopy(parameters, 0, merged, 1, parameters.length);
+    return send(MarshallingKeys.EXECUTE_METHOD_KEY, LIST_OF_STRING_TYPE, merged);
+  }
+
+  @Override
+  public String toString() {
+    return "(AsyncPlayerClientProxy: " + getID() + "/" + getName() + ")";
+  }
+
+  public String getMangledID() {
+    return Marshalling.manglePlayerIDAndAccessToken(playerID, accessToken);
+  }
+
+  // Send the request, and translate 401 UNAUTHORIZED IPC exceptions
+  // into PlayerSessionExpiredExceptions, like the PlayerProxy
+  private <T> CompletableFuture<T> send(String operationName, Type typeOfReturnValue, Object... argument) {
+    return send(0, operationName, typeOfReturnValue, argument);
+  }
+
+  // Requests rejected with 503 SERVICE UNAVAILABLE by an overloaded
+  // server are resent after the Retry-After delay, at most
+  // PlayerProxy.MAX_OVERLOAD_RETRIES times, like the PlayerProxy; the
+  // delay is waited without holding a thread
+  private <T> CompletableFuture<T> send(int retries, String operationName, Type typeOfReturnValue,
+                                        Object... argument) {
+    CompletableFuture<T> reply = requestor.sendRequestAsync(getMangledID(), operationName,
+        typeOfReturnValue, argument);
+    return reply.handle((result, failure) -> {
+      if (failure == null) { return CompletableFuture.completedFuture(result); }
+      Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+      int statusCode = cause instanceof IPCException ? ((IPCException) cause).getStatusCode() : 0;
+      if (statusCode == HttpServletResponse.SC_UNAUTHORIZED) {
+        throw new PlayerSessionExpiredException(cause.getMessage());
+      }
+      if (statusCode != HttpServletResponse.SC_SERVICE_UNAVAILABLE
+          || retries >= PlayerProxy.MAX_OVERLOAD_RETRIES) {
+        throw failure instanceof CompletionException
+            ? (CompletionException) failure : new CompletionException(failure);
+      }
+      int retryAfterSeconds = Marshalling.parseRetryAfterSeconds(cause.getMessage());
+      if (retryAfterSeconds < 0) { retryAfterSeconds = PlayerProxy.DEFAULT_RETRY_AFTER_SECONDS; }
+      Executor afterDelay = CompletableFuture.delayedExecutor(retryAfterSeconds, TimeUnit.SECONDS);
+      return CompletableFuture.runAsync(() -> { }, afterDelay)
+          .thenCompose(ignored -> this.<T>send(retries + 1, operationName, typeOfReturnValue, argument));
+    }).thenCompose(next -> next);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.*;
+import frds.broker.IPCException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Asynchronous counterpart of the Requestor role of the Broker: the
+ * reply of a request is delivered by a CompletableFuture, instead of
+ * blocking the calling thread until it arrives.
+ * <p>
+ * Uses the version 6 marshalling format of the EmbeddedJSONRequestor.
+ * There is no fall back to the string payload format: a server that
+ * does not know the embedded format fails each request with a 501
+ * NOT IMPLEMENTED IPCException.
+ */
+public class AsyncRequestor {
+
+  private final Gson gson;
+  private final AsyncClientRequestHandler clientRequestHandler;
+
+  public AsyncRequestor(AsyncClientRequestHandler clientRequestHandler) {
+    this.clientRequestHandler = clientRequestHandler;
+    gson = new Gson();
+  }
+
+  /**
+   * Marshall and send a request, and return at once.
+   *
+   * @param objectId          the id of the servant object on the server
+   * @param operationName     the name of the operation to invoke
+   * @param typeOfReturnValue the type of the return value, or null for void
+   * @param argument          the arguments of the operation
+   * @param <T>               the type of the return value
+   * @return future of the return value; it completes exceptionally
+   * with an IPCException if the request fails
+   */
+  public <T> CompletableFuture<T> sendRequestAsync(String objectId, String operationName,
+                                                   Type typeOfReturnValue, Object... argument) {
+    String request = EmbeddedJSONRequestor.marshallRequest(gson, objectId, operationName, argument);
+    return clientRequestHandler.sendToServerAsync(request).thenApply(marshalledReply -> {
+      JsonObject reply = JsonParser.parseString(marshalledReply).getAsJsonObject();
+      if (EmbeddedJSONRequestor.isRejectedByOlderServer(reply)) {
+        throw new IPCException(HttpServletResponse.SC_NOT_IMPLEMENTED,
+            "The server does not know the embedded JSON format of operation '"
+                + operationName + "'");
+      }
+      return EmbeddedJSONRequestor.demarshallReply(gson, reply, operationName, typeOfReturnValue);
+    });
+  }
+
+  public void close() {
+    clientRequestHandler.close();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.lang.reflect.Type;
+
+import cloud.cave.common.BinaryMarshalling;
+import cloud.cave.common.Marshalling;
+import com.google.gson.*;
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import frds.broker.Requestor;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Requestor role of the Broker, using the compact binary marshalling
+ * format of BinaryMarshalling; the server must use the
+ * BinarySkyCaveRootInvoker.
+ * <p>
+ * A server with a JSON only invoker rejects a binary request with a
+ * JSON 400 Bad Request reply; then this requestor resends it, and all
+ * later requests, by the EmbeddedJSONRequestor. Any other JSON reply
+ * is a failure of the request, reported as an IPCException, as a
+ * binary server answers even malformed binary requests in binary.
+ */
+public class BinaryRequestor implements Requestor {
+
+  private final Gson gson;
+  private final ClientRequestHandler clientRequestHandler;
+  // Used once the server has shown it does not know the binary format
+  private final Requestor jsonRequestor;
+  private volatile boolean serverKnowsBinary;
+
+  public BinaryRequestor(ClientRequestHandler clientRequestHandler) {
+    this.clientRequestHandler = clientRequestHandler;
+    gson = new Gson();
+    jsonRequestor = new EmbeddedJSONRequestor(clientRequestHandler);
+    serverKnowsBinary = true;
+  }
+
+  @Override
+  public <T> T sendRequestAndAwaitReply(String objectId, String operationName,
+                                        Type typeOfReturnValue, Object... argument) {
+    if (!serverKnowsBinary) {
+      return jsonRequestor.sendRequestAndAwaitReply(objectId, operationName,
+          typeOfReturnValue, argument);
+    }
+    String request = BinaryMarshalling.marshallRequest(operationName, objectId,
+        gson.toJsonTree(argument).getAsJsonArray());
+
+    String marshalledReply = clientRequestHandler.sendToServerAndAwaitReply(request);
+    if (!BinaryMarshalling.isBinary(marshalledReply)) {
+      JsonObject jsonReply = parseJsonReply(marshalledReply, operationName);
+      int statusCode = jsonReply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt();
+      if (statusCode == HttpServletResponse.SC_BAD_REQUEST) {
+        // A JSON only server rejected the request, nothing was
+        // executed; fall back to the format it knows
+        serverKnowsBinary = false;
+        return jsonRequestor.sendRequestAndAwaitReply(objectId, operationName,
+            typeOfReturnValue, argument);
+      }
+      // Other failures, like those of the server request handler,
+      // say nothing about the format
+      JsonElement description = jsonReply.get(Marshalling.ERROR_DESCRIPTION_KEY);
+      throw new IPCException(statusCode, "Failure during client requesting operation '"
+          + operationName + "'. ErrorDescription is: "
+          + (description == null || description.isJsonNull() ? null : description.getAsString()));
+    }
+    BinaryMarshalling.Reply reply = BinaryMarshalling.demarshallReply(marshalledReply);
+
+    if (!reply.isSuccess()) {
+      throw new IPCException(reply.getStatusCode(), "Failure during client requesting operation '"
+          + operationName + "'. ErrorDescription is: " + reply.getErrorDescription());
+    }
+    if (typeOfReturnValue == null) { return null; }
+    return gson.fromJson(reply.getResult(), typeOfReturnValue);
+  }
+
+  // A JSON reply, of either version, to a binary request
+  private static JsonObject parseJsonReply(String marshalledReply, String operationName) {
+    try {
+      JsonObject reply = JsonParser.parseString(marshalledReply).getAsJsonObject();
+      if (reply.has(Marshalling.RESPONSE_CODE_KEY)) { return reply; }
+    } catch (JsonParseException | IllegalStateException e) {
+      // Reported below
+    }
+    throw new IPCException("Failure during client requesting operation '"
+        + operationName + "'. The reply is neither binary nor JSON: " + marshalledReply);
+  }
+
+  @Override
+  public void close() {
+    clientRequestHandler.close();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.lang.reflect.Type;
+
+import cloud.cave.common.Marshalling;
+import com.google.gson.*;
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import frds.broker.Requestor;
+import frds.broker.marshall.json.StandardJSONRequestor;
+
+/**
+ * Requestor role of the Broker, using the version 6 marshalling format
+ * (see Marshalling.MARSHALING_VERSION): the arguments of a request and
+ * the result of the reply are embedded in the JSON as trees, so they
+ * are serialized and parsed once, instead of being JSON strings inside
+ * the JSON.
+ * <p>
+ * The server answers each request in the format of the request. A
+ * server that only knows the string payload format rejects the
+ * request with a reply of an older version; then this requestor
+ * resends it, and all later requests, in the older format.
+ */
+public class EmbeddedJSONRequestor implements Requestor {
+
+  private final Gson gson;
+  private final ClientRequestHandler clientRequestHandler;
+  // Used once the server has shown it does not know the embedded format
+  private final Requestor stringPayloadRequestor;
+  private volatile boolean serverKnowsEmbeddedJson;
+
+  public EmbeddedJSONRequestor(ClientRequestHandler clientRequestHandler) {
+    this.clientRequestHandler = clientRequestHandler;
+    gson = new Gson();
+    stringPayloadRequestor = new StandardJSONRequestor(clientRequestHandler);
+    serverKnowsEmbeddedJson = true;
+  }
+
+  @Override
+  public <T> T sendRequestAndAwaitReply(String objectId, String operationName,
+                                        Type typeOfReturnValue, Object... argument) {
+    if (!serverKnowsEmbeddedJson) {
+      return stringPayloadRequestor.sendRequestAndAwaitReply(objectId, operationName,
+          typeOfReturnValue, argument);
+    }
+    String marshalledReply = clientRequestHandler.sendToServerAndAwaitReply(
+        marshallRequest(gson, objectId, operationName, argument));
+    JsonObject reply = JsonParser.parseString(marshalledReply).getAsJsonObject();
+
+    if (isRejectedByOlderServer(reply)) {
+      // An older server could not demarshall the request, nothing was
+      // executed; fall back to the format it knows
+      serverKnowsEmbeddedJson = false;
+      return stringPayloadRequestor.sendRequestAndAwaitReply(objectId, operationName,
+          typeOfReturnValue, argument);
+    }
+    return demarshallReply(gson, reply, operationName, typeOfReturnValue);
+  }
+
+  static String marshallRequest(Gson gson, String objectId, String operationName, Object... argument) {
+    JsonObject request = new JsonObject();
+    request.addProperty(Marshalling.OPERATION_NAME_KEY, operationName);
+    request.addProperty(Marshalling.OBJECT_ID_KEY, objectId);
+    request.addProperty(Marshalling.VERSION_IDENTITY_KEY, Marshalling.MARSHALING_VERSION);
+    request.add(Marshalling.ARGUMENTS_KEY, gson.toJsonTree(argument));
+    return gson.toJson(request);
+  }
+
+  static boolean isRejectedByOlderServer(JsonObject reply) {
+    int statusCode = reply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt();
+    JsonElement version = reply.get(Marshalling.VERSION_IDENTITY_KEY);
+    return !isSuccess(statusCode)
+        && (version == null || version.getAsInt() < Marshalling.MARSHALING_VERSION);
+  }
+
+  static <T> T demarshallReply(Gson gson, JsonObject reply, String operationName, Type typeOfReturnValue) {
+    int statusCode = reply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt();
+    if (!isSuccess(statusCode)) {
+      JsonElement description = reply.get(Marshalling.ERROR_DESCRIPTION_KEY);
+      throw new IPCException(statusCode, "Failure during client requesting operation '"
+          + operationName + "'. ErrorDescription is: "
+          + (description == null ? null : description.getAsString()));
+    }
+    if (typeOfReturnValue == null) { return null; }
+    return gson.fromJson(reply.get(Marshalling.RESULT_KEY), typeOfReturnValue);
+  }
+
+  private static boolean isSuccess(int statusCode) {
+    return statusCode >= 200 && statusCode < 300;
+  }
+
+  @Override
+  public void close() {
+    clientRequestHandler.close();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.io.*;
+import java.net.Socket;
+
+import cloud.cave.common.SocketFraming;
+
+/**
+ * Thread safe socket client request handler, pooling connections as
+ * the PooledSocketClientRequestHandler, but sending requests and
+ * receiving replies as length prefixed frames (see SocketFraming),
+ * as understood by the NioSocketServerRequestHandler.
+ */
+public class FramedSocketClientRequestHandler extends PooledSocketClientRequestHandler {
+
+  @Override
+  protected Connection connect(Socket socket) throws IOException {
+    return new FramedConnection(socket);
+  }
+
+  private static class FramedConnection extends Connection {
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    FramedConnection(Socket socket) throws IOException {
+      super(socket);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @Override
+    protected void send(String request) throws IOException {
+      SocketFraming.writeFrame(out, request);
+      out.flush();
+    }
+
+    @Override
+    protected String receive() throws IOException {
+      return SocketFraming.readFrame(in);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.lang.reflect.Type;
+import java.util.*;
+
+import cloud.cave.common.Marshalling;
+import cloud.cave.common.MarshallingKeys;
+import cloud.cave.common.RoomSnapshotDataTransferObject;
+import cloud.cave.common.WallMessageDataTransferObject;
+import cloud.cave.domain.*;
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import frds.broker.IPCException;
+import frds.broker.Requestor;
+
+/**
+ * The PlayerBatch of the PlayerProxy: the operations are sent to the
+ * server in a single 'player-batch' request when executed, and
+ * executed there in the order they were added.
+ * <p>
+ * Create a batch by PlayerProxy.createBatch(). Example, rendering the
+ * room in one round trip:
+ * <pre>
+ *   PlayerBatch batch = playerProxy.createBatch();
+ *   PlayerBatch.Result&lt;String&gt; description = batch.getShortRoomDescription();
+ *   PlayerBatch.Result&lt;List&lt;Direction&gt;&gt; exits = batch.getExitSet();
+ *   batch.execute();
+ *   System.out.println(description.get() + " Exits: " + exits.get());
+ * </pre>
+ */
+public class PlayerBatchProxy implements PlayerBatch {
+
+  private final Requestor requestor;
+  private final String mangledId;
+  private final Gson gson;
+  private final List<JsonObject> operations;
+  private final List<ProxyResult<?>> results;
+  private boolean executed;
+
+  PlayerBatchProxy(Requestor requestor, String mangledId) {
+    this.requestor = requestor;
+    this.mangledId = mangledId;
+    gson = new Gson();
+    operations = new ArrayList<>();
+    results = new ArrayList<>();
+    executed = false;
+  }
+
+  /**
+   * Add an operation to the batch.
+   *
+   * @param <T>               type of the return value
+   * @param operationName     the player operation, see MarshallingKeys
+   * @param typeOfReturnValue the type of the return value, or null
+   * @param argument          the arguments of the operation
+   * @return the result of the operation, available once executed
+   */
+  public <T> Result<T> add(String operationName, Type typeOfReturnValue, Object... argument) {
+    if (executed) {
+      throw new IllegalStateException("PlayerBatch: The batch is already executed");
+    }
+    JsonObject operation = new JsonObject();
+    operation.addProperty(Marshalling.OPERATION_NAME_KEY, operationName);
+    operation.add(Marshalling.ARGUMENTS_KEY, gson.toJsonTree(argument));
+    operations.add(operation);
+    ProxyResult<T> result = new ProxyResult<>(operationName, typeOfReturnValue);
+    results.add(result);
+    return result;
+  }
+
+  @Override
+  public Result<String> getShortRoomDescription() {
+    return add(MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY, String.class);
+  }
+
+  @Override
+  public Result<List<String>> getLongRoomDescription() {
+    return add(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+        new TypeToken<ArrayList<String>>(){}.getType());
+  }
+
+  @Override
+  public Result<String> getPosition() {
+    return add(MarshallingKeys.GET_POSITION_METHOD_KEY, String.class);
+  }
+
+  @Override
+  public Result<Region> getRegion() {
+    return add(MarshallingKeys.GET_REGION_METHOD_KEY, Region.class);
+  }
+
+  @Override
+  public Result<List<Direction>> getExitSet() {
+    return add(MarshallingKeys.GET_EXITSET_METHOD_KEY,
+        new TypeToken<ArrayList<Direction>>(){}.getType());
+  }
+
+  @Override
+  public Result<List<String>> getPlayersHere() {
+    return add(MarshallingKeys.GET_PLAYERS_HERE_METHOD_KEY,
+        new TypeToken<ArrayList<String>>(){}.getType());
+  }
+
+  @Override
+  public Result<List<WallMessageDataTransferObject>> getMessageList(int pageNumber) {
+    return add(MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY,
+        new TypeToken<ArrayList<WallMessageDataTransferObject>>(){}.getType(), pageNumber);
+  }
+
+  @Override
+  public Result<RoomSnapshotDataTransferObject> getRoomSnapshot() {
+    return add(MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY, RoomSnapshotDataTransferObject.class);
+  }
+
+  @Override
+  public Result<UpdateResult> move(Direction direction) {
+    return add(MarshallingKeys.MOVE_METHOD_KEY, UpdateResult.class, direction);
+  }
+
+  /**
+   * Send all operations in one request, and set their results.
+   *
+   * @throws IPCException if the batch as a whole fails
+   */
+  @Override
+  public void execute() {
+    if (executed) {
+      throw new IllegalStateException("PlayerBatch: The batch is already executed");
+    }
+    executed = true;
+    JsonArray replies = requestor.sendRequestAndAwaitReply(mangledId,
+        MarshallingKeys.BATCH_METHOD_KEY, JsonArray.class, operations.toArray());
+    for (int i = 0; i < results.size(); i++) {
+      results.get(i).set(replies.get(i).getAsJsonObject());
+    }
+  }
+
+  // The result of one operation, as replied by the server
+  private class ProxyResult<T> implements Result<T> {
+    private final String operationName;
+    private final Type typeOfReturnValue;
+    private JsonObject reply;
+
+    private ProxyResult(String operationName, Type typeOfReturnValue) {
+      this.operationName = operationName;
+      this.typeOfReturnValue = typeOfReturnValue;
+    }
+
+    private void set(JsonObject reply) {
+      this.reply = reply;
+    }
+
+    /**
+     * Get the value returned by the operation.
+     *
+     * @return the value
+     * @throws IllegalStateException if the batch is not executed
+     * @throws IPCException if the operation failed
+     */
+    @Override
+    public T get() {
+      if (reply == null) {
+        throw new IllegalStateException("PlayerBatch: The batch is not executed");
+      }
+      int statusCode = reply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt();
+      if (statusCode < 200 || statusCode >= 300) {
+        JsonElement description = reply.get(Marshalling.ERROR_DESCRIPTION_KEY);
+        throw new IPCException(statusCode, "Failure during client requesting operation '"
+            + operationName + "' in a batch. ErrorDescription is: "
+            + (description == null ? null : description.getAsString()));
+      }
+      if (typeOfReturnValue == null) { return null; }
+      return gson.fromJson(reply.get(Marshalling.RESULT_KEY), typeOfReturnValue);
+    }
+  }
+}
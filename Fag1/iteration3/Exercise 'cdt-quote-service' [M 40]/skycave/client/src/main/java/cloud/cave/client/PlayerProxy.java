@@ -19,11 +19,13 @@ package cloud.cave.client;
 
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import cloud.cave.common.Marshalling;
 import cloud.cave.common.MarshallingKeys;
 import cloud.cave.common.PlayerSessionExpiredException;
 
+import cloud.cave.common.RoomSnapshotDataTransferObject;
 import cloud.cave.common.WallMessageDataTransferObject;
 import cloud.cave.domain.*;
 
@@ -49,6 +51,11 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class PlayerProxy implements Player, ClientProxy {
 
+  /** Times a request rejected by an overloaded server is resent */
+  public static final int MAX_OVERLOAD_RETRIES = 2;
+  /** Seconds to wait before resending, if the server does not tell */
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
   private Requestor requestor;
 
   private String playerID;
@@ -208,6 +215,13 @@ public class PlayerProxy implements Player, ClientProxy {
     return contents;
   }
 
+  @Override
+  public RoomSnapshotDataTransferObject getRoomSnapshot() {
+    RoomSnapshotDataTransferObject snapshot = requestor.sendRequestAndAwaitReply(getMangledID(),
+            MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY, RoomSnapshotDataTransferObject.class);
+    return snapshot;
+  }
+
   @Override
   public List<String> execute(String commandName, String... parameters) {
     // Bit tedios, have to merge into one big array to avoid marshalling
@@ -223,6 +237,17 @@ public class PlayerProxy implements Player, ClientProxy {
     return stringList;
   }
 
+  /**
+   * Create a batch of operations on this player, executed in a
+   * single round trip to the server.
+   *
+   * @return a new, empty batch
+   */
+  @Override
+  public PlayerBatchProxy createBatch() {
+    return new PlayerBatchProxy(requestor, getMangledID());
+  }
+
   @Override
   public String toString() {
     return "(PlayerClientProxy: "+getID()+"/"+getName()+")";
@@ -235,6 +260,11 @@ public class PlayerProxy implements Player, ClientProxy {
   /**
    * Decorator on the Requestor, which catches 401 UNAUTHORIZED IPC exceptions
    * from the server side and converts them to local PlayerSessionExpiredExceptions.
+   * <p>
+   * Requests rejected with 503 SERVICE UNAVAILABLE by an overloaded
+   * server are resent after the Retry-After delay, at most
+   * MAX_OVERLOAD_RETRIES times; they were rejected before they were
+   * executed, so resending them is safe.
    */
   private class RequestorTranslatingSessionExceptionDecorator implements Requestor {
     private final Requestor delegate;
@@ -246,17 +276,32 @@ public class PlayerProxy implements Player, ClientProxy {
     @Override
     public <T> T sendRequestAndAwaitReply(String objectId, String operationName,
                                           Type typeOfReturnValue, Object... argument) {
-      T returnValue;
-      try {
-        returnValue = delegate.sendRequestAndAwaitReply(objectId, operationName,
-                typeOfReturnValue, argument);
-      } catch (IPCException e) {
-        if (e.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
-          throw new PlayerSessionExpiredException(e.getMessage());
+      for (int retries = 0; ; retries++) {
+        try {
+          return delegate.sendRequestAndAwaitReply(objectId, operationName,
+                  typeOfReturnValue, argument);
+        } catch (IPCException e) {
+          if (e.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
+            throw new PlayerSessionExpiredException(e.getMessage());
+          }
+          if (e.getStatusCode() != HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                  || retries >= MAX_OVERLOAD_RETRIES) {
+            throw e;
+          }
+          awaitRetryAfter(e);
         }
+      }
+    }
+
+    private void awaitRetryAfter(IPCException e) {
+      int retryAfterSeconds = Marshalling.parseRetryAfterSeconds(e.getMessage());
+      if (retryAfterSeconds < 0) { retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS; }
+      try {
+        TimeUnit.SECONDS.sleep(retryAfterSeconds);
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
         throw e;
       }
-      return returnValue;
     }
 
     @Override
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+
+/**
+ * Base class of thread safe client request handlers, which keep a
+ * bounded pool of connections to the server open between requests.
+ * At most 'poolSize' requests are in flight at any time; further
+ * threads wait for a connection to be returned to the pool.
+ * <p>
+ * With a thread safe request handler, the CaveProxy and PlayerProxy
+ * objects, and the requestors, may be used by many threads at once.
+ * <p>
+ * Subclasses that send requests asynchronously share the same bound
+ * through 'sendWithPermit': requests beyond it are queued, not
+ * blocked on, and are sent as replies to earlier ones arrive.
+ */
+public abstract class PooledClientRequestHandler implements ClientRequestHandler {
+
+  /** Pool size used unless set otherwise */
+  public static final int DEFAULT_POOL_SIZE = 8;
+
+  protected volatile String hostname;
+  protected volatile int port;
+  private volatile int poolSize;
+  private volatile Semaphore connections;
+  // Asynchronous requests waiting for a permit
+  private final Queue<Runnable> waitingForPermit = new ConcurrentLinkedQueue<>();
+
+  protected PooledClientRequestHandler() {
+    setPoolSize(DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * Set the maximal number of connections, and thus of requests in
+   * flight; must be set before the first request.
+   *
+   * @param poolSize the maximal number of connections
+   */
+  public void setPoolSize(int poolSize) {
+    this.poolSize = poolSize;
+    connections = new Semaphore(poolSize, true);
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  @Override
+  public void setServer(String hostname, int port) {
+    this.hostname = hostname;
+    this.port = port;
+  }
+
+  @Override
+  public String sendToServerAndAwaitReply(String request) {
+    Semaphore permits = connections;
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IPCException("Interrupted while waiting for a connection to " + hostname + ":" + port, e);
+    }
+    try {
+      return exchange(request);
+    } catch (IOException e) {
+      throw new IPCException("Exception while sending/receiving message to " + hostname + ":" + port, e);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Send a request and receive its reply on a pooled connection;
+   * the caller holds one of the 'poolSize' permits.
+   *
+   * @param request the marshalled request
+   * @return the marshalled reply
+   * @throws IOException if the communication fails
+   */
+  protected abstract String exchange(String request) throws IOException;
+
+  /**
+   * Start an asynchronous exchange once one of the 'poolSize' permits
+   * is free, without blocking the calling thread; the permit is
+   * released when the exchange completes.
+   *
+   * @param exchange starts the exchange, and returns the future reply
+   * @param <T>      the type of the reply
+   * @return the future reply
+   */
+  protected <T> CompletableFuture<T> sendWithPermit(Supplier<CompletableFuture<T>> exchange) {
+    Semaphore permits = connections;
+    CompletableFuture<T> reply = new CompletableFuture<>();
+    Runnable start = () -> {
+      CompletableFuture<T> exchanged;
+      try {
+        exchanged = exchange.get();
+      } catch (RuntimeException e) {
+        exchanged = CompletableFuture.failedFuture(e);
+      }
+      exchanged.whenComplete((result, failure) -> {
+        passOn(permits);
+        if (failure != null) {
+          reply.completeExceptionally(failure);
+        } else {
+          reply.complete(result);
+        }
+      });
+    };
+    if (permits.tryAcquire()) {
+      start.run();
+    } else {
+      waitingForPermit.add(start);
+      // A permit may have been released before the request was queued
+      if (permits.tryAcquire()) { passOn(permits); }
+    }
+    return reply;
+  }
+
+  // Hand a held permit to the next waiting request, or release it
+  private void passOn(Semaphore permits) {
+    Runnable next = waitingForPermit.poll();
+    if (next != null) {
+      next.run();
+      return;
+    }
+    permits.release();
+    // A request may have been queued while no permit was free
+    if (!waitingForPermit.isEmpty() && permits.tryAcquire()) { passOn(permits); }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + ", " + hostname + ":" + port + ", poolSize=" + poolSize;
+  }
+}
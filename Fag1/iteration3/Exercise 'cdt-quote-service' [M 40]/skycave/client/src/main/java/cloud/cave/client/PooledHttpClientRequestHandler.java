@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+import cloud.cave.common.HttpCompression;
+import cloud.cave.common.Marshalling;
+import frds.broker.IPCException;
+import frds.broker.ipc.http.MimeMediaType;
+
+/**
+ * Thread safe URI tunnel client request handler, posting requests to
+ * the '/tunnel' path of the FRDS UriTunnelServerRequestHandler, like
+ * the FRDS UriTunnelClientRequestHandler.
+ * <p>
+ * Uses a single java.net.http.HttpClient, which keeps HTTP/1.1
+ * connections alive between requests; the pool bound of at most
+ * 'poolSize' requests in flight bounds the number of connections.
+ * <p>
+ * Requests may also be sent without blocking by 'sendToServerAsync',
+ * which uses the asynchronous API of the HttpClient.
+ * <p>
+ * Compression is negotiated with the server, see HttpCompression:
+ * replies may be gzip compressed, and requests of at least
+ * 'compressionThreshold' bytes are, once a reply has told the server
+ * accepts it.
+ */
+public class PooledHttpClientRequestHandler extends PooledClientRequestHandler
+    implements AsyncClientRequestHandler {
+
+  /** The path of the tunnel on the server */
+  public static final String TUNNEL_PATH = "/tunnel";
+
+  private final HttpClient httpClient;
+  private volatile URI tunnel;
+  private volatile int compressionThreshold = HttpCompression.DEFAULT_THRESHOLD;
+  private volatile boolean serverAcceptsGzip;
+
+  public PooledHttpClientRequestHandler() {
+    httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .build();
+  }
+
+  /**
+   * Set the size in bytes from which requests are compressed;
+   * a negative value turns compression off, also of replies.
+   *
+   * @param compressionThreshold the smallest size compressed
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  @Override
+  public void setServer(String hostname, int port) {
+    super.setServer(hostname, port);
+    tunnel = URI.create("http://" + hostname + ":" + port + TUNNEL_PATH);
+    serverAcceptsGzip = false;
+  }
+
+  @Override
+  protected String exchange(String request) throws IOException {
+    HttpResponse<byte[]> response;
+    try {
+      response = httpClient.send(createTunnelRequest(request), HttpResponse.BodyHandlers.ofByteArray());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IPCException("Interrupted while sending/receiving message to " + tunnel, e);
+    }
+    return bodyOf(response);
+  }
+
+  @Override
+  public CompletableFuture<String> sendToServerAsync(String request) {
+    URI target = tunnel;
+    return sendWithPermit(() -> httpClient.sendAsync(createTunnelRequest(request),
+            HttpResponse.BodyHandlers.ofByteArray()))
+        .handle((response, failure) -> {
+          if (failure == null) {
+            try {
+              return bodyOf(response);
+            } catch (IOException e) {
+              throw new IPCException("Exception while receiving message from " + target, e);
+            }
+          }
+          Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+          if (cause instanceof IPCException || !(cause instanceof Exception)) {
+            throw new CompletionException(cause);
+          }
+          throw new IPCException("Exception while sending/receiving message to " + target, (Exception) cause);
+        });
+  }
+
+  private HttpRequest createTunnelRequest(String request) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(tunnel)
+        .header("Content-Type", MimeMediaType.APPLICATION_JSON)
+        .header("Accept", MimeMediaType.APPLICATION_JSON);
+    int threshold = compressionThreshold;
+    if (threshold < 0) {
+      return builder.POST(HttpRequest.BodyPublishers.ofString(request, StandardCharsets.UTF_8)).build();
+    }
+    builder.header(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP);
+    if (serverAcceptsGzip && HttpCompression.isWorthCompressing(threshold, request.length())) {
+      return builder.header(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP)
+          .POST(HttpRequest.BodyPublishers.ofByteArray(HttpCompression.gzip(request)))
+          .build();
+    }
+    return builder.POST(HttpRequest.BodyPublishers.ofString(request, StandardCharsets.UTF_8)).build();
+  }
+
+  private String bodyOf(HttpResponse<byte[]> response) throws IOException {
+    // The invoker reports failures in the reply; any other status is
+    // a failure of the tunnel itself, or the rejection of an
+    // overloaded server, which tells when to retry
+    if (response.statusCode() != 200) {
+      // Only the delay-seconds form of Retry-After is used by the server
+      String retryAfter = response.headers().firstValue(Marshalling.RETRY_AFTER_HEADER)
+          .map(String::trim)
+          .filter(seconds -> seconds.matches("\\d{1,9}"))
+          .map(seconds -> " " + Marshalling.describeRetryAfter(Integer.parseInt(seconds)))
+          .orElse("");
+      throw new IPCException(response.statusCode(), "The tunnel at " + tunnel
+          + " failed with status " + response.statusCode() + retryAfter);
+    }
+    serverAcceptsGzip = HttpCompression.acceptsGzip(
+        response.headers().firstValue(HttpCompression.ACCEPT_ENCODING).orElse(null));
+    if (HttpCompression.isGzip(response.headers().firstValue(HttpCompression.CONTENT_ENCODING).orElse(null))) {
+      return HttpCompression.gunzip(response.body());
+    }
+    return new String(response.body(), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() {
+    // The HttpClient closes idle connections by itself
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Thread safe socket client request handler, using the line based
+ * protocol of the FRDS socket request handlers: the request is sent
+ * as one line, and the reply is read as one line.
+ * <p>
+ * Connections are returned to the pool after each request and reused
+ * by later requests. A request is never sent twice, as a connection
+ * ending without a reply does not tell whether the server executed
+ * the request before it closed, or failed. Instead, an idle connection
+ * is checked for being closed by the server before it is reused.
+ * <p>
+ * Some servers, like the FRDS SocketServerRequestHandler, close the
+ * connection after each reply. The first time a connection is
+ * reused, the check waits up to PROBE_MILLIS for such a close; if it
+ * comes, connections are no longer pooled, otherwise later checks do
+ * not wait at all.
+ */
+public class PooledSocketClientRequestHandler extends PooledClientRequestHandler {
+
+  /** How long the first reuse of a connection waits for the server to close it */
+  public static final int PROBE_MILLIS = 100;
+
+  private final Deque<Connection> idle;
+  // Whether the server keeps connections open after a reply;
+  // null until the first connection is reused
+  private volatile Boolean keepsConnections;
+
+  public PooledSocketClientRequestHandler() {
+    idle = new ConcurrentLinkedDeque<>();
+  }
+
+  @Override
+  protected String exchange(String request) throws IOException {
+    Connection connection = reuseIdle();
+    if (connection == null) { connection = connect(open()); }
+    try {
+      connection.send(request);
+      String reply = connection.receive();
+      // The server may have executed the request before closing,
+      // so it is not sent again
+      if (reply == null) {
+        throw new EOFException("The server closed the connection without a reply");
+      }
+      release(connection);
+      return reply;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  // Get an idle connection that the server has not closed, or null
+  private Connection reuseIdle() {
+    Connection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      Boolean keeps = keepsConnections;
+      boolean isClosed = connection.isClosedByServer(keeps == null ? PROBE_MILLIS : 0);
+      if (keeps == null) { keepsConnections = !isClosed; }
+      if (!isClosed) { return connection; }
+      connection.close();
+    }
+    return null;
+  }
+
+  // A socket of a channel, as only a channel tells
+  // whether it is closed without blocking
+  private Socket open() throws IOException {
+    InetSocketAddress address = new InetSocketAddress(hostname, port);
+    if (address.isUnresolved()) { throw new UnknownHostException(hostname); }
+    return SocketChannel.open(address).socket();
+  }
+
+  /**
+   * Create a connection speaking the protocol of this handler, the
+   * line based protocol; subclasses may use another.
+   *
+   * @param socket the connected socket
+   * @return the connection
+   * @throws IOException if the streams of the socket cannot be opened
+   */
+  protected Connection connect(Socket socket) throws IOException {
+    return new LineConnection(socket);
+  }
+
+  private void release(Connection connection) {
+    if (Boolean.FALSE.equals(keepsConnections)) {
+      connection.close();
+      return;
+    }
+    // Most recently used first, so surplus connections time out
+    idle.offerFirst(connection);
+  }
+
+  /**
+   * Get the number of idle connections in the pool.
+   *
+   * @return the number of idle connections
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  @Override
+  public void close() {
+    Connection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      connection.close();
+    }
+  }
+
+  /** A connection to the server, exchanging one request at a time */
+  protected abstract static class Connection {
+    protected final Socket socket;
+
+    protected Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param request the marshalled request
+     * @throws IOException if the request cannot be written
+     */
+    protected abstract void send(String request) throws IOException;
+
+    /**
+     * Read the reply of the request sent.
+     *
+     * @return the marshalled reply, or null if the server closed the
+     * connection before any of the reply was sent
+     * @throws IOException if reading the reply fails
+     */
+    protected abstract String receive() throws IOException;
+
+    // An idle connection has nothing to read, thus the end of the
+    // stream, a stray byte, or a failure all make it unusable
+    boolean isClosedByServer(int waitMillis) {
+      try {
+        if (waitMillis > 0) {
+          socket.setSoTimeout(waitMillis);
+          try {
+            socket.getInputStream().read();
+            return true;
+          } catch (SocketTimeoutException e) {
+            return false;
+          } finally {
+            socket.setSoTimeout(0);
+          }
+        }
+        SocketChannel channel = socket.getChannel();
+        channel.configureBlocking(false);
+        try {
+          return channel.read(ByteBuffer.allocate(1)) != 0;
+        } finally {
+          channel.configureBlocking(true);
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do about it
+      }
+    }
+  }
+
+  private static class LineConnection extends Connection {
+    private final PrintWriter out;
+    private final BufferedReader in;
+
+    LineConnection(Socket socket) throws IOException {
+      super(socket);
+      out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void send(String request) throws IOException {
+      out.println(request);
+      if (out.checkError()) { throw new IOException("Writing the request failed"); }
+    }
+
+    @Override
+    protected String receive() throws IOException {
+      return in.readLine();
+    }
+  }
+}
@@ -18,6 +18,7 @@
 package cloud.cave.config;
 
 import frds.broker.ClientRequestHandler;
+import frds.broker.Requestor;
 
 /** Abstract factory for the client of SkyCave, creating
  * the delegates that are configurable.
@@ -33,4 +34,12 @@ public interface CaveClientFactory {
    */
   ClientRequestHandler createClientRequestHandler();
 
+  /** Create the requestor for the client side.
+   *
+   * @param clientRequestHandler the request handler the
+   *                             requestor sends requests by
+   * @return a new requestor
+   */
+  Requestor createRequestor(ClientRequestHandler clientRequestHandler);
+
 }
@@ -17,10 +17,16 @@
 
 package cloud.cave.config;
 
+import cloud.cave.client.BinaryRequestor;
+import cloud.cave.client.EmbeddedJSONRequestor;
+import cloud.cave.client.PooledClientRequestHandler;
+import cloud.cave.client.PooledHttpClientRequestHandler;
 import cloud.cave.common.Config;
+import cloud.cave.common.HttpCompression;
 import cloud.cave.common.ServerConfiguration;
 import com.baerbak.cpf.PropertyReaderStrategy;
 import frds.broker.ClientRequestHandler;
+import frds.broker.Requestor;
 
 /**
  * Concrete ClientFactory that uses a property reader to create
@@ -45,6 +51,19 @@ public class StandardClientFactory implements CaveClientFactory {
     crh = Config.loadAndInstantiate(propertyReader,
         Config.SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION, crh);
 
+    if (crh instanceof PooledClientRequestHandler) {
+      int poolSize = Integer.parseInt(Config.readOptional(propertyReader,
+          Config.SKYCAVE_CLIENTREQUESTHANDLER_POOL_SIZE,
+          Integer.toString(PooledClientRequestHandler.DEFAULT_POOL_SIZE)));
+      ((PooledClientRequestHandler) crh).setPoolSize(poolSize);
+    }
+    if (crh instanceof PooledHttpClientRequestHandler) {
+      int threshold = Integer.parseInt(Config.readOptional(propertyReader,
+          Config.SKYCAVE_HTTP_COMPRESSION_THRESHOLD,
+          Integer.toString(HttpCompression.DEFAULT_THRESHOLD)));
+      ((PooledHttpClientRequestHandler) crh).setCompressionThreshold(threshold);
+    }
+
     // Read in the configuration for (host,port) of server
     ServerConfiguration config =
         new ServerConfiguration(propertyReader, Config.SKYCAVE_APPSERVER);
@@ -54,4 +73,12 @@ public class StandardClientFactory implements CaveClientFactory {
 
     return crh;
   }
+
+  @Override
+  public Requestor createRequestor(ClientRequestHandler clientRequestHandler) {
+    if (Config.isBinaryMarshallingFormat(propertyReader)) {
+      return new BinaryRequestor(clientRequestHandler);
+    }
+    return new EmbeddedJSONRequestor(clientRequestHandler);
+  }
 }
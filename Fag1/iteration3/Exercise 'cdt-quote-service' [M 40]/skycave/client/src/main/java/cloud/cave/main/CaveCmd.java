@@ -32,7 +32,6 @@ import com.baerbak.cpf.PropertyReaderStrategy;
 import frds.broker.ClientRequestHandler;
 import frds.broker.Requestor;
 import frds.broker.Versioning;
-import frds.broker.marshall.json.StandardJSONRequestor;
 
 /**
  * Main method for a command line client.
@@ -81,7 +80,7 @@ public class CaveCmd {
     factory = new StandardClientFactory(propertyReader);
     
     ClientRequestHandler requestHandler = factory.createClientRequestHandler();
-    Requestor requestor = new StandardJSONRequestor(requestHandler);
+    Requestor requestor = factory.createRequestor(requestHandler);
     Cave cave = new CaveProxy(requestor);
 
     // Set the marshalling format version.
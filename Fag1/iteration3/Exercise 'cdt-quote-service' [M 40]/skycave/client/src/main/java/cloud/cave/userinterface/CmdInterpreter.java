@@ -150,6 +150,8 @@ public class CmdInterpreter {
       UpdateResult isValid = player.digRoom(direction, roomDescription);
       if (isValid == UpdateResult.UPDATE_OK) {
         systemOut.println("You dug a new room in direction " + direction);
+      } else if (isValid == UpdateResult.FAIL_AS_INVALID_POSITION) {
+        systemOut.println("You cannot dig there as it is beyond the edge of the cave");
       } else {
         systemOut
                 .println("You cannot dig there as there is already a room in direction "
@@ -356,9 +358,15 @@ public class CmdInterpreter {
   }
 
   private void tryToMove(Direction direction) {
-    if (player.move(direction) == UpdateResult.UPDATE_OK) {
+    // Move and describe the new room in one round trip, if the
+    // player sends its batches to the server in one request
+    PlayerBatch batch = player.createBatch();
+    PlayerBatch.Result<UpdateResult> moved = batch.move(direction);
+    PlayerBatch.Result<String> description = batch.getShortRoomDescription();
+    batch.execute();
+    if (moved.get() == UpdateResult.UPDATE_OK) {
       systemOut.println("You moved "+direction);
-      systemOut.println(player.getShortRoomDescription());
+      systemOut.println(description.get());
     } else {
       systemOut.println("There is no exit going " + direction);
     }
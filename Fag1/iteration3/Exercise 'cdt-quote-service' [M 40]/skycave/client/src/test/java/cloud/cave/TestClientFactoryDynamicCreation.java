@@ -57,4 +57,19 @@ public class TestClientFactoryDynamicCreation {
     assertThat(crh.toString(), containsString("frds.broker.ipc.socket.SocketClientRequestHandler"));
     assertThat(crh.toString(), containsString("37128"));
   }
+
+  @Test
+  public void shouldCreatePooledClientRequestHandlerOfConfiguredSize() {
+    envReader.setExpectation(Config.SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION,
+            "cloud.cave.client.PooledSocketClientRequestHandler");
+    envReader.setExpectation(Config.SKYCAVE_CLIENTREQUESTHANDLER_POOL_SIZE, "32");
+    envReader.setExpectation(Config.SKYCAVE_APPSERVER,
+            "skycave.mycompany.com:37128");
+
+    CaveClientFactory factory = new StandardClientFactory(envReader);
+    ClientRequestHandler crh = factory.createClientRequestHandler();
+    assertThat(crh.toString(), containsString("PooledSocketClientRequestHandler"));
+    assertThat(crh.toString(), containsString("37128"));
+    assertThat(crh.toString(), containsString("poolSize=32"));
+  }
 }
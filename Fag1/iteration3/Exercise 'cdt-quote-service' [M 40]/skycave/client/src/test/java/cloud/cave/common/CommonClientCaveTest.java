@@ -26,6 +26,8 @@ import frds.broker.Invoker;
 import frds.broker.Requestor;
 import frds.broker.marshall.json.StandardJSONRequestor;
 
+import java.util.function.Function;
+
 public class CommonClientCaveTest {
   /** Create a CaveProxy bound to all-test-doubled
    * cave servant via a local method call IPC broker layer.
@@ -33,13 +35,25 @@ public class CommonClientCaveTest {
    * server side roles
    */
   public static Cave createCaveProxyForTesting() {
+    return createCaveProxyForTesting(StandardJSONRequestor::new);
+  }
+
+  /** Create a CaveProxy bound to all-test-doubled
+   * cave servant via a local method call IPC broker layer,
+   * using the given requestor, like the EmbeddedJSONRequestor.
+   * @param requestorFactory creates the requestor on the
+   * client request handler
+   * @return cave proxy with all test doubles serving
+   * server side roles
+   */
+  public static Cave createCaveProxyForTesting(Function<ClientRequestHandler, Requestor> requestorFactory) {
     // Create the server tier
     ObjectManager objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
 
     Invoker invoker = objMgr.getInvoker();
 
     ClientRequestHandler crh = new LocalMethodCallClientRequestHandler(invoker);
-    Requestor requestor = new StandardJSONRequestor(crh);
+    Requestor requestor = requestorFactory.apply(crh);
 
     // Create the cave proxy
     return new CaveProxy(requestor);
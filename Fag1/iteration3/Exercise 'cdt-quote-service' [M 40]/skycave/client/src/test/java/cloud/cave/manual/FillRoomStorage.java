@@ -42,6 +42,9 @@ import java.util.stream.Collectors;
  * 
  * <p>
  * Do NOT use this on the production server :-)
+ * <p>
+ * As each room costs several round trips, use the server side
+ * bulk loader 'CaveLoad' (gradle task 'loadCave') for large caves.
  * 
  * @author Henrik Baerbak Christensen, Aarhus University.
  * 
@@ -65,8 +68,9 @@ public class FillRoomStorage {
     Requestor requestor = new StandardJSONRequestor(requestHandler);
     Cave cave = new CaveProxy(requestor);
 
-    // Set the marshalling format version.
-    Versioning.SetMarshallingFormatVersion(Marshalling.MARSHALING_VERSION);
+    // Set the marshalling format version; the StandardJSONRequestor
+    // sends the string payload format
+    Versioning.SetMarshallingFormatVersion(Marshalling.STRING_PAYLOAD_MARSHALING_VERSION);
 
     System.out.println("*** Cave Room Generator:  ***");
     System.out.println("  Cpf = "+cpfFileName);
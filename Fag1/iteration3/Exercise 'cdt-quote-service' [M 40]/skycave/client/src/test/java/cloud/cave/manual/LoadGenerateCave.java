@@ -20,6 +20,7 @@ package cloud.cave.manual;
 import java.util.List;
 
 import cloud.cave.client.CaveProxy;
+import cloud.cave.client.PooledClientRequestHandler;
 import cloud.cave.common.Config;
 import cloud.cave.common.PlayerDataTransferObject;
 import cloud.cave.config.CaveClientFactory;
@@ -30,12 +31,16 @@ import com.baerbak.cpf.ChainedPropertyResourceFileReaderStrategy;
 import com.baerbak.cpf.PropertyReaderStrategy;
 import frds.broker.ClientRequestHandler;
 import frds.broker.Requestor;
-import frds.broker.marshall.json.StandardJSONRequestor;
 
 /**
  * Manual load generator on the Cave daemon. You can configure
  * how many users to start, as well as how many iterations
  * of a small scenario that each player should execute.
+ * <p>
+ * All players share one CaveProxy if the CPF configures a thread
+ * safe client request handler, i.e. a PooledClientRequestHandler like
+ * the one of 'load.cpf'. Other handlers are not thread safe, so then
+ * each player gets a CaveProxy and request handler of its own.
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  * 
@@ -56,18 +61,25 @@ public class LoadGenerateCave {
     loader.loadWith(countPlayer, countIteration);
   }
 
+  private CaveClientFactory factory;
   private Cave cave;
+  private boolean isCaveShared;
   
   public LoadGenerateCave(String cpfFilename) {
-    CaveClientFactory factory;
     PropertyReaderStrategy envReader;
 
     envReader = new ChainedPropertyResourceFileReaderStrategy(cpfFilename);
     factory = new StandardClientFactory(envReader);
     
     ClientRequestHandler requestHandler = factory.createClientRequestHandler();
-    Requestor requestor = new StandardJSONRequestor(requestHandler);
+    Requestor requestor = factory.createRequestor(requestHandler);
     cave = new CaveProxy(requestor);
+    isCaveShared = requestHandler instanceof PooledClientRequestHandler;
+    if (! isCaveShared) {
+      System.out.println("*** WARNING: " + requestHandler.getClass().getName() + " is not thread safe,");
+      System.out.println("*** WARNING:   so each player gets a connection of its own. Use a");
+      System.out.println("*** WARNING:   PooledClientRequestHandler, like in load.cpf, to share one.");
+    }
     
     String cfg = cave.describeConfiguration();
     System.out.println("--> Cave initialized; cfg = "+cfg);
@@ -89,7 +101,7 @@ public class LoadGenerateCave {
       // at the same time
       int randomNumber = (int)(Math.random()*99999);
       String loginName = "Player # " + i + "/" + randomNumber;
-      Runnable worker = new SinglePlayerWorker(cave, loginName, countIterations);
+      Runnable worker = new SinglePlayerWorker(isCaveShared ? cave : createCave(), loginName, countIterations);
       Thread t = new Thread(worker);
       t.start();
       players[i] = t;
@@ -106,6 +118,11 @@ public class LoadGenerateCave {
     }
   }
   
+  private Cave createCave() {
+    ClientRequestHandler requestHandler = factory.createClientRequestHandler();
+    return new CaveProxy(factory.createRequestor(requestHandler));
+  }
+
   public static void pauseABit() {
     try {
       long sleeptime = 850 + (long) (Math.random()*500L); // 850-1250 ms 
@@ -139,30 +156,18 @@ class SinglePlayerWorker implements Runnable {
     PlayerDataTransferObject loginResult = null;
     
     // We simulate multiple client but within the
-    // SAME program using multiple threads. The
-    // client side abstracts are NOT written for
-    // concurrency (as clients are expected to have
-    // only a single thread). Therefore we must
-    // avoid deadlocks/race conditions and other
-    // nasty concurrency issues using 'client-side
-    // synchronization': As the methods
-    // are not synchronized themselves, we
-    // synchronize them from the client
-    // side. To get as much concurrency as possible
-    // the synchronization is made 'as small as possible'.
-    Player p = null;
-    synchronized (this) {
-      p = cave.login( loginName, "no-care");
-    }
-    
+    // SAME program using multiple threads; they only
+    // share the cave proxy if its client request handler
+    // is thread safe, as the proxies and requestors
+    // hold no state of their own
+    Player p = cave.login( loginName, "no-care");
+
     System.out.println("*** Entering player "+loginName);
     for (int i = 0; i < countIterations; i++) {
       exploreTheCave(p, i);
     }
     
-    synchronized (this) {
-      cave.logout(p.getID());
-    }
+    cave.logout(p.getID());
     System.out.println("*** Leaving player "+loginName);
   }
 
@@ -170,47 +175,39 @@ class SinglePlayerWorker implements Runnable {
     Direction d; List<Direction> exits; UpdateResult isValid;
     
     // move to a random existing room
-    synchronized (this) {
-      exits = player.getExitSet();
-      int n = randomBetween0AndN(exits.size());
-      d = exits.get(n);
-      isValid = player.move(d);
-      assert isValid == UpdateResult.UPDATE_OK;
-      System.out.println("- Player "+ player.getName()+ " moved "+d+"\n  - to '"+player.getShortRoomDescription()+"'");
-    }
+    exits = player.getExitSet();
+    int n = randomBetween0AndN(exits.size());
+    d = exits.get(n);
+    isValid = player.move(d);
+    assert isValid == UpdateResult.UPDATE_OK;
+    System.out.println("- Player "+ player.getName()+ " moved "+d+"\n  - to '"+player.getShortRoomDescription()+"'");
     pauseABit();
     
     // try to dig a room
-    synchronized (this) {
-      exits = player.getExitSet();
-      if (exits.size() < 6) {
-        // find a direction without a room
-        for (Direction potential : Direction.values()) {
-          if (!exits.contains(potential)) {
-            d = potential;
-          }
+    exits = player.getExitSet();
+    if (exits.size() < 6) {
+      // find a direction without a room
+      for (Direction potential : Direction.values()) {
+        if (!exits.contains(potential)) {
+          d = potential;
         }
-
-        // Dig the room
-        UpdateResult
-        result = player.digRoom(d, "You are in the room made by " + player.getName() + " in iteration " + iteration);
-        assert result == UpdateResult.UPDATE_OK;
-        System.out.println("- Player " + player.getName() + " dug room at " + player.getPosition());
-        // and move there to avoid being too much stuck
-        assert player.move(d) == UpdateResult.UPDATE_OK;
       }
+
+      // Dig the room
+      UpdateResult
+      result = player.digRoom(d, "You are in the room made by " + player.getName() + " in iteration " + iteration);
+      assert result == UpdateResult.UPDATE_OK;
+      System.out.println("- Player " + player.getName() + " dug room at " + player.getPosition());
+      // and move there to avoid being too much stuck
+      assert player.move(d) == UpdateResult.UPDATE_OK;
     }
     pauseABit();
     // look around!
-    synchronized (this) {
-      player.getLongRoomDescription();
-      player.getExitSet();
-    }
+    player.getLongRoomDescription();
+    player.getExitSet();
     pauseABit();
-    synchronized (this) {
-      player.getPlayersHere();
-      player.getPosition();
-    }
+    player.getPlayersHere();
+    player.getPosition();
   }
 
   private void pauseABit() {
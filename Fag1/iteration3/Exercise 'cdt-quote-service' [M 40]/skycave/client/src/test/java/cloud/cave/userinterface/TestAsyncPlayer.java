@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import javax.servlet.http.HttpServletResponse;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import cloud.cave.client.*;
+import cloud.cave.common.CommonCaveTests;
+import cloud.cave.common.PlayerSessionExpiredException;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.invoker.AdmissionController;
+import cloud.cave.invoker.SkyCaveRootInvoker;
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Testing the asynchronous player API, against a server side cave
+ * of test doubles, whose replies are delivered on other threads.
+ */
+public class TestAsyncPlayer {
+
+  private ExecutorService serverThreads;
+  private SkyCaveRootInvoker invoker;
+  private AsyncCaveProxy cave;
+
+  @BeforeEach
+  public void setUp() {
+    serverThreads = Executors.newFixedThreadPool(4);
+    invoker = (SkyCaveRootInvoker) CommonCaveTests.createTestDoubledConfiguredCave().getInvoker();
+    ClientRequestHandler serverCrh = new LocalMethodCallClientRequestHandler(invoker);
+    AsyncClientRequestHandler crh = new AsyncClientRequestHandler() {
+      @Override
+      public CompletableFuture<String> sendToServerAsync(String request) {
+        return CompletableFuture.supplyAsync(() -> serverCrh.sendToServerAndAwaitReply(request), serverThreads);
+      }
+      @Override
+      public String sendToServerAndAwaitReply(String request) {
+        return serverCrh.sendToServerAndAwaitReply(request);
+      }
+      @Override
+      public void setServer(String hostname, int port) { }
+      @Override
+      public void close() { }
+    };
+    cave = new AsyncCaveProxy(new AsyncRequestor(crh));
+  }
+
+  @AfterEach
+  public void tearDown() {
+    serverThreads.shutdown();
+  }
+
+  @Test
+  public void shouldCompleteFuturesOfPlayerOperations() {
+    AsyncPlayer player = cave.login(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD).join();
+    assertThat(player.getAuthenticationStatus(), is(LoginResult.LOGIN_SUCCESS));
+    assertThat(player.getName(), is("Mikkel"));
+
+    String description = player.move(Direction.EAST)
+        .thenCompose(result -> player.getShortRoomDescription())
+        .join();
+    assertThat(description, is("You are inside a building, a well house for a large spring."));
+
+    CompletableFuture<String> position = player.getPosition();
+    CompletableFuture<List<Direction>> exits = player.getExitSet();
+    CompletableFuture<List<String>> playersHere = player.getPlayersHere();
+    CompletableFuture<Void> added = player.addMessage("Hello");
+    assertThat(position.join(), is("(1,0,0)"));
+    assertThat(exits.join().contains(Direction.WEST), is(true));
+    assertThat(playersHere.join(), hasItem("Mikkel"));
+    added.join();
+    assertThat(player.getMessageList(0).join().size(), is(1));
+    assertThat(player.getRoomSnapshot().join().getPosition(), is("(1,0,0)"));
+
+    assertThat(cave.logout(player.getID()).join(), is(LogoutResult.SUCCESS));
+  }
+
+  @Test
+  public void shouldRejectUnknownLogin() {
+    AsyncPlayer player = cave.login(TestConstants.MIKKEL_AARSKORT, "wrong password").join();
+    assertThat(player.getAuthenticationStatus(), is(LoginResult.LOGIN_FAILED_UNKNOWN_SUBSCRIPTION));
+  }
+
+  @Test
+  public void shouldFailFuturesOfExpiredSessions() {
+    AsyncPlayer first = cave.login(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD).join();
+    AsyncPlayer second = cave.login(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD).join();
+
+    CompletionException failure = assertThrows(CompletionException.class,
+        () -> first.move(Direction.EAST).join());
+    assertThat(failure.getCause() instanceof PlayerSessionExpiredException, is(true));
+    assertThat(second.move(Direction.EAST).join(), is(UpdateResult.UPDATE_OK));
+  }
+
+  @Test
+  public void shouldKeepManySessionsInFlight() {
+    List<AsyncPlayer> players = new ArrayList<>();
+    for (String loginName : Arrays.asList(TestConstants.MIKKEL_AARSKORT,
+        TestConstants.MAGNUS_AARSKORT, TestConstants.MATHILDE_AARSKORT)) {
+      players.add(cave.login(loginName, passwordOf(loginName)).join());
+    }
+    List<CompletableFuture<String>> positions = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      for (AsyncPlayer player : players) { positions.add(player.getPosition()); }
+    }
+    CompletableFuture.allOf(positions.toArray(new CompletableFuture<?>[0])).join();
+    for (CompletableFuture<String> position : positions) {
+      assertThat(position.join(), is("(0,0,0)"));
+    }
+  }
+
+  @Test
+  public void shouldResendAfterRetryAfterWhenServerIsOverloaded() {
+    AsyncPlayer player = cave.login(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD).join();
+    List<AdmissionController.Permit> permits = overloadServer();
+    // The load is gone before the Retry-After delay has passed
+    ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+    releaser.schedule(() -> permits.forEach(AdmissionController.Permit::release),
+        200, TimeUnit.MILLISECONDS);
+
+    long start = System.nanoTime();
+    assertThat(player.getPosition().join(), is("(0,0,0)"));
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        >= TimeUnit.SECONDS.toMillis(AdmissionController.RETRY_AFTER_SECONDS), is(true));
+    releaser.shutdown();
+  }
+
+  @Test
+  public void shouldGiveUpWhenServerStaysOverloaded() {
+    AsyncPlayer player = cave.login(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD).join();
+    overloadServer();
+    CompletionException failure = assertThrows(CompletionException.class,
+        () -> player.getPosition().join());
+    assertThat(failure.getCause() instanceof IPCException, is(true));
+    assertThat(((IPCException) failure.getCause()).getStatusCode(),
+        is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+  }
+
+  // Hold all permits of a fixed limit admission controller
+  private List<AdmissionController.Permit> overloadServer() {
+    AdmissionController controller = new AdmissionController(4, 4, 4);
+    invoker.setAdmissionController(controller);
+    List<AdmissionController.Permit> permits = new ArrayList<>();
+    AdmissionController.Permit permit;
+    while ((permit = controller.tryAcquire(AdmissionController.Priority.HIGH)) != null) {
+      permits.add(permit);
+    }
+    return permits;
+  }
+
+  private String passwordOf(String loginName) {
+    if (loginName.equals(TestConstants.MIKKEL_AARSKORT)) { return TestConstants.MIKKEL_PASSWORD; }
+    if (loginName.equals(TestConstants.MAGNUS_AARSKORT)) { return TestConstants.MAGNUS_PASSWORD; }
+    return TestConstants.MATHILDE_PASSWORD;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import cloud.cave.client.BinaryRequestor;
+import cloud.cave.client.CaveProxy;
+import cloud.cave.common.BinaryMarshalling;
+import cloud.cave.common.CommonCaveTests;
+import cloud.cave.common.HelperMethods;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.invoker.BinarySkyCaveRootInvoker;
+import com.google.gson.Gson;
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Testing the binary requestor against the binary root
+ * invoker, and its fall back to JSON for a server that
+ * does not know the binary format, but only for that.
+ */
+public class TestBinaryRequestor {
+
+  private ObjectManager objMgr;
+  private String lastRequest;
+  private boolean failNextRequest;
+
+  @BeforeEach
+  public void setUp() {
+    objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+  }
+
+  // Calls the invoker directly, and records the last request on the wire
+  private ClientRequestHandler createSpyCrh(Invoker invoker) {
+    return new ClientRequestHandler() {
+      @Override
+      public String sendToServerAndAwaitReply(String request) {
+        lastRequest = request;
+        if (failNextRequest) {
+          failNextRequest = false;
+          return new Gson().toJson(new ReplyObject(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Server failed handling the request"));
+        }
+        return invoker.handleRequest(request);
+      }
+      @Override
+      public void setServer(String hostname, int port) { }
+      @Override
+      public void close() { }
+    };
+  }
+
+  @Test
+  public void shouldPlayTheCaveInBinary() {
+    Invoker invoker = new BinarySkyCaveRootInvoker(objMgr);
+    Cave cave = new CaveProxy(new BinaryRequestor(createSpyCrh(invoker)));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+    assertThat(player.getName(), is("Mikkel"));
+
+    assertThat(player.move(Direction.NORTH), is(UpdateResult.UPDATE_OK));
+    assertThat(player.getPosition(), is("(0,1,0)"));
+    assertThat(player.getExitSet().contains(Direction.SOUTH), is(true));
+    assertThat(BinaryMarshalling.isBinary(lastRequest), is(true));
+
+    Player other = cave.login(TestConstants.MIKKEL_AARSKORT, "wrong password");
+    assertThat(other.getAuthenticationStatus(), is(LoginResult.LOGIN_FAILED_UNKNOWN_SUBSCRIPTION));
+  }
+
+  @Test
+  public void shouldFallBackToJsonForJsonOnlyServer() {
+    Cave cave = new CaveProxy(new BinaryRequestor(createSpyCrh(objMgr.getInvoker())));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+    assertThat(player.getAuthenticationStatus(), is(LoginResult.LOGIN_SUCCESS));
+
+    assertThat(player.getPosition(), is("(0,0,0)"));
+    assertThat(BinaryMarshalling.isBinary(lastRequest), is(false));
+  }
+
+  @Test
+  public void shouldKeepBinaryAfterOtherJsonFailures() {
+    Invoker invoker = new BinarySkyCaveRootInvoker(objMgr);
+    Cave cave = new CaveProxy(new BinaryRequestor(createSpyCrh(invoker)));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+
+    // The server request handler answers an invoker failure in JSON
+    failNextRequest = true;
+    IPCException exception = assertThrows(IPCException.class, player::getPosition);
+    assertThat(exception.getStatusCode(), is(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+    assertThat(exception.getMessage(), containsString("Server failed"));
+
+    assertThat(player.getPosition(), is("(0,0,0)"));
+    assertThat(BinaryMarshalling.isBinary(lastRequest), is(true));
+  }
+}
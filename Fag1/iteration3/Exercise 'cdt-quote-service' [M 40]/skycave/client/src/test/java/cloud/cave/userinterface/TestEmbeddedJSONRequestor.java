@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import cloud.cave.client.CaveProxy;
+import cloud.cave.client.EmbeddedJSONRequestor;
+import cloud.cave.common.CommonCaveTests;
+import cloud.cave.common.HelperMethods;
+import cloud.cave.common.Marshalling;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import com.google.gson.*;
+import frds.broker.ClientRequestHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ * Testing the version 6 marshalling format, with arguments and
+ * results embedded as JSON trees, and the fall back to the string
+ * payload format for servers that do not know it.
+ */
+public class TestEmbeddedJSONRequestor {
+
+  private ClientRequestHandler serverCrh;
+  private String lastRequest, lastReply;
+  private boolean actAsOldServer;
+
+  @BeforeEach
+  public void setUp() {
+    serverCrh = new LocalMethodCallClientRequestHandler(
+        CommonCaveTests.createTestDoubledConfiguredCave().getInvoker());
+    actAsOldServer = false;
+  }
+
+  // A spy on the wire, which may also act as a server that
+  // only knows the string payload format
+  private ClientRequestHandler createSpyCrh() {
+    return new ClientRequestHandler() {
+      @Override
+      public String sendToServerAndAwaitReply(String request) {
+        lastRequest = request;
+        JsonObject json = JsonParser.parseString(request).getAsJsonObject();
+        if (actAsOldServer && json.has(Marshalling.ARGUMENTS_KEY)) {
+          JsonObject reject = new JsonObject();
+          reject.addProperty(Marshalling.RESPONSE_CODE_KEY, 400);
+          reject.addProperty(Marshalling.VERSION_IDENTITY_KEY, Marshalling.STRING_PAYLOAD_MARSHALING_VERSION);
+          reject.addProperty(Marshalling.ERROR_DESCRIPTION_KEY, "payload is not a RequestObject");
+          lastReply = reject.toString();
+        } else {
+          lastReply = serverCrh.sendToServerAndAwaitReply(request);
+        }
+        return lastReply;
+      }
+      @Override
+      public void setServer(String hostname, int port) { }
+      @Override
+      public void close() { }
+    };
+  }
+
+  @Test
+  public void shouldEmbedArgumentsAndResultsAsJson() {
+    Cave cave = new CaveProxy(new EmbeddedJSONRequestor(createSpyCrh()));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+
+    player.move(Direction.NORTH);
+    JsonObject request = JsonParser.parseString(lastRequest).getAsJsonObject();
+    assertThat(request.has(Marshalling.PAYLOAD_KEY), is(false));
+    assertThat(request.get(Marshalling.ARGUMENTS_KEY).getAsJsonArray().get(0).getAsString(), is("NORTH"));
+
+    assertThat(player.getExitSet().contains(Direction.SOUTH), is(true));
+    JsonObject reply = JsonParser.parseString(lastReply).getAsJsonObject();
+    assertThat(reply.get(Marshalling.VERSION_IDENTITY_KEY).getAsInt(), is(Marshalling.MARSHALING_VERSION));
+    assertThat(reply.get(Marshalling.RESULT_KEY).isJsonArray(), is(true));
+  }
+
+  @Test
+  public void shouldFallBackToStringPayloadForOldServer() {
+    actAsOldServer = true;
+    Cave cave = new CaveProxy(new EmbeddedJSONRequestor(createSpyCrh()));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+    assertThat(player.getAuthenticationStatus(), is(LoginResult.LOGIN_SUCCESS));
+
+    assertThat(player.getPosition(), is("(0,0,0)"));
+    JsonObject request = JsonParser.parseString(lastRequest).getAsJsonObject();
+    assertThat(request.has(Marshalling.ARGUMENTS_KEY), is(false));
+    assertThat(request.get(Marshalling.PAYLOAD_KEY).isJsonPrimitive(), is(true));
+  }
+
+  @Test
+  public void shouldReportErrorsInEmbeddedFormat() {
+    Cave cave = new CaveProxy(new EmbeddedJSONRequestor(createSpyCrh()));
+    Player player = cave.login(TestConstants.MIKKEL_AARSKORT, "wrong password");
+    assertThat(player.getAuthenticationStatus(), is(LoginResult.LOGIN_FAILED_UNKNOWN_SUBSCRIPTION));
+    JsonObject reply = JsonParser.parseString(lastReply).getAsJsonObject();
+    assertThat(reply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt(), is(401));
+    assertThat(reply.get(Marshalling.VERSION_IDENTITY_KEY).getAsInt(), is(Marshalling.MARSHALING_VERSION));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import cloud.cave.client.PlayerBatchProxy;
+import cloud.cave.client.PlayerProxy;
+import cloud.cave.common.*;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.TestConstants;
+import frds.broker.IPCException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+
+/**
+ * Test that a batch of player operations is executed in order
+ * by a single request.
+ */
+public class TestPlayerBatch {
+
+  private Cave cave;
+  private PlayerProxy player;
+
+  @BeforeEach
+  public void setUp() {
+    cave = CommonClientCaveTest.createCaveProxyForTesting();
+    player = (PlayerProxy) HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+  }
+
+  @Test
+  public void shouldExecuteOperationsInOrder() {
+    PlayerBatch batch = player.createBatch();
+    PlayerBatch.Result<String> before = batch.getPosition();
+    PlayerBatch.Result<UpdateResult> moved = batch.move(Direction.EAST);
+    PlayerBatch.Result<String> description = batch.getShortRoomDescription();
+    PlayerBatch.Result<List<Direction>> exits = batch.getExitSet();
+    PlayerBatch.Result<List<String>> playersHere = batch.getPlayersHere();
+    PlayerBatch.Result<List<WallMessageDataTransferObject>> wall = batch.getMessageList(0);
+    batch.execute();
+
+    assertThat(before.get(), is("(0,0,0)"));
+    assertThat(moved.get(), is(UpdateResult.UPDATE_OK));
+    assertThat(description.get(), is("You are inside a building, a well house for a large spring."));
+    assertThat(exits.get().contains(Direction.WEST), is(true));
+    assertThat(playersHere.get(), hasItem("Mikkel"));
+    assertThat(wall.get().size(), is(0));
+    assertThat(player.getPosition(), is("(1,0,0)"));
+  }
+
+  @Test
+  public void shouldReportFailingOperationsSeparately() {
+    PlayerBatchProxy batch = player.createBatch();
+    PlayerBatch.Result<String> unknown = batch.add("player-fly", String.class);
+    PlayerBatch.Result<Object> nested = batch.add(MarshallingKeys.BATCH_METHOD_KEY, Object.class);
+    PlayerBatch.Result<String> position = batch.getPosition();
+
+    assertThrows(IllegalStateException.class, position::get);
+    batch.execute();
+
+    IPCException exc = assertThrows(IPCException.class, unknown::get);
+    assertThat(exc.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    assertThat(exc.getMessage(), containsString("'player-fly' is unknown"));
+    assertThrows(IPCException.class, nested::get);
+    assertThat(position.get(), is("(0,0,0)"));
+
+    assertThrows(IllegalStateException.class, batch::execute);
+  }
+
+  @Test
+  public void shouldReportMalformedOperationsSeparately() {
+    PlayerBatchProxy batch = player.createBatch();
+    PlayerBatch.Result<String> nameless = batch.add(null, String.class);
+    PlayerBatch.Result<UpdateResult> badDirection = batch.add(MarshallingKeys.MOVE_METHOD_KEY,
+        UpdateResult.class, "NOWHERE");
+    PlayerBatch.Result<String> noIndex = batch.add(MarshallingKeys.GET_QUOTE_METHOD_KEY, String.class);
+    PlayerBatch.Result<UpdateResult> moved = batch.move(Direction.EAST);
+    batch.execute();
+
+    IPCException exc = assertThrows(IPCException.class, nameless::get);
+    assertThat(exc.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    exc = assertThrows(IPCException.class, badDirection::get);
+    assertThat(exc.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    exc = assertThrows(IPCException.class, noIndex::get);
+    assertThat(exc.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    // The operations after them are still executed
+    assertThat(moved.get(), is(UpdateResult.UPDATE_OK));
+    assertThat(player.getPosition(), is("(1,0,0)"));
+  }
+
+  @Test
+  public void shouldRejectBatchOfExpiredSession() {
+    // A second login expires the session of the first
+    HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+    PlayerBatchProxy batch = player.createBatch();
+    batch.getPosition();
+    assertThrows(PlayerSessionExpiredException.class, batch::execute);
+  }
+
+  @Test
+  public void shouldExecuteDefaultBatchOperationByOperation() {
+    // The servant has the default batch of the Player interface
+    Cave servant = CommonCaveTests.createTestDoubledConfiguredCave().getCave();
+    Player magnus = HelperMethods.loginPlayer(servant, TestConstants.MAGNUS_AARSKORT);
+    PlayerBatch batch = magnus.createBatch();
+    assertThat(batch instanceof SequentialPlayerBatch, is(true));
+
+    PlayerBatch.Result<String> before = batch.getPosition();
+    PlayerBatch.Result<UpdateResult> moved = batch.move(Direction.EAST);
+    PlayerBatch.Result<Object> failing = ((SequentialPlayerBatch) batch).add(() -> {
+      throw new CaveException("Failing operation");
+    });
+    PlayerBatch.Result<String> description = batch.getShortRoomDescription();
+    assertThrows(IllegalStateException.class, before::get);
+    batch.execute();
+
+    assertThat(before.get(), is("(0,0,0)"));
+    assertThat(moved.get(), is(UpdateResult.UPDATE_OK));
+    assertThrows(CaveException.class, failing::get);
+    assertThat(description.get(), is("You are inside a building, a well house for a large spring."));
+    assertThat(magnus.getPosition(), is("(1,0,0)"));
+    assertThrows(IllegalStateException.class, batch::execute);
+  }
+}
@@ -49,10 +49,18 @@ public class TestPlayerProxy {
   private Player player;
   private Cave cave;
   
+  /** Create the cave proxy the tests run against; overridden
+   * to run them with other requestors.
+   * @return the cave proxy
+   */
+  protected Cave createCaveProxy() {
+    return CommonClientCaveTest.createCaveProxyForTesting();
+  }
+
   @BeforeEach
   public void setUp() throws Exception {
     // Given a Cave Proxy
-    cave = CommonClientCaveTest.createCaveProxyForTesting();
+    cave = createCaveProxy();
     player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
   }
 
@@ -107,6 +115,11 @@ public class TestPlayerProxy {
     CommonPlayerTests.shouldSeeMathildeComingInAndOutOfRoomDuringSession(cave, player);
   }
   
+  @Test
+  public void shouldProvideRoomSnapshot() {
+    CommonPlayerTests.shouldProvideRoomSnapshot(player);
+  }
+
   @Test
   public void shouldShowValidExitsFromEntryRoom() {
     CommonPlayerTests.shouldGetProperExitSet(player);
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import cloud.cave.client.EmbeddedJSONRequestor;
+import cloud.cave.common.CommonClientCaveTest;
+import cloud.cave.domain.Cave;
+
+/**
+ * Run the PlayerProxy tests with the EmbeddedJSONRequestor, that is,
+ * in the version 6 marshalling format.
+ */
+public class TestPlayerProxyWithEmbeddedJSON extends TestPlayerProxy {
+
+  @Override
+  protected Cave createCaveProxy() {
+    return CommonClientCaveTest.createCaveProxyForTesting(EmbeddedJSONRequestor::new);
+  }
+}
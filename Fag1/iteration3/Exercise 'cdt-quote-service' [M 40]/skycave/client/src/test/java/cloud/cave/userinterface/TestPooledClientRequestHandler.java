@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.userinterface;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.cave.client.*;
+import cloud.cave.common.CommonCaveTests;
+import cloud.cave.common.HttpCompression;
+import cloud.cave.common.HelperMethods;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.TestConstants;
+import cloud.cave.invoker.NioSocketServerRequestHandler;
+import com.sun.net.httpserver.HttpServer;
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import frds.broker.Invoker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Testing the thread safe, pooled client request handlers against
+ * small in-test servers on the loop back interface.
+ */
+public class TestPooledClientRequestHandler {
+
+  private ServerSocket serverSocket;
+  private HttpServer httpServer;
+  private final AtomicInteger acceptedConnections = new AtomicInteger();
+
+  // Echoes the request; thread safe
+  private final Invoker echo = request -> "echo:" + request;
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    if (serverSocket != null) { serverSocket.close(); }
+    if (httpServer != null) { httpServer.stop(0); }
+  }
+
+  // A line based socket server, which keeps connections open
+  // for more requests, or closes them after each reply
+  private int startSocketServer(Invoker invoker, boolean keepConnections) throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = serverSocket.accept();
+          acceptedConnections.incrementAndGet();
+          Thread worker = new Thread(() -> serve(socket, invoker, keepConnections));
+          worker.setDaemon(true);
+          worker.start();
+        }
+      } catch (IOException e) {
+        // Server socket closed
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return serverSocket.getLocalPort();
+  }
+
+  private void serve(Socket socket, Invoker invoker, boolean keepConnections) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+      String request;
+      while ((request = in.readLine()) != null) {
+        out.println(invoker.handleRequest(request));
+        if (!keepConnections) { break; }
+      }
+    } catch (IOException e) {
+      // Connection closed
+    }
+  }
+
+  @Test
+  public void shouldReuseSocketConnections() throws IOException {
+    int port = startSocketServer(CommonCaveTests.createTestDoubledConfiguredCave().getInvoker(), true);
+    PooledSocketClientRequestHandler crh = new PooledSocketClientRequestHandler();
+    crh.setServer("localhost", port);
+
+    Cave cave = new CaveProxy(new EmbeddedJSONRequestor(crh));
+    Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+    for (int i = 0; i < 10; i++) {
+      assertThat(player.getPosition(), is("(0,0,0)"));
+    }
+    assertThat(acceptedConnections.get(), is(1));
+    assertThat(crh.getIdleCount(), is(1));
+    crh.close();
+    assertThat(crh.getIdleCount(), is(0));
+  }
+
+  @Test
+  public void shouldSendFramesToNioServer() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    NioSocketServerRequestHandler srh = new NioSocketServerRequestHandler();
+    srh.setPortAndInvoker(port, CommonCaveTests.createTestDoubledConfiguredCave().getInvoker());
+    srh.start();
+    try {
+      FramedSocketClientRequestHandler crh = new FramedSocketClientRequestHandler();
+      crh.setPoolSize(4);
+      crh.setServer("localhost", port);
+
+      Cave cave = new CaveProxy(new EmbeddedJSONRequestor(crh));
+      Player player = HelperMethods.loginPlayer(cave, TestConstants.MIKKEL_AARSKORT);
+      assertThat(player.move(Direction.NORTH), is(UpdateResult.UPDATE_OK));
+      assertThat(player.getPosition(), is("(0,1,0)"));
+      assertThat(crh.getIdleCount(), is(1));
+      assertThat(srh.getConnectionCount(), is(1));
+      crh.close();
+    } finally {
+      srh.stop();
+    }
+  }
+
+  @Test
+  public void shouldBoundConnectionsOfManyThreads() throws Exception {
+    int port = startSocketServer(echo, true);
+    PooledSocketClientRequestHandler crh = new PooledSocketClientRequestHandler();
+    crh.setPoolSize(4);
+    crh.setServer("localhost", port);
+
+    assertThat(sendConcurrently(crh, 16, 50), is(16 * 50));
+    assertThat(acceptedConnections.get() <= 4, is(true));
+  }
+
+  @Test
+  public void shouldHandleServerClosingConnections() throws IOException {
+    int port = startSocketServer(echo, false);
+    PooledSocketClientRequestHandler crh = new PooledSocketClientRequestHandler();
+    crh.setServer("localhost", port);
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(crh.sendToServerAndAwaitReply("request " + i), is("echo:request " + i));
+    }
+    // Each closed connection is replaced, and once the server is seen
+    // to close them, connections are no longer kept
+    assertThat(acceptedConnections.get(), is(5));
+    assertThat(crh.getIdleCount(), is(0));
+  }
+
+  @Test
+  public void shouldNotResendRequestsClosedWithoutReply() throws IOException {
+    AtomicInteger executed = new AtomicInteger();
+    // Closes the connection without a reply after executing,
+    // as a server crashing after it executed the request would
+    int port = startSocketServer(request -> {
+      executed.incrementAndGet();
+      if (request.equals("crash")) { throw new IllegalStateException("Crashed after executing"); }
+      return "echo:" + request;
+    }, true);
+    PooledSocketClientRequestHandler crh = new PooledSocketClientRequestHandler();
+    crh.setServer("localhost", port);
+
+    assertThat(crh.sendToServerAndAwaitReply("hello"), is("echo:hello"));
+    assertThrows(IPCException.class, () -> crh.sendToServerAndAwaitReply("crash"));
+    assertThat(executed.get(), is(2));
+    assertThat(acceptedConnections.get(), is(1));
+
+    // The server keeps connections, so pooling goes on
+    assertThat(crh.sendToServerAndAwaitReply("again"), is("echo:again"));
+    assertThat(crh.getIdleCount(), is(1));
+  }
+
+  @Test
+  public void shouldNotResendRequestsTheServerMayHaveExecuted() throws Exception {
+    AtomicInteger executed = new AtomicInteger();
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread server = new Thread(() -> {
+      try (Socket s = serverSocket.accept()) {
+        acceptedConnections.incrementAndGet();
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+        out.println(echo.handleRequest(in.readLine()));
+        executed.incrementAndGet();
+        in.readLine();
+        executed.incrementAndGet();
+        // Fails after executing the second request, resetting the connection
+        s.setSoLinger(true, 0);
+      } catch (IOException e) {
+        // Server socket closed
+      }
+      try {
+        while (true) {
+          serverSocket.accept().close();
+          acceptedConnections.incrementAndGet();
+        }
+      } catch (IOException e) {
+        // Server socket closed
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    PooledSocketClientRequestHandler crh = new PooledSocketClientRequestHandler();
+    crh.setServer("localhost", serverSocket.getLocalPort());
+
+    assertThat(crh.sendToServerAndAwaitReply("first"), is("echo:first"));
+    assertThrows(IPCException.class, () -> crh.sendToServerAndAwaitReply("second"));
+    assertThat(executed.get(), is(2));
+    assertThat(acceptedConnections.get(), is(1));
+    assertThat(crh.getIdleCount(), is(0));
+  }
+
+  @Test
+  public void shouldTunnelThroughHttp() throws Exception {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+    httpServer.createContext(PooledHttpClientRequestHandler.TUNNEL_PATH, exchange -> {
+      String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      byte[] reply = echo.handleRequest(request).getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, reply.length);
+      exchange.getResponseBody().write(reply);
+      exchange.close();
+    });
+    httpServer.setExecutor(Executors.newFixedThreadPool(4));
+    httpServer.start();
+
+    PooledHttpClientRequestHandler crh = new PooledHttpClientRequestHandler();
+    crh.setPoolSize(4);
+    crh.setServer("localhost", httpServer.getAddress().getPort());
+
+    assertThat(crh.sendToServerAndAwaitReply("{}"), is("echo:{}"));
+    assertThat(sendConcurrently(crh, 8, 25), is(8 * 25));
+  }
+
+  @Test
+  public void shouldBoundAsynchronousRequestsThroughHttp() throws Exception {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+    httpServer.createContext(PooledHttpClientRequestHandler.TUNNEL_PATH, exchange -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      byte[] reply = echo.handleRequest(request).getBytes(StandardCharsets.UTF_8);
+      inFlight.decrementAndGet();
+      exchange.sendResponseHeaders(200, reply.length);
+      exchange.getResponseBody().write(reply);
+      exchange.close();
+    });
+    httpServer.setExecutor(Executors.newFixedThreadPool(16));
+    httpServer.start();
+
+    PooledHttpClientRequestHandler crh = new PooledHttpClientRequestHandler();
+    crh.setPoolSize(4);
+    crh.setServer("localhost", httpServer.getAddress().getPort());
+
+    // Sent from this thread alone, without waiting for replies
+    List<CompletableFuture<String>> replies = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      replies.add(crh.sendToServerAsync("request " + i));
+    }
+    for (int i = 0; i < 200; i++) {
+      assertThat(replies.get(i).get(10, TimeUnit.SECONDS), is("echo:request " + i));
+    }
+    assertThat(maxInFlight.get() <= 4, is(true));
+  }
+
+  @Test
+  public void shouldFailAsynchronousRequestsOfBrokenTunnel() throws Exception {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+    httpServer.createContext("/", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    httpServer.start();
+
+    PooledHttpClientRequestHandler crh = new PooledHttpClientRequestHandler();
+    crh.setServer("localhost", httpServer.getAddress().getPort());
+
+    ExecutionException failure = assertThrows(ExecutionException.class,
+        () -> crh.sendToServerAsync("{}").get(10, TimeUnit.SECONDS));
+    assertThat(((IPCException) failure.getCause()).getStatusCode(), is(404));
+  }
+
+  @Test
+  public void shouldNegotiateGzipCompression() throws Exception {
+    List<String> requestEncodings = new CopyOnWriteArrayList<>();
+    List<String> replyEncodings = new CopyOnWriteArrayList<>();
+    // Negotiates as the CaveUriTunnelServerRequestHandler, with a
+    // threshold of 100 bytes
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+    httpServer.createContext(PooledHttpClientRequestHandler.TUNNEL_PATH, exchange -> {
+      String contentEncoding = exchange.getRequestHeaders().getFirst(HttpCompression.CONTENT_ENCODING);
+      requestEncodings.add(String.valueOf(contentEncoding));
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      String request = HttpCompression.isGzip(contentEncoding)
+          ? HttpCompression.gunzip(body) : new String(body, StandardCharsets.UTF_8);
+      String reply = echo.handleRequest(request);
+      byte[] replyBody = reply.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP);
+      if (HttpCompression.acceptsGzip(exchange.getRequestHeaders().getFirst(HttpCompression.ACCEPT_ENCODING))
+          && HttpCompression.isWorthCompressing(100, reply.length())) {
+        exchange.getResponseHeaders().set(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP);
+        replyBody = HttpCompression.gzip(reply);
+      }
+      replyEncodings.add(String.valueOf(exchange.getResponseHeaders().getFirst(HttpCompression.CONTENT_ENCODING)));
+      exchange.sendResponseHeaders(200, replyBody.length);
+      exchange.getResponseBody().write(replyBody);
+      exchange.close();
+    });
+    httpServer.start();
+
+    PooledHttpClientRequestHandler crh = new PooledHttpClientRequestHandler();
+    crh.setCompressionThreshold(100);
+    crh.setServer("localhost", httpServer.getAddress().getPort());
+
+    String large = String.join(" ", Collections.nCopies(100, "You are in a maze of twisty little passages."));
+    // Requests are sent raw until the server has told it accepts gzip
+    assertThat(crh.sendToServerAndAwaitReply(large), is("echo:" + large));
+    // Small bodies are sent raw
+    assertThat(crh.sendToServerAndAwaitReply("small"), is("echo:small"));
+    assertThat(crh.sendToServerAsync(large).get(10, TimeUnit.SECONDS), is("echo:" + large));
+    assertThat(requestEncodings, is(List.of("null", "null", "gzip")));
+    assertThat(replyEncodings, is(List.of("gzip", "null", "gzip")));
+
+    // Off turns compression of both directions off
+    crh.setCompressionThreshold(-1);
+    assertThat(crh.sendToServerAndAwaitReply(large), is("echo:" + large));
+    assertThat(requestEncodings.get(3), is("null"));
+    assertThat(replyEncodings.get(3), is("null"));
+  }
+
+  @Test
+  public void shouldParseAcceptEncoding() {
+    assertThat(HttpCompression.acceptsGzip("gzip"), is(true));
+    assertThat(HttpCompression.acceptsGzip("deflate, GZIP;q=0.5"), is(true));
+    assertThat(HttpCompression.acceptsGzip("*"), is(true));
+    assertThat(HttpCompression.acceptsGzip("gzip;q=0"), is(false));
+    assertThat(HttpCompression.acceptsGzip("identity"), is(false));
+    assertThat(HttpCompression.acceptsGzip(null), is(false));
+  }
+
+  // Send from many threads, and count the correct replies
+  private int sendConcurrently(ClientRequestHandler crh, int threadCount, int requestCount) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      int thread = t;
+      results.add(executor.submit(() -> {
+        int correct = 0;
+        for (int i = 0; i < requestCount; i++) {
+          String request = "request " + thread + "/" + i;
+          if (crh.sendToServerAndAwaitReply(request).equals("echo:" + request)) { correct++; }
+        }
+        return correct;
+      }));
+    }
+    int total = 0;
+    for (Future<Integer> result : results) { total += result.get(); }
+    executor.shutdown();
+    return total;
+  }
+}
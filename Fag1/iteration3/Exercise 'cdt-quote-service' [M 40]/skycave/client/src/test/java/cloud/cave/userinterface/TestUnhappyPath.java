@@ -18,7 +18,9 @@
 package cloud.cave.userinterface;
 
 import cloud.cave.domain.*;
+import cloud.cave.invoker.AdmissionController;
 import cloud.cave.invoker.CaveIPCException;
+import cloud.cave.invoker.SkyCaveRootInvoker;
 import cloud.cave.client.CaveProxy;
 import cloud.cave.client.PlayerProxy;
 import cloud.cave.common.*;
@@ -34,13 +36,16 @@ import cloud.cave.server.common.SubscriptionRecord;
 import cloud.cave.service.SubscriptionService;
 import frds.broker.ClientRequestHandler;
 import frds.broker.IPCException;
-import frds.broker.Invoker;
 import frds.broker.Requestor;
 import frds.broker.marshall.json.StandardJSONRequestor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.servlet.http.HttpServletResponse;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -61,6 +66,7 @@ public class TestUnhappyPath {
   private Cave cave;
   private Requestor requestor;
   private SaboteurCRHDecorator saboteur;
+  private SkyCaveRootInvoker invoker;
 
   @BeforeEach
   public void setUp() throws Exception {
@@ -68,7 +74,7 @@ public class TestUnhappyPath {
     ObjectManager objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
 
     // And create the client tier's role implementations
-    Invoker invoker = objMgr.getInvoker();
+    invoker = (SkyCaveRootInvoker) objMgr.getInvoker();
 
     ClientRequestHandler properCrh = new LocalMethodCallClientRequestHandler(invoker);
 
@@ -161,4 +167,42 @@ public class TestUnhappyPath {
     Player p2 = cave.login( TestConstants.MATHILDE_AARSKORT, TestConstants.MATHILDE_PASSWORD);
     assertThat(p2.getAuthenticationStatus(), is(LoginResult.LOGIN_FAILED_SERVER_ERROR));
   }
+
+  // Hold all permits of a fixed limit admission controller
+  private List<AdmissionController.Permit> overloadServer() {
+    AdmissionController controller = new AdmissionController(4, 4, 4);
+    invoker.setAdmissionController(controller);
+    List<AdmissionController.Permit> permits = new ArrayList<>();
+    AdmissionController.Permit permit;
+    while ((permit = controller.tryAcquire(AdmissionController.Priority.HIGH)) != null) {
+      permits.add(permit);
+    }
+    return permits;
+  }
+
+  @Test
+  public void shouldResendAfterRetryAfterWhenServerIsOverloaded() {
+    List<AdmissionController.Permit> permits = overloadServer();
+    // The load is gone before the Retry-After delay has passed
+    ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+    releaser.schedule(() -> permits.forEach(AdmissionController.Permit::release),
+        200, TimeUnit.MILLISECONDS);
+
+    long start = System.nanoTime();
+    assertThat(player.getExitSet().size(), is(not(0)));
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        >= TimeUnit.SECONDS.toMillis(AdmissionController.RETRY_AFTER_SECONDS), is(true));
+    releaser.shutdown();
+  }
+
+  @Test
+  public void shouldGiveUpWhenServerStaysOverloaded() {
+    overloadServer();
+    try {
+      player.getExitSet();
+      fail("getExitSet should have thrown an IPCException, but did not.");
+    } catch (IPCException e) {
+      assertThat(e.getStatusCode(), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+    }
+  }
 }
@@ -63,6 +63,27 @@ public class Config {
    */
   public static final String SKYCAVE_CAVESTORAGE = "SKYCAVE_CAVESTORAGE";
 
+  /**
+   * Optional property giving the maximal number of entries in each of
+   * the caches of rooms, exits, and players put in front of the
+   * CaveStorage connector. If not set, or 0, no caching is done.
+   */
+  public static final String SKYCAVE_CAVESTORAGE_CACHE_SIZE = "SKYCAVE_CAVESTORAGE_CACHE_SIZE";
+
+  /**
+   * Optional property giving the number of seconds an entry stays in
+   * the CaveStorage caches.
+   */
+  public static final String SKYCAVE_CAVESTORAGE_CACHE_TTL_SECONDS = "SKYCAVE_CAVESTORAGE_CACHE_TTL_SECONDS";
+
+  /**
+   * Optional property giving the number of milliseconds that player
+   * position updates are held back and coalesced before they are
+   * written to the CaveStorage. If not set, or 0, they are written
+   * at once.
+   */
+  public static final String SKYCAVE_CAVESTORAGE_WRITEBEHIND_INTERVAL_MS = "SKYCAVE_CAVESTORAGE_WRITEBEHIND_INTERVAL_MS";
+
   /**
    * Prefix for the SubscriptionService properties
    */
@@ -92,6 +113,73 @@ public class Config {
    */
   public static final String SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION = "SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION";
 
+  /**
+   * Optional property giving the maximal number of connections kept by
+   * a pooled client request handler, like the
+   * cloud.cave.client.PooledSocketClientRequestHandler.
+   */
+  public static final String SKYCAVE_CLIENTREQUESTHANDLER_POOL_SIZE = "SKYCAVE_CLIENTREQUESTHANDLER_POOL_SIZE";
+
+  /**
+   * Optional property giving the number of worker threads calling the
+   * invoker in a server request handler with a separate worker pool,
+   * like the cloud.cave.invoker.NioSocketServerRequestHandler.
+   */
+  public static final String SKYCAVE_SERVERREQUESTHANDLER_WORKER_COUNT = "SKYCAVE_SERVERREQUESTHANDLER_WORKER_COUNT";
+
+  /**
+   * Optional property selecting the marshalling format of the requestor
+   * on the client side and of the root invoker on the server side:
+   * 'json' (the default) or 'binary'. A server using 'binary' also
+   * serves clients using 'json'.
+   */
+  public static final String SKYCAVE_MARSHALLING_FORMAT = "SKYCAVE_MARSHALLING_FORMAT";
+
+  /** Values of the SKYCAVE_MARSHALLING_FORMAT property */
+  public static final String MARSHALLING_FORMAT_JSON = "json";
+  public static final String MARSHALLING_FORMAT_BINARY = "binary";
+
+  /**
+   * Optional property giving the size in bytes from which bodies sent
+   * through the HTTP tunnel are gzip compressed, if the other side
+   * accepts it; a negative value turns compression off. See
+   * HttpCompression.
+   */
+  public static final String SKYCAVE_HTTP_COMPRESSION_THRESHOLD = "SKYCAVE_HTTP_COMPRESSION_THRESHOLD";
+
+  /**
+   * Optional property selecting how the server executes the operations
+   * on a player: 'direct' (the default) on the thread that received
+   * the request, or 'mailbox' by a mailbox of each player executed
+   * on a shared pool of threads. See the MailboxPlayerInvoker.
+   */
+  public static final String SKYCAVE_PLAYER_EXECUTION_MODEL = "SKYCAVE_PLAYER_EXECUTION_MODEL";
+
+  /** Values of the SKYCAVE_PLAYER_EXECUTION_MODEL property */
+  public static final String EXECUTION_MODEL_DIRECT = "direct";
+  public static final String EXECUTION_MODEL_MAILBOX = "mailbox";
+
+  /**
+   * Optional property giving the number of threads executing the
+   * player mailboxes in the 'mailbox' execution model.
+   */
+  public static final String SKYCAVE_PLAYER_MAILBOX_THREAD_COUNT = "SKYCAVE_PLAYER_MAILBOX_THREAD_COUNT";
+
+  /**
+   * Optional property giving the maximal number of requests queued
+   * in the mailbox of a single player in the 'mailbox' execution
+   * model; requests beyond it are rejected.
+   */
+  public static final String SKYCAVE_PLAYER_MAILBOX_CAPACITY = "SKYCAVE_PLAYER_MAILBOX_CAPACITY";
+
+  /**
+   * Optional property turning on admission control in the root
+   * invoker, giving the highest limit of requests in flight; the
+   * limit adapts to the latency below it, and requests over it are
+   * rejected with 503. See the AdmissionController.
+   */
+  public static final String SKYCAVE_ADMISSION_CONTROL_MAX_LIMIT = "SKYCAVE_ADMISSION_CONTROL_MAX_LIMIT";
+
   /**
    * Read a property using the given reader strategy. Fail immediately in case
    * the property is not set.
@@ -113,6 +201,65 @@ public class Config {
     return value;
   }
 
+  /**
+   * Read an optional property using the given reader strategy.
+   *
+   * @param propertyReader
+   *          the property reader strategy to be used to read properties
+   * @param key
+   *          the key for the property to be read
+   * @param defaultValue
+   *          the value to return in case the property is not set
+   * @return the value of the property with the given key, or the default
+   */
+  public static String readOptional(PropertyReaderStrategy propertyReader, String key, String defaultValue) {
+    String value;
+    try {
+      value = propertyReader.getValue(key);
+    } catch (CaveConfigurationNotSetException e) {
+      // Some reader strategies fail on unknown keys
+      value = null;
+    }
+    if (value == null || value.equals("")) { return defaultValue; }
+    return value;
+  }
+
+  /**
+   * Read the marshalling format property.
+   *
+   * @param propertyReader
+   *          the property reader strategy to be used to read properties
+   * @return true if the binary format is configured, false for JSON
+   * @throws CaveConfigurationNotSetException
+   *           in case the property has an unknown value
+   */
+  public static boolean isBinaryMarshallingFormat(PropertyReaderStrategy propertyReader) {
+    String format = readOptional(propertyReader, SKYCAVE_MARSHALLING_FORMAT, MARSHALLING_FORMAT_JSON);
+    if (format.equals(MARSHALLING_FORMAT_BINARY)) { return true; }
+    if (format.equals(MARSHALLING_FORMAT_JSON)) { return false; }
+    throw new CaveConfigurationNotSetException("ConfigurationError: The configuration property with key '"
+        + SKYCAVE_MARSHALLING_FORMAT + "' is '" + format + "', but must be '"
+        + MARSHALLING_FORMAT_JSON + "' or '" + MARSHALLING_FORMAT_BINARY + "'.");
+  }
+
+  /**
+   * Read the player execution model property.
+   *
+   * @param propertyReader
+   *          the property reader strategy to be used to read properties
+   * @return true if the mailbox model is configured, false for direct
+   * @throws CaveConfigurationNotSetException
+   *           in case the property has an unknown value
+   */
+  public static boolean isMailboxExecutionModel(PropertyReaderStrategy propertyReader) {
+    String model = readOptional(propertyReader, SKYCAVE_PLAYER_EXECUTION_MODEL, EXECUTION_MODEL_DIRECT);
+    if (model.equals(EXECUTION_MODEL_MAILBOX)) { return true; }
+    if (model.equals(EXECUTION_MODEL_DIRECT)) { return false; }
+    throw new CaveConfigurationNotSetException("ConfigurationError: The configuration property with key '"
+        + SKYCAVE_PLAYER_EXECUTION_MODEL + "' is '" + model + "', but must be '"
+        + EXECUTION_MODEL_DIRECT + "' or '" + EXECUTION_MODEL_MAILBOX + "'.");
+  }
+
   /**
    * Generic method to load and instantiate object of type T which is on the
    * path given by a property.
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * Negotiated gzip compression of the bodies of the HTTP tunnel,
+ * shared by the client and server request handlers.
+ * <p>
+ * A reply is compressed if the request has an 'Accept-Encoding'
+ * header allowing gzip, as HTTP does. A request is compressed only
+ * once the server has told it accepts that, by an 'Accept-Encoding'
+ * header in a reply (RFC 7694). Bodies smaller than a threshold are
+ * sent raw, as compression does not pay off for them.
+ * <p>
+ * A body is never inflated beyond MAX_INFLATED_LENGTH bytes, as a
+ * few kilobytes of gzip may inflate to gigabytes.
+ */
+public class HttpCompression {
+
+  public static final String ACCEPT_ENCODING = "Accept-Encoding";
+  public static final String CONTENT_ENCODING = "Content-Encoding";
+  public static final String GZIP = "gzip";
+
+  /** Bodies of fewer bytes are not compressed, unless set otherwise */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  /** The largest body inflated, the same as the largest socket frame */
+  public static final int MAX_INFLATED_LENGTH = SocketFraming.MAX_FRAME_LENGTH;
+
+  /** Thrown by gunzip when a body inflates beyond MAX_INFLATED_LENGTH */
+  public static class BodyTooLargeException extends IOException {
+    public BodyTooLargeException(String message) {
+      super(message);
+    }
+  }
+
+  private HttpCompression() { }
+
+  /**
+   * Tell if a body of the given size should be compressed.
+   *
+   * @param threshold the smallest size compressed; negative turns
+   *                  compression off
+   * @param length    the size of the body in bytes
+   * @return true if it should be compressed
+   */
+  public static boolean isWorthCompressing(int threshold, int length) {
+    return threshold >= 0 && length >= threshold;
+  }
+
+  /**
+   * Tell if the value of an 'Accept-Encoding' header allows gzip.
+   *
+   * @param acceptEncoding the header value, may be null
+   * @return true if gzip is accepted
+   */
+  public static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) { return false; }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parameters = coding.trim().split(";");
+      String name = parameters[0].trim();
+      if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) { continue; }
+      // A quality value of zero means 'not acceptable'
+      boolean refused = false;
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim().replace(" ", "");
+        if (parameter.matches("q=0(\\.0*)?")) { refused = true; }
+      }
+      if (!refused) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * Tell if the value of a 'Content-Encoding' header is gzip.
+   *
+   * @param contentEncoding the header value, may be null
+   * @return true if the body is gzip compressed
+   */
+  public static boolean isGzip(String contentEncoding) {
+    return contentEncoding != null && contentEncoding.trim().equalsIgnoreCase(GZIP);
+  }
+
+  /**
+   * Compress a body.
+   *
+   * @param body the body
+   * @return the UTF-8 bytes of the body, gzip compressed
+   */
+  public static byte[] gzip(String body) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      // Never happens for a byte array stream
+      throw new UncheckedIOException(e);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Decompress a body.
+   *
+   * @param compressed the gzip compressed UTF-8 bytes of the body
+   * @return the body
+   * @throws BodyTooLargeException if the body inflates beyond
+   *                               MAX_INFLATED_LENGTH bytes
+   * @throws IOException           if the bytes are not gzip compressed
+   */
+  public static String gunzip(byte[] compressed) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      // One byte more than allowed tells if the body is too large,
+      // and the inflating stops there
+      byte[] body = in.readNBytes(MAX_INFLATED_LENGTH + 1);
+      if (body.length > MAX_INFLATED_LENGTH) {
+        throw new BodyTooLargeException("Body inflates beyond " + MAX_INFLATED_LENGTH + " bytes");
+      }
+      return new String(body, StandardCharsets.UTF_8);
+    }
+  }
+}
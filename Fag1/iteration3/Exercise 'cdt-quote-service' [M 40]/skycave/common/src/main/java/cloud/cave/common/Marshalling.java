@@ -24,8 +24,31 @@ package cloud.cave.common;
  */
 public class Marshalling {
   
-  /** Version of the current marshaling */
-  public static final int MARSHALING_VERSION = 5;
+  /** Version of the current marshaling. From version 6, the
+   * arguments of a request and the result of a reply are
+   * embedded in the JSON as trees, under the ARGUMENTS_KEY
+   * and RESULT_KEY, instead of as JSON strings in 'payload' */
+  public static final int MARSHALING_VERSION = 6;
+
+  /** The last version carrying arguments and results as
+   * JSON strings; still understood by the server */
+  public static final int STRING_PAYLOAD_MARSHALING_VERSION = 5;
+
+  /** Field names of the request and reply objects on the wire */
+  public static final String OPERATION_NAME_KEY = "operationName";
+  public static final String OBJECT_ID_KEY = "objectId";
+  public static final String VERSION_IDENTITY_KEY = "versionIdentity";
+  public static final String PAYLOAD_KEY = "payload";
+  public static final String RESPONSE_CODE_KEY = "responseCode";
+  public static final String ERROR_DESCRIPTION_KEY = "errorDescription";
+  public static final String ARGUMENTS_KEY = "arguments";
+  public static final String RESULT_KEY = "result";
+  /** Seconds to wait before retrying, in 503 replies of version 6 */
+  public static final String RETRY_AFTER_KEY = "retryAfter";
+  /** Name of the HTTP header telling the seconds to wait before
+   * retrying; the error description of 503 replies carries it too,
+   * so clients of every version and transport can find it */
+  public static final String RETRY_AFTER_HEADER = "Retry-After";
 
   public static final String MANGLING_SEPARATOR = "##";
 
@@ -51,4 +74,37 @@ public class Marshalling {
     parts[1] = objectId.substring(indexOfSeparator+2);
     return parts;
   }
+
+  /**
+   * Describe the seconds to wait before retrying, for the error
+   * description of a 503 reply.
+   *
+   * @param retryAfterSeconds seconds to wait
+   * @return the description, like "(Retry-After: 1)"
+   */
+  public static String describeRetryAfter(int retryAfterSeconds) {
+    return "(" + RETRY_AFTER_HEADER + ": " + retryAfterSeconds + ")";
+  }
+
+  /**
+   * Find the seconds to wait before retrying in an error
+   * description made with describeRetryAfter.
+   *
+   * @param errorDescription the error description, may be null
+   * @return the seconds to wait, or -1 if the description does not tell
+   */
+  public static int parseRetryAfterSeconds(String errorDescription) {
+    if (errorDescription == null) { return -1; }
+    String tag = "(" + RETRY_AFTER_HEADER + ": ";
+    int start = errorDescription.lastIndexOf(tag);
+    if (start < 0) { return -1; }
+    start += tag.length();
+    int end = errorDescription.indexOf(')', start);
+    if (end < 0) { return -1; }
+    try {
+      return Integer.parseInt(errorDescription.substring(start, end).trim());
+    } catch (NumberFormatException exc) {
+      return -1;
+    }
+  }
 }
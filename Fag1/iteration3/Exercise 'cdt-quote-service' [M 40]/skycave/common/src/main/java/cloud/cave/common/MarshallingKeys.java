@@ -56,6 +56,11 @@ public class MarshallingKeys {
   public static final String UPDATE_MESSAGE_METHOD_KEY = PLAYER_TYPE_PREFIX + "update-message";
   public static final String GET_MESSAGE_LIST_METHOD_KEY = PLAYER_TYPE_PREFIX + "get-message-list";
 
+  public static final String GET_ROOM_SNAPSHOT_METHOD_KEY = PLAYER_TYPE_PREFIX + "get-room-snapshot";
+
+  // Executes a list of the player methods above in one request
+  public static final String BATCH_METHOD_KEY = PLAYER_TYPE_PREFIX + "batch";
+
   // List of cave method keys
   public static final String LOGIN_METHOD_KEY = CAVE_TYPE_PREFIX + "login";
   public static final String LOGOUT_METHOD_KEY = CAVE_TYPE_PREFIX + "logout";
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.common;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+import cloud.cave.domain.Direction;
+
+/** A data transfer object, DTO, for everything a player sees
+ * when looking around: the position, the short and long room
+ * descriptions, the exits, the players here, and the newest
+ * page of the wall. If there is no room at the position, the
+ * short description is null and the long description empty,
+ * see hasRoom.
+ */
+public class RoomSnapshotDataTransferObject {
+  private final String position;
+  private final String shortRoomDescription;
+  private final List<String> longRoomDescription;
+  private final List<Direction> exitSet;
+  private final List<String> playersHere;
+  private final List<WallMessageDataTransferObject> messageList;
+
+  public RoomSnapshotDataTransferObject(String position, String shortRoomDescription,
+                                        List<String> longRoomDescription, List<Direction> exitSet,
+                                        List<String> playersHere,
+                                        List<WallMessageDataTransferObject> messageList) {
+    this.position = position;
+    this.shortRoomDescription = shortRoomDescription;
+    this.longRoomDescription = longRoomDescription;
+    this.exitSet = exitSet;
+    this.playersHere = playersHere;
+    this.messageList = messageList;
+  }
+
+  public String getPosition() {
+    return position;
+  }
+  public String getShortRoomDescription() {
+    return shortRoomDescription;
+  }
+  /** Tell whether there is a room at the position */
+  public boolean hasRoom() {
+    return shortRoomDescription != null;
+  }
+  public List<String> getLongRoomDescription() {
+    return longRoomDescription;
+  }
+  public List<Direction> getExitSet() {
+    return exitSet;
+  }
+  public List<String> getPlayersHere() {
+    return playersHere;
+  }
+  /** The first page, page 0, of the wall */
+  public List<WallMessageDataTransferObject> getMessageList() {
+    return messageList;
+  }
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", RoomSnapshotDataTransferObject.class.getSimpleName() + "[", "]")
+            .add("position='" + position + "'")
+            .add("shortRoomDescription='" + shortRoomDescription + "'")
+            .add("exitSet=" + exitSet)
+            .add("playersHere=" + playersHere)
+            .add("messageList=" + messageList)
+            .toString();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.common;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import cloud.cave.domain.*;
+
+/**
+ * The default PlayerBatch, which executes each operation as a call
+ * on the player, one after the other. A failing operation does not
+ * stop the batch; its exception is thrown by the get() of its result.
+ */
+public class SequentialPlayerBatch implements PlayerBatch {
+
+  private final Player player;
+  private final List<SequentialResult<?>> results;
+  private boolean executed;
+
+  public SequentialPlayerBatch(Player player) {
+    this.player = player;
+    results = new ArrayList<>();
+    executed = false;
+  }
+
+  /**
+   * Add an operation to the batch.
+   *
+   * @param <T>       type of the return value
+   * @param operation the operation, called when the batch is executed
+   * @return the result of the operation, available once executed
+   */
+  public <T> Result<T> add(Supplier<T> operation) {
+    if (executed) {
+      throw new IllegalStateException("SequentialPlayerBatch: The batch is already executed");
+    }
+    SequentialResult<T> result = new SequentialResult<>(operation);
+    results.add(result);
+    return result;
+  }
+
+  @Override
+  public Result<String> getShortRoomDescription() {
+    return add(player::getShortRoomDescription);
+  }
+
+  @Override
+  public Result<List<String>> getLongRoomDescription() {
+    return add(player::getLongRoomDescription);
+  }
+
+  @Override
+  public Result<String> getPosition() {
+    return add(player::getPosition);
+  }
+
+  @Override
+  public Result<Region> getRegion() {
+    return add(player::getRegion);
+  }
+
+  @Override
+  public Result<List<Direction>> getExitSet() {
+    return add(player::getExitSet);
+  }
+
+  @Override
+  public Result<List<String>> getPlayersHere() {
+    return add(player::getPlayersHere);
+  }
+
+  @Override
+  public Result<List<WallMessageDataTransferObject>> getMessageList(int pageNumber) {
+    return add(() -> player.getMessageList(pageNumber));
+  }
+
+  @Override
+  public Result<RoomSnapshotDataTransferObject> getRoomSnapshot() {
+    return add(player::getRoomSnapshot);
+  }
+
+  @Override
+  public Result<UpdateResult> move(Direction direction) {
+    return add(() -> player.move(direction));
+  }
+
+  @Override
+  public void execute() {
+    if (executed) {
+      throw new IllegalStateException("SequentialPlayerBatch: The batch is already executed");
+    }
+    executed = true;
+    for (SequentialResult<?> result : results) {
+      result.run();
+    }
+  }
+
+  private static class SequentialResult<T> implements Result<T> {
+    private final Supplier<T> operation;
+    private boolean done;
+    private T value;
+    private RuntimeException failure;
+
+    private SequentialResult(Supplier<T> operation) {
+      this.operation = operation;
+    }
+
+    private void run() {
+      try {
+        value = operation.get();
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+      done = true;
+    }
+
+    @Override
+    public T get() {
+      if (!done) {
+        throw new IllegalStateException("SequentialPlayerBatch: The batch is not executed");
+      }
+      if (failure != null) { throw failure; }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The length prefixed framing of messages on sockets: a frame is the
+ * length of the UTF-8 bytes of the message, as a 4 byte big endian
+ * integer, followed by the bytes. Unlike the line based protocol of
+ * the FRDS socket request handlers, messages need not be scanned for
+ * their end, and may contain line breaks.
+ * <p>
+ * Frames are limited to MAX_FRAME_LENGTH bytes, so the first byte of
+ * a frame is always 0. A JSON or base64 line never starts with 0, so
+ * a server can tell framed connections from line based ones by their
+ * first byte.
+ */
+public class SocketFraming {
+
+  /** Number of bytes of the length prefix */
+  public static final int HEADER_LENGTH = 4;
+
+  /** Maximal number of bytes of a framed message, just below 16 MB */
+  public static final int MAX_FRAME_LENGTH = (1 << 24) - 1;
+
+  private SocketFraming() { }
+
+  /**
+   * Write a message as a frame.
+   *
+   * @param out     the stream to write to; it is not flushed
+   * @param message the message
+   * @throws IOException if writing fails, or the message is longer
+   *                     than MAX_FRAME_LENGTH bytes
+   */
+  public static void writeFrame(DataOutputStream out, String message) throws IOException {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_FRAME_LENGTH) {
+      throw new IOException("Message of " + bytes.length + " bytes exceeds the maximal frame length");
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a frame.
+   *
+   * @param in the stream to read from
+   * @return the message, or null if the stream ended before the frame
+   * @throws IOException if reading fails, the stream ends inside the
+   *                     frame, or the frame is too long
+   */
+  public static String readFrame(DataInputStream in) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Frame length " + length + " is not valid");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
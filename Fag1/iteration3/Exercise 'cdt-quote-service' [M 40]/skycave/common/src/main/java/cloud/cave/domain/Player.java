@@ -17,6 +17,8 @@
 
 package cloud.cave.domain;
 
+import cloud.cave.common.RoomSnapshotDataTransferObject;
+import cloud.cave.common.SequentialPlayerBatch;
 import cloud.cave.common.WallMessageDataTransferObject;
 
 import java.util.List;
@@ -209,6 +211,20 @@ public interface Player {
    */
   List<WallMessageDataTransferObject> getMessageList(int pageNumber);
 
+  /**
+   * Get everything needed to show the room the player is in: the
+   * position, the short and long descriptions, the exits, the players
+   * here, and the newest page of the wall. Implementations should
+   * read each from the cave once, so the parts agree with each other;
+   * the default just calls the individual accessors.
+   *
+   * @return a snapshot of the room, wrapped in a data transfer object
+   */
+  default RoomSnapshotDataTransferObject getRoomSnapshot() {
+    return new RoomSnapshotDataTransferObject(getPosition(), getShortRoomDescription(),
+        getLongRoomDescription(), getExitSet(), getPlayersHere(), getMessageList(0));
+  }
+
   // === Mutators
 
   /**
@@ -230,7 +246,10 @@ public interface Player {
    * @param description
    *          the description of the room
    * 
-   * @return an update result of the operation
+   * @return an update result of the operation, is UPDATE_OK if the room
+   *         was dug, FAIL_AS_ALREADY_EXISTING if there is a room in that
+   *         direction, or FAIL_AS_INVALID_POSITION if that direction
+   *         leads beyond the edge of the cave
    */
   UpdateResult digRoom(Direction direction, String description);
 
@@ -297,4 +316,15 @@ public interface Player {
    * @return The output to print in the Cmd output.
    */
   List<String> execute(String commandName, String... parameters);
+
+  /**
+   * Create a batch of operations on this player, executed together.
+   * The default batch calls the operations on this player one by
+   * one; a proxy may send them to the server in a single request.
+   *
+   * @return a new, empty batch
+   */
+  default PlayerBatch createBatch() {
+    return new SequentialPlayerBatch(this);
+  }
 }
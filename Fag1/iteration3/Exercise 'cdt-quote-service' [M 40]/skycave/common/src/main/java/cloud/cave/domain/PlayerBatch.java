@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.domain;
+
+import cloud.cave.common.RoomSnapshotDataTransferObject;
+import cloud.cave.common.WallMessageDataTransferObject;
+
+import java.util.List;
+
+/**
+ * A batch of operations on a player, executed together, in the order
+ * they were added, by 'execute'. Each operation added returns a
+ * Result, which holds the value of the operation once the batch is
+ * executed. Create a batch by Player.createBatch().
+ * <p>
+ * A batch is executed once, and is not thread safe. Example, moving
+ * and describing the new room:
+ * <pre>
+ *   PlayerBatch batch = player.createBatch();
+ *   PlayerBatch.Result&lt;UpdateResult&gt; moved = batch.move(Direction.NORTH);
+ *   PlayerBatch.Result&lt;String&gt; description = batch.getShortRoomDescription();
+ *   batch.execute();
+ * </pre>
+ */
+public interface PlayerBatch {
+
+  Result<String> getShortRoomDescription();
+
+  Result<List<String>> getLongRoomDescription();
+
+  Result<String> getPosition();
+
+  Result<Region> getRegion();
+
+  Result<List<Direction>> getExitSet();
+
+  Result<List<String>> getPlayersHere();
+
+  Result<List<WallMessageDataTransferObject>> getMessageList(int pageNumber);
+
+  Result<RoomSnapshotDataTransferObject> getRoomSnapshot();
+
+  Result<UpdateResult> move(Direction direction);
+
+  /**
+   * Execute all operations, in the order they were added, and set
+   * their results.
+   *
+   * @throws IllegalStateException if the batch is already executed
+   */
+  void execute();
+
+  /**
+   * The result of one operation of a batch.
+   *
+   * @param <T> type of the return value
+   */
+  interface Result<T> {
+    /**
+     * Get the value returned by the operation.
+     *
+     * @return the value
+     * @throws IllegalStateException if the batch is not executed
+     * @throws RuntimeException the exception of the operation, if it failed
+     */
+    T get();
+  }
+}
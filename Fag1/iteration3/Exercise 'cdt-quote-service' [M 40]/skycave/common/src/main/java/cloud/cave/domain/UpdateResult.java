@@ -29,6 +29,7 @@ public enum UpdateResult {
   FAIL_AS_NOT_FOUND,        // Updated failed as object to update was non existing
   FAIL_AS_NOT_CREATOR,      // Update failed as object was not created/owned by user
   FAIL_AS_ALREADY_EXISTING, // Update failed as object already exists
+  FAIL_AS_INVALID_POSITION, // Update failed as the position is outside the cave
   ;
 
   /** Convert used HTTP status Codes to UpdateResults
@@ -44,6 +45,7 @@ public enum UpdateResult {
       case 401: return FAIL_AS_NOT_CREATOR; // = UNAUTHORIZED
       case 404: return FAIL_AS_NOT_FOUND;   // = NOT FOUND
       case 403: return FAIL_AS_ALREADY_EXISTING; // FORBIDDEN
+      case 400: return FAIL_AS_INVALID_POSITION; // BAD REQUEST
       default:
         throw new CaveException("UpdateResult asked to translate unsupported HTTP code: " + status);
     }
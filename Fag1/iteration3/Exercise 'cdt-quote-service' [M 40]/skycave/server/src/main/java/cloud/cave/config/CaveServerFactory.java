@@ -23,6 +23,7 @@ import cloud.cave.domain.Player;
 import cloud.cave.server.PlayerNameService;
 import cloud.cave.service.*;
 import cloud.cave.service.quote.QuoteService;
+import frds.broker.Invoker;
 import frds.broker.ServerRequestHandler;
 
 import java.lang.reflect.Type;
@@ -95,6 +96,17 @@ public interface CaveServerFactory {
    */
   PlayerNameService createPlayerNameServiceConnector(ObjectManager objectManager);
 
+  /**
+   * Create and return the root invoker, which demarshalls requests
+   * and dispatches them to the servants.
+   *
+   * @param objectManager
+   *          the objectManager that holds all delegates
+   *
+   * @return the root invoker
+   */
+  Invoker createInvoker(ObjectManager objectManager);
+
   /**
    * Create and return the server request handler object that binds the server invoker
    * to the particular OS and the IPC system chosen.
@@ -17,7 +17,6 @@
 
 package cloud.cave.config;
 
-import cloud.cave.invoker.SkyCaveRootInvoker;
 import cloud.cave.common.CaveConfigurationNotSetException;
 import cloud.cave.domain.Cave;
 import cloud.cave.server.*;
@@ -49,7 +48,7 @@ import java.util.Map;
 public class StandardObjectManager implements ObjectManager {
 
   private final Cave caveServant;
-  private final SkyCaveRootInvoker serverInvoker;
+  private final Invoker serverInvoker;
   private final ServerRequestHandler serverRequestHandler;
 
   private final CaveStorage storage;
@@ -79,7 +78,7 @@ public class StandardObjectManager implements ObjectManager {
     caveServant = factory.createCaveServant(this);
 
     // Create the invoker on the server side, and bind it to the cave
-    serverInvoker = new SkyCaveRootInvoker(this);
+    serverInvoker = factory.createInvoker(this);
     
     // Create the server side SRH... 
     serverRequestHandler = factory.createServerRequestHandler(this); 
@@ -18,14 +18,25 @@
 package cloud.cave.config;
 
 import cloud.cave.common.Config;
+import cloud.cave.common.HttpCompression;
 import cloud.cave.domain.Cave;
 import cloud.cave.domain.LoginResult;
 import cloud.cave.domain.Player;
+import cloud.cave.invoker.AdmissionController;
+import cloud.cave.invoker.BinarySkyCaveRootInvoker;
+import cloud.cave.invoker.CaveUriTunnelServerRequestHandler;
+import cloud.cave.invoker.MailboxPlayerInvoker;
+import cloud.cave.invoker.NioSocketServerRequestHandler;
+import cloud.cave.invoker.PlayerInvoker;
+import cloud.cave.invoker.SkyCaveRootInvoker;
+import cloud.cave.invoker.SubInvoker;
+import cloud.cave.invoker.VirtualThreadUriTunnelServerRequestHandler;
 import cloud.cave.server.CaveServant;
 import cloud.cave.server.PlayerNameService;
 import cloud.cave.server.PlayerServant;
 import cloud.cave.service.quote.QuoteService;
 import com.baerbak.cpf.PropertyReaderStrategy;
+import frds.broker.Invoker;
 import frds.broker.ServerRequestHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +80,27 @@ public class StandardServerFactory implements CaveServerFactory {
     CaveStorage caveStorage = null;
     caveStorage = (CaveStorage)
             createServiceConnector(CaveStorage.class, Config.SKYCAVE_CAVESTORAGE, objMgr);
+
+    // Write-behind goes below the caches, so they are invalidated
+    // by every update, written through or not
+    long writeBehindMillis = Long.parseLong(
+            Config.readOptional(propertyReader, Config.SKYCAVE_CAVESTORAGE_WRITEBEHIND_INTERVAL_MS, "0"));
+    if (writeBehindMillis > 0) {
+      caveStorage = new WriteBehindCaveStorage(caveStorage, writeBehindMillis);
+      logger.info("method=createCaveStorageConnector, writeBehind=WriteBehindCaveStorage"
+              + ", intervalMillis=" + writeBehindMillis);
+    }
+
+    int cacheSize = Integer.parseInt(
+            Config.readOptional(propertyReader, Config.SKYCAVE_CAVESTORAGE_CACHE_SIZE, "0"));
+    if (cacheSize > 0) {
+      long ttlSeconds = Long.parseLong(
+              Config.readOptional(propertyReader, Config.SKYCAVE_CAVESTORAGE_CACHE_TTL_SECONDS,
+                      Long.toString(CachingCaveStorage.DEFAULT_TTL_SECONDS)));
+      caveStorage = new CachingCaveStorage(caveStorage, cacheSize, ttlSeconds);
+      logger.info("method=createCaveStorageConnector, caching=CachingCaveStorage"
+              + ", cacheSize=" + cacheSize + ", ttlSeconds=" + ttlSeconds);
+    }
     return caveStorage;
   }
 
@@ -98,11 +130,60 @@ public class StandardServerFactory implements CaveServerFactory {
     return nameService;
   }
 
+  @Override
+  public Invoker createInvoker(ObjectManager objMgr) {
+    SubInvoker playerInvoker;
+    if (Config.isMailboxExecutionModel(propertyReader)) {
+      int threadCount = Integer.parseInt(Config.readOptional(propertyReader,
+          Config.SKYCAVE_PLAYER_MAILBOX_THREAD_COUNT,
+          Integer.toString(MailboxPlayerInvoker.DEFAULT_THREAD_COUNT)));
+      int capacity = Integer.parseInt(Config.readOptional(propertyReader,
+          Config.SKYCAVE_PLAYER_MAILBOX_CAPACITY,
+          Integer.toString(MailboxPlayerInvoker.DEFAULT_MAILBOX_CAPACITY)));
+      playerInvoker = new MailboxPlayerInvoker(objMgr, threadCount, capacity);
+    } else {
+      playerInvoker = new PlayerInvoker(objMgr);
+    }
+    SkyCaveRootInvoker invoker;
+    if (Config.isBinaryMarshallingFormat(propertyReader)) {
+      invoker = new BinarySkyCaveRootInvoker(objMgr, playerInvoker);
+    } else {
+      invoker = new SkyCaveRootInvoker(objMgr, playerInvoker);
+    }
+    String maxLimit = Config.readOptional(propertyReader,
+        Config.SKYCAVE_ADMISSION_CONTROL_MAX_LIMIT, null);
+    if (maxLimit != null) {
+      invoker.setAdmissionController(new AdmissionController(
+          AdmissionController.DEFAULT_INITIAL_LIMIT, AdmissionController.DEFAULT_MIN_LIMIT,
+          Integer.parseInt(maxLimit)));
+    }
+    logger.info("method=createInvoker, implementationClass="
+            + invoker.getClass().getName()
+            + ", playerInvoker=" + playerInvoker.getClass().getName()
+            + ", admissionControlMaxLimit=" + maxLimit);
+    return invoker;
+  }
+
   @Override
   public ServerRequestHandler createServerRequestHandler(ObjectManager objMgr) {
     ServerRequestHandler srh = null; 
     srh = Config.loadAndInstantiate(propertyReader, 
         Config.SKYCAVE_SERVERREQUESTHANDLER_IMPLEMENTATION, srh);
+    int threshold = Integer.parseInt(Config.readOptional(propertyReader,
+        Config.SKYCAVE_HTTP_COMPRESSION_THRESHOLD,
+        Integer.toString(HttpCompression.DEFAULT_THRESHOLD)));
+    if (srh instanceof CaveUriTunnelServerRequestHandler) {
+      ((CaveUriTunnelServerRequestHandler) srh).setCompressionThreshold(threshold);
+    }
+    if (srh instanceof VirtualThreadUriTunnelServerRequestHandler) {
+      ((VirtualThreadUriTunnelServerRequestHandler) srh).setCompressionThreshold(threshold);
+    }
+    if (srh instanceof NioSocketServerRequestHandler) {
+      int workerCount = Integer.parseInt(Config.readOptional(propertyReader,
+          Config.SKYCAVE_SERVERREQUESTHANDLER_WORKER_COUNT,
+          Integer.toString(NioSocketServerRequestHandler.DEFAULT_WORKER_COUNT)));
+      ((NioSocketServerRequestHandler) srh).setWorkerCount(workerCount);
+    }
 
     // Read in the server configuration, only port getNumber relevant
     ServerConfiguration config = 
@@ -29,6 +29,8 @@ import cloud.cave.server.PlayerNameService;
 import cloud.cave.server.PlayerServant;
 import cloud.cave.service.*;
 import cloud.cave.service.quote.QuoteService;
+import cloud.cave.invoker.SkyCaveRootInvoker;
+import frds.broker.Invoker;
 import frds.broker.ServerRequestHandler;
 
 import java.lang.reflect.Type;
@@ -87,6 +89,11 @@ public class AllTestDoubleFactory implements CaveServerFactory {
     return nameService;
   }
 
+  @Override
+  public Invoker createInvoker(ObjectManager objMgr) {
+    return new SkyCaveRootInvoker(objMgr);
+  }
+
   @Override
   public ServerRequestHandler createServerRequestHandler(ObjectManager objMgr) {
     // The SRH is not presently used in the test cases...
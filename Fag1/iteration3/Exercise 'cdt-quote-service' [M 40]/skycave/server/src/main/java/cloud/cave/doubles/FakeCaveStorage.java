@@ -19,7 +19,6 @@ package cloud.cave.doubles;
 
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.stream.IntStream;
 
 import cloud.cave.common.ServerConfiguration;
 import cloud.cave.config.ObjectManager;
@@ -27,13 +26,15 @@ import cloud.cave.domain.*;
 import cloud.cave.server.common.*;
 import cloud.cave.service.*;
 import cloud.cave.service.wall.MessageRecord;
+import cloud.cave.service.wall.WallLog;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Fake object implementation of storage. Map data structures are used to
  * simulate SQL tables / NoSQL collections. The used data structures are not
- * synchronized, do not use in multi-threaded server!
+ * synchronized, do not use in multi-threaded server! Use the
+ * ConcurrentCaveStorage for that.
  * <p>
  * The cave is initialized with five rooms in a fixed layout, vaguely inspired
  * by the original Colossal Cave layout. These rooms serve the test cases as
@@ -49,7 +50,7 @@ public class FakeCaveStorage implements CaveStorage {
   // for a room the rest of the tuple
   private Map<String, RoomRecord> roomMap;
   // The table/colleciton of all messages in all rooms
-  private Map<String, List<MessageRecord>> messageMap;
+  private Map<String, WallLog> messageMap;
 
   // Strategy to delegate how to define timestamps
   private NowStrategy nowStrategy;
@@ -59,7 +60,7 @@ public class FakeCaveStorage implements CaveStorage {
     nowStrategy = new RealNowStrategy();
 
     roomMap = new HashMap<String, RoomRecord>();
-    messageMap = new HashMap<String, List<MessageRecord>>();
+    messageMap = new HashMap<String, WallLog>();
 
     playerId2PlayerSpecs = new HashMap<String, PlayerRecord>(5);
   }
@@ -75,14 +76,14 @@ public class FakeCaveStorage implements CaveStorage {
     RoomRecord entryRoom = new RoomRecord(
         "You are standing at the end of a road before a small brick building.",
             WILL_CROWTHER_ID);
-    this.addRoom(new Point3(0, 0, 0).getPositionString(), entryRoom);
-    this.addRoom(new Point3(0, 1, 0).getPositionString(), new RoomRecord(
+    this.addRoom(Point3.of(0, 0, 0).getPositionString(), entryRoom);
+    this.addRoom(Point3.of(0, 1, 0).getPositionString(), new RoomRecord(
         "You are in open forest, with a deep valley to one side.", WILL_CROWTHER_ID));
-    this.addRoom(new Point3(1, 0, 0).getPositionString(), new RoomRecord(
+    this.addRoom(Point3.of(1, 0, 0).getPositionString(), new RoomRecord(
         "You are inside a building, a well house for a large spring.", WILL_CROWTHER_ID));
-    this.addRoom(new Point3(-1, 0, 0).getPositionString(), new RoomRecord(
+    this.addRoom(Point3.of(-1, 0, 0).getPositionString(), new RoomRecord(
         "You have walked up a hill, still in the forest.", WILL_CROWTHER_ID));
-    this.addRoom(new Point3(0, 0, 1).getPositionString(), new RoomRecord(
+    this.addRoom(Point3.of(0, 0, 1).getPositionString(), new RoomRecord(
         "You are in the top of a tall tree, at the end of a road.", WILL_CROWTHER_ID));
   }
   
@@ -130,11 +131,8 @@ public class FakeCaveStorage implements CaveStorage {
   public List<Direction> getSetOfExitsFromRoom(String positionString) {
     List<Direction> listOfExits = new ArrayList<Direction>();
     Point3 pZero = Point3.parseString(positionString);
-    Point3 p;
     for ( Direction d : Direction.values()) {
-      p = new Point3(pZero.x(), pZero.y(), pZero.z());
-      p.translate(d);
-      String position = p.getPositionString();
+      String position = pZero.neighbor(d).getPositionString();
       if ( roomMap.containsKey(position)) {
         listOfExits.add(d);
       }
@@ -149,6 +147,9 @@ public class FakeCaveStorage implements CaveStorage {
   
   Map<String,PlayerRecord> playerId2PlayerSpecs;
 
+  // Secondary index of the table above: position to players in the cave there
+  private PlayerPresenceIndex presenceIndex = new PlayerPresenceIndex();
+
   @Override
   public PlayerRecord getPlayerByID(String playerID) {
     PlayerRecord ps = playerId2PlayerSpecs.get(playerID);
@@ -158,14 +159,17 @@ public class FakeCaveStorage implements CaveStorage {
   @Override
   public void updatePlayerRecord(PlayerRecord record) {
     playerId2PlayerSpecs.put(record.getPlayerID(), record);
+    presenceIndex.update(record);
   }
 
   @Override
   public List<PlayerRecord> computeListOfPlayersAt(String positionString) {
     List<PlayerRecord> theList = new ArrayList<PlayerRecord>();
-    for ( String id : playerId2PlayerSpecs.keySet() ) {
+    for ( String id : presenceIndex.getPlayerIdsAt(positionString) ) {
+      // The records are shared with the callers, who may have changed
+      // one since it was indexed, so the index only selects candidates
       PlayerRecord ps = playerId2PlayerSpecs.get(id);
-      if (ps.isInCave() && ps.getPositionAsString().equals(positionString)) {
+      if (ps != null && ps.isInCave() && ps.getPositionAsString().equals(positionString)) {
         theList.add(ps);
       }
     }
@@ -174,7 +178,6 @@ public class FakeCaveStorage implements CaveStorage {
   
   @Override
   public void addMessage(String positionInCave, MessageRecord messageRecord) {
-    List<MessageRecord> msgInThisRoom = getMessageMapForRoom(positionInCave);
     // Simulate 'classic DB' behaviour, assign unique
     // id to item and timestamp it
     MessageRecord newRecord = new MessageRecord(messageRecord);
@@ -182,56 +185,21 @@ public class FakeCaveStorage implements CaveStorage {
     newRecord.setCreatorTimeStampISO8601(now);
     newRecord.setId(UUID.randomUUID().toString());
 
-    // Append to position 0, so older records are pushed towards the end
-    msgInThisRoom.add(0, newRecord);
-    messageMap.put(positionInCave, msgInThisRoom);
+    messageMap.computeIfAbsent(positionInCave, key -> new WallLog()).append(newRecord);
   }
 
   @Override
   public int updateMessage(String positionInCave, String messageId, MessageRecord newMessageRecord) {
-    List<MessageRecord> msgInThisRoom = getMessageMapForRoom(positionInCave);
-
-    // Search and find index of first message with same ID as updating message
-    OptionalInt indexOpt = IntStream.range(0, msgInThisRoom.size())
-            .filter(i -> messageId.equals(msgInThisRoom.get(i).getId()))
-            .findFirst();
-
-    // Bail out if no message with given id exists
-    if (! indexOpt.isPresent()) {
-      return HttpServletResponse.SC_NOT_FOUND;
-    }
-
-    MessageRecord match = match = msgInThisRoom.get(indexOpt.getAsInt());
-
-    // Bail out if the found message was not created by same person
-    if (! match.getCreatorId().equals(newMessageRecord.getCreatorId())) {
-      return HttpServletResponse.SC_UNAUTHORIZED;
-    }
-
-    // Update message and enter it back into the list
-    MessageRecord updatedOne = new MessageRecord(match);
-    updatedOne.setContents(newMessageRecord.getContents());
-    msgInThisRoom.set(indexOpt.getAsInt(), updatedOne);
-
-    return HttpServletResponse.SC_OK;
+    WallLog wall = messageMap.get(positionInCave);
+    if (wall == null) { return HttpServletResponse.SC_NOT_FOUND; }
+    return wall.update(messageId, newMessageRecord);
   }
 
   @Override
   public List<MessageRecord> getMessageList(String positionInCave, int startIndex, int pageSize) {
-    List<MessageRecord> msgInThisRoom = getMessageMapForRoom(positionInCave);
-    int size = msgInThisRoom.size();
-    int firstIndex = startIndex > size ? size : startIndex;
-    int lastIndex = startIndex + pageSize > size ? size : startIndex + pageSize;
-    return msgInThisRoom.subList(firstIndex, lastIndex);
-  }
-
-  public List<MessageRecord> getMessageMapForRoom(String positionInCave) {
-    List<MessageRecord> msgInThisRoom;
-    msgInThisRoom = messageMap.get(positionInCave);
-    if (msgInThisRoom == null) {
-      msgInThisRoom = new ArrayList<MessageRecord>();
-    }
-    return msgInThisRoom;
+    WallLog wall = messageMap.get(positionInCave);
+    if (wall == null) { return new ArrayList<>(); }
+    return wall.getPage(startIndex, pageSize);
   }
 
   public String toString() {
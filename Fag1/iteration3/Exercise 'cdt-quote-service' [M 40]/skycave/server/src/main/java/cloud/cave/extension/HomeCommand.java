@@ -34,7 +34,7 @@ public class HomeCommand extends AbstractCommand implements Command {
 
   @Override
   public List<String> execute(String... parameters) {
-    Point3 home = new Point3(0, 0, 0);
+    Point3 home = Point3.ORIGIN;
     CaveStorage storage = objectManager.getCaveStorage();
     PlayerRecord pRecord = storage.getPlayerByID(playerID);
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import cloud.cave.common.MarshallingKeys;
+
+/**
+ * Admission control of the requests to a server: limits the number
+ * of requests in flight, and adapts the limit to the latency
+ * observed, so an overloaded server rejects requests at once instead
+ * of queueing them until the clients time out.
+ * <p>
+ * The limit is adapted by the gradient algorithm: a short term
+ * average of the latency is compared to a long term average, which
+ * is the latency the server has without queueing. When the short
+ * term latency rises above it, requests are queueing, and the limit
+ * is decreased by their ratio; else it is increased by the square
+ * root of the limit, which allows a small queue and probes for more
+ * capacity. The limit is only increased when at least half of it is
+ * in use.
+ * <p>
+ * The limit is shared by priorities: requests of LOW priority may
+ * use three quarters of it and NORMAL seven eighths, thus the cheap
+ * operations of HIGH priority are admitted after the expensive ones
+ * are rejected.
+ */
+public class AdmissionController {
+
+  /** Priority of a request; see priorityOf */
+  public enum Priority { HIGH, NORMAL, LOW }
+
+  /** Initial limit of requests in flight */
+  public static final int DEFAULT_INITIAL_LIMIT = 20;
+  /** Lowest limit of requests in flight */
+  public static final int DEFAULT_MIN_LIMIT = 4;
+  /** Seconds a rejected client is told to wait before retrying */
+  public static final int RETRY_AFTER_SECONDS = 1;
+
+  // Operations answered from the state held by the player servant;
+  // the short description reads the room from storage only once per
+  // room entered. The long description and the exit set read the
+  // storage on every call, so they are NORMAL
+  private static final Set<String> HIGH_PRIORITY_OPERATIONS = new HashSet<>(Arrays.asList(
+      MarshallingKeys.GET_POSITION_METHOD_KEY,
+      MarshallingKeys.GET_REGION_METHOD_KEY,
+      MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY));
+  // Operations that run commands, write rooms, or call other services
+  private static final Set<String> LOW_PRIORITY_OPERATIONS = new HashSet<>(Arrays.asList(
+      MarshallingKeys.EXECUTE_METHOD_KEY,
+      MarshallingKeys.DIG_ROOM_METHOD_KEY,
+      MarshallingKeys.UPDATE_ROOM_METHOD_KEY,
+      MarshallingKeys.GET_QUOTE_METHOD_KEY,
+      MarshallingKeys.BATCH_METHOD_KEY));
+
+  // Smoothing of the short and long term latency, and of the limit
+  private static final double SHORT_RTT_WEIGHT = 0.1;
+  private static final double LONG_RTT_WEIGHT = 0.01;
+  private static final double LIMIT_WEIGHT = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private volatile int limit;
+
+  // Guarded by 'this'
+  private double estimatedLimit;
+  private double shortRtt;
+  private double longRtt;
+
+  /**
+   * Create an admission controller.
+   *
+   * @param initialLimit the limit of requests in flight to start with
+   * @param minLimit     the lowest limit
+   * @param maxLimit     the highest limit
+   */
+  public AdmissionController(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    this.estimatedLimit = limit;
+  }
+
+  /**
+   * Get the priority of an operation.
+   *
+   * @param operationName the name of the operation, see MarshallingKeys
+   * @return the priority of the operation
+   */
+  public static Priority priorityOf(String operationName) {
+    if (HIGH_PRIORITY_OPERATIONS.contains(operationName)) { return Priority.HIGH; }
+    if (LOW_PRIORITY_OPERATIONS.contains(operationName)) { return Priority.LOW; }
+    return Priority.NORMAL;
+  }
+
+  /**
+   * Admit a request, if the requests in flight are below the part of
+   * the limit its priority may use.
+   *
+   * @param priority the priority of the request
+   * @return the permit of the request, which must be released when
+   * it is done, or null if it is rejected
+   */
+  public Permit tryAcquire(Priority priority) {
+    int current = limit;
+    int allowed = priority == Priority.HIGH ? current
+        : priority == Priority.NORMAL ? current - current / 8
+        : current - current / 4;
+    while (true) {
+      int count = inFlight.get();
+      if (count >= allowed) {
+        rejected.increment();
+        return null;
+      }
+      if (inFlight.compareAndSet(count, count + 1)) { return new Permit(count + 1); }
+    }
+  }
+
+  /**
+   * Get the number of requests rejected since the controller was
+   * created.
+   *
+   * @return the number of rejected requests
+   */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  /** The admission of a single request */
+  public class Permit {
+    private final long startTime = System.nanoTime();
+    private final int inFlightAtStart;
+    private boolean isReleased;
+
+    private Permit(int inFlightAtStart) {
+      this.inFlightAtStart = inFlightAtStart;
+    }
+
+    /**
+     * Release the permit when the request is done, and use its
+     * latency to adapt the limit.
+     */
+    public void release() {
+      if (isReleased) { return; }
+      isReleased = true;
+      inFlight.decrementAndGet();
+      onSample(System.nanoTime() - startTime, inFlightAtStart);
+    }
+  }
+
+  /**
+   * Adapt the limit to the latency of a request.
+   *
+   * @param rttNanos        the latency of the request
+   * @param inFlightAtStart the number of requests in flight when it was admitted
+   */
+  synchronized void onSample(long rttNanos, int inFlightAtStart) {
+    double rtt = Math.max(1, rttNanos);
+    if (shortRtt == 0) {
+      shortRtt = rtt;
+      longRtt = rtt;
+    }
+    shortRtt = (1 - SHORT_RTT_WEIGHT) * shortRtt + SHORT_RTT_WEIGHT * rtt;
+    longRtt = (1 - LONG_RTT_WEIGHT) * longRtt + LONG_RTT_WEIGHT * shortRtt;
+    // After a long overload the long term latency has drifted up;
+    // let it recover quickly once the latency drops
+    if (longRtt > 2 * shortRtt) { longRtt = 0.95 * longRtt; }
+
+    // Do not grow the limit when the server is not using it
+    if (inFlightAtStart < estimatedLimit / 2 && shortRtt <= longRtt) { return; }
+
+    double gradient = Math.max(0.5, Math.min(1.0, longRtt / shortRtt));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    estimatedLimit = (1 - LIMIT_WEIGHT) * estimatedLimit + LIMIT_WEIGHT * newLimit;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+    limit = (int) estimatedLimit;
+  }
+
+  /**
+   * Get the present limit of requests in flight.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Get the number of admitted requests not yet released.
+   *
+   * @return the number of requests in flight
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  @Override
+  public String toString() {
+    return "AdmissionController (limit " + limit + ", " + inFlight.get() + " in flight, "
+        + rejected.sum() + " rejected)";
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import cloud.cave.common.BinaryMarshalling;
+import cloud.cave.config.ObjectManager;
+import com.google.gson.Gson;
+import org.slf4j.*;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.function.IntConsumer;
+
+/**
+ * Root Invoker for the binary marshalling format of
+ * BinaryMarshalling, matching the BinaryRequestor of the client.
+ * Binary requests are demarshalled here and dispatched to the same
+ * sub invokers as JSON requests; JSON requests are handled as by the
+ * SkyCaveRootInvoker, so clients of both formats may use the server.
+ * Malformed binary requests are answered in binary, so a client only
+ * sees a JSON reply from a server that does not know the format.
+ */
+public class BinarySkyCaveRootInvoker extends SkyCaveRootInvoker {
+
+  private final Gson gson;
+  private final Logger logger = LoggerFactory.getLogger(BinarySkyCaveRootInvoker.class);
+
+  public BinarySkyCaveRootInvoker(ObjectManager objectManager) {
+    super(objectManager);
+    gson = new Gson();
+  }
+
+  public BinarySkyCaveRootInvoker(ObjectManager objectManager, SubInvoker playerInvoker) {
+    super(objectManager, playerInvoker);
+    gson = new Gson();
+  }
+
+  @Override
+  public String handleRequest(String request, IntConsumer onRejected) {
+    if (BinaryMarshalling.isBinary(request)) {
+      BinaryMarshalling.Request binaryRequest = null;
+      try {
+        binaryRequest = BinaryMarshalling.demarshallRequest(request);
+      } catch (IllegalArgumentException exc) {
+        if (BinaryMarshalling.isOfThisVersion(request)) {
+          // A malformed binary request is answered in binary, as a
+          // JSON reply tells the client the format is unknown here
+          String description = "BinarySkyCaveRootInvoker.handleRequest: Unhandled request, "
+              + exc.getMessage();
+          logger.warn(description);
+          return BinaryMarshalling.marshallReply(HttpServletResponse.SC_BAD_REQUEST, null, description);
+        }
+        // Not binary after all; the JSON invoker answers it as ill formed
+      }
+      if (binaryRequest != null) {
+        RequestContext context = RequestContext.of(gson, request, binaryRequest);
+        return marshall(context, onRejected);
+      }
+    }
+    return super.handleRequest(request, onRejected);
+  }
+}
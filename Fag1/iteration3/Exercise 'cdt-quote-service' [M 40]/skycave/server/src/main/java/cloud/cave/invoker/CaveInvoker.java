@@ -21,13 +21,9 @@ import cloud.cave.common.MarshallingKeys;
 import cloud.cave.common.PlayerDataTransferObject;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-import frds.broker.Invoker;
-import frds.broker.ReplyObject;
 
 import cloud.cave.config.ObjectManager;
 import cloud.cave.domain.*;
-import frds.broker.RequestObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,7 +35,7 @@ import javax.servlet.http.HttpServletResponse;
  * @author Henrik Baerbak Christensen, Aarhus University.
  *
  */
-public class CaveInvoker implements Invoker {
+public class CaveInvoker implements SubInvoker {
 
   private final Gson gson;
   private ObjectManager objectManager;
@@ -59,14 +55,13 @@ public class CaveInvoker implements Invoker {
   }
 
   @Override
-  public String handleRequest(String request) {
-    ReplyObject reply = null;
+  public InvocationReply handleRequest(RequestContext context) {
+    InvocationReply reply = null;
     Cave cave = objectManager.getCave();
 
-    // Do the demarshalling
-    RequestObject requestObject = gson.fromJson(request, RequestObject.class);
-    String operationName = requestObject.getOperationName();
-    JsonArray array = JsonParser.parseString(requestObject.getPayload()).getAsJsonArray();
+    // The request is already demarshalled by the root invoker
+    String operationName = context.getOperationName();
+    JsonArray array = context.getPayload();
 
     // Added for Humio logging
     logger.info("method=handleRequest, context=request, operationName={}", operationName);
@@ -91,12 +86,12 @@ public class CaveInvoker implements Invoker {
                 p.getAccessToken(),
                 p.getName(),
                 p.getAuthenticationStatus());
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(dto));
+        reply = InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(dto));
 
       } else {
         dto = new PlayerDataTransferObject(p.getAuthenticationStatus());
-        reply = new ReplyObject(HttpServletResponse.SC_UNAUTHORIZED,
-                gson.toJson(dto));
+        reply = InvocationReply.of(HttpServletResponse.SC_UNAUTHORIZED,
+                gson.toJsonTree(dto));
       }
     }
     // === LOGOUT
@@ -104,22 +99,23 @@ public class CaveInvoker implements Invoker {
       String playerID = array.get(0).getAsString();
       LogoutResult result = cave.logout(playerID);
 
-      reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(result));
+      reply = InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(result));
     }
     // === DESCRIBE CONFIGURATION
     else if (operationName.equals(MarshallingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY)) {
 
       String cfg = cave.describeConfiguration();
-      reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(cfg));
+      reply = InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(cfg));
     }
 
-    // Added for Humio logging
-    logger.info("method=handleRequest, context=reply, statusCode={}", reply.getStatusCode());
-
     // No need for a 'default case' as the returned null value will
     // be caught in the calling invoker.
+    if (reply == null) { return null; }
+
+    // Added for Humio logging
+    logger.info("method=handleRequest, context=reply, statusCode={}", reply.getStatusCode());
 
-    return gson.toJson(reply);
+    return reply;
   }
 
 }
@@ -17,37 +17,120 @@
 
 package cloud.cave.invoker;
 
+import cloud.cave.common.HttpCompression;
+import cloud.cave.common.Marshalling;
+import com.google.gson.JsonSyntaxException;
+import frds.broker.Invoker;
 import frds.broker.RequestObject;
 import frds.broker.ipc.http.MimeMediaType;
 import frds.broker.ipc.http.UriTunnelServerRequestHandler;
+import spark.Request;
+import spark.Response;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 
 import static spark.Spark.*;
 
 /** A URITunnel SRH that adds a few extra paths to the server
  * for inspection.
+ * <p>
+ * The tunnel negotiates gzip compression, see HttpCompression:
+ * replies of at least 'compressionThreshold' bytes are compressed for
+ * clients that accept it, and compressed requests are accepted, unless
+ * they inflate beyond HttpCompression.MAX_INFLATED_LENGTH, which is
+ * answered with 413 Request Entity Too Large.
+ * <p>
+ * Requests rejected by the admission controller of a
+ * SkyCaveRootInvoker are answered with 503 Service Unavailable and a
+ * Retry-After header, so HTTP clients and proxies see the overload.
  */
 public class CaveUriTunnelServerRequestHandler extends UriTunnelServerRequestHandler {
   private int requestCount = 0;
-  // Like to keep the last requests and replies around for inspection
-  private String lastRequest, lastReply;
+  // Like to keep the last requests and replies around for inspection;
+  // the request is only decoded when shown by '/info'
+  private byte[] lastRequestBody;
+  private boolean isLastRequestCompressed;
+  private String lastReply;
+  private int compressionThreshold = HttpCompression.DEFAULT_THRESHOLD;
+
+  /**
+   * Set the size in bytes from which replies are compressed;
+   * a negative value turns compression off.
+   *
+   * @param compressionThreshold the smallest size compressed
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  @Override
+  public void setPortAndInvoker(int port, Invoker invoker) {
+    if (invoker instanceof SkyCaveRootInvoker rootInvoker) {
+      // The tunnel route of the super class always answers 200, so a
+      // rejected request halts the route with 503 instead
+      invoker = request -> {
+        boolean[] isRejected = { false };
+        String reply = rootInvoker.handleRequest(request, seconds -> isRejected[0] = true);
+        if (isRejected[0]) {
+          throw halt(HttpServletResponse.SC_SERVICE_UNAVAILABLE, reply);
+        }
+        return reply;
+      };
+    }
+    super.setPortAndInvoker(port, invoker);
+  }
 
   @Override
   public void start() {
     super.start();
 
     before((req, res) -> {
-      String body = req.body();
+      requestCount++;
+    });
 
-      RequestObject p = gson.fromJson(body, RequestObject.class);
-      if (p != null) lastRequest = p.toString();
+    // The tunnel route of the super class reads the body as sent, so a
+    // gzip compressed request is inflated and answered here instead,
+    // halting before the route is reached
+    before(tunnelRoute, (req, res) -> {
+      boolean isCompressed = HttpCompression.isGzip(req.headers(HttpCompression.CONTENT_ENCODING));
+      lastRequestBody = req.bodyAsBytes();
+      isLastRequestCompressed = isCompressed;
+      if (!isCompressed) return;
+
+      String body;
+      try {
+        body = HttpCompression.gunzip(req.bodyAsBytes());
+      } catch (HttpCompression.BodyTooLargeException e) {
+        halt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+        return;
+      } catch (IOException e) {
+        halt(HttpServletResponse.SC_BAD_REQUEST, "Malformed gzip compressed request: " + e.getMessage());
+        return;
+      }
+      String reply = invoker.handleRequest(body);
+      res.type(MimeMediaType.APPLICATION_JSON);
+      // A halt skips the after filters
+      negotiateCompression(req, res, reply);
+      lastReply = reply;
+      halt(HttpServletResponse.SC_OK, reply);
+    });
 
-      requestCount++;
+    after(tunnelRoute, (req, res) -> {
+      negotiateCompression(req, res, res.body());
+    });
+
+    // Runs after halts too; only rejections halt with 503
+    afterAfter(tunnelRoute, (req, res) -> {
+      if (res.status() == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+        res.header(Marshalling.RETRY_AFTER_HEADER, Integer.toString(AdmissionController.RETRY_AFTER_SECONDS));
+      }
     });
 
     after((req, res) -> {
@@ -65,11 +148,22 @@ public class CaveUriTunnelServerRequestHandler extends UriTunnelServerRequestHan
 
   }
 
+  private void negotiateCompression(Request req, Response res, String body) {
+    if (compressionThreshold < 0) return;
+    res.header(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP);
+    // Spark compresses the body once it sees the header
+    if (body != null
+        && HttpCompression.acceptsGzip(req.headers(HttpCompression.ACCEPT_ENCODING))
+        && HttpCompression.isWorthCompressing(compressionThreshold, body.length())) {
+      res.header(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP);
+    }
+  }
+
   private String generateStatisticsPage() {
     String html;
     html = "<h1>SkyCave Daemon HTTP Server</h1>";
     html += "<h2>Statistics</h2> <p>Requests handled during life time: "+requestCount+ "</p>";
-    html += "<p> Last Request:<blockquote><code>" + lastRequest + "</blockquote></code></p>";
+    html += "<p> Last Request:<blockquote><code>" + describeLastRequest() + "</blockquote></code></p>";
     html += "<p> Last Reply:<blockquote><code>" + lastReply + "</blockquote></code></p>";
 
     InetAddress ip = null;
@@ -84,6 +178,24 @@ public class CaveUriTunnelServerRequestHandler extends UriTunnelServerRequestHan
     return html;
   }
 
+  private String describeLastRequest() {
+    byte[] bytes = lastRequestBody;
+    if (bytes == null) return null;
+    String body;
+    try {
+      body = isLastRequestCompressed
+          ? HttpCompression.gunzip(bytes) : new String(bytes, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return "Malformed gzip compressed request";
+    }
+    try {
+      RequestObject p = gson.fromJson(body, RequestObject.class);
+      return p == null ? null : p.toString();
+    } catch (JsonSyntaxException e) {
+      return body;
+    }
+  }
+
   // Thanks to
   // https://stackoverflow.com/questions/9481865/getting-the-ip-address-of-the-current-machine-using-java
   private String getAllIps() {
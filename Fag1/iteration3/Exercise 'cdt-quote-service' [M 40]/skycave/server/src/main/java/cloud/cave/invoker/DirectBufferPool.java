@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct byte buffers of one size, reused for
+ * socket reads and writes, as direct buffers are costly to allocate
+ * and are not reclaimed promptly by the garbage collector.
+ */
+public class DirectBufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooledCount = new AtomicInteger();
+
+  /**
+   * Create a pool.
+   *
+   * @param bufferSize the capacity of each buffer
+   * @param maxPooled  the maximal number of buffers kept for reuse
+   */
+  public DirectBufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Get a cleared buffer, pooled or new.
+   *
+   * @return a direct buffer of the size of the pool
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = pooled.poll();
+    if (buffer == null) { return ByteBuffer.allocateDirect(bufferSize); }
+    pooledCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool; buffers not from the pool, and
+   * buffers beyond the bound, are left to the garbage collector.
+   *
+   * @param buffer the buffer, which must not be used afterwards
+   */
+  public void release(ByteBuffer buffer) {
+    if (!buffer.isDirect() || buffer.capacity() != bufferSize) { return; }
+    if (pooledCount.incrementAndGet() > maxPooled) {
+      pooledCount.decrementAndGet();
+      return;
+    }
+    pooled.offer(buffer);
+  }
+
+  /**
+   * Get the number of buffers ready for reuse.
+   *
+   * @return the number of pooled buffers
+   */
+  public int getPooledCount() {
+    return pooledCount.get();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import cloud.cave.common.Marshalling;
+import com.google.gson.JsonElement;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The reply of an invocation before it is marshalled: a status code
+ * and either the result as a JSON tree, or an error description.
+ * The RequestContext marshalls it in the format of the request.
+ */
+public class InvocationReply {
+
+  private final int statusCode;
+  private final JsonElement result;
+  private final String errorDescription;
+  private final int retryAfterSeconds;
+
+  private InvocationReply(int statusCode, JsonElement result, String errorDescription,
+                          int retryAfterSeconds) {
+    this.statusCode = statusCode;
+    this.result = result;
+    this.errorDescription = errorDescription;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Create a reply carrying a result.
+   *
+   * @param statusCode the status code, using HTTP vocabulary
+   * @param result     the result as a JSON tree
+   * @return the reply
+   */
+  public static InvocationReply of(int statusCode, JsonElement result) {
+    return new InvocationReply(statusCode, result, null, 0);
+  }
+
+  /**
+   * Create a reply carrying an error description.
+   *
+   * @param statusCode       the status code, using HTTP vocabulary
+   * @param errorDescription the description of the error
+   * @return the reply
+   */
+  public static InvocationReply error(int statusCode, String errorDescription) {
+    return new InvocationReply(statusCode, null, errorDescription, 0);
+  }
+
+  /**
+   * Create a 503 Service Unavailable reply, telling the client when
+   * to retry.
+   *
+   * @param errorDescription  the description of the error
+   * @param retryAfterSeconds the seconds the client should wait before
+   *                          it retries the request
+   * @return the reply
+   */
+  public static InvocationReply unavailable(String errorDescription, int retryAfterSeconds) {
+    return new InvocationReply(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null,
+        errorDescription + " " + Marshalling.describeRetryAfter(retryAfterSeconds), retryAfterSeconds);
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public boolean isSuccess() {
+    return statusCode >= 200 && statusCode < 300;
+  }
+
+  /**
+   * Get the result, null for an error reply.
+   *
+   * @return the result as a JSON tree
+   */
+  public JsonElement getResult() {
+    return result;
+  }
+
+  /**
+   * Get the error description, null for a reply with a result.
+   *
+   * @return the error description
+   */
+  public String getErrorDescription() {
+    return errorDescription;
+  }
+
+  /**
+   * Get the seconds the client should wait before it retries, 0 if
+   * the reply does not tell.
+   *
+   * @return the seconds to wait
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  @Override
+  public String toString() {
+    return "InvocationReply [statusCode=" + statusCode + ", result=" + result
+        + ", errorDescription=" + errorDescription + "]";
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.cave.common.MarshallingKeys;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.Player;
+import cloud.cave.server.PlayerNameService;
+import com.google.gson.JsonArray;
+
+/**
+ * PlayerInvoker of the 'mailbox' execution model: instead of
+ * executing the operations on the thread that received the
+ * request, each logged in player has a PlayerMailbox that queues
+ * its requests, and the mailboxes are executed on a shared pool of
+ * threads. Thus the requests for a player are executed in order,
+ * one at a time, without any lock, while different players run in
+ * parallel.
+ * <p>
+ * The thread that received a request still blocks until the mailbox
+ * has executed it, as the Invoker returns the reply: the mailboxes
+ * order the requests of each player and bound their number, but do
+ * not free the threads of the server request handler.
+ * <p>
+ * Read operations queued several times in a row for the same
+ * player are executed once. The number of requests queued for a
+ * single player is bounded by the mailbox capacity; requests beyond
+ * it are rejected with 429 Too Many Requests.
+ * <p>
+ * The mailbox of a player is created by its first request, and is
+ * shared by all its sessions, so the requests of a previous session
+ * are executed before those of a later login. An idle mailbox is
+ * removed once its player is logged out: when the mailbox has
+ * executed all its requests, and by a sweep of all mailboxes
+ * whenever their number has doubled since the last sweep. Requests
+ * are posted, and mailboxes removed, within the atomic updates of
+ * the map, so a request never reaches a removed mailbox.
+ */
+public class MailboxPlayerInvoker extends PlayerInvoker {
+
+  /** Default number of threads executing the mailboxes */
+  public static final int DEFAULT_THREAD_COUNT = 16;
+  /** Default number of requests queued for a single player */
+  public static final int DEFAULT_MAILBOX_CAPACITY = 64;
+
+  /** Status code of a request rejected by a full mailbox */
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+
+  // Operations that do not change the player or the cave
+  private static final Set<String> READ_OPERATIONS = new HashSet<>(Arrays.asList(
+      MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY,
+      MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+      MarshallingKeys.GET_REGION_METHOD_KEY,
+      MarshallingKeys.GET_POSITION_METHOD_KEY,
+      MarshallingKeys.GET_EXITSET_METHOD_KEY,
+      MarshallingKeys.GET_PLAYERS_HERE_METHOD_KEY,
+      MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY,
+      MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY));
+
+  // Mailboxes are never swept before there are this many
+  private static final int MIN_SWEEP_THRESHOLD = 64;
+
+  private final ObjectManager objectManager;
+  private final ExecutorService threads;
+  private final int mailboxCapacity;
+  private final ConcurrentMap<String, PlayerMailbox> mailboxes;
+  private final AtomicInteger sweepThreshold;
+
+  /**
+   * Dispatch on all player method invocations, using the default
+   * thread count and mailbox capacity.
+   *
+   * @param objectManager the object manager
+   */
+  public MailboxPlayerInvoker(ObjectManager objectManager) {
+    this(objectManager, DEFAULT_THREAD_COUNT, DEFAULT_MAILBOX_CAPACITY);
+  }
+
+  /**
+   * Dispatch on all player method invocations.
+   *
+   * @param objectManager   the object manager
+   * @param threadCount     the number of threads executing the mailboxes
+   * @param mailboxCapacity the number of requests queued for a single player
+   */
+  public MailboxPlayerInvoker(ObjectManager objectManager, int threadCount, int mailboxCapacity) {
+    super(objectManager);
+    this.objectManager = objectManager;
+    this.mailboxCapacity = mailboxCapacity;
+    mailboxes = new ConcurrentHashMap<>();
+    sweepThreshold = new AtomicInteger(MIN_SWEEP_THRESHOLD);
+    threads = Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, "player-mailbox");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  protected InvocationReply execute(String operationName, Player player, String accessToken,
+                                    OperationHandler handler, JsonArray arguments) {
+    PlayerMailbox.Message message = new PlayerMailbox.Message(player, operationName, accessToken,
+        handler, arguments, READ_OPERATIONS.contains(operationName));
+    boolean[] isPosted = new boolean[1];
+    mailboxes.compute(player.getID(), (id, existing) -> {
+      PlayerMailbox mailbox = existing != null ? existing
+          : new PlayerMailbox(this::executeMessage, threads, mailboxCapacity,
+              mailboxOfPlayer -> removeIfStale(id, mailboxOfPlayer));
+      isPosted[0] = mailbox.post(message);
+      return mailbox;
+    });
+    int threshold = sweepThreshold.get();
+    if (mailboxes.size() >= threshold && sweepThreshold.compareAndSet(threshold, Integer.MAX_VALUE)) {
+      removeStaleMailboxes();
+    }
+    if (!isPosted[0]) {
+      return InvocationReply.error(SC_TOO_MANY_REQUESTS,
+          "MailboxPlayerInvoker: Too many requests queued for player with ID " + player.getID());
+    }
+
+    // Blocks this thread until the mailbox has executed the request
+    try {
+      return message.reply.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CaveIPCException("MailboxPlayerInvoker: Interrupted while awaiting " + operationName, e);
+    } catch (ExecutionException e) {
+      // Let the invokers report the exception as if it was thrown here
+      if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+      throw new CaveIPCException("MailboxPlayerInvoker: Executing " + operationName + " failed", e);
+    }
+  }
+
+  private void removeStaleMailboxes() {
+    mailboxes.forEach(this::removeIfStale);
+    sweepThreshold.set(Math.max(MIN_SWEEP_THRESHOLD, 2 * mailboxes.size()));
+  }
+
+  private void removeIfStale(String playerID, PlayerMailbox mailbox) {
+    PlayerNameService nameService = objectManager.getPlayerNameService();
+    mailboxes.computeIfPresent(playerID, (id, existing) ->
+        existing == mailbox && mailbox.isIdle() && nameService.get(id) == null ? null : existing);
+  }
+
+  private InvocationReply executeMessage(PlayerMailbox.Message message) {
+    return invoke(message.player, message.accessToken, message.handler, message.arguments);
+  }
+
+  /**
+   * Get the number of requests waiting in the mailbox of a player.
+   *
+   * @param playerID the id of the player
+   * @return the number of queued requests
+   */
+  public int getQueuedCount(String playerID) {
+    PlayerMailbox mailbox = mailboxes.get(playerID);
+    return mailbox == null ? 0 : mailbox.getQueuedCount();
+  }
+
+  /**
+   * Get the number of player mailboxes kept.
+   *
+   * @return the number of mailboxes
+   */
+  public int getMailboxCount() {
+    return mailboxes.size();
+  }
+
+  /**
+   * Stop the threads executing the mailboxes.
+   */
+  public void shutdown() {
+    threads.shutdownNow();
+  }
+}
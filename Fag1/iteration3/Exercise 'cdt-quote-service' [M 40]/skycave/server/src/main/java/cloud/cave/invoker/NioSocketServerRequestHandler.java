@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.cave.common.SocketFraming;
+import com.google.gson.Gson;
+import frds.broker.Invoker;
+import frds.broker.ServerRequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non blocking socket server request handler: a single selector
+ * thread accepts connections, and reads and writes all of them,
+ * while the invoker is called on a separate, bounded pool of worker
+ * threads. Connections are kept open for more requests, and an idle
+ * connection holds no buffer or thread, only its channel.
+ * <p>
+ * Requests and replies are length prefixed frames (see SocketFraming),
+ * as sent by the FramedSocketClientRequestHandler. A connection whose
+ * first byte is not 0 is served in the line based protocol of the
+ * FRDS socket request handlers instead, so line based clients work
+ * as well.
+ * <p>
+ * Socket reads and the writes of small replies use direct buffers
+ * from a DirectBufferPool. The requests of one connection are handled
+ * one at a time, in order; a connection sending too many requests
+ * ahead of the replies is not read from until it catches up. If the
+ * invoker throws, the request is answered with 500 Internal Server
+ * Error, and the connection goes on with the requests behind it.
+ * <p>
+ * All state of the connections is only touched by the selector
+ * thread; the workers hand replies back through a queue of
+ * completions, run by the selector thread.
+ */
+public class NioSocketServerRequestHandler implements ServerRequestHandler {
+
+  /** Number of worker threads calling the invoker, unless set otherwise */
+  public static final int DEFAULT_WORKER_COUNT = 16;
+
+  private static final int ACCEPT_BACKLOG = 1024;
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 256;
+  // Requests read ahead of the replies, per connection
+  private static final int MAX_PENDING_REQUESTS = 16;
+
+  private final Logger logger;
+  private final Gson gson;
+  private final DirectBufferPool bufferPool;
+  private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  private int port;
+  private Invoker invoker;
+  private int workerCount = DEFAULT_WORKER_COUNT;
+
+  private volatile boolean running;
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private ExecutorService workers;
+
+  public NioSocketServerRequestHandler() {
+    logger = LoggerFactory.getLogger(NioSocketServerRequestHandler.class);
+    gson = new Gson();
+    bufferPool = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+  }
+
+  @Override
+  public void setPortAndInvoker(int port, Invoker invoker) {
+    this.port = port;
+    this.invoker = invoker;
+  }
+
+  /**
+   * Set the number of worker threads calling the invoker; must be
+   * set before start.
+   *
+   * @param workerCount the number of worker threads
+   */
+  public void setWorkerCount(int workerCount) {
+    this.workerCount = workerCount;
+  }
+
+  /**
+   * Get the number of open connections.
+   *
+   * @return the number of open connections
+   */
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  @Override
+  public void start() {
+    try {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      throw new CaveIPCException("NioSocketServerRequestHandler: Could not listen on port " + port, e);
+    }
+    AtomicInteger count = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+      Thread thread = new Thread(runnable, "nio-worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    running = true;
+    // Not a daemon thread, it keeps the server running
+    new Thread(this::eventLoop, "nio-selector").start();
+    logger.info("method=start, port=" + port + ", workerCount=" + workerCount);
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    selector.wakeup();
+    workers.shutdownNow();
+  }
+
+  private void eventLoop() {
+    try {
+      while (running) {
+        selector.select();
+        Runnable completion;
+        while ((completion = completions.poll()) != null) {
+          completion.run();
+        }
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          handle(key);
+        }
+      }
+    } catch (IOException e) {
+      logger.error("method=eventLoop, the selector failed", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key.channel());
+      }
+      closeQuietly(selector);
+    }
+  }
+
+  private void handle(SelectionKey key) {
+    if (!key.isValid()) { return; }
+    try {
+      if (key.isAcceptable()) {
+        accept();
+        return;
+      }
+      if (key.isReadable()) { read(key); }
+      if (key.isValid() && key.isWritable()) { write(key); }
+    } catch (IOException e) {
+      close(key);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) { return; }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    connectionCount.incrementAndGet();
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    ByteBuffer buffer = bufferPool.acquire();
+    int count;
+    try {
+      while ((count = connection.channel.read(buffer)) > 0) {
+        buffer.flip();
+        connection.append(buffer);
+        buffer.clear();
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+    connection.extractRequests();
+    if (count < 0) {
+      // The client is done; requests in flight are dropped
+      close(key);
+      return;
+    }
+    dispatchNext(connection);
+    updateInterest(connection);
+  }
+
+  private void dispatchNext(Connection connection) {
+    if (connection.busy || connection.pendingRequests.isEmpty()) { return; }
+    String request = connection.pendingRequests.poll();
+    connection.busy = true;
+    try {
+      workers.execute(() -> {
+        String reply;
+        try {
+          reply = invoker.handleRequest(request);
+        } catch (RuntimeException e) {
+          logger.error("method=dispatchNext, the invoker failed", e);
+          reply = RequestContext.marshallInternalError(gson, e);
+        }
+        String marshalledReply = reply;
+        completions.add(() -> replied(connection, marshalledReply));
+        selector.wakeup();
+      });
+    } catch (RejectedExecutionException e) {
+      // Stopping
+    }
+  }
+
+  private void replied(Connection connection, String reply) {
+    connection.busy = false;
+    SelectionKey key = connection.key;
+    if (!key.isValid()) { return; }
+    try {
+      connection.outbound.add(encode(connection, reply));
+      write(key);
+      dispatchNext(connection);
+      updateInterest(connection);
+    } catch (IOException e) {
+      close(key);
+    }
+  }
+
+  private ByteBuffer encode(Connection connection, String reply) throws IOException {
+    byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+    boolean framed = connection.protocol == Connection.FRAMED;
+    if (framed && bytes.length > SocketFraming.MAX_FRAME_LENGTH) {
+      throw new IOException("Reply of " + bytes.length + " bytes exceeds the maximal frame length");
+    }
+    int length = framed ? SocketFraming.HEADER_LENGTH + bytes.length : bytes.length + 1;
+    ByteBuffer buffer = length <= bufferPool.getBufferSize()
+        ? bufferPool.acquire() : ByteBuffer.allocate(length);
+    if (framed) {
+      buffer.putInt(bytes.length).put(bytes);
+    } else {
+      buffer.put(bytes).put((byte) '\n');
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private void write(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    while (!connection.outbound.isEmpty()) {
+      ByteBuffer buffer = connection.outbound.peek();
+      connection.channel.write(buffer);
+      if (buffer.hasRemaining()) { break; }
+      connection.outbound.poll();
+      bufferPool.release(buffer);
+    }
+    updateInterest(connection);
+  }
+
+  private void updateInterest(Connection connection) {
+    SelectionKey key = connection.key;
+    if (!key.isValid()) { return; }
+    int interest = 0;
+    if (connection.pendingRequests.size() < MAX_PENDING_REQUESTS) { interest |= SelectionKey.OP_READ; }
+    if (!connection.outbound.isEmpty()) { interest |= SelectionKey.OP_WRITE; }
+    key.interestOps(interest);
+  }
+
+  private void close(SelectionKey key) {
+    Connection connection = (Connection) key.attachment();
+    key.cancel();
+    closeQuietly(key.channel());
+    if (connection != null && !connection.closed) {
+      connection.closed = true;
+      connectionCount.decrementAndGet();
+      ByteBuffer buffer;
+      while ((buffer = connection.outbound.poll()) != null) {
+        bufferPool.release(buffer);
+      }
+    }
+  }
+
+  private void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Closing anyway
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + ", port " + port + ", workerCount " + workerCount;
+  }
+
+  /** The state of one connection; only touched by the selector thread */
+  private static class Connection {
+    static final int UNKNOWN = 0, FRAMED = 1, LINE = 2;
+
+    final SocketChannel channel;
+    SelectionKey key;
+    int protocol = UNKNOWN;
+    boolean busy, closed;
+    final Deque<String> pendingRequests = new ArrayDeque<>();
+    final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    // Bytes read but not yet part of a whole request; null when
+    // there are none, so idle connections hold no buffer
+    private byte[] inbound;
+    private int inboundLength;
+    // Where the search for the end of a line continues
+    private int scannedLength;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void append(ByteBuffer buffer) {
+      int needed = inboundLength + buffer.remaining();
+      if (inbound == null) {
+        inbound = new byte[Math.max(needed, 256)];
+      } else if (needed > inbound.length) {
+        inbound = Arrays.copyOf(inbound, Math.max(needed, 2 * inbound.length));
+      }
+      int count = buffer.remaining();
+      buffer.get(inbound, inboundLength, count);
+      inboundLength += count;
+    }
+
+    void extractRequests() throws IOException {
+      while (inboundLength > 0) {
+        if (protocol == UNKNOWN) { protocol = inbound[0] == 0 ? FRAMED : LINE; }
+        String request = protocol == FRAMED ? extractFrame() : extractLine();
+        if (request == null) { return; }
+        pendingRequests.add(request);
+      }
+    }
+
+    private String extractFrame() throws IOException {
+      if (inboundLength < SocketFraming.HEADER_LENGTH) { return null; }
+      int length = ByteBuffer.wrap(inbound, 0, SocketFraming.HEADER_LENGTH).getInt();
+      if (length < 0 || length > SocketFraming.MAX_FRAME_LENGTH) {
+        throw new IOException("Frame length " + length + " is not valid");
+      }
+      if (inboundLength < SocketFraming.HEADER_LENGTH + length) { return null; }
+      String request = new String(inbound, SocketFraming.HEADER_LENGTH, length, StandardCharsets.UTF_8);
+      consume(SocketFraming.HEADER_LENGTH + length);
+      return request;
+    }
+
+    private String extractLine() throws IOException {
+      for (int i = scannedLength; i < inboundLength; i++) {
+        if (inbound[i] == '\n') {
+          int end = i > 0 && inbound[i - 1] == '\r' ? i - 1 : i;
+          String request = new String(inbound, 0, end, StandardCharsets.UTF_8);
+          consume(i + 1);
+          return request;
+        }
+      }
+      scannedLength = inboundLength;
+      if (inboundLength > SocketFraming.MAX_FRAME_LENGTH) {
+        throw new IOException("Line exceeds the maximal length");
+      }
+      return null;
+    }
+
+    private void consume(int count) {
+      if (count == inboundLength) {
+        inbound = null;
+        inboundLength = 0;
+      } else {
+        System.arraycopy(inbound, count, inbound, 0, inboundLength - count);
+        inboundLength -= count;
+      }
+      scannedLength = 0;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import cloud.cave.domain.Player;
+import com.google.gson.JsonArray;
+
+/**
+ * The handler of a single operation on a Player: decodes the arguments
+ * of the operation, calls the player, and marshalls the result.
+ * Registered by operation name in the PlayerInvoker.
+ */
+@FunctionalInterface
+public interface OperationHandler {
+
+  /**
+   * Handle the operation.
+   *
+   * @param player    the player the operation is called on; the
+   *                  session has already been validated
+   * @param arguments the arguments of the operation
+   * @return the reply
+   */
+  InvocationReply handle(Player player, JsonArray arguments);
+}
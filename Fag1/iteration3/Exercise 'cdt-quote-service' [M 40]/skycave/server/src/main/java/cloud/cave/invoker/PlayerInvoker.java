@@ -17,23 +17,18 @@
 
 package cloud.cave.invoker;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import cloud.cave.common.Marshalling;
 import cloud.cave.common.MarshallingKeys;
 import cloud.cave.common.WallMessageDataTransferObject;
-import cloud.cave.service.quote.QuoteRecord;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-import frds.broker.Invoker;
-import frds.broker.ReplyObject;
+import com.google.gson.*;
 
 import cloud.cave.common.PlayerSessionExpiredException;
 import cloud.cave.config.ObjectManager;
 import cloud.cave.domain.*;
-import frds.broker.RequestObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,15 +36,23 @@ import javax.servlet.http.HttpServletResponse;
 
 /** SubInvoker implementation covering all the methods
  * belonging to calls to Player.
+ * <p>
+ * Requests for the same player are executed one at a time,
+ * while requests for different players run in parallel.
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  *
  */
-public class PlayerInvoker implements Invoker {
+public class PlayerInvoker implements SubInvoker {
 
   private final Gson gson;
   private final Logger logger;
   private ObjectManager objectManager;
+  // Dispatch table from operation name to its handler
+  private final Map<String, OperationHandler> operationHandlers;
+  // Lock of each player ID with requests in progress, serializing
+  // the requests of the player
+  private final ConcurrentMap<String, PlayerLock> playerLocks;
 
   /**
    * Dispatch on all player method invocations.
@@ -60,27 +63,182 @@ public class PlayerInvoker implements Invoker {
     this.objectManager = objectManager;
     gson = new Gson();
     logger = LoggerFactory.getLogger(PlayerInvoker.class);
+    operationHandlers = createOperationHandlers();
+    playerLocks = new ConcurrentHashMap<>();
   }
 
-  @Override
-  public String handleRequest(String request) {
-    ReplyObject reply = null;
+  private Map<String, OperationHandler> createOperationHandlers() {
+    Map<String, OperationHandler> handlers = new HashMap<>();
 
-    // Do the demarshalling
-    RequestObject requestObject =
-            gson.fromJson(request, RequestObject.class);
+    // === SHORT ROOM
+    handlers.put(MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY, (player, array) ->
+        InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(player.getShortRoomDescription())));
+    // === LONG ROOM
+    handlers.put(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, (player, array) ->
+        InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(player.getLongRoomDescription())));
+    // === REGION
+    handlers.put(MarshallingKeys.GET_REGION_METHOD_KEY, (player, array) ->
+        InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(player.getRegion())));
+    // === POSITION
+    handlers.put(MarshallingKeys.GET_POSITION_METHOD_KEY, (player, array) ->
+        InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(player.getPosition())));
+    // === MOVE
+    handlers.put(MarshallingKeys.MOVE_METHOD_KEY, (player, array) -> {
+      // move(direction)
+      String directionAsString = gson.fromJson(array.get(0), String.class);
+      Direction direction = Direction.valueOf(directionAsString);
+      UpdateResult isValid = player.move(direction);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(isValid));
+    });
+    // === EXIT SET
+    handlers.put(MarshallingKeys.GET_EXITSET_METHOD_KEY, (player, array) -> {
+      List<Direction> exitSet = player.getExitSet();
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(exitSet));
+    });
+    // === PLAYERS HERE
+    handlers.put(MarshallingKeys.GET_PLAYERS_HERE_METHOD_KEY, (player, array) -> {
+      List<String> playersHere = player.getPlayersHere();
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(playersHere));
+    });
+    // === DIG
+    handlers.put(MarshallingKeys.DIG_ROOM_METHOD_KEY, (player, array) -> {
+      // dig(direction, description)
+      String directionAsString = gson.fromJson(array.get(0), String.class);
+      Direction direction = Direction.valueOf(directionAsString);
+      String description = gson.fromJson(array.get(1), String.class);
+      UpdateResult isValid = player.digRoom(direction, description);
+      return InvocationReply.of(HttpServletResponse.SC_CREATED, gson.toJsonTree(isValid));
+    });
+    // === UPDATE ROOM
+    handlers.put(MarshallingKeys.UPDATE_ROOM_METHOD_KEY, (player, array) -> {
+      // update(description)
+      String description = gson.fromJson(array.get(0), String.class);
+      UpdateResult status = player.updateRoom(description);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(status));
+    });
+    // === EXECUTE
+    handlers.put(MarshallingKeys.EXECUTE_METHOD_KEY, (player, array) -> {
+      String commandName = gson.fromJson(array.get(0), String.class);
+      String[] parameters = new String[array.size()];
+      for (int i = 1; i < array.size(); i++) {
+        parameters[i-1] = gson.fromJson(array.get(i), String.class);
+      }
+      List<String> stringList = player.execute(commandName, parameters);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(stringList));
+    });
+    // === QUOTE
+    handlers.put(MarshallingKeys.GET_QUOTE_METHOD_KEY, (player, array) -> {
+      int quoteIndex = gson.fromJson(array.get(0), int.class);
+      String quoteRecord = player.getQuote(quoteIndex);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(quoteRecord));
+    });
+    // === Wall
+    handlers.put(MarshallingKeys.ADD_MESSAGE_METHOD_KEY, (player, array) -> {
+      String message = gson.fromJson(array.get(0), String.class);
+      player.addMessage(message);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree("Message added"));
+    });
+    handlers.put(MarshallingKeys.UPDATE_MESSAGE_METHOD_KEY, (player, array) -> {
+      String messageId = gson.fromJson(array.get(0), String.class);
+      String newContents = gson.fromJson(array.get(1), String.class);
+      UpdateResult status = player.updateMessage(messageId, newContents);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(status));
+    });
+    handlers.put(MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY, (player, array) -> {
+      int pageNumber = gson.fromJson(array.get(0), int.class);
+      List<WallMessageDataTransferObject> wallMessages = player.getMessageList(pageNumber);
+      return InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(wallMessages));
+    });
+    // === ROOM SNAPSHOT
+    handlers.put(MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY, (player, array) ->
+        InvocationReply.of(HttpServletResponse.SC_OK, gson.toJsonTree(player.getRoomSnapshot())));
+    // === BATCH
+    handlers.put(MarshallingKeys.BATCH_METHOD_KEY, this::handleBatch);
 
-    // Cache the name of called method
-    String operationName = requestObject.getOperationName();
+    return handlers;
+  }
+
+  /**
+   * Execute the operations of a batch in order, on the player whose
+   * session is already validated. Each argument is an object with the
+   * operationName and arguments of one operation, and the result is
+   * an array of objects with the responseCode and the result, or the
+   * errorDescription, of each. A malformed or failing operation only
+   * fails its own entry.
+   */
+  private InvocationReply handleBatch(Player player, JsonArray operations) {
+    JsonArray replies = new JsonArray(operations.size());
+    for (JsonElement operation : operations) {
+      InvocationReply reply = executeBatchEntry(player, operation);
+
+      JsonObject marshalled = new JsonObject();
+      marshalled.addProperty(Marshalling.RESPONSE_CODE_KEY, reply.getStatusCode());
+      if (reply.getResult() != null) { marshalled.add(Marshalling.RESULT_KEY, reply.getResult()); }
+      if (reply.getErrorDescription() != null) {
+        marshalled.addProperty(Marshalling.ERROR_DESCRIPTION_KEY, reply.getErrorDescription());
+      }
+      replies.add(marshalled);
+    }
+    return InvocationReply.of(HttpServletResponse.SC_OK, replies);
+  }
+
+  private InvocationReply executeBatchEntry(Player player, JsonElement element) {
+    JsonElement name = element.isJsonObject()
+        ? element.getAsJsonObject().get(Marshalling.OPERATION_NAME_KEY) : null;
+    if (name == null || !name.isJsonPrimitive() || !name.getAsJsonPrimitive().isString()) {
+      return InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
+          "PlayerInvoker.handleBatch: A batch entry has no operation name");
+    }
+    String operationName = name.getAsString();
+    JsonElement arguments = element.getAsJsonObject().get(Marshalling.ARGUMENTS_KEY);
+    if (arguments != null && !arguments.isJsonArray()) {
+      return InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
+          "PlayerInvoker.handleBatch: The arguments of '" + operationName + "' are not an array");
+    }
+
+    // Batches do not nest
+    OperationHandler handler = operationName.equals(MarshallingKeys.BATCH_METHOD_KEY)
+        ? null : operationHandlers.get(operationName);
+    if (handler == null) {
+      return InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
+          "PlayerInvoker.handleBatch: method key '" + operationName + "' is unknown in a batch");
+    }
+
+    try {
+      return handler.handle(player, arguments == null ? new JsonArray() : arguments.getAsJsonArray());
+    } catch (JsonParseException | IllegalArgumentException
+             | IndexOutOfBoundsException | IllegalStateException exc) {
+      return InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
+          "PlayerInvoker.handleBatch: The arguments of '" + operationName + "' are malformed: "
+              + exc.getMessage());
+    } catch (PlayerSessionExpiredException exc) {
+      throw exc;
+    } catch (RuntimeException exc) {
+      logger.error("method=handleBatch, context=failure, operationName={}", operationName, exc);
+      return InvocationReply.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "PlayerInvoker.handleBatch: '" + operationName + "' failed: " + exc);
+    }
+  }
+
+  @Override
+  public InvocationReply handleRequest(RequestContext context) {
+    InvocationReply reply = null;
+
+    // The request is already demarshalled by the root invoker
+    String operationName = context.getOperationName();
 
     // objectId is a mangling of both the player's playerId and accessToken,
     // so we have do demangle it to get the two parts
-    String[] parts = Marshalling.demanglePlayerIDAndAccessToken(requestObject.getObjectId());
+    String[] parts = Marshalling.demanglePlayerIDAndAccessToken(context.getObjectId());
     String playerId = parts[0];
     String accessToken = parts[1];
 
     // Payload is delivered as JsonArray from the server request handler.
-    JsonArray array = JsonParser.parseString(requestObject.getPayload()).getAsJsonArray();
+    JsonArray array = context.getPayload();
+
+    // Unknown operations are reported by the root invoker
+    OperationHandler handler = operationHandlers.get(operationName);
+    if (handler == null) { return null; }
 
     try {
       // Fetch the player object from the name service
@@ -110,125 +268,12 @@ public class PlayerInvoker implements Invoker {
                         + " is no longer valid (Client session=" + accessToken
                         + "/No server session)");
       }
-      // Normal case: session two is still logged in
-      // when session 1 does the upcall
-      if (!accessToken.equals(player.getAccessToken())) {
-        throw new PlayerSessionExpiredException(
-                "PlayerDispatcher: The session for player " + playerId
-                        + " is no longer valid (Client session=" + accessToken
-                        + "/Server cached session=" + player.getAccessToken() + ").");
-      }
-
-      // === SHORT ROOM
-      if (operationName
-              .equals(MarshallingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY)) {
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(player.getShortRoomDescription()));
-      }
-      // === LONG ROOM
-      if (operationName
-              .equals(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY)) {
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(player.getLongRoomDescription()));
-      }
-      // === REGION
-      else if (operationName.equals(MarshallingKeys.GET_REGION_METHOD_KEY)) {
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(player.getRegion()));
-      }
-      // === POSITION
-      else if (operationName.equals(MarshallingKeys.GET_POSITION_METHOD_KEY)) {
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(player.getPosition()));
-      }
-      // === MOVE
-      else if (operationName.equals(MarshallingKeys.MOVE_METHOD_KEY)) {
-        // move(direction)
-        String directionAsString = gson.fromJson(array.get(0), String.class);
-        Direction direction = Direction.valueOf(directionAsString);
-        UpdateResult isValid = player.move(direction);
-
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(isValid));
-      }
-      // === EXIT SET
-      else if (operationName.equals(MarshallingKeys.GET_EXITSET_METHOD_KEY)) {
-        List<Direction> exitSet = player.getExitSet();
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(exitSet));
-      }
-      // === PLAYERS HERE
-      else if (operationName.equals(MarshallingKeys.GET_PLAYERS_HERE_METHOD_KEY)) {
-        List<String> playersHere = player.getPlayersHere();
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson((playersHere)));
-      }
-      // === DIG
-      else if (operationName.equals(MarshallingKeys.DIG_ROOM_METHOD_KEY)) {
-        // dig(direction, description)
-        String directionAsString = gson.fromJson(array.get(0), String.class);
-        Direction direction = Direction.valueOf(directionAsString);
-        String description = gson.fromJson(array.get(1), String.class);
-        UpdateResult isValid = player.digRoom(direction, description);
-
-        reply = new ReplyObject(HttpServletResponse.SC_CREATED,
-                gson.toJson(isValid));
-      }
-      // === UPDATE ROOM
-      else if (operationName.equals(MarshallingKeys.UPDATE_ROOM_METHOD_KEY)) {
-          // update(description)
-          String description = gson.fromJson(array.get(0), String.class);
-          UpdateResult status = player.updateRoom(description);
-
-          reply = new ReplyObject(HttpServletResponse.SC_OK,
-                  gson.toJson(status));
-      }
-      // === EXECUTE
-      else if (operationName.equals(MarshallingKeys.EXECUTE_METHOD_KEY)) {
-        String commandName = gson.fromJson(array.get(0), String.class);
-        String[] parameters = new String[array.size()];
-        for (int i = 1; i < array.size(); i++) {
-          parameters[i-1] = gson.fromJson(array.get(i), String.class);
-        }
-
-        List<String> stringList = player.execute(commandName, parameters);
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(stringList));
-      }
-
-      // === QUOTE
-      else if (operationName.equals(MarshallingKeys.GET_QUOTE_METHOD_KEY)) {
-        int quoteIndex = gson.fromJson(array.get(0), int.class);
-
-        String quoteRecord = player.getQuote(quoteIndex);
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(quoteRecord));
-      }
-
-      // === Wall
-      else if (operationName.equals(MarshallingKeys.ADD_MESSAGE_METHOD_KEY)) {
-        String message = gson.fromJson(array.get(0), String.class);
-        player.addMessage(message);
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson("Message added"));
-      }
-      else if (operationName.equals(MarshallingKeys.UPDATE_MESSAGE_METHOD_KEY)) {
-        String messageId = gson.fromJson(array.get(0), String.class);
-        String newContents = gson.fromJson(array.get(1), String.class);
-
-        UpdateResult status =  player.updateMessage(messageId, newContents);
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(status));
-      }
-      else if (operationName.equals(MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY)) {
-        int pageNumber = gson.fromJson(array.get(0), int.class);
-
-        List<WallMessageDataTransferObject> wallMessages =  player.getMessageList(pageNumber);
-
-        reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(wallMessages));
-      }
-
-      } catch (PlayerSessionExpiredException exc) {
+      reply = execute(operationName, player, accessToken, handler, array);
+    } catch (PlayerSessionExpiredException exc) {
       // Using 401 Unauthorized, as discussions of using 403 Forbidden
       // on stack overflow indicates that using 403 user should not attempt request
       // again, which is our case
-      reply = new ReplyObject(HttpServletResponse.SC_UNAUTHORIZED,
+      reply = InvocationReply.error(HttpServletResponse.SC_UNAUTHORIZED,
               "The session for player with ID "
                       + playerId + " has expired (Multiple logins made)");
     }
@@ -236,6 +281,87 @@ public class PlayerInvoker implements Invoker {
     // Added for Humio logging
     logger.info("method=handleRequest, context=reply, status={}", reply.getStatusCode());
 
-    return gson.toJson(reply);
+    return reply;
+  }
+
+  /**
+   * Execute an operation on a player fetched from the name service.
+   * Requests for the same player are serialized by a lock of the
+   * player's ID, as the servant caches state that the operations
+   * read and update, and so a batch is not interleaved with other
+   * requests of the session. The lock is shared by the player objects
+   * of the old and new session of a player, thus they never run at
+   * once, while different players run in parallel.
+   * <p>
+   * The lock is a ReentrantLock, not a monitor, as a virtual thread
+   * blocked in storage I/O while holding a monitor pins its carrier
+   * thread. A lock counts the requests using it, and is removed when
+   * the last is done, so only players with requests in progress have
+   * a lock.
+   *
+   * @param operationName the name of the operation
+   * @param player        the player to execute it on
+   * @param accessToken   the access token of the client's session
+   * @param handler       the handler of the operation
+   * @param arguments     the arguments of the operation
+   * @return the reply
+   * @throws PlayerSessionExpiredException if the client's session
+   * is no longer the session of the player
+   */
+  protected InvocationReply execute(String operationName, Player player, String accessToken,
+                                    OperationHandler handler, JsonArray arguments) {
+    // The count is only changed within the atomic updates of the map
+    PlayerLock playerLock = playerLocks.compute(player.getID(), (id, existing) -> {
+      PlayerLock used = existing != null ? existing : new PlayerLock();
+      used.userCount++;
+      return used;
+    });
+    playerLock.lock.lock();
+    try {
+      return invoke(player, accessToken, handler, arguments);
+    } finally {
+      playerLock.lock.unlock();
+      playerLocks.computeIfPresent(player.getID(), (id, used) -> --used.userCount == 0 ? null : used);
+    }
+  }
+
+  /**
+   * Get the number of player locks kept, one for each player with
+   * requests in progress.
+   *
+   * @return the number of locks
+   */
+  public int getPlayerLockCount() {
+    return playerLocks.size();
+  }
+
+  private static class PlayerLock {
+    final ReentrantLock lock = new ReentrantLock();
+    int userCount;
+  }
+
+  /**
+   * Validate the session and call the handler of the operation; the
+   * caller ensures the player is not used by other threads meanwhile.
+   *
+   * @param player      the player to execute it on
+   * @param accessToken the access token of the client's session
+   * @param handler     the handler of the operation
+   * @param arguments   the arguments of the operation
+   * @return the reply
+   * @throws PlayerSessionExpiredException if the client's session
+   * is no longer the session of the player
+   */
+  protected InvocationReply invoke(Player player, String accessToken,
+                                   OperationHandler handler, JsonArray arguments) {
+    // Normal case: session two is still logged in
+    // when session 1 does the upcall
+    if (!accessToken.equals(player.getAccessToken())) {
+      throw new PlayerSessionExpiredException(
+              "PlayerDispatcher: The session for player " + player.getID()
+                      + " is no longer valid (Client session=" + accessToken
+                      + "/Server cached session=" + player.getAccessToken() + ").");
+    }
+    return handler.handle(player, arguments);
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+import cloud.cave.domain.Player;
+import com.google.gson.JsonArray;
+
+/**
+ * The mailbox of a single player in the mailbox execution model:
+ * requests for the player, of any of its sessions, are queued here
+ * and executed one at a time and in order by a shared executor, thus
+ * the player servants and their cached room and position state are
+ * only used by one thread at a time, without any lock.
+ * <p>
+ * The mailbox is scheduled on the executor when a request arrives
+ * at an idle mailbox, and executes at most MAX_MESSAGES_PER_TURN
+ * requests before it yields the thread to other mailboxes. A read
+ * operation that is queued several times in a row with the same
+ * arguments is executed once, and all of them get its reply.
+ * <p>
+ * The number of queued requests is bounded by the capacity given,
+ * which is the quota of the player.
+ */
+class PlayerMailbox implements Runnable {
+
+  /** Requests executed before the mailbox yields its thread */
+  public static final int MAX_MESSAGES_PER_TURN = 32;
+
+  /** A queued request, and the future of its reply */
+  static class Message {
+    final Player player;
+    final String operationName;
+    final String accessToken;
+    final OperationHandler handler;
+    final JsonArray arguments;
+    final boolean isRead;
+    final CompletableFuture<InvocationReply> reply = new CompletableFuture<>();
+
+    Message(Player player, String operationName, String accessToken, OperationHandler handler,
+            JsonArray arguments, boolean isRead) {
+      this.player = player;
+      this.operationName = operationName;
+      this.accessToken = accessToken;
+      this.handler = handler;
+      this.arguments = arguments;
+      this.isRead = isRead;
+    }
+
+    boolean isSameReadAs(Message other) {
+      return isRead && player == other.player && operationName.equals(other.operationName)
+          && accessToken.equals(other.accessToken) && arguments.equals(other.arguments);
+    }
+  }
+
+  /** Executes a message on its player, validating its session */
+  interface MessageExecutor {
+    InvocationReply execute(Message message);
+  }
+
+  private final MessageExecutor messageExecutor;
+  private final Executor threads;
+  private final int capacity;
+  private final Consumer<PlayerMailbox> idleListener;
+
+  private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedCount = new AtomicInteger();
+  private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+  /**
+   * Create a mailbox.
+   *
+   * @param messageExecutor executes a single request on the player
+   * @param threads         the shared executor running the mailboxes
+   * @param capacity        the maximal number of queued requests
+   * @param idleListener    told when a turn leaves the mailbox empty
+   */
+  PlayerMailbox(MessageExecutor messageExecutor,
+                Executor threads, int capacity, Consumer<PlayerMailbox> idleListener) {
+    this.messageExecutor = messageExecutor;
+    this.threads = threads;
+    this.capacity = capacity;
+    this.idleListener = idleListener;
+  }
+
+  /**
+   * Queue a request.
+   *
+   * @param message the request
+   * @return false if the mailbox is full, and the request is not queued
+   */
+  boolean post(Message message) {
+    if (queuedCount.incrementAndGet() > capacity) {
+      queuedCount.decrementAndGet();
+      return false;
+    }
+    queue.add(message);
+    schedule();
+    return true;
+  }
+
+  /**
+   * Get the number of requests waiting in the mailbox.
+   *
+   * @return the number of queued requests
+   */
+  int getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  /**
+   * Tell if the mailbox has no requests queued or executing.
+   *
+   * @return true if the mailbox is idle
+   */
+  boolean isIdle() {
+    return queuedCount.get() == 0 && !isScheduled.get();
+  }
+
+  private void schedule() {
+    // The flag ensures a single thread at a time executes the
+    // mailbox, and orders its memory effects before the next turn
+    if (isScheduled.compareAndSet(false, true)) {
+      try {
+        threads.execute(this);
+      } catch (RejectedExecutionException e) {
+        isScheduled.set(false);
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      for (int i = 0; i < MAX_MESSAGES_PER_TURN; i++) {
+        Message message = poll();
+        if (message == null) { break; }
+        List<Message> sameReads = new ArrayList<>();
+        // Only this thread takes from the queue, thus the head
+        // seen by peek is the one taken by poll
+        while (message.isRead && queue.peek() != null && message.isSameReadAs(queue.peek())) {
+          sameReads.add(poll());
+        }
+        try {
+          InvocationReply reply = messageExecutor.execute(message);
+          message.reply.complete(reply);
+          for (Message read : sameReads) { read.reply.complete(reply); }
+        } catch (Throwable e) {
+          // Any failure must reach the waiting requests, else they
+          // wait forever
+          message.reply.completeExceptionally(e);
+          for (Message read : sameReads) { read.reply.completeExceptionally(e); }
+        }
+      }
+    } finally {
+      isScheduled.set(false);
+      // A request may have arrived after the last poll, but before
+      // the flag was cleared
+      if (!queue.isEmpty()) {
+        schedule();
+      } else {
+        idleListener.accept(this);
+      }
+    }
+  }
+
+  private Message poll() {
+    Message message = queue.poll();
+    if (message != null) { queuedCount.decrementAndGet(); }
+    return message;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import cloud.cave.common.BinaryMarshalling;
+import cloud.cave.common.Marshalling;
+import com.google.gson.*;
+import frds.broker.ReplyObject;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A request as it travels down the invoker chain: the request is
+ * parsed once by the root invoker, into a JSON tree, and the sub
+ * invokers read the operation and its arguments from it.
+ * <p>
+ * Two marshalling formats are understood, told apart by the request
+ * itself: from Marshalling.MARSHALING_VERSION 6, the arguments are
+ * embedded as a JSON array, and the reply carries its result as an
+ * embedded JSON tree. In the older format, the arguments are a JSON
+ * string in the 'payload' field, parsed when first asked for, and the
+ * reply is a ReplyObject with the result as a JSON string. A request
+ * is always answered in its own format, which is how clients
+ * negotiate the format with the server.
+ * <p>
+ * A request in the binary format of BinaryMarshalling is demarshalled
+ * by the BinarySkyCaveRootInvoker, and answered in that format.
+ */
+public class RequestContext {
+
+  private final Gson gson;
+  private final String request;
+  private final String operationName;
+  private final String objectId;
+  private final boolean embeddedJson;
+  private final boolean binary;
+  private final JsonElement payloadElement;
+  private JsonArray arguments;
+
+  /**
+   * Demarshall a request.
+   *
+   * @param gson    the gson instance to use
+   * @param request the marshalled request
+   * @return the context of the request
+   * @throws JsonSyntaxException if the request is not a request object
+   */
+  public static RequestContext parse(Gson gson, String request) {
+    JsonElement tree = JsonParser.parseString(request);
+    if (!tree.isJsonObject()) {
+      throw new JsonSyntaxException("RequestContext: The request is not a JSON object");
+    }
+    return new RequestContext(gson, request, tree.getAsJsonObject());
+  }
+
+  private RequestContext(Gson gson, String request, JsonObject json) {
+    this.gson = gson;
+    this.request = request;
+    operationName = getString(json, Marshalling.OPERATION_NAME_KEY);
+    objectId = getString(json, Marshalling.OBJECT_ID_KEY);
+    embeddedJson = json.has(Marshalling.ARGUMENTS_KEY);
+    binary = false;
+    payloadElement = embeddedJson ? json.get(Marshalling.ARGUMENTS_KEY) : json.get(Marshalling.PAYLOAD_KEY);
+  }
+
+  /**
+   * Create the context of a demarshalled binary request.
+   *
+   * @param gson          the gson instance to use
+   * @param request       the marshalled request
+   * @param binaryRequest the demarshalled request
+   * @return the context of the request
+   */
+  public static RequestContext of(Gson gson, String request, BinaryMarshalling.Request binaryRequest) {
+    return new RequestContext(gson, request, binaryRequest);
+  }
+
+  private RequestContext(Gson gson, String request, BinaryMarshalling.Request binaryRequest) {
+    this.gson = gson;
+    this.request = request;
+    operationName = binaryRequest.getOperationName();
+    objectId = binaryRequest.getObjectId();
+    embeddedJson = true;
+    binary = true;
+    payloadElement = binaryRequest.getArguments();
+  }
+
+  private static String getString(JsonObject json, String key) {
+    JsonElement element = json.get(key);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+
+  public String getRequest() {
+    return request;
+  }
+
+  public String getOperationName() {
+    return operationName;
+  }
+
+  public String getObjectId() {
+    return objectId;
+  }
+
+  /**
+   * Tell whether the request uses the embedded JSON format.
+   *
+   * @return true for the version 6 format
+   */
+  public boolean isEmbeddedJson() {
+    return embeddedJson;
+  }
+
+  /**
+   * Get the arguments of the request; in the string payload
+   * format they are parsed on the first call. Not thread safe,
+   * a context belongs to a single request.
+   *
+   * @return the payload as a json array of the arguments
+   * @throws JsonSyntaxException if the arguments are not a JSON array
+   */
+  public JsonArray getPayload() {
+    if (arguments == null) {
+      JsonElement element = payloadElement;
+      if (!embeddedJson && element != null && element.isJsonPrimitive()) {
+        element = JsonParser.parseString(element.getAsString());
+      }
+      if (element == null || !element.isJsonArray()) {
+        throw new JsonSyntaxException("RequestContext: The arguments are not a JSON array");
+      }
+      arguments = element.getAsJsonArray();
+    }
+    return arguments;
+  }
+
+  /**
+   * Marshall a reply in the format of this request.
+   *
+   * @param reply the reply to marshall
+   * @return the marshalled reply
+   */
+  public String marshall(InvocationReply reply) {
+    if (binary) {
+      String description = reply.getErrorDescription();
+      if (!reply.isSuccess() && reply.getResult() != null) { description = gson.toJson(reply.getResult()); }
+      return BinaryMarshalling.marshallReply(reply.getStatusCode(), reply.getResult(), description);
+    }
+    return marshall(gson, reply, embeddedJson);
+  }
+
+  /**
+   * Marshall a reply in the given format; used when the request
+   * could not be parsed, and its format is thus unknown.
+   *
+   * @param gson         the gson instance to use
+   * @param reply        the reply to marshall
+   * @param embeddedJson true for the version 6 format
+   * @return the marshalled reply
+   */
+  public static String marshall(Gson gson, InvocationReply reply, boolean embeddedJson) {
+    String description = reply.getErrorDescription();
+    if (embeddedJson) {
+      JsonObject json = new JsonObject();
+      json.addProperty(Marshalling.RESPONSE_CODE_KEY, reply.getStatusCode());
+      json.addProperty(Marshalling.VERSION_IDENTITY_KEY, Marshalling.MARSHALING_VERSION);
+      if (reply.getResult() != null) {
+        if (reply.isSuccess()) {
+          json.add(Marshalling.RESULT_KEY, reply.getResult());
+        } else {
+          description = gson.toJson(reply.getResult());
+        }
+      }
+      if (description != null) { json.addProperty(Marshalling.ERROR_DESCRIPTION_KEY, description); }
+      if (reply.getRetryAfterSeconds() > 0) {
+        json.addProperty(Marshalling.RETRY_AFTER_KEY, reply.getRetryAfterSeconds());
+      }
+      return gson.toJson(json);
+    }
+    // A ReplyObject takes the result or the error description as one string
+    String text = description != null ? description : gson.toJson(reply.getResult());
+    return gson.toJson(new ReplyObject(reply.getStatusCode(), text));
+  }
+
+  /**
+   * Marshall the reply to a request that the invoker failed on with an
+   * exception, as 500 Internal Server Error in the format every client
+   * understands. Used by server request handlers, which reply on the
+   * connection instead of dropping it and the requests behind it.
+   *
+   * @param gson      the gson instance to use
+   * @param exception the exception thrown by the invoker
+   * @return the marshalled reply
+   */
+  public static String marshallInternalError(Gson gson, RuntimeException exception) {
+    return marshall(gson, InvocationReply.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+        "Server failed handling the request: " + exception), false);
+  }
+
+  @Override
+  public String toString() {
+    return "RequestContext [operationName=" + operationName + ", objectId=" + objectId
+        + ", embeddedJson=" + embeddedJson + ", binary=" + binary + "]";
+  }
+}
@@ -18,13 +18,14 @@
 package cloud.cave.invoker;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 import cloud.cave.common.MarshallingKeys;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import frds.broker.Invoker;
-import frds.broker.ReplyObject;
-import frds.broker.RequestObject;
 import org.slf4j.*;
 
 import cloud.cave.config.*;
@@ -41,12 +42,16 @@ import javax.servlet.http.HttpServletResponse;
  *
  */
 public class SkyCaveRootInvoker implements Invoker {
+  // Rejected requests are logged as a summary, at most once per interval
+  private static final long REJECTION_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
   private final Gson gson;
   private Logger logger;
-  private Invoker subInvoker;
-  
-  private Map<String,Invoker> mapRole2SubInvoker;
+  private Map<String,SubInvoker> mapRole2SubInvoker;
   private ObjectManager objManager;
+  private AdmissionController admissionController;
+  private final AtomicLong nextRejectionLog = new AtomicLong(System.nanoTime());
+  private final AtomicLong rejectedAtLastLog = new AtomicLong();
 
   /**
    * Create an invoker that dispatches requests using default dispatching, that
@@ -56,13 +61,27 @@ public class SkyCaveRootInvoker implements Invoker {
    *          object manager that holds delegates to use
    */
   public SkyCaveRootInvoker(ObjectManager objectManager) {
+    this(objectManager, new PlayerInvoker(objectManager));
+  }
+
+  /**
+   * Create an invoker that dispatches requests using default dispatching,
+   * with the given invoker of the player methods.
+   *
+   * @param objectManager
+   *          object manager that holds delegates to use
+   * @param playerInvoker
+   *          the sub invoker of all player method invocations, like
+   *          the MailboxPlayerInvoker
+   */
+  public SkyCaveRootInvoker(ObjectManager objectManager, SubInvoker playerInvoker) {
     // Create the map that maps from class prefix to
     // dispatcher for that particular class type,
     // see FRDS §5.5 or
     // Reactor pattern (POSA p 259) and 'identifyDispather' method.
-    mapRole2SubInvoker = new HashMap<String, Invoker>();
+    mapRole2SubInvoker = new HashMap<String, SubInvoker>();
     mapRole2SubInvoker.put(MarshallingKeys.CAVE_TYPE_PREFIX, new CaveInvoker(objectManager));
-    mapRole2SubInvoker.put(MarshallingKeys.PLAYER_TYPE_PREFIX, new PlayerInvoker(objectManager));
+    mapRole2SubInvoker.put(MarshallingKeys.PLAYER_TYPE_PREFIX, playerInvoker);
     initialize(objectManager, mapRole2SubInvoker);
     gson = new Gson();
   }
@@ -72,7 +91,7 @@ public class SkyCaveRootInvoker implements Invoker {
    * 
    * @param mapRole2SubInvoker dispatcher map to use
    */
-  private void initialize(ObjectManager objectManager, Map<String, Invoker> mapRole2SubInvoker) {
+  private void initialize(ObjectManager objectManager, Map<String, SubInvoker> mapRole2SubInvoker) {
     this.objManager = objectManager;
     this.mapRole2SubInvoker = mapRole2SubInvoker;
     logger = LoggerFactory.getLogger(SkyCaveRootInvoker.class);
@@ -91,8 +110,8 @@ public class SkyCaveRootInvoker implements Invoker {
    * @return the appropriate dispatcher for the class containing that particular
    *         method or null if the method key is ill-formed
    */
-  private Invoker identifySubInvoker(String methodKey) {
-    Invoker dsp = null;
+  private SubInvoker identifySubInvoker(String methodKey) {
+    SubInvoker dsp = null;
     int firstDash = methodKey.indexOf("-");
     String key = methodKey.substring(0, firstDash+1);
     dsp = mapRole2SubInvoker.get(key);
@@ -101,44 +120,139 @@ public class SkyCaveRootInvoker implements Invoker {
 
   @Override
   public String handleRequest(String request) {
-    String reply = null;
+    return handleRequest(request, retryAfterSeconds -> { });
+  }
+
+  /**
+   * Handle a request as handleRequest(String), and tell the listener
+   * if the admission controller rejected it. Server request handlers
+   * use it to answer rejections with their transport's own status,
+   * like the 503 status and Retry-After header of HTTP.
+   *
+   * @param request the marshalled request
+   * @param onRejected called with the seconds the client should wait
+   *                   before it retries, if the request was rejected
+   * @return the marshalled reply
+   */
+  public String handleRequest(String request, IntConsumer onRejected) {
+    RequestContext context;
+    try {
+      // Demarshall once; the sub invokers get the parsed request
+      context = RequestContext.parse(gson, request);
+    } catch (JsonSyntaxException exc) {
+      // The format of the request is unknown, so use
+      // the format every client understands
+      InvocationReply reply = InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
+              "SkyCaveRootInvoker.handleRequest: Unhandled request, payload is not a RequestObject. Full request=" + request);
+      logger.warn(reply.getErrorDescription());
+      return RequestContext.marshall(gson, reply, false);
+    }
+    // Reply in the format of the request
+    return marshall(context, onRejected);
+  }
+
+  /**
+   * Dispatch a demarshalled request and marshall its reply in the
+   * format of the request.
+   *
+   * @param context the request
+   * @param onRejected called if the admission controller rejected it
+   * @return the marshalled reply
+   */
+  protected String marshall(RequestContext context, IntConsumer onRejected) {
+    InvocationReply reply = dispatch(context);
+    if (reply.getRetryAfterSeconds() > 0) {
+      onRejected.accept(reply.getRetryAfterSeconds());
+    }
+    return context.marshall(reply);
+  }
+
+  /**
+   * Set the admission controller that limits the requests in flight;
+   * requests over the limit are rejected with 503 Service Unavailable
+   * before they reach the sub invokers. Without one, all requests are
+   * dispatched.
+   *
+   * @param admissionController the admission controller, or null
+   */
+  public void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+    rejectedAtLastLog.set(0);
+  }
 
+  /**
+   * Dispatch a demarshalled request to the sub invoker of its
+   * operation, if the admission controller admits it.
+   *
+   * @param context the request
+   * @return the reply to the request
+   */
+  protected InvocationReply dispatch(RequestContext context) {
+    if (admissionController == null) { return dispatchToSubInvoker(context); }
+
+    String operationName = context.getOperationName();
+    AdmissionController.Permit permit =
+        admissionController.tryAcquire(AdmissionController.priorityOf(operationName));
+    if (permit == null) {
+      InvocationReply reply = InvocationReply.unavailable(
+          "SkyCaveRootInvoker.handleRequest: Server overloaded, rejected method key '"
+              + operationName + "'", AdmissionController.RETRY_AFTER_SECONDS);
+      logRejections(operationName);
+      return reply;
+    }
     try {
-      RequestObject requestObject =
-              gson.fromJson(request, RequestObject.class);
-      String operationName = requestObject.getOperationName();
+      return dispatchToSubInvoker(context);
+    } finally {
+      permit.release();
+    }
+  }
+
+  // Log the number of requests rejected since the last summary, if
+  // the interval has passed; a single thread wins each interval
+  private void logRejections(String operationName) {
+    long now = System.nanoTime();
+    long next = nextRejectionLog.get();
+    if (now - next < 0 || !nextRejectionLog.compareAndSet(next, now + REJECTION_LOG_INTERVAL_NANOS)) {
+      return;
+    }
+    long total = admissionController.getRejectedCount();
+    long rejected = total - rejectedAtLastLog.getAndSet(total);
+    logger.warn("method=dispatch, context=rejected, rejectedCount={}, lastOperationName={}, admission={}",
+        rejected, operationName, admissionController);
+  }
 
+  private InvocationReply dispatchToSubInvoker(RequestContext context) {
+    InvocationReply reply = null;
+    String operationName = context.getOperationName();
+    String request = context.getRequest();
+
+    try {
       // Dispatch the event (POSA vol 4 Reactor code)
-      subInvoker = identifySubInvoker(operationName);
+      SubInvoker subInvoker = identifySubInvoker(operationName);
 
       // We may get a null object back if the method key is ill formed
       // thus guard the dispatch call
       if (subInvoker != null) {
         // Next, do the dispatching - based upon the parameters, call
         // the proper method on the proper object
-        reply = subInvoker.handleRequest(request);
+        reply = subInvoker.handleRequest(context);
       }
       // UNHANDLED METHOD
       if (reply == null) {
-        ReplyObject replyObject = new ReplyObject(HttpServletResponse.SC_BAD_REQUEST,
+        reply = InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
                 "SkyCaveRootInvoker.handleRequest: Unhandled request, method key '" + operationName +
                         "' is unknown. Full request=" + request);
-        reply = gson.toJson(replyObject);
-
-        logger.warn(replyObject.errorDescription());
+        logger.warn(reply.getErrorDescription());
       }
     } catch (StringIndexOutOfBoundsException exc ) {
-      ReplyObject replyObject = new ReplyObject(HttpServletResponse.SC_BAD_REQUEST,
+      reply = InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
               "SkyCaveRootInvoker.handleRequest: Unhandled request, objectId is not correctly mangled. Full request=" + request);
-      reply = gson.toJson(replyObject);
-      logger.warn(replyObject.errorDescription());
+      logger.warn(reply.getErrorDescription());
     } catch (JsonSyntaxException exc ) {
-      ReplyObject replyObject = new ReplyObject(HttpServletResponse.SC_BAD_REQUEST,
+      reply = InvocationReply.error(HttpServletResponse.SC_BAD_REQUEST,
               "SkyCaveRootInvoker.handleRequest: Unhandled request, payload is not a RequestObject. Full request=" + request);
-      reply = gson.toJson(replyObject);
-      logger.warn(replyObject.errorDescription());
+      logger.warn(reply.getErrorDescription());
     }
-
     return reply;
   }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+/**
+ * An invoker for the methods of one role, like Cave or Player, which
+ * the root invoker dispatches requests to. Unlike the Broker's Invoker
+ * it receives the request already demarshalled.
+ */
+public interface SubInvoker {
+
+  /**
+   * Handle the incoming request.
+   *
+   * @param context the demarshalled request
+   * @return the reply, or null if the operation is unknown
+   * to this invoker
+   */
+  InvocationReply handleRequest(RequestContext context);
+}
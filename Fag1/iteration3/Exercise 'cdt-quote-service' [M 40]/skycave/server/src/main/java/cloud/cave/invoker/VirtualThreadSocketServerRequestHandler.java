@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import com.google.gson.Gson;
+import frds.broker.Invoker;
+import frds.broker.ServerRequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket server request handler, speaking the line based protocol of
+ * the FRDS SocketServerRequestHandler, which serves each connection
+ * on its own virtual thread (see VirtualThreads). Requests blocked
+ * in the invoker thus only cost a virtual thread each.
+ * <p>
+ * A connection is kept open for more requests until the client
+ * closes it, so it serves both the FRDS SocketClientRequestHandler,
+ * which sends one request per connection, and the pooled
+ * client request handlers, which reuse them. If the invoker throws,
+ * the request is answered with 500 Internal Server Error, and the
+ * connection goes on with the requests behind it.
+ */
+public class VirtualThreadSocketServerRequestHandler implements ServerRequestHandler {
+
+  // Pause of the acceptor after a failed accept
+  private static final long ACCEPT_FAILURE_BACKOFF_MILLIS = 100;
+
+  private final Logger logger;
+  private final Gson gson;
+  private int port;
+  private Invoker invoker;
+
+  private ServerSocket serverSocket;
+  private ExecutorService executor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+  public VirtualThreadSocketServerRequestHandler() {
+    logger = LoggerFactory.getLogger(VirtualThreadSocketServerRequestHandler.class);
+    gson = new Gson();
+  }
+
+  @Override
+  public void setPortAndInvoker(int port, Invoker invoker) {
+    this.port = port;
+    this.invoker = invoker;
+  }
+
+  @Override
+  public void start() {
+    try {
+      serverSocket = new ServerSocket(port, VirtualThreads.ACCEPT_BACKLOG);
+    } catch (IOException e) {
+      throw new CaveIPCException("VirtualThreadSocketServerRequestHandler: Could not listen on port " + port, e);
+    }
+    executor = VirtualThreads.newThreadPerTaskExecutor("socket-request");
+    // Not a daemon thread, it keeps the server running
+    Thread acceptor = new Thread(this::acceptConnections, "socket-acceptor");
+    acceptor.start();
+    logger.info("method=start, port=" + port + ", virtualThreads=" + VirtualThreads.isAvailable());
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) { break; }
+        // Like running out of file descriptors; accepting again at
+        // once would fail the same way, spinning the acceptor
+        logger.error("method=acceptConnections, context=acceptFailed", e);
+        backOff();
+        continue;
+      }
+      connections.add(socket);
+      try {
+        executor.execute(() -> serve(socket));
+      } catch (RejectedExecutionException e) {
+        // Stopped
+        connections.remove(socket);
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  private void backOff() {
+    try {
+      Thread.sleep(ACCEPT_FAILURE_BACKOFF_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Closing anyway
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      String request;
+      while ((request = in.readLine()) != null) {
+        String reply;
+        try {
+          reply = invoker.handleRequest(request);
+        } catch (RuntimeException e) {
+          logger.error("method=serve, the invoker failed", e);
+          reply = RequestContext.marshallInternalError(gson, e);
+        }
+        out.println(reply);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // The client closed the connection
+    } finally {
+      connections.remove(socket);
+    }
+  }
+
+  @Override
+  public void stop() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.error("method=stop, failed closing server socket", e);
+    }
+    for (Socket socket : connections) {
+      closeQuietly(socket);
+    }
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + ", port " + port
+        + (VirtualThreads.isAvailable() ? ", virtual threads" : ", platform threads");
+  }
+}
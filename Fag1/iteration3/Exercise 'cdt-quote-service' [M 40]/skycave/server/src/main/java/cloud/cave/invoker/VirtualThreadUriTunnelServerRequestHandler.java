@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+import cloud.cave.common.HttpCompression;
+import cloud.cave.common.Marshalling;
+import com.sun.net.httpserver.*;
+import frds.broker.Invoker;
+import frds.broker.ServerRequestHandler;
+import frds.broker.ipc.http.MimeMediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * URI tunnel server request handler, serving POSTs to '/tunnel' as
+ * the FRDS UriTunnelServerRequestHandler, but on the HTTP server of
+ * the JDK, with each request served on its own virtual thread (see
+ * VirtualThreads) instead of on the bounded thread pool of Jetty.
+ * Requests blocked in the invoker thus only cost a virtual thread
+ * each.
+ * <p>
+ * Compression is negotiated, and requests rejected by the admission
+ * controller answered with 503 and Retry-After, as by the
+ * CaveUriTunnelServerRequestHandler; the '/info' page of that is not
+ * served.
+ */
+public class VirtualThreadUriTunnelServerRequestHandler implements ServerRequestHandler {
+
+  /** The path of the tunnel */
+  public static final String TUNNEL_PATH = "/tunnel";
+
+  private final Logger logger;
+  private int port;
+  private Invoker invoker;
+  private int compressionThreshold = HttpCompression.DEFAULT_THRESHOLD;
+
+  private HttpServer httpServer;
+  private ExecutorService executor;
+
+  public VirtualThreadUriTunnelServerRequestHandler() {
+    logger = LoggerFactory.getLogger(VirtualThreadUriTunnelServerRequestHandler.class);
+  }
+
+  @Override
+  public void setPortAndInvoker(int port, Invoker invoker) {
+    this.port = port;
+    this.invoker = invoker;
+  }
+
+  /**
+   * Set the size in bytes from which replies are compressed;
+   * a negative value turns compression off.
+   *
+   * @param compressionThreshold the smallest size compressed
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  @Override
+  public void start() {
+    try {
+      httpServer = HttpServer.create(new InetSocketAddress(port), VirtualThreads.ACCEPT_BACKLOG);
+    } catch (IOException e) {
+      throw new CaveIPCException("VirtualThreadUriTunnelServerRequestHandler: Could not listen on port " + port, e);
+    }
+    executor = VirtualThreads.newThreadPerTaskExecutor("http-request");
+    httpServer.setExecutor(executor);
+    httpServer.createContext(TUNNEL_PATH, this::handleTunnelRequest);
+    httpServer.start();
+    logger.info("method=start, port=" + port + ", virtualThreads=" + VirtualThreads.isAvailable());
+  }
+
+  private void handleTunnelRequest(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        exchange.sendResponseHeaders(HttpServletResponse.SC_METHOD_NOT_ALLOWED, -1);
+        return;
+      }
+      Headers requestHeaders = exchange.getRequestHeaders();
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      String request;
+      try {
+        request = HttpCompression.isGzip(requestHeaders.getFirst(HttpCompression.CONTENT_ENCODING))
+            ? HttpCompression.gunzip(body) : new String(body, StandardCharsets.UTF_8);
+      } catch (HttpCompression.BodyTooLargeException e) {
+        exchange.sendResponseHeaders(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, -1);
+        return;
+      } catch (IOException e) {
+        exchange.sendResponseHeaders(HttpServletResponse.SC_BAD_REQUEST, -1);
+        return;
+      }
+
+      Headers replyHeaders = exchange.getResponseHeaders();
+      int[] status = { HttpServletResponse.SC_OK };
+      String reply;
+      if (invoker instanceof SkyCaveRootInvoker rootInvoker) {
+        reply = rootInvoker.handleRequest(request, retryAfterSeconds -> {
+          status[0] = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+          replyHeaders.set(Marshalling.RETRY_AFTER_HEADER, Integer.toString(retryAfterSeconds));
+        });
+      } else {
+        reply = invoker.handleRequest(request);
+      }
+
+      replyHeaders.set("Content-Type", MimeMediaType.APPLICATION_JSON);
+      byte[] replyBody;
+      if (compressionThreshold >= 0) {
+        replyHeaders.set(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP);
+      }
+      if (HttpCompression.acceptsGzip(requestHeaders.getFirst(HttpCompression.ACCEPT_ENCODING))
+          && HttpCompression.isWorthCompressing(compressionThreshold, reply.length())) {
+        replyHeaders.set(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP);
+        replyBody = HttpCompression.gzip(reply);
+      } else {
+        replyBody = reply.getBytes(StandardCharsets.UTF_8);
+      }
+      exchange.sendResponseHeaders(status[0], replyBody.length);
+      exchange.getResponseBody().write(replyBody);
+    }
+  }
+
+  @Override
+  public void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + ", port " + port
+        + (VirtualThreads.isAvailable() ? ", virtual threads" : ", platform threads");
+  }
+}
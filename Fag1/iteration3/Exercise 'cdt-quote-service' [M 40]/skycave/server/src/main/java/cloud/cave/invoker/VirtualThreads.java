@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors of the thread per request server request
+ * handlers: one virtual thread per task on Java 21 and later, so
+ * requests blocked in storage or service calls are cheap. On older
+ * Java versions, where there are no virtual threads, it falls back to
+ * a cached pool of platform threads, still a thread per task.
+ * <p>
+ * The virtual thread executor is looked up by reflection, so the
+ * code compiles and runs on both.
+ */
+public class VirtualThreads {
+
+  /** Connections waiting to be accepted; larger than the default of
+   * 50, as a thread per request handler should take bursts of them */
+  public static final int ACCEPT_BACKLOG = 1024;
+
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookupVirtualThreadExecutor();
+
+  private VirtualThreads() { }
+
+  /**
+   * Tell if this Java version has virtual threads.
+   *
+   * @return true if the executors use virtual threads
+   */
+  public static boolean isAvailable() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Create an executor that runs each task on a new thread, virtual
+   * if available.
+   *
+   * @param name the name prefix of the platform threads of the fall
+   *             back pool
+   * @return the executor
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String name) {
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new CaveIPCException("VirtualThreads: Could not create a virtual thread executor", e);
+      }
+    }
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static Method lookupVirtualThreadExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -75,6 +75,10 @@ public class CaveDaemon {
     // Set the marshalling format version.
     Versioning.SetMarshallingFormatVersion(Marshalling.MARSHALING_VERSION);
 
+    // Let storage connectors close down gracefully on Ctrl-c
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        objManager.getCaveStorage().disconnect()));
+
     // and start the daemon...
     ServerRequestHandler daemon = objManager.getServerRequestHandler();
     daemon.start(); 
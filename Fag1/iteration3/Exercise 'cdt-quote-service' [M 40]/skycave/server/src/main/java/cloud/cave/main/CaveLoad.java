@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.main;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+import cloud.cave.common.Config;
+import cloud.cave.config.StandardServerFactory;
+import cloud.cave.service.CaveLoader;
+import cloud.cave.service.CaveStorage;
+
+import com.baerbak.cpf.ChainedPropertyResourceFileReaderStrategy;
+import com.baerbak.cpf.PropertyReaderStrategy;
+
+import org.slf4j.*;
+
+/**
+ * Bulk load rooms from a cave definition file (see CaveLoader) into
+ * the cave storage configured by the given CPF file, without going
+ * through the daemon. Use it with a durable or remote storage, as
+ * an in-memory one is gone when the loader exits.
+ * <p>
+ * Arguments: the CPF file, and the definition file.
+ */
+public class CaveLoad {
+
+  public static void main(String[] args) throws Exception {
+    Logger logger = LoggerFactory.getLogger(CaveLoad.class);
+
+    String cpfFileName = Config.prependDefaultFolderForNonPathFilenames(args[0]);
+    String definitionFileName = args[1];
+
+    PropertyReaderStrategy propertyReader = new ChainedPropertyResourceFileReaderStrategy(cpfFileName);
+    StandardServerFactory factory = new StandardServerFactory(propertyReader);
+    CaveStorage storage = factory.createCaveStorageConnector(null);
+
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    CaveLoader loader = new CaveLoader(storage, threadCount, CaveLoader.DEFAULT_BATCH_SIZE);
+
+    logger.info("method=main, cpf=" + cpfFileName + ", file=" + definitionFileName
+        + ", threadCount=" + threadCount);
+    long start = System.currentTimeMillis();
+    Map<Integer, Integer> statusCount = loader.load(Paths.get(definitionFileName));
+    long elapsed = System.currentTimeMillis() - start;
+    logger.info("method=main, statusCount=" + statusCount + ", elapsedMillis=" + elapsed);
+
+    // Let durable storages write their final state
+    storage.disconnect();
+  }
+}
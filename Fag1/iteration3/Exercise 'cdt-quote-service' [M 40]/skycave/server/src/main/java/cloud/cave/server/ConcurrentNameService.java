@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cloud.cave.common.ServerConfiguration;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.Player;
+
+/**
+ * Implementation of the player name service that is safe to use
+ * behind a multi-threaded server request handler, as logins add
+ * players on one thread while the player invoker looks them up on
+ * others.
+ * <p>
+ * The players are kept in a ConcurrentHashMap, so lookups never
+ * block, and adding and removing players of different ids rarely
+ * contend.
+ */
+public class ConcurrentNameService implements PlayerNameService {
+
+  private final ConcurrentMap<String,Player> nameServiceMap;
+
+  public ConcurrentNameService() {
+    nameServiceMap = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public Player get(String playerID) {
+    return nameServiceMap.get(playerID);
+  }
+
+  @Override
+  public void add(String playerID, Player player) {
+    nameServiceMap.put(playerID, player);
+  }
+
+  @Override
+  public void remove(String playerID) {
+    nameServiceMap.remove(playerID);
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentNameService (" + nameServiceMap.size() + " players)";
+  }
+
+  // === ExternalService handling
+  private ServerConfiguration serverConfiguration;
+
+  @Override
+  public void initialize(ObjectManager objMgr, ServerConfiguration config) {
+    this.serverConfiguration = config;
+  }
+
+  @Override
+  public void disconnect() {
+  }
+
+  @Override
+  public ServerConfiguration getConfiguration() {
+    return serverConfiguration;
+  }
+}
@@ -21,6 +21,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import cloud.cave.common.RoomSnapshotDataTransferObject;
 import cloud.cave.common.WallMessageDataTransferObject;
 import cloud.cave.service.quote.QuoteRecord;
 import cloud.cave.service.wall.MessageRecord;
@@ -42,6 +43,11 @@ import javax.servlet.http.HttpServletResponse;
  * In general, DO NOT create instances of this class directly.
  * Use the 'cave.login()' method instead.
  * </p>
+ * <p>
+ * The cached state is not guarded, thus a servant must only be
+ * used by one thread at a time; the PlayerInvoker ensures this
+ * by serializing the requests of each player on its servant.
+ * </p>
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  */
@@ -61,6 +67,10 @@ public class PlayerServant implements Player {
   private String groupName;
   private Region region;
   private RoomRecord currentRoom;
+  // The position, packed for computations and storage lookups
+  private long packedPosition;
+  // The same position as a string, built when first asked for after
+  // a move, so moving through rooms builds no strings in the servant
   private String position;
 
   private ObjectManager objectManager;
@@ -127,16 +137,42 @@ public class PlayerServant implements Player {
 
   @Override
   public String getShortRoomDescription() {
-    return currentRoom.getDescription();
+    return getCurrentRoom().getDescription();
   }
 
   @Override
   public List<String> getLongRoomDescription() {
+    return composeLongRoomDescription(getCurrentRoom(), getExitSet(), getPlayersHere());
+  }
+
+  @Override
+  public RoomSnapshotDataTransferObject getRoomSnapshot() {
+    // Read the room, its exits, players and wall in one storage
+    // operation, and derive the long description from that read
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(packedPosition, WALL_PAGE_SIZE);
+    RoomRecord room = snapshot.getRoom();
+    List<String> playersHere = snapshot.getPlayersHere()
+            .stream()
+            .map(record -> record.getPlayerName())
+            .collect(Collectors.toList());
+    List<WallMessageDataTransferObject> wall = toWallMessageList(snapshot.getWallPage());
+    // No second read if there is no room; the snapshot tells so
+    if (room == null) {
+      return new RoomSnapshotDataTransferObject(getPosition(), null, new ArrayList<>(),
+              snapshot.getExits(), playersHere, wall);
+    }
+    return new RoomSnapshotDataTransferObject(getPosition(), room.getDescription(),
+            composeLongRoomDescription(room, snapshot.getExits(), playersHere),
+            snapshot.getExits(), playersHere, wall);
+  }
+
+  private List<String> composeLongRoomDescription(RoomRecord room, List<Direction> exits,
+                                                  List<String> playerNameList) {
     List<String> buf = new ArrayList<>();
-    buf.add(currentRoom.getDescription());
+    buf.add(room.getDescription());
 
     // append creator name
-    String creatorId = currentRoom.getCreatorId();
+    String creatorId = room.getCreatorId();
 
     // Handle special case of the initial rooms
     String creatorName = "Will Crowther";
@@ -145,20 +181,19 @@ public class PlayerServant implements Player {
       creatorName = creator.getPlayerName();
     }
     buf.add("  Creator: " + creatorName + ", "
-            + Util.calcSinceNow(currentRoom.getCreationTimeISO8601())
+            + Util.calcSinceNow(room.getCreationTimeISO8601())
             + ".");
 
     // append list of exits from room
     buf.add("There are exits in directions:");
     StringBuffer tmp = new StringBuffer();
-    for (Direction dir : getExitSet()) {
+    for (Direction dir : exits) {
       tmp.append("  " + dir + " ");
     }
     buf.add(tmp.toString());
 
     // and the list of players currently in room
     buf.add("You see other players:");
-    List<String> playerNameList = getPlayersHere();
     int count = 0;
     tmp = new StringBuffer();
     for (String p : playerNameList) {
@@ -172,7 +207,7 @@ public class PlayerServant implements Player {
   @Override
   public List<Direction> getExitSet() {
     // Cannot use cache, others may influence cave 
-    return storage.getSetOfExitsFromRoom(position);
+    return storage.getSetOfExitsFromRoom(packedPosition);
   }
 
   @Override
@@ -182,7 +217,10 @@ public class PlayerServant implements Player {
 
   @Override
   public String getPosition() {
-    return position; // Use the cached value
+    if (position == null) {
+      position = PackedPosition.toPositionString(packedPosition);
+    }
+    return position;
   }
 
   @Override
@@ -218,6 +256,10 @@ public class PlayerServant implements Player {
   public List<WallMessageDataTransferObject> getMessageList(int pageNumber) {
     List<MessageRecord> messageListFromStorage = storage.getMessageList(getPosition(),
             pageNumber * WALL_PAGE_SIZE, WALL_PAGE_SIZE);
+    return toWallMessageList(messageListFromStorage);
+  }
+
+  private List<WallMessageDataTransferObject> toWallMessageList(List<MessageRecord> messageListFromStorage) {
     List<WallMessageDataTransferObject> contents =
             messageListFromStorage
                     .stream()
@@ -254,51 +296,50 @@ public class PlayerServant implements Player {
 
   @Override
   public UpdateResult move(Direction direction) {
-    // Convert present room position into Point3 which
-    // allows computations
-    Point3 presentPosition = Point3.parseString(position);
-
-    // Clone it; we need the values of both present and
-    // new position
-    Point3 newPosition = (Point3) presentPosition.clone();
-
-    // Calculate a new position given the movement direction
-    newPosition.translate(direction);
-    // convert to the new position in string format
-    String newPositionAsString = newPosition.getPositionString();
-    // get the room in that direction
-    RoomRecord newRoom = storage.getRoom(newPositionAsString);
-
-    // if it is null, then there is no room in that direction
-    // and we return without any state modifications
-    if (newRoom == null) {
+    // Calculate the new position given the movement direction;
+    // the packed format allows the computation without any
+    // parsing or building of position strings
+    long newPackedPosition = PackedPosition.neighbor(packedPosition, direction);
+    // there are no rooms beyond the edge of the cave
+    if (newPackedPosition == PackedPosition.INVALID) {
+      return UpdateResult.FAIL_AS_NOT_FOUND;
+    }
+    // if there is no room in that direction, we return
+    // without any state modifications; the room itself is
+    // not read until its description is asked for
+    if (!storage.hasRoom(newPackedPosition)) {
       return UpdateResult.FAIL_AS_NOT_FOUND;
     }
 
-    updateStateAndStorageToNewPosition(newPositionAsString, newRoom);
+    updateStateAndStorageToNewPosition(newPackedPosition);
 
     return UpdateResult.UPDATE_OK;
   }
 
-  private void updateStateAndStorageToNewPosition(String newPositionAsString,
-                                                  RoomRecord newRoom) {
+  private void updateStateAndStorageToNewPosition(long newPackedPosition) {
     // update internal state variables
-    position = newPositionAsString;
-    currentRoom = newRoom;
+    packedPosition = newPackedPosition;
+    position = null;
+    currentRoom = null;
 
-    // and update this player's position in the storage
+    // and update this player's position in the storage; the player
+    // record keeps it as a string, so it is built here
     PlayerRecord pRecord = storage.getPlayerByID(getID());
-    pRecord.setPositionAsString(position);
+    pRecord.setPositionAsString(getPosition());
     storage.updatePlayerRecord(pRecord);
   }
 
   @Override
   public UpdateResult digRoom(Direction direction, String description) {
-    // Calculate the offsets in the given direction
-    Point3 p = Point3.parseString(position);
-    p.translate(direction);
+    // Calculate the position in the given direction
+    long p = PackedPosition.neighbor(packedPosition, direction);
+    // there is no position beyond the edge of the cave to dig at
+    if (p == PackedPosition.INVALID) {
+      return UpdateResult.FAIL_AS_INVALID_POSITION;
+    }
     RoomRecord room = new RoomRecord(description, getID());
-    return UpdateResult.translateFromHTTPStatusCode(storage.addRoom(p.getPositionString(), room));
+    return UpdateResult.translateFromHTTPStatusCode(
+            storage.addRoom(PackedPosition.toPositionString(p), room));
   }
 
   @Override
@@ -306,7 +347,7 @@ public class PlayerServant implements Player {
     // We do not need to fetch the room record from storage
     // as only the author is allowed to change it, thus
     // our cached room must be correct.
-    RoomRecord updatedRoom = new RoomRecord(currentRoom);
+    RoomRecord updatedRoom = new RoomRecord(getCurrentRoom());
     // overwrite creator and description
     updatedRoom.setCreatorId(getID());
     updatedRoom.setDescription(newDescription);
@@ -366,10 +407,23 @@ public class PlayerServant implements Player {
     name = pr.getPlayerName();
     groupName = pr.getGroupName();
     position = pr.getPositionAsString();
+    // A position that cannot be packed is kept as INVALID, which
+    // has no neighbours, so move and digRoom fail instead of
+    // computing from garbage coordinates
+    packedPosition = PackedPosition.parse(position);
     region = pr.getRegion();
     accessToken = pr.getAccessToken();
 
-    currentRoom = storage.getRoom(position);
+    currentRoom = null;
+  }
+
+  // The room is read when first needed after entering it, so
+  // moving through a room never decodes its description
+  private RoomRecord getCurrentRoom() {
+    if (currentRoom == null) {
+      currentRoom = storage.getRoom(getPosition());
+    }
+    return currentRoom;
   }
 
   @Override
@@ -381,7 +435,7 @@ public class PlayerServant implements Player {
             ", groupName='" + groupName + '\'' +
             ", region=" + region +
             ", currentRoom=" + currentRoom +
-            ", position='" + position + '\'' +
+            ", position='" + getPosition() + '\'' +
             ", objectManager=" + objectManager +
             ", storage=" + storage +
             ", authenticationStatus=" + authenticationStatus +
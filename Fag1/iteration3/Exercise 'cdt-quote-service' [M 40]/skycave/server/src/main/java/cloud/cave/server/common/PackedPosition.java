@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.server.common;
+
+import cloud.cave.domain.Direction;
+
+/**
+ * Encoding of a position (x,y,z) in the cave as a single primitive long,
+ * suitable as key in the storage layer without any string handling.
+ * <p>
+ * Each coordinate is stored as a 21 bit two's complement number, x in
+ * bits 42-62, y in bits 21-41, and z in bits 0-20. Thus coordinates
+ * must be in the range [-1048576; 1048575], and bit 63 is never set,
+ * so any valid packed position is non-negative. The negative value
+ * INVALID is used to signal an unparsable position string, and a
+ * neighbour outside the range of coordinates.
+ * <p>
+ * The "(x,y,z)" position string is still the format used in the Player
+ * interface and in the stored PlayerRecords; use parse and
+ * toPositionString to convert at that boundary.
+ */
+public final class PackedPosition {
+
+  /** Value returned by parse when the string is not a position */
+  public static final long INVALID = -1L;
+
+  /** The smallest coordinate value that can be packed */
+  public static final int MIN_COORDINATE = -(1 << 20);
+  /** The largest coordinate value that can be packed */
+  public static final int MAX_COORDINATE = (1 << 20) - 1;
+
+  private static final long MASK = (1L << 21) - 1;
+
+  private PackedPosition() {}
+
+  /**
+   * Pack the given coordinates.
+   *
+   * @param x the x coordinate
+   * @param y the y coordinate
+   * @param z the z coordinate
+   * @return the packed position
+   * @throws IllegalArgumentException if a coordinate is out of range
+   */
+  public static long pack(int x, int y, int z) {
+    if (!isInRange(x, y, z)) {
+      throw new IllegalArgumentException("PackedPosition: Coordinate out of range ("
+          + x + "," + y + "," + z + ")");
+    }
+    return ((x & MASK) << 42) | ((y & MASK) << 21) | (z & MASK);
+  }
+
+  // Shift the 21 bit field to the top and back, to sign extend it
+  public static int x(long packed) { return (int) (packed << 1 >> 43); }
+  public static int y(long packed) { return (int) (packed << 22 >> 43); }
+  public static int z(long packed) { return (int) (packed << 43 >> 43); }
+
+  private static boolean isInRange(int x, int y, int z) {
+    return x >= MIN_COORDINATE && x <= MAX_COORDINATE
+        && y >= MIN_COORDINATE && y <= MAX_COORDINATE
+        && z >= MIN_COORDINATE && z <= MAX_COORDINATE;
+  }
+
+  /**
+   * Compute the position one step in the given direction.
+   *
+   * @param packed    the position to move from
+   * @param direction the direction to move
+   * @return the packed position of the neighbour, or INVALID if the
+   * step leaves the range of coordinates, or the position is INVALID
+   */
+  public static long neighbor(long packed, Direction direction) {
+    if (packed == INVALID) { return INVALID; }
+    int d = direction.ordinal();
+    int x = x(packed) + Point3.OFFSET[0][d];
+    int y = y(packed) + Point3.OFFSET[1][d];
+    int z = z(packed) + Point3.OFFSET[2][d];
+    if (!isInRange(x, y, z)) { return INVALID; }
+    return pack(x, y, z);
+  }
+
+  /**
+   * Parse a position string in the "(x,y,z)" format without creating any
+   * intermediate strings.
+   *
+   * @param positionString the string to parse
+   * @return the packed position, or INVALID if the string is not a
+   * well formed position within range
+   */
+  public static long parse(String positionString) {
+    int length = positionString.length();
+    if (length < 7 || positionString.charAt(0) != '('
+        || positionString.charAt(length - 1) != ')') {
+      return INVALID;
+    }
+    int x = 0, y = 0, z = 0;
+    int index = 1;
+    for (int c = 0; c < 3; c++) {
+      boolean negative = false;
+      if (positionString.charAt(index) == '-') {
+        negative = true;
+        index++;
+      }
+      int start = index;
+      long value = 0;
+      char ch;
+      while ((ch = positionString.charAt(index)) >= '0' && ch <= '9') {
+        value = value * 10 + (ch - '0');
+        if (value > -(long) MIN_COORDINATE) { return INVALID; }
+        index++;
+      }
+      // At least one digit, followed by the proper separator
+      char expected = c < 2 ? ',' : ')';
+      if (index == start || ch != expected) { return INVALID; }
+      index++;
+      int coordinate = (int) (negative ? -value : value);
+      if (coordinate > MAX_COORDINATE) { return INVALID; }
+      if (c == 0) { x = coordinate; } else if (c == 1) { y = coordinate; } else { z = coordinate; }
+    }
+    if (index != length) { return INVALID; }
+    return pack(x, y, z);
+  }
+
+  /**
+   * Convert a packed position to the "(x,y,z)" string format.
+   *
+   * @param packed the packed position
+   * @return the position string
+   */
+  public static String toPositionString(long packed) {
+    return "(" + x(packed) + "," + y(packed) + "," + z(packed) + ")";
+  }
+}
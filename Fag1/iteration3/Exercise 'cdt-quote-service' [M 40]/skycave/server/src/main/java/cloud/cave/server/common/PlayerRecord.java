@@ -49,6 +49,16 @@ public class PlayerRecord {
     this.accessToken = subscription.getAccessToken();
   }
 
+  // Josh Bloch - a copy constructor
+  public PlayerRecord(PlayerRecord record) {
+    this.playerID = record.getPlayerID();
+    this.playerName = record.getPlayerName();
+    this.groupName = record.getGroupName();
+    this.region = record.getRegion();
+    this.positionAsString = record.getPositionAsString();
+    this.accessToken = record.getAccessToken();
+  }
+
   public String getPlayerID() {
     return playerID;
   }
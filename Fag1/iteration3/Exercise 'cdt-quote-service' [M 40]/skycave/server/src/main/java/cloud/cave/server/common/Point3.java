@@ -23,15 +23,39 @@ import cloud.cave.domain.Direction;
  * This class represents a position in the 3D space of the cave (x,y,z) as a
  * normal Cartesian coordinate system. It is mostly used for conversion to and
  * from the position string which is the 'primary key' in the storage layer.
+ * <p>
+ * A Point3 is an immutable value object; use 'neighbor' to compute the
+ * position in a given direction. The origin and the other entry rooms
+ * are cached, and 'of' and 'parseString' return the cached instances
+ * for these frequently used positions.
  * 
  * @author Henrik Baerbak Christensen, Aarhus University.
  * 
  */
-public class Point3 {
+public final class Point3 {
 
-  private int x;
-  private int y;
-  private int z;
+  // Offsets in x, y, and z, indexed by Direction.ordinal(); shared
+  // by all instances and by PackedPosition
+  static final int[][] OFFSET = {
+      { 0, 0, +1, -1, 0, 0 },
+      { 1, -1, 0, 0, 0, 0 },
+      { 0, 0, 0, 0, 1, -1 }
+  };
+
+  /** The position of the entry room of the cave */
+  public static final Point3 ORIGIN = new Point3(0, 0, 0);
+
+  // The origin and the rooms around it made by Will Crowther
+  private static final Point3[] CACHE = {
+      ORIGIN, new Point3(0, 1, 0), new Point3(1, 0, 0),
+      new Point3(-1, 0, 0), new Point3(0, 0, 1)
+  };
+
+  private final int x;
+  private final int y;
+  private final int z;
+  // Lazily computed; a benign race, as all threads compute the same string
+  private String positionString;
 
   public Point3(int x, int y, int z) {
     this.x = x;
@@ -39,26 +63,37 @@ public class Point3 {
     this.z = z;
   }
 
-  public void translate(Direction direction) {
-    x += offset[0][direction.ordinal()];
-    y += offset[1][direction.ordinal()];
-    z += offset[2][direction.ordinal()];
+  /**
+   * Get the point at the given coordinates, which is a shared
+   * instance if it is one of the cached ones.
+   *
+   * @param x the x coordinate
+   * @param y the y coordinate
+   * @param z the z coordinate
+   * @return the point
+   */
+  public static Point3 of(int x, int y, int z) {
+    for (Point3 p : CACHE) {
+      if (p.x == x && p.y == y && p.z == z) { return p; }
+    }
+    return new Point3(x, y, z);
+  }
+
+  /**
+   * Compute the position one step in the given direction.
+   *
+   * @param direction the direction to move
+   * @return the neighbouring position
+   */
+  public Point3 neighbor(Direction direction) {
+    int d = direction.ordinal();
+    return of(x + OFFSET[0][d], y + OFFSET[1][d], z + OFFSET[2][d]);
   }
   
   public int x() { return x; }
   public int y() { return y; }
   public int z() { return z; }
   
-  public Object clone() {
-    return new Point3(x,y,z);
-  }
-
-  private int[][] offset = {
-      { 0, 0, +1, -1, 0, 0 },
-      { 1, -1, 0, 0, 0, 0 },
-      { 0, 0, 0, 0, 1, -1 }
-  };
-  
   /**
    * return the position string which encodes a Point3 as a string useful as
    * primary key into a database table/ collection of rooms.
@@ -66,7 +101,34 @@ public class Point3 {
    * @return (x,y,z) as string
    */
   public String getPositionString() {
-    return "("+x+","+y+","+z+")";
+    String s = positionString;
+    if (s == null) {
+      s = "("+x+","+y+","+z+")";
+      positionString = s;
+    }
+    return s;
+  }
+
+  /**
+   * Get this position packed into a long, see PackedPosition.
+   *
+   * @return the packed position
+   */
+  public long pack() {
+    return PackedPosition.pack(x, y, z);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof Point3)) return false;
+    Point3 other = (Point3) o;
+    return x == other.x && y == other.y && z == other.z;
+  }
+
+  @Override
+  public int hashCode() {
+    return (x * 31 + y) * 31 + z;
   }
   
   public String toString() {
@@ -81,6 +143,11 @@ public class Point3 {
    * @return a Point3 of the same position
    */
   public static Point3 parseString(String positionString) {
+    long packed = PackedPosition.parse(positionString);
+    if (packed != PackedPosition.INVALID) {
+      return of(PackedPosition.x(packed), PackedPosition.y(packed), PackedPosition.z(packed));
+    }
+    // Not in the canonical format, fall back to the lenient parsing
     // Yes, really inefficient, but what the heck... -HBC
     String changed = positionString.replace("(", "").replace(")","").replace(","," ");
     String[] tokens = changed.split("\\s");
@@ -88,7 +155,7 @@ public class Point3 {
     int x = Integer.parseInt(tokens[0]);
     int y = Integer.parseInt(tokens[1]);
     int z = Integer.parseInt(tokens[2]);
-    return new Point3(x,y,z);
+    return of(x,y,z);
   }
 
 }
@@ -137,6 +137,16 @@ public class RoomRecord {
     creationTimeISO8601 = timeStamp.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
   }
 
+  /** Set the creation time as it was
+   * stored, in the full ISO8601 format.
+   *
+   * @param creationTimeISO8601 the stored
+   *                            date-time of creation
+   */
+  public void setCreationTimeISO8601(String creationTimeISO8601) {
+    this.creationTimeISO8601 = creationTimeISO8601;
+  }
+
   @Override
   public String toString() {
     return new StringJoiner(", ", RoomRecord.class.getSimpleName() + "[", "]")
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.server.common;
+
+import java.util.List;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.service.wall.MessageRecord;
+
+/**
+ * This is a record type (struct / PODO (Plain Old Data Object)) representing
+ * what a player sees in a room: the room itself, its exits, the players
+ * in it, and the first page of its wall, all read from the storage in
+ * one operation.
+ */
+public class RoomSnapshotRecord {
+  private final RoomRecord room;
+  private final List<Direction> exits;
+  private final List<PlayerRecord> playersHere;
+  private final List<MessageRecord> wallPage;
+
+  public RoomSnapshotRecord(RoomRecord room, List<Direction> exits,
+                            List<PlayerRecord> playersHere, List<MessageRecord> wallPage) {
+    this.room = room;
+    this.exits = exits;
+    this.playersHere = playersHere;
+    this.wallPage = wallPage;
+  }
+
+  public RoomRecord getRoom() {
+    return room;
+  }
+  public List<Direction> getExits() {
+    return exits;
+  }
+  public List<PlayerRecord> getPlayersHere() {
+    return playersHere;
+  }
+  public List<MessageRecord> getWallPage() {
+    return wallPage;
+  }
+}
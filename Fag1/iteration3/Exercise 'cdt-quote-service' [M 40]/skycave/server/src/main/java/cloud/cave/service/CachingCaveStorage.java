@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.time.Duration;
+import java.util.*;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.*;
+
+/**
+ * A Decorator of a CaveStorage that caches rooms, exits, and player
+ * records, so the frequent reads made by 'move', 'look' and friends
+ * do not each make a round trip to a remote storage. Each cache is
+ * bounded, evicting the least recently used entry, and entries expire
+ * after a time to live, which bounds how stale a record written by
+ * another daemon can get.
+ * <p>
+ * Writes made through the decorator are passed on to the storage and
+ * invalidate the affected entries; note that adding a room changes
+ * the exits of its neighbors as well. Records are copied going in and
+ * out, so callers cannot modify the cached ones.
+ * <p>
+ * Walls and the players in a room change too often to be worth
+ * caching and are passed on directly. So are room snapshots, which
+ * refresh the cached room and exits instead.
+ */
+public class CachingCaveStorage extends CaveStorageDecorator {
+
+  /** Time to live used if none is configured */
+  public static final long DEFAULT_TTL_SECONDS = 30;
+
+  private final LruCache<Long, RoomRecord> roomCache;
+  private final LruCache<Long, List<Direction>> exitCache;
+  private final LruCache<String, PlayerRecord> playerCache;
+
+  /**
+   * Decorate a storage with caches.
+   *
+   * @param storage    the storage to decorate
+   * @param maxEntries maximal number of entries in each cache
+   * @param ttlSeconds seconds an entry stays in the cache
+   */
+  public CachingCaveStorage(CaveStorage storage, int maxEntries, long ttlSeconds) {
+    this(storage, maxEntries, ttlSeconds, new RealNowStrategy());
+  }
+
+  /**
+   * Decorate a storage with caches, using the given clock for
+   * expiry; used for testing.
+   *
+   * @param storage     the storage to decorate
+   * @param maxEntries  maximal number of entries in each cache
+   * @param ttlSeconds  seconds an entry stays in the cache
+   * @param nowStrategy the clock
+   */
+  public CachingCaveStorage(CaveStorage storage, int maxEntries, long ttlSeconds,
+                            NowStrategy nowStrategy) {
+    super(storage);
+    Duration timeToLive = Duration.ofSeconds(ttlSeconds);
+    roomCache = new LruCache<>(maxEntries, timeToLive, nowStrategy);
+    exitCache = new LruCache<>(maxEntries, timeToLive, nowStrategy);
+    playerCache = new LruCache<>(maxEntries, timeToLive, nowStrategy);
+  }
+
+  @Override
+  public RoomRecord getRoom(String positionString) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return storage.getRoom(positionString); }
+    return getRoom(packedPosition);
+  }
+
+  @Override
+  public RoomRecord getRoom(long packedPosition) {
+    RoomRecord room = roomCache.getOrLoad(packedPosition, () -> copyOf(storage.getRoom(packedPosition)));
+    return copyOf(room);
+  }
+
+  @Override
+  public boolean hasRoom(long packedPosition) {
+    // Rooms are never removed, so a cached room is still there
+    if (roomCache.getIfCached(packedPosition) != null) { return true; }
+    return storage.hasRoom(packedPosition);
+  }
+
+  @Override
+  public int addRoom(String positionString, RoomRecord roomRecord) {
+    int status = storage.addRoom(positionString, roomRecord);
+    invalidateNewRoom(positionString);
+    return status;
+  }
+
+  @Override
+  public Map<String, Integer> addRooms(Map<String, RoomRecord> rooms) {
+    Map<String, Integer> result = storage.addRooms(rooms);
+    rooms.keySet().forEach(this::invalidateNewRoom);
+    return result;
+  }
+
+  private void invalidateNewRoom(String positionString) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return; }
+    roomCache.invalidate(packedPosition);
+    exitCache.invalidate(packedPosition);
+    // The new room is an exit from each of its neighbors
+    for (Direction direction : Direction.values()) {
+      long neighbor = PackedPosition.neighbor(packedPosition, direction);
+      if (neighbor != PackedPosition.INVALID) { exitCache.invalidate(neighbor); }
+    }
+  }
+
+  @Override
+  public int updateRoom(String positionString, RoomRecord updatedRoom) {
+    int status = storage.updateRoom(positionString, updatedRoom);
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition != PackedPosition.INVALID) { roomCache.invalidate(packedPosition); }
+    return status;
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(String positionString) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return storage.getSetOfExitsFromRoom(positionString); }
+    return getSetOfExitsFromRoom(packedPosition);
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(long packedPosition) {
+    // The cached list is unmodifiable, thus safe to share
+    return exitCache.getOrLoad(packedPosition,
+        () -> List.copyOf(storage.getSetOfExitsFromRoom(packedPosition)));
+  }
+
+  @Override
+  public RoomSnapshotRecord getRoomSnapshot(long packedPosition, int pageSize) {
+    // The snapshot is always read from the storage, to keep its parts
+    // consistent with each other; its room and exits then replace the
+    // cached ones, unless a write has invalidated them meanwhile
+    long roomStamp = roomCache.getStamp();
+    long exitStamp = exitCache.getStamp();
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(packedPosition, pageSize);
+    RoomRecord room = snapshot.getRoom();
+    if (room == null) { return snapshot; }
+    roomCache.putIfNotInvalidated(packedPosition, copyOf(room), roomStamp);
+    exitCache.putIfNotInvalidated(packedPosition, List.copyOf(snapshot.getExits()), exitStamp);
+    return snapshot;
+  }
+
+  @Override
+  public PlayerRecord getPlayerByID(String playerID) {
+    PlayerRecord player = playerCache.getOrLoad(playerID, () -> copyOf(storage.getPlayerByID(playerID)));
+    return copyOf(player);
+  }
+
+  @Override
+  public void updatePlayerRecord(PlayerRecord record) {
+    storage.updatePlayerRecord(record);
+    playerCache.invalidate(record.getPlayerID());
+  }
+
+  public LruCache<Long, RoomRecord> getRoomCache() {
+    return roomCache;
+  }
+
+  public LruCache<Long, List<Direction>> getExitCache() {
+    return exitCache;
+  }
+
+  public LruCache<String, PlayerRecord> getPlayerCache() {
+    return playerCache;
+  }
+
+  private static RoomRecord copyOf(RoomRecord room) {
+    return room == null ? null : new RoomRecord(room);
+  }
+
+  private static PlayerRecord copyOf(PlayerRecord player) {
+    return player == null ? null : new PlayerRecord(player);
+  }
+
+  @Override
+  public String toString() {
+    return "CachingCaveStorage (rooms: " + roomCache + ", exits: " + exitCache
+        + ", players: " + playerCache + ") of " + storage;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import cloud.cave.invoker.CaveIPCException;
+import cloud.cave.server.common.PackedPosition;
+import cloud.cave.server.common.RoomRecord;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Loads rooms into a CaveStorage from a cave definition file, sending
+ * the rooms in batches by 'addRooms' from a number of threads in
+ * parallel.
+ * <p>
+ * The definition file is UTF-8 text with one room per line, as three
+ * tab separated fields: the position string, the id of the creator,
+ * and the description, like
+ * <pre>
+ * (0,0,-1)    0    You are in a damp cellar.
+ * </pre>
+ * Empty lines and lines starting with '#' are ignored.
+ */
+public class CaveLoader {
+
+  /** Number of rooms sent to the storage in each batch */
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
+  private final CaveStorage storage;
+  private final int threadCount;
+  private final int batchSize;
+
+  /**
+   * Create a loader.
+   *
+   * @param storage     the storage to add the rooms to
+   * @param threadCount the number of batches added in parallel
+   * @param batchSize   the number of rooms in each batch
+   */
+  public CaveLoader(CaveStorage storage, int threadCount, int batchSize) {
+    this.storage = storage;
+    this.threadCount = threadCount;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Load all rooms of the definition file. Rooms at positions that
+   * already have a room are not changed, neither by the storage nor by
+   * a later line of the file: the loader remembers the positions of
+   * the file, so the first line of a position wins whatever the order
+   * the batches are added in.
+   *
+   * @param definitionFile the cave definition file
+   * @return map from statusCode to the number of rooms given that code
+   * by the storage: 201 CREATED, 403 FORBIDDEN if there was a room
+   * already, or 400 BAD REQUEST for malformed lines and positions
+   * @throws IOException if the file cannot be read
+   */
+  public Map<Integer, Integer> load(Path definitionFile) throws IOException {
+    ConcurrentMap<Integer, Integer> statusCount = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    // Bounds the batches read ahead of the storage
+    Semaphore inFlight = new Semaphore(2 * threadCount);
+    List<Future<?>> results = new ArrayList<>();
+
+    try (BufferedReader reader = Files.newBufferedReader(definitionFile, StandardCharsets.UTF_8)) {
+      Map<String, RoomRecord> batch = new HashMap<>();
+      Set<Long> positionsInFile = new HashSet<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) { continue; }
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3) {
+          statusCount.merge(HttpServletResponse.SC_BAD_REQUEST, 1, Integer::sum);
+          continue;
+        }
+        long position = PackedPosition.parse(fields[0]);
+        if (position == PackedPosition.INVALID) {
+          statusCount.merge(HttpServletResponse.SC_BAD_REQUEST, 1, Integer::sum);
+          continue;
+        }
+        // Batches are added in any order, so a position given again
+        // later in the file is rejected here, as addRoom would reject
+        // it, and the first line wins
+        if (!positionsInFile.add(position)) {
+          statusCount.merge(HttpServletResponse.SC_FORBIDDEN, 1, Integer::sum);
+          continue;
+        }
+        batch.put(fields[0], new RoomRecord(fields[2], fields[1]));
+        if (batch.size() == batchSize) {
+          results.add(submit(executor, inFlight, batch, statusCount));
+          batch = new HashMap<>();
+        }
+      }
+      if (!batch.isEmpty()) { results.add(submit(executor, inFlight, batch, statusCount)); }
+
+      for (Future<?> result : results) { result.get(); }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CaveIPCException("CaveLoader: Interrupted while loading " + definitionFile, e);
+    } catch (ExecutionException e) {
+      throw new CaveIPCException("CaveLoader: Loading " + definitionFile + " failed", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    return new TreeMap<>(statusCount);
+  }
+
+  private Future<?> submit(ExecutorService executor, Semaphore inFlight, Map<String, RoomRecord> batch,
+                           ConcurrentMap<Integer, Integer> statusCount) throws InterruptedException {
+    inFlight.acquire();
+    return executor.submit(() -> {
+      try {
+        for (int status : storage.addRooms(batch).values()) {
+          statusCount.merge(status, 1, Integer::sum);
+        }
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+}
@@ -57,6 +57,22 @@ public interface CaveStorage extends ExternalService {
      */
     int addRoom(String positionString, RoomRecord roomRecord);
 
+    /**
+     * Add many rooms in one operation, like 'addRoom' for each room. Rooms in the batch are added even if some of
+     * the other positions already have a room. Storage implementations should override this to add the rooms with
+     * fewer round trips or lock acquisitions than one per room.
+     *
+     * @param rooms map from the position string of each room to the record of the room
+     * @return map from each position to its statusCode, as returned by 'addRoom'
+     */
+    default Map<String, Integer> addRooms(Map<String, RoomRecord> rooms) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, RoomRecord> room : rooms.entrySet()) {
+            result.put(room.getKey(), addRoom(room.getKey(), room.getValue()));
+        }
+        return result;
+    }
+
     /**
      * Update an existing room, overwriting the existing record completely.
      *
@@ -75,6 +91,42 @@ public interface CaveStorage extends ExternalService {
      */
     List<Direction> getSetOfExitsFromRoom(String positionString);
 
+    /**
+     * Get the room for the given position. Storage implementations that key their tables by packed position should
+     * override this, to avoid the round trip via the position string.
+     *
+     * @param packedPosition the (x,y,z) of the position, encoded by PackedPosition
+     * @return the room's properties in a record, or null if there is no room, always so for PackedPosition.INVALID
+     */
+    default RoomRecord getRoom(long packedPosition) {
+        // INVALID would become the string of a real position
+        if (packedPosition == PackedPosition.INVALID) { return null; }
+        return getRoom(PackedPosition.toPositionString(packedPosition));
+    }
+
+    /**
+     * Tell whether there is a room at the given position. Storage implementations should override this to answer
+     * without creating the room's record.
+     *
+     * @param packedPosition the (x,y,z) of the position, encoded by PackedPosition
+     * @return true if there is a room at the position
+     */
+    default boolean hasRoom(long packedPosition) {
+        return getRoom(packedPosition) != null;
+    }
+
+    /**
+     * Compute the set of valid exits leading out from a given position. Storage implementations that key their
+     * tables by packed position should override this.
+     *
+     * @param packedPosition position of the room, encoded by PackedPosition
+     * @return set of directions that leads to another room
+     */
+    default List<Direction> getSetOfExitsFromRoom(long packedPosition) {
+        if (packedPosition == PackedPosition.INVALID) { return new ArrayList<>(); }
+        return getSetOfExitsFromRoom(PackedPosition.toPositionString(packedPosition));
+    }
+
     /**
      * Given a player ID get the record of that player's main attributes. Note that a record is provided even if the
      * player is not presently in the cave (= has no active session)
@@ -136,4 +188,22 @@ public interface CaveStorage extends ExternalService {
      * available on the page, return an empty list (not a null list).
      */
     List<MessageRecord> getMessageList(String positionInCave, int startIndex, int pageSize);
+
+    /**
+     * Get the room at the given position together with its exits, the players presently in it, and the first page of
+     * its wall. By default this is four separate reads; storage implementations should override it to read all four
+     * as one consistent view.
+     *
+     * @param packedPosition the position of the room, encoded by PackedPosition
+     * @param pageSize       number of messages to include from the wall
+     * @return the snapshot; its room is null if there is no room at the position
+     */
+    default RoomSnapshotRecord getRoomSnapshot(long packedPosition, int pageSize) {
+        if (packedPosition == PackedPosition.INVALID) {
+            return new RoomSnapshotRecord(null, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+        String positionString = PackedPosition.toPositionString(packedPosition);
+        return new RoomSnapshotRecord(getRoom(packedPosition), getSetOfExitsFromRoom(packedPosition),
+            computeListOfPlayersAt(positionString), getMessageList(positionString, 0, pageSize));
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.util.*;
+
+import cloud.cave.common.ServerConfiguration;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
+
+/**
+ * Base class of Decorators of a CaveStorage, passing every method on
+ * to the decorated storage. Subclasses override those they add
+ * behavior to.
+ */
+public abstract class CaveStorageDecorator implements CaveStorage {
+
+  protected final CaveStorage storage;
+
+  /**
+   * Decorate a storage.
+   *
+   * @param storage the storage to decorate
+   */
+  protected CaveStorageDecorator(CaveStorage storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public RoomRecord getRoom(String positionString) {
+    return storage.getRoom(positionString);
+  }
+
+  @Override
+  public RoomRecord getRoom(long packedPosition) {
+    return storage.getRoom(packedPosition);
+  }
+
+  @Override
+  public boolean hasRoom(long packedPosition) {
+    return storage.hasRoom(packedPosition);
+  }
+
+  @Override
+  public int addRoom(String positionString, RoomRecord roomRecord) {
+    return storage.addRoom(positionString, roomRecord);
+  }
+
+  @Override
+  public Map<String, Integer> addRooms(Map<String, RoomRecord> rooms) {
+    return storage.addRooms(rooms);
+  }
+
+  @Override
+  public int updateRoom(String positionString, RoomRecord updatedRoom) {
+    return storage.updateRoom(positionString, updatedRoom);
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(String positionString) {
+    return storage.getSetOfExitsFromRoom(positionString);
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(long packedPosition) {
+    return storage.getSetOfExitsFromRoom(packedPosition);
+  }
+
+  @Override
+  public PlayerRecord getPlayerByID(String playerID) {
+    return storage.getPlayerByID(playerID);
+  }
+
+  @Override
+  public void updatePlayerRecord(PlayerRecord record) {
+    storage.updatePlayerRecord(record);
+  }
+
+  @Override
+  public List<PlayerRecord> computeListOfPlayersAt(String positionString) {
+    return storage.computeListOfPlayersAt(positionString);
+  }
+
+  @Override
+  public void addMessage(String positionInCave, MessageRecord messageRecord) {
+    storage.addMessage(positionInCave, messageRecord);
+  }
+
+  @Override
+  public int updateMessage(String positionInCave, String messageId, MessageRecord newMessageRecord) {
+    return storage.updateMessage(positionInCave, messageId, newMessageRecord);
+  }
+
+  @Override
+  public List<MessageRecord> getMessageList(String positionInCave, int startIndex, int pageSize) {
+    return storage.getMessageList(positionInCave, startIndex, pageSize);
+  }
+
+  @Override
+  public RoomSnapshotRecord getRoomSnapshot(long packedPosition, int pageSize) {
+    return storage.getRoomSnapshot(packedPosition, pageSize);
+  }
+
+  @Override
+  public void initialize(ObjectManager objectManager, ServerConfiguration config) {
+    storage.initialize(objectManager, config);
+  }
+
+  @Override
+  public void disconnect() {
+    storage.disconnect();
+  }
+
+  @Override
+  public ServerConfiguration getConfiguration() {
+    return storage.getConfiguration();
+  }
+}
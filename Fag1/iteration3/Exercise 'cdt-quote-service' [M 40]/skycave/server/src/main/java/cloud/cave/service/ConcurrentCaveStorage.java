@@ -0,0 +1,739 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+import cloud.cave.common.ServerConfiguration;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.*;
+import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
+import cloud.cave.service.wall.WallLog;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory implementation of storage that is safe to use behind a
+ * multi-threaded server request handler. It mirrors the behaviour of
+ * the FakeCaveStorage test double, but all tables are concurrent maps
+ * and all 'check-then-act' sequences are made atomic.
+ * <p>
+ * Rooms are keyed by packed position (see PackedPosition) in a set
+ * of PackedPositionMaps, each guarded by its own read-write lock, so
+ * threads operating on different positions rarely contend, and room
+ * lookups and exit computations never touch a string. Position
+ * strings are parsed once when they enter the storage. A room is
+ * added by a test-and-insert, and a room is updated by a
+ * test-and-replace, both under the write lock of the stripe, so
+ * racing diggers cannot overwrite each other.
+ * <p>
+ * Each stored room carries an ExitMask of its neighbours, which is
+ * maintained when rooms are added, so the set of exits is a single
+ * lookup. A new room is inserted with the exits to the rooms already
+ * around it, so it is never seen without them; then it sets its bit
+ * in each neighbour. Of two neighbours added at the same time, the
+ * last one to set its bits sees the other and links both.
+ * <p>
+ * Players are kept in a ConcurrentHashMap, and each write of a player
+ * holds the lock of the player's stripe, so the table and the
+ * presence index change as one step.
+ * <p>
+ * The wall of each room is guarded by its own lock, thus postings
+ * in different rooms proceed in parallel. A room snapshot holds the
+ * stripe's read lock and the wall's lock at once, so the room, its
+ * exits and its wall are read as one view.
+ * <p>
+ * Room records and message contents, which make up most of a large
+ * cave, are kept off the heap in a TextArena, where an update reuses
+ * the space of the text it replaces; records are created from it
+ * only when read.
+ * <p>
+ * Player records are copied on the way in and out, as callers
+ * modify the returned record before writing it back.
+ * <p>
+ * Subclasses may make the storage durable by overriding the
+ * 'journal' hooks, which are called with each record before it is
+ * stored, while the lock of the changed room, player or wall is held,
+ * and then 'awaitDurable' under the same lock. The change is applied,
+ * and thus seen by readers, only once 'awaitDurable' returns; if it
+ * throws, the change is dropped, so the tables never hold a change
+ * the journal may have lost. Readers of the same stripe, player or
+ * wall wait for the journal, while changes under different locks
+ * share its writes. The 'restore' and 'forEach' methods allow such
+ * subclasses to load and save the tables as they are.
+ */
+public class ConcurrentCaveStorage implements CaveStorage {
+
+  // Number of room stripes, must be a power of two
+  private static final int STRIPE_COUNT = 64;
+
+  // The table/collection of rooms in the cave, split in stripes.
+  // The packed position is the primary key
+  private final PackedPositionMap<RoomEntry>[] roomStripes;
+  private final ReadWriteLock[] roomLocks;
+  private final AtomicInteger roomCount;
+  // The table/collection of the walls of all rooms;
+  // each wall is guarded by its own monitor
+  private final Map<String, WallLog> messageMap;
+  // The table of players, primary key is the player id;
+  // writes are guarded by the lock of the id's stripe
+  private final Map<String, PlayerRecord> playerId2PlayerSpecs;
+  private final Lock[] playerLocks;
+  // Secondary index: position to players in the cave there
+  private final PlayerPresenceIndex presenceIndex;
+  // Off-heap storage of room descriptions and message contents
+  private final TextArena textArena;
+
+  // Strategy to delegate how to define timestamps
+  private NowStrategy nowStrategy;
+
+  private ServerConfiguration serverConfiguration;
+
+  public ConcurrentCaveStorage() {
+    // Default to a timestamp strategy that uses the real clock.
+    nowStrategy = new RealNowStrategy();
+
+    roomStripes = newRoomStripes();
+    roomLocks = new ReadWriteLock[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      roomStripes[i] = new PackedPositionMap<>();
+      roomLocks[i] = new ReentrantReadWriteLock();
+    }
+    roomCount = new AtomicInteger();
+    messageMap = new ConcurrentHashMap<>();
+    playerId2PlayerSpecs = new ConcurrentHashMap<>();
+    playerLocks = new Lock[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++) { playerLocks[i] = new ReentrantLock(); }
+    presenceIndex = new PlayerPresenceIndex();
+    textArena = new TextArena();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static PackedPositionMap<RoomEntry>[] newRoomStripes() {
+    return (PackedPositionMap<RoomEntry>[]) new PackedPositionMap<?>[STRIPE_COUNT];
+  }
+
+  // A room and the mask of its exits, both guarded by the stripe's
+  // lock. All fields of the room record are kept in the text arena,
+  // thus an entry holds no objects, and a record, with its
+  // description, is only created when the room is read.
+  private class RoomEntry {
+    private long idHandle;
+    private long creationTimeHandle;
+    private long creatorIdHandle;
+    private long descriptionHandle;
+    int exitMask;
+
+    RoomEntry(RoomRecord record, int exitMask) {
+      idHandle = textArena.put(record.getId());
+      creationTimeHandle = textArena.put(record.getCreationTimeISO8601());
+      creatorIdHandle = textArena.put(record.getCreatorId());
+      descriptionHandle = textArena.put(record.getDescription());
+      this.exitMask = exitMask;
+    }
+
+    // Overwrites the texts in place when they fit
+    void set(RoomRecord record) {
+      idHandle = textArena.replace(idHandle, record.getId());
+      creationTimeHandle = textArena.replace(creationTimeHandle, record.getCreationTimeISO8601());
+      creatorIdHandle = textArena.replace(creatorIdHandle, record.getCreatorId());
+      descriptionHandle = textArena.replace(descriptionHandle, record.getDescription());
+    }
+
+    RoomRecord get() {
+      RoomRecord record = new RoomRecord(textArena.get(descriptionHandle), getCreatorId());
+      record.setId(textArena.get(idHandle));
+      record.setCreationTimeISO8601(textArena.get(creationTimeHandle));
+      return record;
+    }
+
+    String getCreatorId() {
+      return textArena.get(creatorIdHandle);
+    }
+  }
+
+  public void setNowStrategy(NowStrategy nowStrategy) {
+    this.nowStrategy = nowStrategy;
+  }
+
+  @Override
+  public void initialize(ObjectManager objMgr, ServerConfiguration config) {
+    this.serverConfiguration = config;
+    // Initialize the default room layout
+    this.addRoom(Point3.of(0, 0, 0).getPositionString(), new RoomRecord(
+        "You are standing at the end of a road before a small brick building.", WILL_CROWTHER_ID));
+    this.addRoom(Point3.of(0, 1, 0).getPositionString(), new RoomRecord(
+        "You are in open forest, with a deep valley to one side.", WILL_CROWTHER_ID));
+    this.addRoom(Point3.of(1, 0, 0).getPositionString(), new RoomRecord(
+        "You are inside a building, a well house for a large spring.", WILL_CROWTHER_ID));
+    this.addRoom(Point3.of(-1, 0, 0).getPositionString(), new RoomRecord(
+        "You have walked up a hill, still in the forest.", WILL_CROWTHER_ID));
+    this.addRoom(Point3.of(0, 0, 1).getPositionString(), new RoomRecord(
+        "You are in the top of a tall tree, at the end of a road.", WILL_CROWTHER_ID));
+  }
+
+  @Override
+  public void disconnect() {
+    // An in-memory storage has no connection to close
+  }
+
+  @Override
+  public RoomRecord getRoom(String positionString) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return null; }
+    return getRoom(packedPosition);
+  }
+
+  @Override
+  public RoomRecord getRoom(long packedPosition) {
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].readLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      return entry == null ? null : entry.get();
+    } finally {
+      roomLocks[stripe].readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean hasRoom(long packedPosition) {
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].readLock().lock();
+    try {
+      return roomStripes[stripe].containsKey(packedPosition);
+    } finally {
+      roomLocks[stripe].readLock().unlock();
+    }
+  }
+
+  @Override
+  public int addRoom(String positionString, RoomRecord newRoom) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) {
+      return HttpServletResponse.SC_BAD_REQUEST;
+    }
+    // Simulate classic DB behaviour: timestamp record and
+    // assign unique id
+    RoomRecord recordInDB = new RoomRecord(newRoom);
+    ZonedDateTime now = nowStrategy.now();
+    recordInDB.setCreationTime(now);
+    recordInDB.setId(UUID.randomUUID().toString());
+
+    // The room enters with the exits to the rooms already there
+    int exitMask = existingExits(packedPosition);
+
+    // if there is already a room, return FORBIDDEN; the
+    // test and the insertion is a single atomic operation, and
+    // the description only enters the text arena once the
+    // position is known to be free and the room is journaled
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].writeLock().lock();
+    try {
+      PackedPositionMap<RoomEntry> rooms = roomStripes[stripe];
+      if (rooms.containsKey(packedPosition)) { return HttpServletResponse.SC_FORBIDDEN; }
+      awaitDurable(journalRoom(packedPosition, recordInDB));
+      rooms.put(packedPosition, new RoomEntry(recordInDB, exitMask));
+    } finally {
+      roomLocks[stripe].writeLock().unlock();
+    }
+    roomCount.incrementAndGet();
+    linkNeighbors(packedPosition, exitMask, neighbor -> false);
+    return HttpServletResponse.SC_CREATED;
+  }
+
+  @Override
+  public Map<String, Integer> addRooms(Map<String, RoomRecord> rooms) {
+    Map<String, Integer> result = new LinkedHashMap<>();
+    ZonedDateTime now = nowStrategy.now();
+
+    // Group the rooms by stripe, so each stripe lock is taken once
+    List<List<PendingRoom>> byStripe = new ArrayList<>(STRIPE_COUNT);
+    for (int i = 0; i < STRIPE_COUNT; i++) { byStripe.add(new ArrayList<>()); }
+    for (Map.Entry<String, RoomRecord> room : rooms.entrySet()) {
+      long packedPosition = PackedPosition.parse(room.getKey());
+      if (packedPosition == PackedPosition.INVALID) {
+        result.put(room.getKey(), HttpServletResponse.SC_BAD_REQUEST);
+        continue;
+      }
+      RoomRecord recordInDB = new RoomRecord(room.getValue());
+      recordInDB.setCreationTime(now);
+      recordInDB.setId(UUID.randomUUID().toString());
+      byStripe.get(stripeOf(packedPosition)).add(new PendingRoom(room.getKey(), packedPosition, recordInDB,
+          existingExits(packedPosition)));
+    }
+
+    // The stripes of the batch are locked in ascending order, which
+    // is safe as no other operation holds two stripe locks, so the
+    // whole batch is journaled, and waited for, only once
+    List<Integer> locked = new ArrayList<>();
+    for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+      if (byStripe.get(stripe).isEmpty()) { continue; }
+      roomLocks[stripe].writeLock().lock();
+      locked.add(stripe);
+    }
+    List<PendingRoom> added = new ArrayList<>();
+    Set<Long> addedPositions = new HashSet<>();
+    try {
+      long lastTicket = 0;
+      for (int stripe : locked) {
+        PackedPositionMap<RoomEntry> stripeRooms = roomStripes[stripe];
+        Set<Long> claimed = new HashSet<>();
+        for (PendingRoom room : byStripe.get(stripe)) {
+          if (stripeRooms.containsKey(room.packedPosition) || !claimed.add(room.packedPosition)) {
+            result.put(room.positionString, HttpServletResponse.SC_FORBIDDEN);
+            continue;
+          }
+          lastTicket = Math.max(lastTicket, journalRoom(room.packedPosition, room.record));
+          added.add(room);
+        }
+      }
+      // Tickets increase, so the last covers the whole batch
+      awaitDurable(lastTicket);
+      for (PendingRoom room : added) { addedPositions.add(room.packedPosition); }
+      for (PendingRoom room : added) {
+        // Rooms next to each other in the batch enter linked
+        for (Direction d : Direction.values()) {
+          if (addedPositions.contains(PackedPosition.neighbor(room.packedPosition, d))) {
+            room.exitMask |= ExitMask.bit(d);
+          }
+        }
+        roomStripes[stripeOf(room.packedPosition)].put(room.packedPosition,
+            new RoomEntry(room.record, room.exitMask));
+        result.put(room.positionString, HttpServletResponse.SC_CREATED);
+      }
+    } finally {
+      for (int stripe : locked) { roomLocks[stripe].writeLock().unlock(); }
+    }
+    roomCount.addAndGet(added.size());
+
+    for (PendingRoom room : added) {
+      linkNeighbors(room.packedPosition, room.exitMask, addedPositions::contains);
+    }
+    return result;
+  }
+
+  // A room of a batch, on its way into its stripe
+  private static class PendingRoom {
+    final String positionString;
+    final long packedPosition;
+    final RoomRecord record;
+    int exitMask;
+    PendingRoom(String positionString, long packedPosition, RoomRecord record, int exitMask) {
+      this.positionString = positionString;
+      this.packedPosition = packedPosition;
+      this.record = record;
+      this.exitMask = exitMask;
+    }
+  }
+
+  /**
+   * Put a room record, exactly as given, at the position, replacing any
+   * existing room there. Intended for loading a stored cave.
+   *
+   * @param packedPosition the position of the room
+   * @param record         the room record as it was stored
+   */
+  protected void restoreRoom(long packedPosition, RoomRecord record) {
+    boolean isNew = false;
+    int exitMask = existingExits(packedPosition);
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].writeLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      if (entry == null) {
+        roomStripes[stripe].put(packedPosition, new RoomEntry(record, exitMask));
+        isNew = true;
+      } else {
+        entry.set(record);
+      }
+    } finally {
+      roomLocks[stripe].writeLock().unlock();
+    }
+    if (isNew) {
+      roomCount.incrementAndGet();
+      linkNeighbors(packedPosition, exitMask, neighbor -> false);
+    }
+  }
+
+  // The exits of a new room to the rooms around it, computed before
+  // it is published, so it is never seen without them; each
+  // neighbour is read under its own stripe's lock, one at a time,
+  // so there is no lock ordering
+  private int existingExits(long packedPosition) {
+    int exitMask = ExitMask.NONE;
+    for (Direction d : Direction.values()) {
+      long neighbor = PackedPosition.neighbor(packedPosition, d);
+      // No neighbour beyond the edge of the cave
+      if (neighbor != PackedPosition.INVALID && hasRoom(neighbor)) {
+        exitMask |= ExitMask.bit(d);
+      }
+    }
+    return exitMask;
+  }
+
+  // Add the exits of the neighbours to a published room, except those
+  // already linked to it; a neighbour added after the room's exits
+  // were computed did not see the room, so the room gets its exit
+  // here. Only one stripe lock is held at a time.
+  private void linkNeighbors(long packedPosition, int exitMask, LongPredicate isLinked) {
+    int missingExits = ExitMask.NONE;
+    for (Direction d : Direction.values()) {
+      long neighbor = PackedPosition.neighbor(packedPosition, d);
+      if (neighbor == PackedPosition.INVALID || isLinked.test(neighbor)) { continue; }
+      if (addExit(neighbor, ExitMask.oppositeBit(d)) && (exitMask & ExitMask.bit(d)) == 0) {
+        missingExits |= ExitMask.bit(d);
+      }
+    }
+    if (missingExits != ExitMask.NONE) { addExit(packedPosition, missingExits); }
+  }
+
+  // Set the exit bits of the room at the position, if there is one
+  private boolean addExit(long packedPosition, int exitBits) {
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].writeLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      if (entry == null) { return false; }
+      entry.exitMask |= exitBits;
+      return true;
+    } finally {
+      roomLocks[stripe].writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int updateRoom(String positionString, RoomRecord updatedRoom) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return HttpServletResponse.SC_NOT_FOUND; }
+    RoomRecord replacement = new RoomRecord(updatedRoom);
+
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].writeLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      // if room does not exist, return 404 NOT FOUND
+      if (entry == null) { return HttpServletResponse.SC_NOT_FOUND; }
+
+      if (! entry.getCreatorId().equals(updatedRoom.getCreatorId())) {
+        return HttpServletResponse.SC_UNAUTHORIZED;
+      }
+      awaitDurable(journalRoom(packedPosition, replacement));
+      entry.set(replacement);
+    } finally {
+      roomLocks[stripe].writeLock().unlock();
+    }
+    return HttpServletResponse.SC_OK;
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(String positionString) {
+    long packedPosition = PackedPosition.parse(positionString);
+    if (packedPosition == PackedPosition.INVALID) { return ExitMask.toList(ExitMask.NONE); }
+    return getSetOfExitsFromRoom(packedPosition);
+  }
+
+  @Override
+  public List<Direction> getSetOfExitsFromRoom(long packedPosition) {
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].readLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      return ExitMask.toList(entry == null ? ExitMask.NONE : entry.exitMask);
+    } finally {
+      roomLocks[stripe].readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the number of bytes of text stored off the heap.
+   *
+   * @return the bytes used by the text arena
+   */
+  long getTextBytesUsed() {
+    return textArena.getBytesUsed();
+  }
+
+  // Nearby rooms land in different stripes, as the low bits
+  // of all three coordinates take part in the stripe index
+  private static int stripeOf(long packedPosition) {
+    long h = packedPosition ^ (packedPosition >>> 21) ^ (packedPosition >>> 42);
+    return (int) h & (STRIPE_COUNT - 1);
+  }
+
+  private static int stripeOf(String playerID) {
+    int h = playerID.hashCode();
+    return (h ^ (h >>> 16)) & (STRIPE_COUNT - 1);
+  }
+
+  @Override
+  public PlayerRecord getPlayerByID(String playerID) {
+    PlayerRecord ps = playerId2PlayerSpecs.get(playerID);
+    if (ps == null) { return null; }
+    return new PlayerRecord(ps);
+  }
+
+  @Override
+  public void updatePlayerRecord(PlayerRecord record) {
+    PlayerRecord copy = new PlayerRecord(record);
+    Lock lock = playerLocks[stripeOf(record.getPlayerID())];
+    lock.lock();
+    try {
+      awaitDurable(journalPlayer(copy));
+      presenceIndex.update(copy);
+      playerId2PlayerSpecs.put(copy.getPlayerID(), copy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Put a player record, exactly as given, in the player table.
+   * Intended for loading a stored cave.
+   *
+   * @param record the player record as it was stored
+   */
+  protected void restorePlayer(PlayerRecord record) {
+    Lock lock = playerLocks[stripeOf(record.getPlayerID())];
+    lock.lock();
+    try {
+      presenceIndex.update(record);
+      playerId2PlayerSpecs.put(record.getPlayerID(), record);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<PlayerRecord> computeListOfPlayersAt(String positionString) {
+    List<PlayerRecord> theList = new ArrayList<PlayerRecord>();
+    for ( String id : presenceIndex.getPlayerIdsAt(positionString) ) {
+      PlayerRecord ps = playerId2PlayerSpecs.get(id);
+      // The player may have moved since we read the index
+      if (ps != null && ps.isInCave() && ps.getPositionAsString().equals(positionString)) {
+        theList.add(new PlayerRecord(ps));
+      }
+    }
+    return theList;
+  }
+
+  @Override
+  public void addMessage(String positionInCave, MessageRecord messageRecord) {
+    // Simulate 'classic DB' behaviour, assign unique
+    // id to item and timestamp it
+    MessageRecord newRecord = new MessageRecord(messageRecord);
+    ZonedDateTime now = nowStrategy.now();
+    newRecord.setCreatorTimeStampISO8601(now);
+    newRecord.setId(UUID.randomUUID().toString());
+
+    WallLog wall = messageMap.computeIfAbsent(positionInCave, key -> new WallLog(textArena));
+    synchronized (wall) {
+      awaitDurable(journalMessage(positionInCave, newRecord));
+      wall.append(newRecord);
+    }
+  }
+
+  /**
+   * Put a message, exactly as given, on the wall at the position,
+   * replacing any message with the same id. Intended for loading
+   * a stored cave.
+   *
+   * @param positionInCave the position of the wall
+   * @param messageRecord  the message as it was stored
+   */
+  protected void restoreMessage(String positionInCave, MessageRecord messageRecord) {
+    WallLog wall = messageMap.computeIfAbsent(positionInCave, key -> new WallLog(textArena));
+    synchronized (wall) {
+      wall.restore(messageRecord);
+    }
+  }
+
+  @Override
+  public int updateMessage(String positionInCave, String messageId, MessageRecord newMessageRecord) {
+    WallLog wall = messageMap.get(positionInCave);
+    if (wall == null) { return HttpServletResponse.SC_NOT_FOUND; }
+    synchronized (wall) {
+      MessageRecord match = wall.get(messageId);
+      // The wall decides on missing messages and other creators
+      // itself, only a change that it accepts is journaled
+      if (match != null && match.getCreatorId().equals(newMessageRecord.getCreatorId())) {
+        MessageRecord updated = new MessageRecord(match);
+        updated.setContents(newMessageRecord.getContents());
+        awaitDurable(journalMessage(positionInCave, updated));
+      }
+      return wall.update(messageId, newMessageRecord);
+    }
+  }
+
+  @Override
+  public List<MessageRecord> getMessageList(String positionInCave, int startIndex, int pageSize) {
+    WallLog wall = messageMap.get(positionInCave);
+    if (wall == null) { return new ArrayList<>(); }
+    synchronized (wall) {
+      return wall.getPage(startIndex, pageSize);
+    }
+  }
+
+  @Override
+  public RoomSnapshotRecord getRoomSnapshot(long packedPosition, int pageSize) {
+    // INVALID would become the string of a real position, and
+    // bring in the players and wall there
+    if (packedPosition == PackedPosition.INVALID) {
+      return new RoomSnapshotRecord(null, ExitMask.toList(ExitMask.NONE),
+          new ArrayList<>(), new ArrayList<>());
+    }
+    String positionString = PackedPosition.toPositionString(packedPosition);
+    WallLog wall = messageMap.get(positionString);
+    // The room is read under its stripe's read lock and the wall
+    // under its own monitor, both held at once; the wall lock is
+    // never held while taking a stripe lock, so the order is safe
+    int stripe = stripeOf(packedPosition);
+    roomLocks[stripe].readLock().lock();
+    try {
+      RoomEntry entry = roomStripes[stripe].get(packedPosition);
+      if (entry == null) {
+        return new RoomSnapshotRecord(null, ExitMask.toList(ExitMask.NONE),
+            new ArrayList<>(), new ArrayList<>());
+      }
+      List<PlayerRecord> playersHere = computeListOfPlayersAt(positionString);
+      if (wall == null) {
+        return new RoomSnapshotRecord(entry.get(), ExitMask.toList(entry.exitMask),
+            playersHere, new ArrayList<>());
+      }
+      synchronized (wall) {
+        return new RoomSnapshotRecord(entry.get(), ExitMask.toList(entry.exitMask),
+            playersHere, wall.getPage(0, pageSize));
+      }
+    } finally {
+      roomLocks[stripe].readLock().unlock();
+    }
+  }
+
+  /**
+   * Journal hook, called with a room record before it is stored, while
+   * the room's lock is held.
+   *
+   * @param packedPosition the position of the room
+   * @param record         the stored record; must not be modified
+   * @return a ticket to pass to awaitDurable
+   */
+  protected long journalRoom(long packedPosition, RoomRecord record) { return 0; }
+
+  /**
+   * Journal hook, called with a player record before it is stored,
+   * while the player's lock is held.
+   *
+   * @param record the stored record; must not be modified
+   * @return a ticket to pass to awaitDurable
+   */
+  protected long journalPlayer(PlayerRecord record) { return 0; }
+
+  /**
+   * Journal hook, called with a message before it is stored, while the
+   * lock of its wall is held.
+   *
+   * @param positionInCave the position of the wall
+   * @param messageRecord  the stored message; must not be modified
+   * @return a ticket to pass to awaitDurable
+   */
+  protected long journalMessage(String positionInCave, MessageRecord messageRecord) { return 0; }
+
+  /**
+   * Called, with the lock of the journal hook still held, before the
+   * change is stored. The change is only stored if this returns.
+   *
+   * @param ticket the ticket returned by the journal hook
+   * @throws RuntimeException if the change cannot be made durable
+   */
+  protected void awaitDurable(long ticket) {}
+
+  /**
+   * Apply the action to each room, one stripe at a time.
+   *
+   * @param action receives the position string and the room record
+   */
+  protected void forEachRoom(BiConsumer<String, RoomRecord> action) {
+    for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+      roomLocks[stripe].readLock().lock();
+      try {
+        roomStripes[stripe].forEach((packedPosition, entry) ->
+            action.accept(PackedPosition.toPositionString(packedPosition), entry.get()));
+      } finally {
+        roomLocks[stripe].readLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Apply the action to each player record.
+   *
+   * @param action receives the player record
+   */
+  protected void forEachPlayer(Consumer<PlayerRecord> action) {
+    // Holding all player locks waits for any player that is journaled
+    // but not yet stored; the action runs after they are released
+    List<PlayerRecord> players;
+    for (Lock lock : playerLocks) { lock.lock(); }
+    try {
+      players = new ArrayList<>(playerId2PlayerSpecs.values());
+    } finally {
+      for (Lock lock : playerLocks) { lock.unlock(); }
+    }
+    players.forEach(action);
+  }
+
+  /**
+   * Apply the action to each wall, one at a time.
+   *
+   * @param action receives the position string and the messages
+   *               on the wall, the oldest first
+   */
+  protected void forEachWall(BiConsumer<String, List<MessageRecord>> action) {
+    messageMap.forEach((positionInCave, wall) -> {
+      List<MessageRecord> messages;
+      synchronized (wall) {
+        messages = wall.getPage(0, wall.size());
+      }
+      Collections.reverse(messages);
+      action.accept(positionInCave, messages);
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentCaveStorage (" + roomCount.get() + " rooms. " +
+        playerId2PlayerSpecs.size() + " players)";
+  }
+
+  @Override
+  public ServerConfiguration getConfiguration() {
+    return serverConfiguration;
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.util.*;
+
+import cloud.cave.domain.Direction;
+
+/**
+ * The set of exits from a room encoded as a 6 bit mask, bit i being set
+ * if there is a room in the direction with ordinal i. As there are only
+ * 64 possible masks, the list of directions for each is computed once,
+ * and shared read-only by all rooms with the same exits.
+ */
+public final class ExitMask {
+
+  /** The mask of a room without any exits */
+  public static final int NONE = 0;
+
+  private static final List<List<Direction>> EXITS_BY_MASK;
+
+  static {
+    Direction[] directions = Direction.values();
+    List<List<Direction>> all = new ArrayList<>(1 << directions.length);
+    for (int mask = 0; mask < 1 << directions.length; mask++) {
+      List<Direction> exits = new ArrayList<>();
+      for (Direction d : directions) {
+        if ((mask & bit(d)) != 0) { exits.add(d); }
+      }
+      all.add(Collections.unmodifiableList(exits));
+    }
+    EXITS_BY_MASK = Collections.unmodifiableList(all);
+  }
+
+  private ExitMask() {}
+
+  /**
+   * Get the bit representing an exit in the given direction.
+   *
+   * @param direction the direction
+   * @return the mask with only that bit set
+   */
+  public static int bit(Direction direction) {
+    return 1 << direction.ordinal();
+  }
+
+  /**
+   * Get the bit representing an exit in the opposite direction, which
+   * is the exit leading back from the neighbour in the given direction.
+   * Directions come in opposite pairs NORTH/SOUTH, EAST/WEST, UP/DOWN.
+   *
+   * @param direction the direction
+   * @return the mask with only the opposite direction's bit set
+   */
+  public static int oppositeBit(Direction direction) {
+    return 1 << (direction.ordinal() ^ 1);
+  }
+
+  /**
+   * Get the directions in the given mask, in Direction order.
+   *
+   * @param mask the exit mask
+   * @return a shared, read-only list of the directions
+   */
+  public static List<Direction> toList(int mask) {
+    return EXITS_BY_MASK.get(mask);
+  }
+}
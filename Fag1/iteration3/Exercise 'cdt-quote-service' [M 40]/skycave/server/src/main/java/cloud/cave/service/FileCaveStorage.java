@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import cloud.cave.common.ServerConfiguration;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.invoker.CaveIPCException;
+import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, local implementation of storage. The working set is the
+ * in-memory tables of the ConcurrentCaveStorage, and every change is
+ * appended to a write ahead log in a local directory, and forced to
+ * disk, before it enters the tables. A change the log fails to write
+ * is never applied. The log uses group commit, so concurrent
+ * mutations share one fsync.
+ * <p>
+ * Periodically, and on disconnect, a compact snapshot of all records is
+ * written, and the log files it covers are deleted. At initialize, the
+ * cave is recovered by loading the latest snapshot and replaying the
+ * log written after it.
+ * <p>
+ * The directory is given by the host part of the
+ * SKYCAVE_CAVESTORAGE_SERVER_ADDRESS property, the port is not used;
+ * e.g. 'skycave-data:0'. See 'file.cpf'.
+ * <p>
+ * A storage owns its directory from initialize until disconnect, by
+ * a lock on a file in it; a second process, like a CaveLoad run
+ * while the daemon is up, fails to initialize instead of writing the
+ * same log files.
+ */
+public class FileCaveStorage extends ConcurrentCaveStorage {
+
+  /** Time between snapshots */
+  public static final long SNAPSHOT_INTERVAL_SECONDS = 300;
+
+  private static final String SNAPSHOT_FILE = "snapshot.json";
+  private static final String SNAPSHOT_TEMP_FILE = "snapshot.json.tmp";
+  private static final String LOCK_FILE = "storage.lock";
+
+  private final Logger logger;
+  private final Gson gson;
+  private Path directory;
+  private WriteAheadLog log;
+  private ScheduledExecutorService snapshotScheduler;
+  private FileChannel lockChannel;
+
+  /** Create a storage in the directory given by
+   * the configuration at initialize.
+   */
+  public FileCaveStorage() {
+    this(null);
+  }
+
+  /** Create a storage in the given directory,
+   * overriding any configuration.
+   *
+   * @param directory the directory of the storage files
+   */
+  public FileCaveStorage(Path directory) {
+    logger = LoggerFactory.getLogger(FileCaveStorage.class);
+    gson = new Gson();
+    this.directory = directory;
+  }
+
+  @Override
+  public void initialize(ObjectManager objMgr, ServerConfiguration config) {
+    if (directory == null) {
+      directory = Paths.get(config.get(0).getHostName());
+    }
+    try {
+      Files.createDirectories(directory);
+      lockDirectory();
+      int nextGeneration = recover();
+      log = new WriteAheadLog(directory, nextGeneration);
+    } catch (IOException e) {
+      if (lockChannel != null) { unlockDirectory(); }
+      throw new CaveIPCException("FileCaveStorage: Cannot open storage in " + directory, e);
+    }
+    // Creates the default rooms in a new cave, a no-op otherwise
+    super.initialize(objMgr, config);
+
+    snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "cave-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    snapshotScheduler.scheduleWithFixedDelay(this::takeSnapshotAndLogFailure,
+        SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    logger.info("method=initialize, directory=" + directory + ", state=" + this);
+  }
+
+  // Take the lock of the directory, which the operating system
+  // releases if the process dies
+  private void lockDirectory() throws IOException {
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Held by another storage in this process
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("The directory is in use by another storage");
+    }
+  }
+
+  private void unlockDirectory() {
+    try {
+      // Closing the channel releases the lock
+      lockChannel.close();
+    } catch (IOException e) {
+      logger.error("method=unlockDirectory, directory=" + directory + ", exception=" + e);
+    }
+  }
+
+  @Override
+  public void disconnect() {
+    if (snapshotScheduler == null || snapshotScheduler.isShutdown()) { return; }
+    snapshotScheduler.shutdownNow();
+    // A final snapshot makes the next startup fast
+    takeSnapshotAndLogFailure();
+    log.close();
+    unlockDirectory();
+  }
+
+  /**
+   * Stop using the directory without the final snapshot, leaving it
+   * as a killed process would. Intended for testing recovery.
+   */
+  void abandon() {
+    if (snapshotScheduler == null || snapshotScheduler.isShutdown()) { return; }
+    snapshotScheduler.shutdownNow();
+    log.close();
+    unlockDirectory();
+  }
+
+  /**
+   * Write a snapshot of the whole cave and delete the log files that
+   * precede it. Mutations may proceed while the snapshot is written;
+   * any that it misses are in the log generation it refers to.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public synchronized void takeSnapshot() throws IOException {
+    // A change logged before the rotation holds its lock until it is
+    // in the tables, and the snapshot reads each table under those
+    // locks, thus the snapshot only needs the log from here on
+    int generation = log.rotate();
+
+    Path temp = directory.resolve(SNAPSHOT_TEMP_FILE);
+    try (FileOutputStream out = new FileOutputStream(temp.toFile());
+         Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+      writeLine(writer, JournalEntry.snapshot(generation));
+      forEachRoom((position, room) -> writeLine(writer, JournalEntry.room(position, room)));
+      forEachPlayer(player -> writeLine(writer, JournalEntry.player(player)));
+      forEachWall((position, messages) ->
+          messages.forEach(message -> writeLine(writer, JournalEntry.message(position, message))));
+      writer.flush();
+      out.getFD().sync();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Files.move(temp, directory.resolve(SNAPSHOT_FILE),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    for (int old : listLogGenerations()) {
+      if (old < generation) { Files.deleteIfExists(WriteAheadLog.pathOf(directory, old)); }
+    }
+    logger.info("method=takeSnapshot, generation=" + generation + ", state=" + this);
+  }
+
+  private void takeSnapshotAndLogFailure() {
+    try {
+      takeSnapshot();
+    } catch (IOException | RuntimeException e) {
+      logger.error("method=takeSnapshot, directory=" + directory + ", exception=" + e);
+    }
+  }
+
+  private void writeLine(Writer writer, JournalEntry entry) {
+    try {
+      writer.write(gson.toJson(entry));
+      writer.write('\n');
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Load the snapshot and replay the log after it; returns the
+  // generation for the new log
+  private int recover() throws IOException {
+    int firstGeneration = 0;
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    if (Files.exists(snapshot)) {
+      try (BufferedReader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+        JournalEntry header = gson.fromJson(reader.readLine(), JournalEntry.class);
+        firstGeneration = header.getGeneration();
+      }
+      replay(snapshot);
+    }
+    int lastGeneration = firstGeneration - 1;
+    for (int generation : listLogGenerations()) {
+      if (generation >= firstGeneration) {
+        replay(WriteAheadLog.pathOf(directory, generation));
+        lastGeneration = generation;
+      }
+    }
+    return Math.max(firstGeneration, lastGeneration + 1);
+  }
+
+  private void replay(Path file) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        JournalEntry entry;
+        try {
+          entry = gson.fromJson(line, JournalEntry.class);
+        } catch (JsonParseException e) {
+          // A crash while writing leaves a torn last line, which
+          // was never acknowledged to any caller
+          logger.warn("method=replay, file=" + file + ", skipping torn line");
+          break;
+        }
+        if (entry == null) { continue; }
+        apply(entry);
+      }
+    }
+  }
+
+  private void apply(JournalEntry entry) {
+    switch (entry.getType()) {
+      case JournalEntry.ROOM:
+        restoreRoom(PackedPosition.parse(entry.getPosition()), entry.getRoom());
+        break;
+      case JournalEntry.PLAYER:
+        restorePlayer(entry.getPlayer());
+        break;
+      case JournalEntry.MESSAGE:
+        restoreMessage(entry.getPosition(), entry.getMessage());
+        break;
+      default:
+        // the snapshot header carries no record
+    }
+  }
+
+  private List<Integer> listLogGenerations() throws IOException {
+    List<Integer> generations = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        int generation = WriteAheadLog.generationOf(file.getFileName().toString());
+        if (generation >= 0) { generations.add(generation); }
+      }
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  @Override
+  protected long journalRoom(long packedPosition, RoomRecord record) {
+    return log.append(gson.toJson(JournalEntry.room(PackedPosition.toPositionString(packedPosition), record)));
+  }
+
+  @Override
+  protected long journalPlayer(PlayerRecord record) {
+    return log.append(gson.toJson(JournalEntry.player(record)));
+  }
+
+  @Override
+  protected long journalMessage(String positionInCave, MessageRecord messageRecord) {
+    return log.append(gson.toJson(JournalEntry.message(positionInCave, messageRecord)));
+  }
+
+  @Override
+  protected void awaitDurable(long ticket) {
+    log.awaitDurable(ticket);
+  }
+
+  @Override
+  public String toString() {
+    return super.toString().replace("ConcurrentCaveStorage", "FileCaveStorage");
+  }
+}
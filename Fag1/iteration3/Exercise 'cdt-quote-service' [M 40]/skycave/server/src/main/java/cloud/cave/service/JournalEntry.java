@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.service.wall.MessageRecord;
+
+/**
+ * A single line of the write ahead log and of the snapshot of the
+ * FileCaveStorage, marshalled as JSON. Each entry holds a record as
+ * it was stored, so applying an entry twice has no further effect.
+ */
+public class JournalEntry {
+
+  public static final String ROOM = "room";
+  public static final String PLAYER = "player";
+  public static final String MESSAGE = "message";
+  /** First line of a snapshot, holding the generation of the log that follows it */
+  public static final String SNAPSHOT = "snapshot";
+
+  private String type;
+  private String position;
+  private Integer generation;
+  private RoomRecord room;
+  private PlayerRecord player;
+  private MessageRecord message;
+
+  public static JournalEntry room(String position, RoomRecord room) {
+    JournalEntry entry = new JournalEntry(ROOM);
+    entry.position = position;
+    entry.room = room;
+    return entry;
+  }
+
+  public static JournalEntry player(PlayerRecord player) {
+    JournalEntry entry = new JournalEntry(PLAYER);
+    entry.player = player;
+    return entry;
+  }
+
+  public static JournalEntry message(String position, MessageRecord message) {
+    JournalEntry entry = new JournalEntry(MESSAGE);
+    entry.position = position;
+    entry.message = message;
+    return entry;
+  }
+
+  public static JournalEntry snapshot(int generation) {
+    JournalEntry entry = new JournalEntry(SNAPSHOT);
+    entry.generation = generation;
+    return entry;
+  }
+
+  private JournalEntry(String type) {
+    this.type = type;
+  }
+
+  public String getType() { return type; }
+  public String getPosition() { return position; }
+  public Integer getGeneration() { return generation; }
+  public RoomRecord getRoom() { return room; }
+  public PlayerRecord getPlayer() { return player; }
+  public MessageRecord getMessage() { return message; }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import cloud.cave.server.common.NowStrategy;
+
+/**
+ * A bounded cache, evicting the least recently used entry when full,
+ * and expiring entries a fixed time after they were cached. Counts
+ * hits and misses.
+ * <p>
+ * Thread safe. To avoid that a value read from the source just before
+ * a concurrent write is cached after the write has invalidated it,
+ * 'getOrLoad' only caches the loaded value if no invalidation has
+ * happened while it was loaded.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the value
+ */
+public class LruCache<K, V> {
+
+  private final int maxEntries;
+  private final Duration timeToLive;
+  private final NowStrategy nowStrategy;
+
+  // Guarded by 'this'
+  private final LinkedHashMap<K, Entry<V>> map;
+  private long invalidations;
+
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  private static class Entry<V> {
+    final V value;
+    final ZonedDateTime expires;
+    Entry(V value, ZonedDateTime expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxEntries  maximal number of entries
+   * @param timeToLive  time an entry stays valid
+   * @param nowStrategy the clock
+   */
+  public LruCache(int maxEntries, Duration timeToLive, NowStrategy nowStrategy) {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+    this.nowStrategy = nowStrategy;
+    // Access order makes the eldest entry the least recently used
+    map = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        return size() > LruCache.this.maxEntries;
+      }
+    };
+    invalidations = 0;
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Get the value from the cache, or from the loader if it is not
+   * cached or has expired. Null values are never cached.
+   *
+   * @param key    the key
+   * @param loader reads the value from the source
+   * @return the value
+   */
+  public V getOrLoad(K key, Supplier<V> loader) {
+    ZonedDateTime now = nowStrategy.now();
+    long invalidationsBeforeLoad;
+    synchronized (this) {
+      Entry<V> entry = map.get(key);
+      if (entry != null && now.isBefore(entry.expires)) {
+        hits.incrementAndGet();
+        return entry.value;
+      }
+      invalidationsBeforeLoad = invalidations;
+    }
+    misses.incrementAndGet();
+    V value = loader.get();
+    if (value != null) {
+      synchronized (this) {
+        if (invalidations == invalidationsBeforeLoad) {
+          map.put(key, new Entry<>(value, now.plus(timeToLive)));
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Get the value from the cache, without loading it if it is not
+   * cached or has expired.
+   *
+   * @param key the key
+   * @return the value, or null if it is not cached
+   */
+  public V getIfCached(K key) {
+    ZonedDateTime now = nowStrategy.now();
+    synchronized (this) {
+      Entry<V> entry = map.get(key);
+      if (entry != null && now.isBefore(entry.expires)) {
+        hits.incrementAndGet();
+        return entry.value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get a stamp to pass to 'putIfNotInvalidated', taken before the
+   * value to put is read from the source.
+   *
+   * @return the stamp
+   */
+  public synchronized long getStamp() {
+    return invalidations;
+  }
+
+  /**
+   * Cache a value read from the source, like 'getOrLoad' does, but
+   * only if no invalidation has happened since the stamp was taken.
+   * Null values are never cached.
+   *
+   * @param key   the key
+   * @param value the value read from the source
+   * @param stamp the stamp taken before the value was read
+   */
+  public void putIfNotInvalidated(K key, V value, long stamp) {
+    if (value == null) { return; }
+    ZonedDateTime now = nowStrategy.now();
+    synchronized (this) {
+      if (invalidations == stamp) {
+        map.put(key, new Entry<>(value, now.plus(timeToLive)));
+      }
+    }
+  }
+
+  /**
+   * Remove the entry of the key, if any.
+   *
+   * @param key the key
+   */
+  public synchronized void invalidate(K key) {
+    map.remove(key);
+    invalidations++;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  @Override
+  public String toString() {
+    return "LruCache (" + size() + " entries, " + getHits() + " hits, " + getMisses() + " misses)";
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.util.Arrays;
+
+import cloud.cave.server.common.PackedPosition;
+
+/**
+ * A hash map from packed positions to values, using open addressing
+ * with linear probing over a primitive long key array. Compared to a
+ * HashMap with String keys, a lookup neither boxes the key nor hashes
+ * or compares strings, and no entry objects are allocated.
+ * <p>
+ * Keys must be valid packed positions, i.e. non-negative; the
+ * value PackedPosition.INVALID marks a free slot, so it is never
+ * found and cannot be put. As rooms are never
+ * removed from the cave, the map does not support removal, which
+ * keeps probing simple (no tombstones).
+ * <p>
+ * NOT thread safe; the caller must guard access.
+ *
+ * @param <V> the type of the values
+ */
+public class PackedPositionMap<V> {
+
+  private static final long FREE = PackedPosition.INVALID;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  // Resize when size exceeds this, i.e. keep load factor at most 1/2
+  private int threshold;
+
+  public PackedPositionMap() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Get the value at the given position.
+   *
+   * @param key the packed position
+   * @return the value, or null if none
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    if (key == FREE) { return null; }
+    int slot = indexOf(key);
+    return keys[slot] == key ? (V) values[slot] : null;
+  }
+
+  public boolean containsKey(long key) {
+    return key != FREE && keys[indexOf(key)] == key;
+  }
+
+  /**
+   * Put a value at the given position, replacing any existing one.
+   *
+   * @param key   the packed position, must be non-negative
+   * @param value the value, must not be null
+   * @return the previous value, or null if none
+   * @throws IllegalArgumentException if the key is PackedPosition.INVALID
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (key == FREE) {
+      throw new IllegalArgumentException("PackedPositionMap: The invalid position cannot be a key");
+    }
+    int slot = indexOf(key);
+    if (keys[slot] == key) {
+      V previous = (V) values[slot];
+      values[slot] = value;
+      return previous;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > threshold) { allocate(keys.length * 2); }
+    return null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Apply the action to each entry, in no particular order.
+   *
+   * @param action receives the packed position and the value
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(EntryConsumer<V> action) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) { action.accept(keys[i], (V) values[i]); }
+    }
+  }
+
+  /** Receiver of the entries of the map, avoiding boxing of the key */
+  @FunctionalInterface
+  public interface EntryConsumer<V> {
+    void accept(long packedPosition, V value);
+  }
+
+  // Find the slot holding the key, or the free slot where it belongs
+  private int indexOf(long key) {
+    int mask = keys.length - 1;
+    int slot = mix(key) & mask;
+    while (keys[slot] != key && keys[slot] != FREE) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  // Spread the bits, as nearby positions differ only in few low bits
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void allocate(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    Arrays.fill(keys, FREE);
+    threshold = capacity / 2;
+    if (oldKeys == null) { return; }
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int slot = indexOf(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cloud.cave.server.common.PackedPosition;
+import cloud.cave.server.common.PlayerRecord;
+
+/**
+ * Secondary index of the player table: maps a position in the cave to the
+ * set of IDs of players that are in the cave at that position. Storage
+ * implementations maintain it incrementally whenever a player record is
+ * written, so 'who is here' costs O(players in room) instead of a scan
+ * of every player ever seen.
+ * <p>
+ * Positions are indexed packed (see PackedPosition), so neither
+ * updates nor lookups hash or compare position strings. Players at a
+ * position that cannot be packed are not indexed.
+ * <p>
+ * The index is thread safe, however, the caller must ensure that
+ * updates for the SAME player are not interleaved, i.e. call
+ * 'update' while holding the player table's lock for that player.
+ */
+public class PlayerPresenceIndex {
+
+  private final Map<Long, Set<String>> position2PlayerIds;
+  // The position each player is indexed under; absent if not in cave
+  private final Map<String, Long> playerId2IndexedPosition;
+
+  public PlayerPresenceIndex() {
+    position2PlayerIds = new ConcurrentHashMap<>();
+    playerId2IndexedPosition = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Update the index to reflect the given (new) state of a player's
+   * record. As the index remembers where it has the player, the
+   * old record is not needed.
+   *
+   * @param record the player's record as it is now
+   */
+  public void update(PlayerRecord record) {
+    String playerID = record.getPlayerID();
+    long newPosition = record.isInCave()
+        ? PackedPosition.parse(record.getPositionAsString()) : PackedPosition.INVALID;
+    Long oldPosition = playerId2IndexedPosition.get(playerID);
+
+    // Nothing to do if the player is still in the same position
+    if (oldPosition != null && oldPosition == newPosition) { return; }
+
+    if (oldPosition != null) {
+      remove(oldPosition, playerID);
+    }
+    if (newPosition != PackedPosition.INVALID) {
+      add(newPosition, playerID);
+      playerId2IndexedPosition.put(playerID, newPosition);
+    } else {
+      playerId2IndexedPosition.remove(playerID);
+    }
+  }
+
+  /**
+   * Get the IDs of the players in the cave at the given position.
+   *
+   * @param positionString the position
+   * @return a read-only view of the player ids, never null
+   */
+  public Set<String> getPlayerIdsAt(String positionString) {
+    return getPlayerIdsAt(PackedPosition.parse(positionString));
+  }
+
+  /**
+   * Get the IDs of the players in the cave at the given position.
+   *
+   * @param packedPosition the packed position
+   * @return a read-only view of the player ids, never null
+   */
+  public Set<String> getPlayerIdsAt(long packedPosition) {
+    Set<String> ids = position2PlayerIds.get(packedPosition);
+    if (ids == null) { return Collections.emptySet(); }
+    return Collections.unmodifiableSet(ids);
+  }
+
+  // Both add and remove run inside the map's per-key lock, so
+  // a set is never dropped while another thread adds to it
+  private void add(long packedPosition, String playerID) {
+    position2PlayerIds.compute(packedPosition, (key, ids) -> {
+      if (ids == null) { ids = ConcurrentHashMap.newKeySet(); }
+      ids.add(playerID);
+      return ids;
+    });
+  }
+
+  private void remove(long packedPosition, String playerID) {
+    // Drop the set when the room empties, so the index
+    // does not grow with every room ever visited
+    position2PlayerIds.computeIfPresent(packedPosition, (key, ids) -> {
+      ids.remove(playerID);
+      return ids.isEmpty() ? null : ids;
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "PlayerPresenceIndex (" + position2PlayerIds.size() + " occupied rooms)";
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Off-heap storage of text, like room descriptions and wall messages.
+ * Each text is stored UTF-8 encoded in a slot of large direct
+ * ByteBuffers outside the Java heap, so the garbage collector does not
+ * have to trace or copy it. A text is identified by a long handle; the
+ * string is only created again when the text is read.
+ * <p>
+ * A slot is prefixed by its capacity and the length of its text. A
+ * text that is replaced by one that fits the slot is overwritten in
+ * place; otherwise the slot is freed, and a freed slot is reused by
+ * the next text that fits it. Free slots are kept in lists by size
+ * class (powers of two), so finding one is a few array lookups.
+ * Note that the JVM limits direct memory by -XX:MaxDirectMemorySize.
+ * <p>
+ * Thread safe: texts are written under a lock, and a handle is only
+ * passed on after its text is written. The caller must ensure that
+ * no thread reads a text while it is replaced or freed, typically by
+ * guarding each handle by the lock of the record that holds it.
+ */
+public class TextArena {
+
+  /** Default size of each off-heap chunk */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  // Each slot starts with its capacity and the length of its text
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  // Capacities are multiples of this, so slots are easier to reuse
+  private static final int ALIGNMENT = 8;
+  private static final int SIZE_CLASSES = Integer.SIZE;
+
+  private final int chunkSize;
+  // Replaced, never modified, when a chunk is added, so
+  // readers need no lock
+  private volatile ByteBuffer[] chunks;
+  // Guarded by 'this'
+  private int writeOffset;
+  private long bytesUsed;
+  // Stacks of free slots; size class c holds slots whose
+  // capacity is in [2^c, 2^(c+1)). Guarded by 'this'
+  private final long[][] freeSlots;
+  private final int[] freeSlotCounts;
+
+  public TextArena() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Create an arena that allocates chunks of the given size.
+   *
+   * @param chunkSize the size in bytes of each chunk
+   */
+  public TextArena(int chunkSize) {
+    this.chunkSize = chunkSize;
+    chunks = new ByteBuffer[0];
+    writeOffset = 0;
+    bytesUsed = 0;
+    freeSlots = new long[SIZE_CLASSES][];
+    freeSlotCounts = new int[SIZE_CLASSES];
+  }
+
+  /**
+   * Store a text in the arena.
+   *
+   * @param text the text to store
+   * @return the handle of the text
+   */
+  public long put(String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    synchronized (this) {
+      long handle = allocate(bytes.length);
+      write(handle, bytes);
+      return handle;
+    }
+  }
+
+  /**
+   * Replace a stored text by another. The new text is written in the
+   * slot of the old one if it fits, otherwise the old slot is freed
+   * and the text is stored in another.
+   *
+   * @param handle the handle of the text to replace
+   * @param text   the new text
+   * @return the handle of the new text; the old handle must not be
+   * used afterwards
+   */
+  public long replace(long handle, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    synchronized (this) {
+      if (bytes.length > capacityOf(handle)) {
+        release(handle);
+        handle = allocate(bytes.length);
+      }
+      write(handle, bytes);
+      return handle;
+    }
+  }
+
+  /**
+   * Free the slot of a stored text, so it may be reused. The handle
+   * must not be used afterwards.
+   *
+   * @param handle the handle of the text
+   */
+  public synchronized void free(long handle) {
+    release(handle);
+  }
+
+  /**
+   * Read a text from the arena.
+   *
+   * @param handle the handle returned when the text was stored
+   * @return the text
+   */
+  public String get(long handle) {
+    ByteBuffer chunk = chunks[(int) (handle >>> 32)];
+    int offset = (int) handle;
+    byte[] bytes = new byte[chunk.getInt(offset + Integer.BYTES)];
+    chunk.get(offset + HEADER_SIZE, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the number of bytes in the slots of the stored texts; freed
+   * slots are not counted.
+   *
+   * @return the number of bytes used
+   */
+  public synchronized long getBytesUsed() {
+    return bytesUsed;
+  }
+
+  // Find a free slot of at least the given capacity, or cut a new
+  // one from the last chunk. Called holding the lock
+  private long allocate(int length) {
+    int capacity = Math.max(ALIGNMENT, (length + ALIGNMENT - 1) & -ALIGNMENT);
+    long handle = takeFreeSlot(capacity);
+    if (handle < 0) {
+      int needed = HEADER_SIZE + capacity;
+      ByteBuffer[] present = chunks;
+      if (present.length == 0 || writeOffset + needed > present[present.length - 1].capacity()) {
+        // Start a new chunk; a text larger than a chunk gets its own
+        present = Arrays.copyOf(present, present.length + 1);
+        present[present.length - 1] = ByteBuffer.allocateDirect(Math.max(chunkSize, needed));
+        chunks = present;
+        writeOffset = 0;
+      }
+      int chunkIndex = present.length - 1;
+      present[chunkIndex].putInt(writeOffset, capacity);
+      handle = ((long) chunkIndex << 32) | writeOffset;
+      writeOffset += needed;
+    }
+    bytesUsed += HEADER_SIZE + capacityOf(handle);
+    return handle;
+  }
+
+  // The slots of the capacity's own size class may be too small, so
+  // only the top one is tried; any slot of a larger class fits
+  private long takeFreeSlot(int capacity) {
+    for (int sizeClass = sizeClassOf(capacity); sizeClass < SIZE_CLASSES; sizeClass++) {
+      int count = freeSlotCounts[sizeClass];
+      if (count == 0) { continue; }
+      long handle = freeSlots[sizeClass][count - 1];
+      if (capacityOf(handle) < capacity) { continue; }
+      freeSlotCounts[sizeClass] = count - 1;
+      return handle;
+    }
+    return -1;
+  }
+
+  // Called holding the lock
+  private void release(long handle) {
+    int capacity = capacityOf(handle);
+    int sizeClass = sizeClassOf(capacity);
+    int count = freeSlotCounts[sizeClass];
+    long[] slots = freeSlots[sizeClass];
+    if (slots == null || count == slots.length) {
+      slots = Arrays.copyOf(slots == null ? new long[0] : slots, Math.max(16, 2 * count));
+      freeSlots[sizeClass] = slots;
+    }
+    slots[count] = handle;
+    freeSlotCounts[sizeClass] = count + 1;
+    bytesUsed -= HEADER_SIZE + capacity;
+  }
+
+  private void write(long handle, byte[] bytes) {
+    ByteBuffer chunk = chunks[(int) (handle >>> 32)];
+    int offset = (int) handle;
+    chunk.putInt(offset + Integer.BYTES, bytes.length);
+    chunk.put(offset + HEADER_SIZE, bytes);
+  }
+
+  private int capacityOf(long handle) {
+    return chunks[(int) (handle >>> 32)].getInt((int) handle);
+  }
+
+  private static int sizeClassOf(int capacity) {
+    return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(capacity);
+  }
+
+  @Override
+  public String toString() {
+    return "TextArena (" + chunks.length + " chunks, " + getBytesUsed() + " bytes used)";
+  }
+}
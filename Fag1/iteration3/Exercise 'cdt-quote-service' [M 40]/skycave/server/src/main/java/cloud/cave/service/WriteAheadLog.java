@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import cloud.cave.invoker.CaveIPCException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of lines, one file per generation, with group commit:
+ * callers append a line and get a sequence number back, and a single
+ * writer thread writes all lines pending at a time and forces them to
+ * disk with one fsync. Callers wait for their own sequence number to
+ * become durable, thus many concurrent mutations share each fsync.
+ * <p>
+ * 'rotate' closes the present file and continues in a new generation,
+ * so older generations can be deleted once a snapshot covers them.
+ */
+public class WriteAheadLog {
+
+  private static final String PREFIX = "wal-";
+  private static final String SUFFIX = ".log";
+
+  private final Logger logger;
+  private final Path directory;
+
+  // All below guarded by 'this'
+  private List<Object> pending;
+  private long lastSequence;
+  private long durableSequence;
+  private int nextGeneration;
+  private boolean closing;
+  private IOException failure;
+
+  private final Thread writer;
+  // Only touched by the writer thread
+  private FileChannel channel;
+
+  // Marker in the pending list, telling the writer to change file
+  private static class Rotation {
+    final int generation;
+    Rotation(int generation) { this.generation = generation; }
+  }
+
+  /**
+   * Open a new log, starting in the given generation.
+   *
+   * @param directory  the directory of the log files
+   * @param generation the generation of the first file; must not exist
+   * @throws IOException if the file cannot be created
+   */
+  public WriteAheadLog(Path directory, int generation) throws IOException {
+    logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    this.directory = directory;
+    pending = new ArrayList<>();
+    lastSequence = 0;
+    durableSequence = 0;
+    nextGeneration = generation + 1;
+    channel = open(generation);
+
+    writer = new Thread(this::writeLoop, "wal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Append a line to the log. It is NOT durable until awaitDurable
+   * returns for the sequence number.
+   *
+   * @param line the line, without line terminator
+   * @return the sequence number of the line
+   */
+  public synchronized long append(String line) {
+    if (closing) { throw new CaveIPCException("WriteAheadLog: Append to closed log", null); }
+    pending.add(line);
+    notifyAll();
+    return ++lastSequence;
+  }
+
+  /**
+   * Wait until the line with the given sequence number, and all
+   * before it, are forced to disk.
+   *
+   * @param sequence the sequence number returned by append
+   * @throws CaveIPCException if the log could not be written
+   */
+  public synchronized void awaitDurable(long sequence) {
+    boolean interrupted = false;
+    while (durableSequence < sequence && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) { Thread.currentThread().interrupt(); }
+    if (durableSequence < sequence) {
+      throw new CaveIPCException("WriteAheadLog: Writing to " + directory + " failed", failure);
+    }
+  }
+
+  /**
+   * Continue the log in a new file, once all lines appended so far
+   * are durable in the present one.
+   *
+   * @return the generation of the new file
+   */
+  public int rotate() {
+    long sequence;
+    int generation;
+    synchronized (this) {
+      if (closing) { throw new CaveIPCException("WriteAheadLog: Rotate of closed log", failure); }
+      generation = nextGeneration++;
+      pending.add(new Rotation(generation));
+      notifyAll();
+      sequence = ++lastSequence;
+    }
+    awaitDurable(sequence);
+    return generation;
+  }
+
+  /**
+   * Write all pending lines and stop the writer thread.
+   */
+  public void close() {
+    synchronized (this) {
+      closing = true;
+      notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        List<Object> batch;
+        long batchSequence;
+        synchronized (this) {
+          while (pending.isEmpty() && !closing) { wait(); }
+          if (pending.isEmpty()) { break; }
+          batch = pending;
+          pending = new ArrayList<>();
+          batchSequence = lastSequence;
+        }
+        writeBatch(batch);
+        synchronized (this) {
+          durableSequence = batchSequence;
+          notifyAll();
+        }
+      }
+      channel.close();
+    } catch (IOException e) {
+      logger.error("method=writeLoop, directory=" + directory + ", exception=" + e);
+      synchronized (this) {
+        failure = e;
+        closing = true;
+        notifyAll();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeBatch(List<Object> batch) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (Object item : batch) {
+      if (item instanceof Rotation) {
+        write(lines);
+        channel.force(false);
+        channel.close();
+        channel = open(((Rotation) item).generation);
+      } else {
+        lines.append((String) item).append('\n');
+      }
+    }
+    write(lines);
+    // The single fsync shared by all lines in the batch
+    channel.force(false);
+  }
+
+  private void write(StringBuilder lines) throws IOException {
+    if (lines.length() == 0) { return; }
+    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) { channel.write(buffer); }
+    lines.setLength(0);
+  }
+
+  private FileChannel open(int generation) throws IOException {
+    return FileChannel.open(pathOf(directory, generation),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Get the path of the log file of a generation.
+   *
+   * @param directory  the directory of the log files
+   * @param generation the generation
+   * @return the path
+   */
+  public static Path pathOf(Path directory, int generation) {
+    return directory.resolve(PREFIX + generation + SUFFIX);
+  }
+
+  /**
+   * Find the generation of a log file, given its name.
+   *
+   * @param fileName the name of the file
+   * @return the generation, or -1 if it is not a log file
+   */
+  public static int generationOf(String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) { return -1; }
+    try {
+      return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "WriteAheadLog (" + directory + ")";
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import cloud.cave.server.common.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Decorator of a CaveStorage that delays and coalesces the player
+ * record updates made while a player moves around in the cave. Only
+ * the latest record of each player is kept, and written to the storage
+ * when the flush interval has passed; a player taking ten steps in an
+ * interval thus costs one write instead of ten.
+ * <p>
+ * Updates that change the session of a player, i.e. login and logout,
+ * are written through at once, replacing any pending record, as
+ * other daemons rely on them. A disconnect flushes all pending records.
+ * <p>
+ * Reads through the decorator see the pending records, so a session
+ * always reads its own writes. Other daemons sharing the storage see
+ * positions that are at most one flush interval old.
+ */
+public class WriteBehindCaveStorage extends CaveStorageDecorator {
+
+  private final Logger logger;
+
+  // Latest record of each player, not yet written to the storage
+  private final ConcurrentMap<String, PlayerRecord> pending;
+  // Access token last written to the storage for each player in the cave
+  private final ConcurrentMap<String, String> writtenAccessToken;
+  // Serializes writes to the storage, so a flush cannot overwrite a
+  // logout written through at the same time
+  private final Object writeLock;
+
+  private final ScheduledExecutorService flushScheduler;
+
+  /**
+   * Decorate a storage with write-behind of player records.
+   *
+   * @param storage         the storage to decorate
+   * @param intervalMillis  milliseconds between flushes; 0 means only
+   *                        flushing explicitly and on disconnect
+   */
+  public WriteBehindCaveStorage(CaveStorage storage, long intervalMillis) {
+    super(storage);
+    logger = LoggerFactory.getLogger(WriteBehindCaveStorage.class);
+    pending = new ConcurrentHashMap<>();
+    writtenAccessToken = new ConcurrentHashMap<>();
+    writeLock = new Object();
+
+    if (intervalMillis > 0) {
+      flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "player-write-behind");
+        thread.setDaemon(true);
+        return thread;
+      });
+      flushScheduler.scheduleWithFixedDelay(this::flushAndLogFailure,
+          intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      flushScheduler = null;
+    }
+  }
+
+  @Override
+  public PlayerRecord getPlayerByID(String playerID) {
+    PlayerRecord record = pending.get(playerID);
+    if (record != null) { return new PlayerRecord(record); }
+    return storage.getPlayerByID(playerID);
+  }
+
+  @Override
+  public void updatePlayerRecord(PlayerRecord record) {
+    String playerID = record.getPlayerID();
+    if (record.isInCave()) {
+      PlayerRecord copy = new PlayerRecord(record);
+      boolean[] isQueued = new boolean[1];
+      // The check of the session and the put are atomic with respect
+      // to a login or logout of the player, which clears the written
+      // access token within a compute on the same key
+      pending.compute(playerID, (id, old) -> {
+        if (!record.getAccessToken().equals(writtenAccessToken.get(id))) { return old; }
+        // Same session as already stored, only the position may differ
+        isQueued[0] = true;
+        return copy;
+      });
+      if (isQueued[0]) { return; }
+    }
+    synchronized (writeLock) {
+      pending.compute(playerID, (id, old) -> {
+        writtenAccessToken.remove(id);
+        return null;
+      });
+      storage.updatePlayerRecord(record);
+      if (record.isInCave()) {
+        writtenAccessToken.put(playerID, record.getAccessToken());
+      }
+    }
+  }
+
+  @Override
+  public List<PlayerRecord> computeListOfPlayersAt(String positionString) {
+    return overlayPending(storage.computeListOfPlayersAt(positionString), positionString);
+  }
+
+  @Override
+  public RoomSnapshotRecord getRoomSnapshot(long packedPosition, int pageSize) {
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(packedPosition, pageSize);
+    if (pending.isEmpty() || packedPosition == PackedPosition.INVALID) { return snapshot; }
+    List<PlayerRecord> playersHere =
+        overlayPending(snapshot.getPlayersHere(), PackedPosition.toPositionString(packedPosition));
+    return new RoomSnapshotRecord(snapshot.getRoom(), snapshot.getExits(), playersHere, snapshot.getWallPage());
+  }
+
+  private List<PlayerRecord> overlayPending(List<PlayerRecord> stored, String positionString) {
+    if (pending.isEmpty()) { return stored; }
+    // Overlay the pending positions on those stored
+    List<PlayerRecord> result = new ArrayList<>();
+    for (PlayerRecord record : stored) {
+      if (!pending.containsKey(record.getPlayerID())) { result.add(record); }
+    }
+    for (PlayerRecord record : pending.values()) {
+      if (record.getPositionAsString().equals(positionString)) { result.add(new PlayerRecord(record)); }
+    }
+    return result;
+  }
+
+  /**
+   * Write all pending player records to the storage.
+   */
+  public void flush() {
+    synchronized (writeLock) {
+      for (Map.Entry<String, PlayerRecord> entry : pending.entrySet()) {
+        PlayerRecord record = entry.getValue();
+        storage.updatePlayerRecord(record);
+        // A newer record put meanwhile stays pending
+        pending.remove(entry.getKey(), record);
+      }
+    }
+  }
+
+  private void flushAndLogFailure() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      logger.error("method=flush, exception=" + e);
+    }
+  }
+
+  /**
+   * Get the number of player records not yet written to the storage.
+   *
+   * @return the number of pending records
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  @Override
+  public void disconnect() {
+    if (flushScheduler != null) { flushScheduler.shutdownNow(); }
+    flush();
+    storage.disconnect();
+  }
+
+  @Override
+  public String toString() {
+    return "WriteBehindCaveStorage (" + getPendingCount() + " pending) of " + storage;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service.wall;
+
+import java.util.*;
+
+import cloud.cave.service.TextArena;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The wall of a single room, as an append-only log of messages.
+ * <p>
+ * Messages are appended to fixed size segments, so posting never moves
+ * existing messages, and a full segment is simply followed by a new
+ * one. An index from message id to slot in the log makes updating a
+ * message a single lookup, and as the newest message is in the last
+ * slot, a page of the wall in newest-first order is read directly
+ * from its slots in O(pageSize).
+ * <p>
+ * Optionally, the contents of messages are kept in a TextArena off the
+ * heap, and the message records are only created when read. Updated
+ * contents replace the old ones in the arena.
+ * <p>
+ * NOT thread safe; the storage must guard each wall.
+ */
+public class WallLog {
+
+  private static final int SEGMENT_BITS = 8;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  private final List<MessageRecord[]> segments;
+  private final Map<String, Integer> id2Slot;
+  private int size;
+
+  // If set, the records in the slots have no contents; it is
+  // in the arena, at the handle in the same slot of 'handles'
+  private final TextArena arena;
+  private final List<long[]> handles;
+
+  /** Create a wall that keeps messages on the heap */
+  public WallLog() {
+    this(null);
+  }
+
+  /** Create a wall that keeps the contents of its
+   * messages in the given arena.
+   *
+   * @param arena the arena for message contents, or
+   *              null to keep them on the heap
+   */
+  public WallLog(TextArena arena) {
+    segments = new ArrayList<>();
+    id2Slot = new HashMap<>();
+    size = 0;
+    this.arena = arena;
+    handles = new ArrayList<>();
+  }
+
+  /**
+   * Append a message as the newest on the wall. The message must
+   * already have its unique id assigned.
+   *
+   * @param messageRecord the message to append
+   */
+  public void append(MessageRecord messageRecord) {
+    int slot = size;
+    if ((slot & (SEGMENT_SIZE - 1)) == 0) {
+      segments.add(new MessageRecord[SEGMENT_SIZE]);
+      if (arena != null) { handles.add(new long[SEGMENT_SIZE]); }
+    }
+    store(slot, messageRecord);
+    id2Slot.put(messageRecord.getId(), slot);
+    size++;
+  }
+
+  private void store(int slot, MessageRecord messageRecord) {
+    MessageRecord[] segment = segments.get(slot >> SEGMENT_BITS);
+    int index = slot & (SEGMENT_SIZE - 1);
+    MessageRecord stored = messageRecord;
+    if (arena != null) {
+      stored = new MessageRecord(messageRecord);
+      stored.setContents(null);
+      long[] segmentHandles = handles.get(slot >> SEGMENT_BITS);
+      // An occupied slot has its contents in the arena already;
+      // replace them, so the old text is overwritten or freed
+      segmentHandles[index] = segment[index] == null
+          ? arena.put(messageRecord.getContents())
+          : arena.replace(segmentHandles[index], messageRecord.getContents());
+    }
+    segment[index] = stored;
+  }
+
+  private MessageRecord load(int slot) {
+    MessageRecord stored = segments.get(slot >> SEGMENT_BITS)[slot & (SEGMENT_SIZE - 1)];
+    if (arena == null) { return stored; }
+    MessageRecord message = new MessageRecord(stored);
+    message.setContents(arena.get(handles.get(slot >> SEGMENT_BITS)[slot & (SEGMENT_SIZE - 1)]));
+    return message;
+  }
+
+  /**
+   * Overwrite the contents of an existing message, given that the
+   * creator of the new message is the same as the original one's.
+   *
+   * @param messageId        id of the message to update
+   * @param newMessageRecord message with the new contents and the id
+   *                         of the player requesting the update
+   * @return statusCode using the HTTP vocabulary: 200 OK, 404 NOT
+   * FOUND if there is no such message, or 401 UNAUTHORIZED if the
+   * message was created by someone else
+   */
+  public int update(String messageId, MessageRecord newMessageRecord) {
+    Integer slot = id2Slot.get(messageId);
+    // Bail out if no message with given id exists
+    if (slot == null) { return HttpServletResponse.SC_NOT_FOUND; }
+
+    MessageRecord match = segments.get(slot >> SEGMENT_BITS)[slot & (SEGMENT_SIZE - 1)];
+    // Bail out if the found message was not created by same person
+    if (! match.getCreatorId().equals(newMessageRecord.getCreatorId())) {
+      return HttpServletResponse.SC_UNAUTHORIZED;
+    }
+
+    // Update message and enter it back into its slot
+    MessageRecord updatedOne = new MessageRecord(match);
+    updatedOne.setContents(newMessageRecord.getContents());
+    store(slot, updatedOne);
+    return HttpServletResponse.SC_OK;
+  }
+
+  /**
+   * Put a message that has already been stored once back on the wall:
+   * it overwrites the message with the same id, or is appended as the
+   * newest if there is none. Used when loading a stored wall.
+   *
+   * @param messageRecord the message as it was stored
+   */
+  public void restore(MessageRecord messageRecord) {
+    Integer slot = id2Slot.get(messageRecord.getId());
+    if (slot == null) {
+      append(messageRecord);
+    } else {
+      store(slot, messageRecord);
+    }
+  }
+
+  /**
+   * Get the message with the given id.
+   *
+   * @param messageId id of the message
+   * @return the message, or null if there is none with that id
+   */
+  public MessageRecord get(String messageId) {
+    Integer slot = id2Slot.get(messageId);
+    if (slot == null) { return null; }
+    return load(slot);
+  }
+
+  /**
+   * Get a page of the wall, newest message first.
+   *
+   * @param startIndex index of the first message, 0 being the newest
+   * @param pageSize   maximal number of messages to return
+   * @return a new list of the messages on the page, empty if the
+   * start index is beyond the oldest message
+   */
+  public List<MessageRecord> getPage(int startIndex, int pageSize) {
+    int count = Math.max(0, Math.min(pageSize, size - startIndex));
+    List<MessageRecord> page = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int slot = size - 1 - startIndex - i;
+      page.add(load(slot));
+    }
+    return page;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "WallLog (" + size + " messages)";
+  }
+}
@@ -104,6 +104,21 @@ public class CommonPlayerTests {
     assertThat(exitSet, hasItem(Direction.EAST));
   }
 
+  public static void shouldProvideRoomSnapshot(Player player) {
+    player.addMessage("Snapshots are cheap");
+    RoomSnapshotDataTransferObject snapshot = player.getRoomSnapshot();
+    assertThat(snapshot.getPosition(), is("(0,0,0)"));
+    assertThat(snapshot.getShortRoomDescription(), is(player.getShortRoomDescription()));
+    assertThat(snapshot.getExitSet().size(), is(4));
+    assertThat(snapshot.getExitSet(), hasItem(Direction.UP));
+    assertThat(snapshot.getPlayersHere(), hasItem("Mikkel"));
+    assertThat(snapshot.getMessageList().size(), is(1));
+    assertThat(snapshot.getMessageList().get(0).getMessage(), containsString("Snapshots are cheap"));
+    // The long description agrees with the exits and players
+    assertThat(snapshot.getLongRoomDescription().get(3), containsString("UP"));
+    assertThat(snapshot.getLongRoomDescription().get(5), containsString("[0] Mikkel"));
+  }
+
   public static void shouldBeAtPositionOfLastLogout(Cave cave, Player player) {
     Point3 pos = new Point3(0, 0, 0);
     assertThat(player.getPosition(), is(pos.getPositionString()));
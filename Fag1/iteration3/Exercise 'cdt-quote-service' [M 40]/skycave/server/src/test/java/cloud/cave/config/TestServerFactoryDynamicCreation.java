@@ -23,6 +23,8 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import cloud.cave.server.PlayerNameService;
 import cloud.cave.service.quote.QuoteService;
+import cloud.cave.invoker.*;
+import frds.broker.Invoker;
 import frds.broker.ServerRequestHandler;
 
 import cloud.cave.common.*;
@@ -65,6 +67,19 @@ public class TestServerFactoryDynamicCreation {
     assertThat(config.get(0).getPortNumber(), is(27017));
   }
 
+  @Test
+  public void shouldDecorateCaveStorageWithCacheIfConfigured() {
+    envReader.setExpectation(Config.SKYCAVE_CAVESTORAGE + Config.CONNECTOR_SUFFIX,
+        "cloud.cave.doubles.FakeCaveStorage");
+    envReader.setExpectation(Config.SKYCAVE_CAVESTORAGE + Config.SERVER_ADDRESS_SUFFIX,
+        "192.168.237.130:27017");
+    envReader.setExpectation(Config.SKYCAVE_CAVESTORAGE_CACHE_SIZE, "1000");
+    CaveStorage storage = factory.createCaveStorageConnector(null);
+    assertThat(storage, instanceOf(CachingCaveStorage.class));
+    assertThat(storage.toString(), containsString("FakeCaveStorage"));
+    assertThat(storage.getConfiguration().get(0).getPortNumber(), is(27017));
+  }
+
   @Test
   public void shouldCreateProperSubscriptionInstances() {
     envReader.setExpectation(Config.SKYCAVE_SUBSCRIPTIONSERVICE + Config.CONNECTOR_SUFFIX,
@@ -108,6 +123,26 @@ public class TestServerFactoryDynamicCreation {
     ServerRequestHandler srh = factory.createServerRequestHandler(objMgr);
     assertThat(srh.toString(), containsString("frds.broker.ipc.socket.SocketServerRequestHandler"));
     assertThat(srh.toString(), containsString("37126"));
+
+    envReader.setExpectation(Config.SKYCAVE_SERVERREQUESTHANDLER_IMPLEMENTATION,
+        "cloud.cave.invoker.VirtualThreadUriTunnelServerRequestHandler");
+    srh = factory.createServerRequestHandler(objMgr);
+    assertThat(srh.toString(), containsString("VirtualThreadUriTunnelServerRequestHandler, port 37126"));
+  }
+
+  @Test
+  public void shouldCreateInvokerOfConfiguredMarshallingFormat() {
+    ObjectManager objMgr = new NullObjectManager();
+    envReader.setExpectation(Config.SKYCAVE_MARSHALLING_FORMAT, "");
+    Invoker invoker = factory.createInvoker(objMgr);
+    assertThat(invoker.getClass().getName(), is(SkyCaveRootInvoker.class.getName()));
+
+    envReader.setExpectation(Config.SKYCAVE_MARSHALLING_FORMAT, Config.MARSHALLING_FORMAT_BINARY);
+    invoker = factory.createInvoker(objMgr);
+    assertThat(invoker.getClass().getName(), is(BinarySkyCaveRootInvoker.class.getName()));
+
+    envReader.setExpectation(Config.SKYCAVE_MARSHALLING_FORMAT, "xml");
+    assertThrows(CaveConfigurationNotSetException.class, () -> factory.createInvoker(objMgr));
   }
 
   @Test
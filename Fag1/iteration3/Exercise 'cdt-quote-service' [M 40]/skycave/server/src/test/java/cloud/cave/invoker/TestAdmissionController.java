@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.net.*;
+import java.net.http.*;
+import java.util.*;
+
+import cloud.cave.common.*;
+import cloud.cave.doubles.TestConstants;
+import com.google.gson.*;
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing the adaptive admission control of requests.
+ */
+public class TestAdmissionController {
+
+  private static final long ONE_MS = 1000000L;
+
+  private List<AdmissionController.Permit> acquireAll(AdmissionController controller,
+                                                      AdmissionController.Priority priority) {
+    List<AdmissionController.Permit> permits = new ArrayList<>();
+    AdmissionController.Permit permit;
+    while ((permit = controller.tryAcquire(priority)) != null) { permits.add(permit); }
+    return permits;
+  }
+
+  @Test
+  public void shouldClassifyOperations() {
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.GET_POSITION_METHOD_KEY),
+        is(AdmissionController.Priority.HIGH));
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.MOVE_METHOD_KEY),
+        is(AdmissionController.Priority.NORMAL));
+    // Read the storage on every call
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.GET_EXITSET_METHOD_KEY),
+        is(AdmissionController.Priority.NORMAL));
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY),
+        is(AdmissionController.Priority.NORMAL));
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.LOGIN_METHOD_KEY),
+        is(AdmissionController.Priority.NORMAL));
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.EXECUTE_METHOD_KEY),
+        is(AdmissionController.Priority.LOW));
+    assertThat(AdmissionController.priorityOf(MarshallingKeys.DIG_ROOM_METHOD_KEY),
+        is(AdmissionController.Priority.LOW));
+  }
+
+  @Test
+  public void shouldReservePartOfLimitForCheapOperations() {
+    AdmissionController controller = new AdmissionController(8, 4, 8);
+    assertThat(acquireAll(controller, AdmissionController.Priority.LOW).size(), is(6));
+    assertThat(acquireAll(controller, AdmissionController.Priority.NORMAL).size(), is(1));
+    List<AdmissionController.Permit> high = acquireAll(controller, AdmissionController.Priority.HIGH);
+    assertThat(high.size(), is(1));
+    assertThat(controller.getInFlight(), is(8));
+
+    high.get(0).release();
+    // Releasing twice does not free another slot
+    high.get(0).release();
+    assertThat(controller.getInFlight(), is(7));
+    assertThat(controller.tryAcquire(AdmissionController.Priority.LOW), is(nullValue()));
+    assertThat(controller.tryAcquire(AdmissionController.Priority.HIGH), is(notNullValue()));
+  }
+
+  @Test
+  public void shouldAdaptLimitToLatency() {
+    AdmissionController controller = new AdmissionController(20, 4, 100);
+    // An idle server does not grow its limit
+    for (int i = 0; i < 200; i++) { controller.onSample(ONE_MS, 2); }
+    assertThat(controller.getLimit(), is(20));
+
+    // A busy server with steady latency probes for more capacity
+    for (int i = 0; i < 200; i++) { controller.onSample(ONE_MS, controller.getLimit()); }
+    assertThat(controller.getLimit(), is(100));
+
+    // Requests are queueing, so the limit is cut
+    for (int i = 0; i < 50; i++) { controller.onSample(10 * ONE_MS, controller.getLimit()); }
+    assertThat(controller.getLimit(), is(lessThan(10)));
+
+    // and it recovers when the latency drops
+    for (int i = 0; i < 300; i++) { controller.onSample(ONE_MS, controller.getLimit()); }
+    assertThat(controller.getLimit(), is(100));
+  }
+
+  @Test
+  public void shouldRejectWithRetryAfterWhenOverloaded() {
+    SkyCaveRootInvoker invoker = new SkyCaveRootInvoker(CommonCaveTests.createTestDoubledConfiguredCave());
+    AdmissionController controller = new AdmissionController(4, 4, 4);
+    invoker.setAdmissionController(controller);
+    Gson gson = new Gson();
+
+    String stringPayloadLogin = gson.toJson(new RequestObject("none", MarshallingKeys.LOGIN_METHOD_KEY,
+        gson.toJson(new String[] { TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD })));
+    JsonObject embeddedLogin = new JsonObject();
+    embeddedLogin.addProperty(Marshalling.OPERATION_NAME_KEY, MarshallingKeys.LOGIN_METHOD_KEY);
+    embeddedLogin.addProperty(Marshalling.OBJECT_ID_KEY, "none");
+    embeddedLogin.addProperty(Marshalling.VERSION_IDENTITY_KEY, Marshalling.MARSHALING_VERSION);
+    embeddedLogin.add(Marshalling.ARGUMENTS_KEY,
+        gson.toJsonTree(new String[] { TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD }));
+
+    List<AdmissionController.Permit> permits = acquireAll(controller, AdmissionController.Priority.HIGH);
+    assertThat(permits.size(), is(4));
+
+    ReplyObject reply = gson.fromJson(invoker.handleRequest(stringPayloadLogin), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+    assertThat(reply.errorDescription(), containsString("Retry-After: 1"));
+
+    JsonObject embeddedReply = JsonParser.parseString(invoker.handleRequest(gson.toJson(embeddedLogin)))
+        .getAsJsonObject();
+    assertThat(embeddedReply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt(),
+        is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+    assertThat(embeddedReply.get(Marshalling.RETRY_AFTER_KEY).getAsInt(),
+        is(AdmissionController.RETRY_AFTER_SECONDS));
+    // The two requests, and the last attempt of acquireAll
+    assertThat(controller.getRejectedCount(), is(3L));
+
+    // Admitted requests release their permit when done
+    permits.forEach(AdmissionController.Permit::release);
+    embeddedReply = JsonParser.parseString(invoker.handleRequest(gson.toJson(embeddedLogin)))
+        .getAsJsonObject();
+    assertThat(embeddedReply.get(Marshalling.RESPONSE_CODE_KEY).getAsInt(), is(HttpServletResponse.SC_OK));
+    assertThat(embeddedReply.has(Marshalling.RETRY_AFTER_KEY), is(false));
+    assertThat(controller.getInFlight(), is(0));
+  }
+
+  @Test
+  public void shouldAnswerRejectionsWithHttpStatusAndRetryAfter() throws Exception {
+    SkyCaveRootInvoker invoker = new SkyCaveRootInvoker(CommonCaveTests.createTestDoubledConfiguredCave());
+    AdmissionController controller = new AdmissionController(4, 4, 4);
+    invoker.setAdmissionController(controller);
+    Gson gson = new Gson();
+    String login = gson.toJson(new RequestObject("none", MarshallingKeys.LOGIN_METHOD_KEY,
+        gson.toJson(new String[] { TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD })));
+
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) { port = socket.getLocalPort(); }
+    VirtualThreadUriTunnelServerRequestHandler srh = new VirtualThreadUriTunnelServerRequestHandler();
+    srh.setPortAndInvoker(port, invoker);
+    srh.start();
+    try {
+      HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+      HttpRequest request = HttpRequest.newBuilder(
+          URI.create("http://localhost:" + port + VirtualThreadUriTunnelServerRequestHandler.TUNNEL_PATH))
+          .POST(HttpRequest.BodyPublishers.ofString(login)).build();
+
+      List<AdmissionController.Permit> permits = acquireAll(controller, AdmissionController.Priority.HIGH);
+      HttpResponse<String> rejected = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+      assertThat(rejected.statusCode(), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+      assertThat(rejected.headers().firstValue(Marshalling.RETRY_AFTER_HEADER).orElse(null),
+          is(Integer.toString(AdmissionController.RETRY_AFTER_SECONDS)));
+      ReplyObject reply = gson.fromJson(rejected.body(), ReplyObject.class);
+      assertThat(Marshalling.parseRetryAfterSeconds(reply.errorDescription()),
+          is(AdmissionController.RETRY_AFTER_SECONDS));
+
+      permits.forEach(AdmissionController.Permit::release);
+      HttpResponse<String> admitted = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+      assertThat(admitted.statusCode(), is(HttpServletResponse.SC_OK));
+      assertThat(admitted.headers().firstValue(Marshalling.RETRY_AFTER_HEADER).isPresent(), is(false));
+    } finally {
+      srh.stop();
+    }
+  }
+}
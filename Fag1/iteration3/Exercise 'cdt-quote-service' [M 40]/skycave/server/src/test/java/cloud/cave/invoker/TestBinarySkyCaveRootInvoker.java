@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.*;
+
+import cloud.cave.common.*;
+import cloud.cave.domain.Direction;
+import cloud.cave.doubles.TestConstants;
+import com.google.gson.*;
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing the binary marshalling format and its root invoker.
+ */
+public class TestBinarySkyCaveRootInvoker {
+
+  private Invoker invoker;
+  private Gson gson;
+
+  @BeforeEach
+  public void setup() {
+    invoker = new BinarySkyCaveRootInvoker(CommonCaveTests.createTestDoubledConfiguredCave());
+    gson = new Gson();
+  }
+
+  private JsonArray arguments(Object... argument) {
+    return gson.toJsonTree(argument).getAsJsonArray();
+  }
+
+  @Test
+  public void shouldRoundTripValuesAndOperations() {
+    JsonObject object = new JsonObject();
+    object.addProperty("small", -3);
+    object.addProperty("large", Long.MAX_VALUE);
+    object.addProperty("fraction", 0.25);
+    object.addProperty("text", "Blåbærgrød");
+    object.add("nothing", JsonNull.INSTANCE);
+    JsonArray args = arguments(true, "NORTH", 42);
+    args.add(object);
+
+    String marshalled = BinaryMarshalling.marshallRequest(MarshallingKeys.MOVE_METHOD_KEY, "id##token", args);
+    assertThat(BinaryMarshalling.isBinary(marshalled), is(true));
+    BinaryMarshalling.Request request = BinaryMarshalling.demarshallRequest(marshalled);
+    assertThat(request.getOperationName(), is(MarshallingKeys.MOVE_METHOD_KEY));
+    assertThat(request.getObjectId(), is("id##token"));
+    assertThat(request.getArguments(), is(args));
+
+    // Operations without an id travel by name
+    marshalled = BinaryMarshalling.marshallRequest("player-fly", null, arguments());
+    request = BinaryMarshalling.demarshallRequest(marshalled);
+    assertThat(request.getOperationName(), is("player-fly"));
+    assertThat(request.getObjectId(), is(nullValue()));
+  }
+
+  @Test
+  public void shouldBeMoreCompactThanJson() {
+    String binary = BinaryMarshalling.marshallRequest(MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+        "user-001##4b33b8a3-1c1f-4c4b-a4b8-1f5ab0e2e0f3", arguments());
+    String json = gson.toJson(new RequestObject("user-001##4b33b8a3-1c1f-4c4b-a4b8-1f5ab0e2e0f3",
+        MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, "[]"));
+    assertThat(binary.length() < json.length() / 2, is(true));
+  }
+
+  // The base64 encoding costs a third on top of the bytes, thus
+  // compare a session of typical calls, requests and replies, with
+  // the embedded JSON format the binary format falls back to
+  @Test
+  public void shouldBeMoreCompactThanEmbeddedJsonDespiteBase64() {
+    int binary = playSession(new BinarySkyCaveRootInvoker(CommonCaveTests.createTestDoubledConfiguredCave()), true);
+    int embeddedJson = playSession(new BinarySkyCaveRootInvoker(CommonCaveTests.createTestDoubledConfiguredCave()), false);
+    assertThat(binary < embeddedJson * 3 / 4, is(true));
+  }
+
+  // Play a session in one of the formats, and answer the total length
+  // of the requests and replies
+  private int playSession(Invoker invoker, boolean isBinary) {
+    int[] total = new int[1];
+    String id = playerObjectId(invoker, isBinary, total);
+    List<Object[]> calls = List.of(
+        new Object[] { MarshallingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY },
+        new Object[] { MarshallingKeys.GET_EXITSET_METHOD_KEY },
+        new Object[] { MarshallingKeys.MOVE_METHOD_KEY, Direction.NORTH },
+        new Object[] { MarshallingKeys.GET_ROOM_SNAPSHOT_METHOD_KEY },
+        new Object[] { MarshallingKeys.ADD_MESSAGE_METHOD_KEY, "Here be dragons" },
+        new Object[] { MarshallingKeys.GET_MESSAGE_LIST_METHOD_KEY, 0 },
+        new Object[] { MarshallingKeys.GET_POSITION_METHOD_KEY });
+    for (Object[] operation : calls) {
+      send(invoker, isBinary, id, (String) operation[0],
+          Arrays.copyOfRange(operation, 1, operation.length), total);
+    }
+    return total[0];
+  }
+
+  private String playerObjectId(Invoker invoker, boolean isBinary, int[] total) {
+    JsonElement result = send(invoker, isBinary, "none", MarshallingKeys.LOGIN_METHOD_KEY,
+        new Object[] { TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD }, total);
+    PlayerDataTransferObject dto = gson.fromJson(result, PlayerDataTransferObject.class);
+    return Marshalling.manglePlayerIDAndAccessToken(dto.getPlayerId(), dto.getAccessToken());
+  }
+
+  private JsonElement send(Invoker invoker, boolean isBinary, String objectId, String operationName,
+                           Object[] argument, int[] total) {
+    String request;
+    if (isBinary) {
+      request = BinaryMarshalling.marshallRequest(operationName, objectId, arguments(argument));
+    } else {
+      JsonObject json = new JsonObject();
+      json.addProperty(Marshalling.OPERATION_NAME_KEY, operationName);
+      json.addProperty(Marshalling.OBJECT_ID_KEY, objectId);
+      json.addProperty(Marshalling.VERSION_IDENTITY_KEY, Marshalling.MARSHALING_VERSION);
+      json.add(Marshalling.ARGUMENTS_KEY, arguments(argument));
+      request = gson.toJson(json);
+    }
+    String reply = invoker.handleRequest(request);
+    total[0] += request.length() + reply.length();
+    JsonElement result;
+    int statusCode;
+    if (isBinary) {
+      BinaryMarshalling.Reply binaryReply = BinaryMarshalling.demarshallReply(reply);
+      statusCode = binaryReply.getStatusCode();
+      result = binaryReply.getResult();
+    } else {
+      JsonObject json = JsonParser.parseString(reply).getAsJsonObject();
+      statusCode = json.get(Marshalling.RESPONSE_CODE_KEY).getAsInt();
+      result = json.get(Marshalling.RESULT_KEY);
+    }
+    assertThat(operationName, statusCode, is(HttpServletResponse.SC_OK));
+    return result;
+  }
+
+  @Test
+  public void shouldHandleBinaryLogin() {
+    String request = BinaryMarshalling.marshallRequest(MarshallingKeys.LOGIN_METHOD_KEY, "none",
+        arguments(TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD));
+    BinaryMarshalling.Reply reply = BinaryMarshalling.demarshallReply(invoker.handleRequest(request));
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_OK));
+    PlayerDataTransferObject dto = gson.fromJson(reply.getResult(), PlayerDataTransferObject.class);
+    assertThat(dto.getPlayerName(), is("Mikkel"));
+
+    // Failures carry the error description
+    request = BinaryMarshalling.marshallRequest("player-fly", "id##token", arguments());
+    reply = BinaryMarshalling.demarshallReply(invoker.handleRequest(request));
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    assertThat(reply.getErrorDescription(), containsString("method key 'player-fly' is unknown"));
+  }
+
+  @Test
+  public void shouldServeJsonRequestsToo() {
+    RequestObject request = new RequestObject("none", MarshallingKeys.LOGIN_METHOD_KEY,
+        gson.toJson(new String[] { TestConstants.MIKKEL_AARSKORT, TestConstants.MIKKEL_PASSWORD }));
+    ReplyObject reply = gson.fromJson(invoker.handleRequest(gson.toJson(request)), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_OK));
+
+    // Garbage is answered as an ill formed JSON request
+    reply = gson.fromJson(invoker.handleRequest("garbage"), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+  }
+
+  // A get-position request with the given encoded arguments
+  private String requestWithArguments(byte[] arguments) {
+    byte[] header = { BinaryMarshalling.BINARY_MARSHALING_VERSION, 7, 2, 'x' };
+    byte[] message = Arrays.copyOf(header, header.length + arguments.length);
+    System.arraycopy(arguments, 0, message, header.length, arguments.length);
+    return Base64.getEncoder().encodeToString(message);
+  }
+
+  @Test
+  public void shouldRejectUntrustedSizesAndNesting() {
+    // An array claiming Integer.MAX_VALUE elements
+    String huge = requestWithArguments(new byte[] { 7, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7 });
+    assertThrows(IllegalArgumentException.class, () -> BinaryMarshalling.demarshallRequest(huge));
+
+    // Arrays nested far deeper than any request
+    byte[] nested = new byte[2 * 10000];
+    for (int i = 0; i < nested.length; i += 2) {
+      nested[i] = 7;
+      nested[i + 1] = 1;
+    }
+    String deep = requestWithArguments(nested);
+    assertThrows(IllegalArgumentException.class, () -> BinaryMarshalling.demarshallRequest(deep));
+
+    // A string value that is null
+    String nullString = requestWithArguments(new byte[] { 7, 1, 6, 0 });
+    assertThrows(IllegalArgumentException.class, () -> BinaryMarshalling.demarshallRequest(nullString));
+
+    // All are answered as ill formed requests, in binary, so the
+    // client does not take them for a server without the format
+    for (String request : Arrays.asList(huge, deep, nullString)) {
+      String reply = invoker.handleRequest(request);
+      assertThat(BinaryMarshalling.isOfThisVersion(reply), is(true));
+      assertThat(BinaryMarshalling.demarshallReply(reply).getStatusCode(),
+          is(HttpServletResponse.SC_BAD_REQUEST));
+    }
+  }
+}
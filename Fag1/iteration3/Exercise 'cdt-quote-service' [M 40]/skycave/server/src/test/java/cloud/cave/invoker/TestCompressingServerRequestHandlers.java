@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import cloud.cave.common.HttpCompression;
+import frds.broker.Invoker;
+import frds.broker.ServerRequestHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Testing the server side of the gzip negotiation of the HTTP tunnel,
+ * on both the Spark and the JDK server request handlers: compressed
+ * requests are inflated, large replies are compressed for clients
+ * that accept it, and requests that are malformed or inflate beyond
+ * the limit never reach the invoker.
+ */
+public class TestCompressingServerRequestHandlers {
+
+  private static final int THRESHOLD = 100;
+  private static final String TUNNEL_PATH = "/tunnel";
+
+  private AtomicInteger invocations;
+  private Invoker echo;
+  private HttpClient httpClient;
+
+  @BeforeEach
+  public void setUp() {
+    invocations = new AtomicInteger();
+    echo = request -> {
+      invocations.incrementAndGet();
+      return "echo:" + request;
+    };
+    httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+  }
+
+  @Test
+  public void shouldNegotiateCompressionOnSparkTunnel() throws Exception {
+    CaveUriTunnelServerRequestHandler srh = new CaveUriTunnelServerRequestHandler();
+    srh.setCompressionThreshold(THRESHOLD);
+    try {
+      assertNegotiatesCompression(srh);
+    } finally {
+      srh.stop();
+      spark.Spark.awaitStop();
+    }
+  }
+
+  @Test
+  public void shouldNegotiateCompressionOnJdkTunnel() throws Exception {
+    VirtualThreadUriTunnelServerRequestHandler srh = new VirtualThreadUriTunnelServerRequestHandler();
+    srh.setCompressionThreshold(THRESHOLD);
+    try {
+      assertNegotiatesCompression(srh);
+    } finally {
+      srh.stop();
+    }
+  }
+
+  private void assertNegotiatesCompression(ServerRequestHandler srh) throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) { port = socket.getLocalPort(); }
+    srh.setPortAndInvoker(port, echo);
+    srh.start();
+    URI tunnel = URI.create("http://localhost:" + port + TUNNEL_PATH);
+
+    // A small reply is sent raw, but tells that gzip is accepted
+    HttpResponse<byte[]> reply = post(tunnel, "small".getBytes(StandardCharsets.UTF_8), false);
+    assertThat(reply.statusCode(), is(HttpServletResponse.SC_OK));
+    assertThat(reply.headers().firstValue(HttpCompression.CONTENT_ENCODING).isPresent(), is(false));
+    assertThat(reply.headers().firstValue(HttpCompression.ACCEPT_ENCODING).orElse(null),
+        is(HttpCompression.GZIP));
+    assertThat(new String(reply.body(), StandardCharsets.UTF_8), is("echo:small"));
+
+    // A large request is inflated, and its large reply compressed
+    String large = "x".repeat(THRESHOLD * 10);
+    reply = post(tunnel, HttpCompression.gzip(large), true);
+    assertThat(reply.statusCode(), is(HttpServletResponse.SC_OK));
+    assertThat(reply.headers().firstValue(HttpCompression.CONTENT_ENCODING).orElse(null),
+        is(HttpCompression.GZIP));
+    assertThat(HttpCompression.gunzip(reply.body()), is("echo:" + large));
+    assertThat(invocations.get(), is(2));
+
+    // Neither a malformed request nor a gzip bomb is invoked
+    reply = post(tunnel, "not gzip".getBytes(StandardCharsets.UTF_8), true);
+    assertThat(reply.statusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    reply = post(tunnel, gzipBomb(), true);
+    assertThat(reply.statusCode(), is(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE));
+    assertThat(invocations.get(), is(2));
+  }
+
+  private HttpResponse<byte[]> post(URI tunnel, byte[] body, boolean isCompressed) throws Exception {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(tunnel)
+        .header(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP)
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+    if (isCompressed) { builder.header(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP); }
+    return httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  // Some kilobytes, inflating to just beyond the limit
+  private byte[] gzipBomb() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      byte[] zeros = new byte[64 * 1024];
+      for (long written = 0; written <= HttpCompression.MAX_INFLATED_LENGTH; written += zeros.length) {
+        out.write(zeros);
+      }
+    }
+    assertThat(compressed.size() < 64 * 1024, is(true));
+    return compressed.toByteArray();
+  }
+}
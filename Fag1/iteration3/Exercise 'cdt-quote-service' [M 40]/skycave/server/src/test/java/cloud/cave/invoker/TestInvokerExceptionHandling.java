@@ -73,6 +73,17 @@ public class TestInvokerExceptionHandling {
     assertThat(reply.errorDescription(),
             containsString("Unhandled request, method key 'weird_method' is unknown"));
 
+    // When method key has the player prefix but is unknown
+    request = new RequestObject("fisk##thingy",
+            MarshallingKeys.PLAYER_TYPE_PREFIX + "fly", "[]");
+    asJson = gson.toJson(request);
+    replyAsJson = invoker.handleRequest(asJson);
+    reply = gson.fromJson(replyAsJson, ReplyObject.class);
+    // Then a reply with error code BAD REQUEST
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    assertThat(reply.errorDescription(),
+            containsString("method key 'player-fly' is unknown"));
+
     // When request is not a request object
     replyAsJson = invoker.handleRequest("Mokka er en fin kat");
     reply = gson.fromJson(replyAsJson, ReplyObject.class);
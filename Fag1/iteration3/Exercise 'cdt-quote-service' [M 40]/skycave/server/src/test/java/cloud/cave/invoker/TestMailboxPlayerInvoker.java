@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.cave.common.*;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.TestConstants;
+import cloud.cave.server.PlayerNameService;
+import com.google.gson.Gson;
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing the mailbox execution model of player operations.
+ */
+public class TestMailboxPlayerInvoker {
+
+  private ObjectManager objMgr;
+  private MailboxPlayerInvoker playerInvoker;
+  private Invoker invoker;
+  private Gson gson;
+  private Player p1, p2;
+  private ExecutorService clients;
+
+  @BeforeEach
+  public void setup() {
+    objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+    playerInvoker = new MailboxPlayerInvoker(objMgr, 4, 3);
+    invoker = new SkyCaveRootInvoker(objMgr, playerInvoker);
+    gson = new Gson();
+    p1 = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MAGNUS_AARSKORT);
+    p2 = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MATHILDE_AARSKORT);
+    clients = Executors.newFixedThreadPool(8);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    clients.shutdownNow();
+    playerInvoker.shutdown();
+  }
+
+  // Replace the player in the name service by one that runs the
+  // probe before each 'getPosition'
+  private void probe(Player player, Runnable beforeGetPosition) {
+    PlayerNameService nameService = objMgr.getPlayerNameService();
+    Player servant = nameService.get(player.getID());
+    Player probe = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(),
+        new Class<?>[] { Player.class }, (proxy, method, args) -> {
+          if (method.getName().equals("getPosition")) { beforeGetPosition.run(); }
+          try {
+            return method.invoke(servant, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+    nameService.add(player.getID(), probe);
+  }
+
+  private ReplyObject send(Player player, String accessToken, String operationName, String payload) {
+    RequestObject request = new RequestObject(
+        Marshalling.manglePlayerIDAndAccessToken(player.getID(), accessToken), operationName, payload);
+    return gson.fromJson(invoker.handleRequest(gson.toJson(request)), ReplyObject.class);
+  }
+
+  private int getPosition(Player player) {
+    return send(player, player.getAccessToken(), MarshallingKeys.GET_POSITION_METHOD_KEY, "[]").getStatusCode();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void shouldExecuteOnMailboxThreads() {
+    List<String> threadNames = new ArrayList<>();
+    probe(p1, () -> threadNames.add(Thread.currentThread().getName()));
+
+    ReplyObject reply = send(p1, p1.getAccessToken(), MarshallingKeys.MOVE_METHOD_KEY, "[\"NORTH\"]");
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_OK));
+    reply = send(p1, p1.getAccessToken(), MarshallingKeys.GET_POSITION_METHOD_KEY, "[]");
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_OK));
+    assertThat(reply.getPayload(), containsString("(0,1,0)"));
+    assertThat(threadNames, is(Arrays.asList("player-mailbox")));
+
+    // Sessions are validated in the mailbox
+    reply = send(p1, "old-session", MarshallingKeys.GET_POSITION_METHOD_KEY, "[]");
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_UNAUTHORIZED));
+    // Malformed arguments are reported as by the PlayerInvoker
+    reply = send(p1, p1.getAccessToken(), MarshallingKeys.GET_QUOTE_METHOD_KEY, "[\"x\"]");
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+  }
+
+  @Test
+  public void shouldExecuteRequestsForSamePlayerOneAtATime() throws Exception {
+    AtomicInteger active1 = new AtomicInteger(), max1 = new AtomicInteger();
+    probe(p1, () -> {
+      max1.accumulateAndGet(active1.incrementAndGet(), Math::max);
+      Thread.yield();
+      active1.decrementAndGet();
+    });
+    List<Future<Integer>> statuses = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      statuses.add(clients.submit(() -> {
+        // Stay within the quota of the mailbox
+        while (playerInvoker.getQueuedCount(p1.getID()) >= 3) { Thread.yield(); }
+        return getPosition(p1);
+      }));
+    }
+    for (Future<Integer> status : statuses) {
+      assertThat(status.get(10, TimeUnit.SECONDS), anyOf(is(HttpServletResponse.SC_OK),
+          is(MailboxPlayerInvoker.SC_TOO_MANY_REQUESTS)));
+    }
+    assertThat(max1.get(), is(1));
+  }
+
+  @Test
+  public void shouldCoalesceQueuedReadsAndRejectOverCapacity() throws Exception {
+    CountDownLatch inside = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+    probe(p1, () -> {
+      if (calls.incrementAndGet() == 1) {
+        inside.countDown();
+        await(release);
+      }
+    });
+
+    // The first request blocks the mailbox, the next three are queued
+    List<Future<Integer>> statuses = new ArrayList<>();
+    statuses.add(clients.submit(() -> getPosition(p1)));
+    await(inside);
+    for (int i = 0; i < 3; i++) {
+      statuses.add(clients.submit(() -> getPosition(p1)));
+    }
+    for (int i = 0; i < 500 && playerInvoker.getQueuedCount(p1.getID()) < 3; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(playerInvoker.getQueuedCount(p1.getID()), is(3));
+
+    // The quota of the player is exhausted
+    assertThat(getPosition(p1), is(MailboxPlayerInvoker.SC_TOO_MANY_REQUESTS));
+    // but not that of other players
+    assertThat(getPosition(p2), is(HttpServletResponse.SC_OK));
+
+    release.countDown();
+    for (Future<Integer> status : statuses) {
+      assertThat(status.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+    }
+    // The three queued reads were executed once
+    assertThat(calls.get(), is(2));
+  }
+
+  @Test
+  public void shouldRemoveMailboxOfLoggedOutPlayer() throws Exception {
+    CountDownLatch inside = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    probe(p1, () -> {
+      inside.countDown();
+      await(release);
+    });
+    assertThat(getPosition(p2), is(HttpServletResponse.SC_OK));
+
+    // The player logs out while its request executes
+    Future<Integer> status = clients.submit(() -> getPosition(p1));
+    await(inside);
+    assertThat(playerInvoker.getMailboxCount(), is(2));
+    objMgr.getCave().logout(p1.getID());
+    release.countDown();
+
+    assertThat(status.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+    // Removed by the mailbox thread, once its turn ends
+    for (int i = 0; i < 500 && playerInvoker.getMailboxCount() > 1; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(playerInvoker.getMailboxCount(), is(1));
+  }
+
+  @Test
+  public void shouldExecuteRequestsOfEarlierSessionFirst() throws Exception {
+    CountDownLatch inside = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    probe(p1, () -> {
+      inside.countDown();
+      await(release);
+    });
+    Future<Integer> oldSession = clients.submit(() -> getPosition(p1));
+    await(inside);
+
+    // The player logs in again while the request of the old session
+    // executes; the new session waits for it in the same mailbox
+    Player again = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MAGNUS_AARSKORT);
+    Future<Integer> newSession = clients.submit(() -> getPosition(again));
+    Thread.sleep(100);
+    assertThat(newSession.isDone(), is(false));
+    assertThat(playerInvoker.getMailboxCount(), is(1));
+
+    release.countDown();
+    assertThat(newSession.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+    assertThat(oldSession.isDone(), is(true));
+  }
+
+  @Test
+  public void shouldSweepMailboxesOfPlayersNoLongerLoggedIn() {
+    // Many short sessions, each ended after its single request
+    PlayerNameService nameService = objMgr.getPlayerNameService();
+    Player servant = nameService.get(p2.getID());
+    for (int i = 0; i < 500; i++) {
+      String playerID = "player-" + i;
+      nameService.add(playerID, servant);
+      RequestObject request = new RequestObject(
+          Marshalling.manglePlayerIDAndAccessToken(playerID, p2.getAccessToken()),
+          MarshallingKeys.GET_POSITION_METHOD_KEY, "[]");
+      ReplyObject reply = gson.fromJson(invoker.handleRequest(gson.toJson(request)), ReplyObject.class);
+      assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_OK));
+      nameService.remove(playerID);
+    }
+    assertThat(playerInvoker.getMailboxCount() <= 64, is(true));
+  }
+
+  @Test
+  public void shouldCompleteRequestsOfFailingOperations() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    probe(p1, () -> {
+      if (calls.incrementAndGet() == 1) { throw new AssertionError("Failing in the mailbox"); }
+    });
+
+    Future<Integer> status = clients.submit(() -> getPosition(p1));
+    ExecutionException failure = null;
+    try {
+      status.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      failure = e;
+    }
+    assertThat(failure.getCause() instanceof CaveIPCException, is(true));
+    // The mailbox keeps serving the player
+    assertThat(getPosition(p1), is(HttpServletResponse.SC_OK));
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import cloud.cave.common.SocketFraming;
+import com.google.gson.Gson;
+import frds.broker.ReplyObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Testing the selector based socket server request handler, with
+ * framed and line based connections.
+ */
+public class TestNioSocketServerRequestHandler {
+
+  private NioSocketServerRequestHandler srh;
+  private int port;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    srh = new NioSocketServerRequestHandler();
+    srh.setWorkerCount(4);
+    srh.setPortAndInvoker(port, request -> {
+      if (request.equals("fail")) { throw new IllegalStateException("Invoker failure"); }
+      return request.startsWith("repeat ")
+          ? "x".repeat(Integer.parseInt(request.substring(7))) : "echo:" + request;
+    });
+    srh.start();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    srh.stop();
+  }
+
+  private Socket connect() throws IOException {
+    return new Socket(InetAddress.getLoopbackAddress(), port);
+  }
+
+  @Test
+  public void shouldServeFramesOnPersistentConnection() throws IOException {
+    try (Socket socket = connect()) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      SocketFraming.writeFrame(out, "request 1");
+      assertThat(SocketFraming.readFrame(in), is("echo:request 1"));
+      // Frames may hold line breaks
+      SocketFraming.writeFrame(out, "two\nlines");
+      assertThat(SocketFraming.readFrame(in), is("echo:two\nlines"));
+      // Replies larger than the pooled buffers
+      SocketFraming.writeFrame(out, "repeat 100000");
+      assertThat(SocketFraming.readFrame(in).length(), is(100000));
+    }
+  }
+
+  @Test
+  public void shouldAnswerPipelinedFramesInOrder() throws IOException {
+    try (Socket socket = connect()) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      for (int i = 0; i < 50; i++) {
+        SocketFraming.writeFrame(out, "request " + i);
+      }
+      out.flush();
+      for (int i = 0; i < 50; i++) {
+        assertThat(SocketFraming.readFrame(in), is("echo:request " + i));
+      }
+    }
+  }
+
+  @Test
+  public void shouldServeLineBasedClients() throws IOException {
+    try (Socket socket = connect();
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+      out.println("{\"request\":1}");
+      assertThat(in.readLine(), is("echo:{\"request\":1}"));
+      out.println("{\"request\":2}");
+      assertThat(in.readLine(), is("echo:{\"request\":2}"));
+    }
+  }
+
+  @Test
+  public void shouldKeepManyIdleConnections() throws Exception {
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      for (int i = 0; i < 200; i++) {
+        sockets.add(connect());
+      }
+      awaitConnectionCount(200);
+      // The last one is still served among all the idle ones
+      Socket last = sockets.get(199);
+      SocketFraming.writeFrame(new DataOutputStream(last.getOutputStream()), "hello");
+      assertThat(SocketFraming.readFrame(new DataInputStream(last.getInputStream())), is("echo:hello"));
+    } finally {
+      for (Socket socket : sockets) { socket.close(); }
+    }
+    awaitConnectionCount(0);
+  }
+
+  @Test
+  public void shouldAnswerInvokerFailureAndServeRequestsBehindIt() throws Exception {
+    try (Socket socket = connect()) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      SocketFraming.writeFrame(out, "request 1");
+      SocketFraming.writeFrame(out, "fail");
+      SocketFraming.writeFrame(out, "request 2");
+      out.flush();
+      assertThat(SocketFraming.readFrame(in), is("echo:request 1"));
+      ReplyObject failure = new Gson().fromJson(SocketFraming.readFrame(in), ReplyObject.class);
+      assertThat(failure.getStatusCode(), is(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+      assertThat(failure.errorDescription(), containsString("Invoker failure"));
+      assertThat(SocketFraming.readFrame(in), is("echo:request 2"));
+    }
+    awaitConnectionCount(0);
+  }
+
+  private void awaitConnectionCount(int expected) throws InterruptedException {
+    for (int i = 0; i < 500 && srh.getConnectionCount() != expected; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(srh.getConnectionCount(), is(expected));
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import cloud.cave.common.*;
+import cloud.cave.config.ObjectManager;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.TestConstants;
+import cloud.cave.server.ConcurrentNameService;
+import cloud.cave.server.PlayerNameService;
+import com.google.gson.Gson;
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing that requests for the same player are serialized,
+ * while requests for different players run in parallel.
+ */
+public class TestPlayerRequestSerialization {
+
+  private ObjectManager objMgr;
+  private PlayerInvoker playerInvoker;
+  private Invoker invoker;
+  private Gson gson;
+  private Player p1, p2;
+
+  @BeforeEach
+  public void setup() {
+    objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+    playerInvoker = new PlayerInvoker(objMgr);
+    invoker = new SkyCaveRootInvoker(objMgr, playerInvoker);
+    gson = new Gson();
+    p1 = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MAGNUS_AARSKORT);
+    p2 = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MATHILDE_AARSKORT);
+  }
+
+  // Replace the player in the name service by one that runs the
+  // probe before each 'getPosition'
+  private void probe(Player player, Runnable beforeGetPosition) {
+    PlayerNameService nameService = objMgr.getPlayerNameService();
+    Player servant = nameService.get(player.getID());
+    Player probe = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(),
+        new Class<?>[] { Player.class }, (proxy, method, args) -> {
+          if (method.getName().equals("getPosition")) { beforeGetPosition.run(); }
+          try {
+            return method.invoke(servant, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+    nameService.add(player.getID(), probe);
+  }
+
+  private int getPosition(Player player) {
+    RequestObject request = new RequestObject(
+        Marshalling.manglePlayerIDAndAccessToken(player.getID(), player.getAccessToken()),
+        MarshallingKeys.GET_POSITION_METHOD_KEY, "[]");
+    ReplyObject reply = gson.fromJson(invoker.handleRequest(gson.toJson(request)), ReplyObject.class);
+    return reply.getStatusCode();
+  }
+
+  private Runnable overlapCounter(AtomicInteger active, AtomicInteger maxActive) {
+    return () -> {
+      maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      active.decrementAndGet();
+    };
+  }
+
+  @Test
+  public void shouldSerializeRequestsForSamePlayer() throws Exception {
+    AtomicInteger active1 = new AtomicInteger(), max1 = new AtomicInteger();
+    AtomicInteger active2 = new AtomicInteger(), max2 = new AtomicInteger();
+    probe(p1, overlapCounter(active1, max1));
+    probe(p2, overlapCounter(active2, max2));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Integer>> statuses = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        Player player = i % 2 == 0 ? p1 : p2;
+        statuses.add(executor.submit(() -> getPosition(player)));
+      }
+      for (Future<Integer> status : statuses) {
+        assertThat(status.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(max1.get(), is(1));
+    assertThat(max2.get(), is(1));
+    // The locks are only kept while requests are in progress
+    assertThat(playerInvoker.getPlayerLockCount(), is(0));
+  }
+
+  @Test
+  public void shouldSerializeOldAndNewPlayerObjectOfSamePlayer() throws Exception {
+    // The first request waits inside the old player object until released
+    CountDownLatch firstInside = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean firstDone = new AtomicBoolean();
+    probe(p1, () -> {
+      if (firstInside.getCount() == 0) { return; }
+      firstInside.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      firstDone.set(true);
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Integer> first = executor.submit(() -> getPosition(p1));
+      assertThat(firstInside.await(5, TimeUnit.SECONDS), is(true));
+
+      // A new player object for the same player, as after a new login
+      CountDownLatch secondInside = new CountDownLatch(1);
+      boolean[] sawFirstDone = new boolean[1];
+      probe(p1, () -> {
+        sawFirstDone[0] = firstDone.get();
+        secondInside.countDown();
+      });
+      Future<Integer> second = executor.submit(() -> getPosition(p1));
+      assertThat(secondInside.await(200, TimeUnit.MILLISECONDS), is(false));
+
+      release.countDown();
+      assertThat(first.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+      assertThat(second.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+      assertThat(sawFirstDone[0], is(true));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldRunDifferentPlayersInParallel() throws Exception {
+    // p1's request waits inside its player until p2's request gets
+    // inside its own, which would never happen with a global lock
+    CountDownLatch p1Inside = new CountDownLatch(1);
+    CountDownLatch p2Inside = new CountDownLatch(1);
+    boolean[] sawP2 = new boolean[1];
+    probe(p1, () -> {
+      p1Inside.countDown();
+      try {
+        sawP2[0] = p2Inside.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    probe(p2, p2Inside::countDown);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> p1Status = executor.submit(() -> getPosition(p1));
+      assertThat(p1Inside.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(getPosition(p2), is(HttpServletResponse.SC_OK));
+      assertThat(p1Status.get(10, TimeUnit.SECONDS), is(HttpServletResponse.SC_OK));
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(sawP2[0], is(true));
+  }
+
+  @Test
+  public void shouldAddAndRemovePlayersConcurrently() throws Exception {
+    ConcurrentNameService nameService = new ConcurrentNameService();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < 1000; i++) {
+        String id = "player" + i;
+        results.add(executor.submit(() -> {
+          nameService.add(id, p1);
+          assertThat(nameService.get(id), is(p1));
+          if (id.endsWith("0")) { nameService.remove(id); }
+        }));
+      }
+      for (Future<?> result : results) { result.get(10, TimeUnit.SECONDS); }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(nameService.toString(), is("ConcurrentNameService (900 players)"));
+    assertThat(nameService.get("player10"), is(nullValue()));
+    assertThat(nameService.get("player11"), is(p1));
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.invoker;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.gson.Gson;
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import frds.broker.ServerRequestHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Testing that the thread per request server request handlers serve
+ * many requests blocked in the invoker at the same time.
+ */
+public class TestVirtualThreadServerRequestHandlers {
+
+  // More than any fixed pool of the daemon would have
+  private static final int BLOCKED_REQUESTS = 300;
+
+  private ServerRequestHandler srh;
+  private CountDownLatch allInside;
+  // Blocks each request until all are inside the invoker at once
+  private Invoker blockingEcho;
+
+  @BeforeEach
+  public void setUp() {
+    allInside = new CountDownLatch(BLOCKED_REQUESTS);
+    blockingEcho = request -> {
+      allInside.countDown();
+      try {
+        allInside.await(20, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "echo:" + request + (allInside.getCount() == 0 ? "" : " (timed out)");
+    };
+  }
+
+  @AfterEach
+  public void tearDown() {
+    if (srh != null) { srh.stop(); }
+  }
+
+  private int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @Test
+  public void shouldServeManyBlockedSocketRequests() throws Exception {
+    int port = freePort();
+    srh = new VirtualThreadSocketServerRequestHandler();
+    srh.setPortAndInvoker(port, blockingEcho);
+    srh.start();
+
+    ExecutorService clients = Executors.newFixedThreadPool(BLOCKED_REQUESTS);
+    List<Future<String>> replies = new ArrayList<>();
+    for (int i = 0; i < BLOCKED_REQUESTS; i++) {
+      String request = "request " + i;
+      replies.add(clients.submit(() -> sendOnSocket(port, request)));
+    }
+    for (int i = 0; i < BLOCKED_REQUESTS; i++) {
+      assertThat(replies.get(i).get(30, TimeUnit.SECONDS), is("echo:request " + i));
+    }
+    clients.shutdown();
+  }
+
+  @Test
+  public void shouldKeepSocketConnectionsOpen() throws Exception {
+    int port = freePort();
+    srh = new VirtualThreadSocketServerRequestHandler();
+    srh.setPortAndInvoker(port, request -> "echo:" + request);
+    srh.start();
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+      for (int i = 0; i < 3; i++) {
+        out.println("request " + i);
+        assertThat(in.readLine(), is("echo:request " + i));
+      }
+    }
+  }
+
+  @Test
+  public void shouldAnswerInvokerFailureOnSocketAndGoOn() throws Exception {
+    int port = freePort();
+    srh = new VirtualThreadSocketServerRequestHandler();
+    srh.setPortAndInvoker(port, request -> {
+      if (request.equals("fail")) { throw new IllegalStateException("Invoker failure"); }
+      return "echo:" + request;
+    });
+    srh.start();
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+      // Pipelined; the request behind the failing one is not lost
+      out.println("fail");
+      out.println("request");
+      ReplyObject failure = new Gson().fromJson(in.readLine(), ReplyObject.class);
+      assertThat(failure.getStatusCode(), is(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+      assertThat(in.readLine(), is("echo:request"));
+    }
+  }
+
+  @Test
+  public void shouldServeManyBlockedHttpRequests() throws Exception {
+    int port = freePort();
+    srh = new VirtualThreadUriTunnelServerRequestHandler();
+    srh.setPortAndInvoker(port, blockingEcho);
+    srh.start();
+
+    HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    URI tunnel = URI.create("http://localhost:" + port + VirtualThreadUriTunnelServerRequestHandler.TUNNEL_PATH);
+    List<CompletableFuture<HttpResponse<String>>> replies = new ArrayList<>();
+    for (int i = 0; i < BLOCKED_REQUESTS; i++) {
+      HttpRequest request = HttpRequest.newBuilder(tunnel)
+          .POST(HttpRequest.BodyPublishers.ofString("request " + i)).build();
+      replies.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+    }
+    for (int i = 0; i < BLOCKED_REQUESTS; i++) {
+      HttpResponse<String> reply = replies.get(i).get(30, TimeUnit.SECONDS);
+      assertThat(reply.statusCode(), is(200));
+      assertThat(reply.body(), is("echo:request " + i));
+    }
+
+    HttpResponse<String> get = httpClient.send(HttpRequest.newBuilder(tunnel).GET().build(),
+        HttpResponse.BodyHandlers.ofString());
+    assertThat(get.statusCode(), is(405));
+  }
+
+  private String sendOnSocket(int port, String request) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+      out.println(request);
+      return in.readLine();
+    }
+  }
+}
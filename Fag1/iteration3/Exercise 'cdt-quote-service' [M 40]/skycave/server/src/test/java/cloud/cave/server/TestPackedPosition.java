@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.server;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.PackedPosition;
+import cloud.cave.server.common.Point3;
+import cloud.cave.service.PackedPositionMap;
+import org.junit.jupiter.api.Test;
+
+/** TDD of the packed position encoding and the
+ * map keyed by it.
+ */
+public class TestPackedPosition {
+
+  @Test
+  public void shouldPackAndUnpackCoordinates() {
+    long p = PackedPosition.pack(-1, 7, -1048576);
+    assertThat(PackedPosition.x(p), is(-1));
+    assertThat(PackedPosition.y(p), is(7));
+    assertThat(PackedPosition.z(p), is(-1048576));
+    // valid positions are never negative
+    assertThat(p >= 0, is(true));
+  }
+
+  @Test
+  public void shouldConvertBetweenStringAndPacked() {
+    long p = PackedPosition.parse("(12,-3,0)");
+    assertThat(p, is(PackedPosition.pack(12, -3, 0)));
+    assertThat(PackedPosition.toPositionString(p), is("(12,-3,0)"));
+    assertThat(PackedPosition.toPositionString(p),
+        is(new Point3(12, -3, 0).getPositionString()));
+  }
+
+  @Test
+  public void shouldRejectMalformedPositionStrings() {
+    assertThat(PackedPosition.parse("(1,2)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(1,2,3,4)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(1, 2,3)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(a,2,3)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(-,2,3)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("1,2,3"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(9999999,0,0)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(1048576,0,0)"), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.parse("(-1048576,0,0)"),
+        is(PackedPosition.pack(-1048576, 0, 0)));
+  }
+
+  @Test
+  public void shouldComputeNeighborsLikePoint3() {
+    long p = PackedPosition.pack(0, 0, 0);
+    for (Direction d : Direction.values()) {
+      Point3 expected = Point3.ORIGIN.neighbor(d);
+      assertThat(PackedPosition.toPositionString(PackedPosition.neighbor(p, d)),
+          is(expected.getPositionString()));
+    }
+  }
+
+  @Test
+  public void shouldStoreAndGrowPackedPositionMap() {
+    PackedPositionMap<String> map = new PackedPositionMap<>();
+    for (int x = -20; x < 20; x++) {
+      for (int y = -20; y < 20; y++) {
+        map.put(PackedPosition.pack(x, y, 0), x + ":" + y);
+      }
+    }
+    assertThat(map.size(), is(1600));
+    assertThat(map.get(PackedPosition.pack(-20, 19, 0)), is("-20:19"));
+    assertThat(map.get(PackedPosition.pack(0, 0, 1)), is(nullValue()));
+    assertThat(map.containsKey(PackedPosition.pack(3, 4, 0)), is(true));
+
+    assertThat(map.put(PackedPosition.pack(3, 4, 0), "replaced"), is("3:4"));
+    assertThat(map.get(PackedPosition.pack(3, 4, 0)), is("replaced"));
+    assertThat(map.size(), is(1600));
+  }
+
+  @Test
+  public void shouldHaveNoNeighborsBeyondTheEdge() {
+    long edge = PackedPosition.pack(PackedPosition.MAX_COORDINATE, 0, PackedPosition.MIN_COORDINATE);
+    assertThat(PackedPosition.neighbor(edge, Direction.EAST), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.neighbor(edge, Direction.DOWN), is(PackedPosition.INVALID));
+    assertThat(PackedPosition.neighbor(edge, Direction.WEST),
+        is(PackedPosition.pack(PackedPosition.MAX_COORDINATE - 1, 0, PackedPosition.MIN_COORDINATE)));
+    assertThat(PackedPosition.neighbor(PackedPosition.INVALID, Direction.NORTH),
+        is(PackedPosition.INVALID));
+  }
+}
@@ -26,6 +26,7 @@ import cloud.cave.doubles.TestConstants;
 
 import cloud.cave.common.*;
 import cloud.cave.domain.*;
+import cloud.cave.server.common.PlayerRecord;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -189,6 +190,11 @@ public class TestPlayerServant {
 
 
 
+  @Test
+  public void shouldProvideRoomSnapshot() {
+    CommonPlayerTests.shouldProvideRoomSnapshot(player);
+  }
+
   // Positions of players are stored across logins
   @Test
   public void shouldBeAtPositionOfLastLogout() {
@@ -229,4 +235,49 @@ public class TestPlayerServant {
     assertThat(player.toString(), containsString("ID='user-001'"));
     assertThat(player.toString(), containsString("region=AARHUS"));
   }
+
+  @Test
+  public void shouldNotMoveOrDigBeyondTheEdgeOfTheCave() {
+    ObjectManager objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+    Player edgePlayer = loginAt(objMgr, "(1048575,0,0)");
+    assertThat(edgePlayer.move(Direction.EAST), is(UpdateResult.FAIL_AS_NOT_FOUND));
+    assertThat(edgePlayer.digRoom(Direction.EAST, "Beyond the edge."),
+        is(UpdateResult.FAIL_AS_INVALID_POSITION));
+    assertThat(edgePlayer.getPosition(), is("(1048575,0,0)"));
+    // but digging inwards is fine
+    assertThat(edgePlayer.digRoom(Direction.WEST, "Near the edge."), is(UpdateResult.UPDATE_OK));
+    assertThat(edgePlayer.move(Direction.WEST), is(UpdateResult.UPDATE_OK));
+  }
+
+  @Test
+  public void shouldNotMoveFromAnInvalidPosition() {
+    ObjectManager objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+    Player lostPlayer = loginAt(objMgr, "(lost)");
+    assertThat(lostPlayer.move(Direction.NORTH), is(UpdateResult.FAIL_AS_NOT_FOUND));
+    assertThat(lostPlayer.digRoom(Direction.NORTH, "Nowhere."),
+        is(UpdateResult.FAIL_AS_INVALID_POSITION));
+  }
+
+  @Test
+  public void shouldTellThereIsNoRoomInSnapshot() {
+    ObjectManager objMgr = CommonCaveTests.createTestDoubledConfiguredCave();
+    for (String position : List.of("(7,7,7)", "(lost)")) {
+      RoomSnapshotDataTransferObject snapshot = loginAt(objMgr, position).getRoomSnapshot();
+      assertThat(snapshot.hasRoom(), is(false));
+      assertThat(snapshot.getPosition(), is(position));
+      assertThat(snapshot.getShortRoomDescription(), is(nullValue()));
+      assertThat(snapshot.getLongRoomDescription().isEmpty(), is(true));
+      assertThat(snapshot.getExitSet().isEmpty(), is(true));
+    }
+    assertThat(player.getRoomSnapshot().hasRoom(), is(true));
+  }
+
+  // Log in a player whose stored position is the given one
+  private Player loginAt(ObjectManager objMgr, String position) {
+    Player first = HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MAGNUS_AARSKORT);
+    PlayerRecord record = objMgr.getCaveStorage().getPlayerByID(first.getID());
+    record.setPositionAsString(position);
+    objMgr.getCaveStorage().updatePlayerRecord(record);
+    return HelperMethods.loginPlayer(objMgr.getCave(), TestConstants.MAGNUS_AARSKORT);
+  }
 }
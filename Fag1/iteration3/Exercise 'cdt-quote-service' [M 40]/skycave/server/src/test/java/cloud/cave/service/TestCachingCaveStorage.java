@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.time.ZonedDateTime;
+
+import cloud.cave.domain.*;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.server.common.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing that the caching decorator serves repeated
+ * reads from its caches, and never serves a record that
+ * was changed through it.
+ */
+public class TestCachingCaveStorage {
+
+  private FakeCaveStorage storage;
+  private CachingCaveStorage cache;
+  private ZonedDateTime now;
+
+  private String p000 = Point3.ORIGIN.getPositionString();
+  private String p273 = Point3.of(2, 7, 3).getPositionString();
+  private SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+
+  @BeforeEach
+  public void setUp() {
+    storage = new FakeCaveStorage();
+    storage.initialize(null, null);
+    now = ZonedDateTime.now();
+    cache = new CachingCaveStorage(storage, 3, 10, () -> now);
+  }
+
+  @Test
+  public void shouldServeRepeatedReadsFromCache() {
+    assertThat(cache.getRoom(p000).getDescription(), containsString("end of a road"));
+    assertThat(cache.getRoom(p000).getDescription(), containsString("end of a road"));
+    assertThat(cache.getRoomCache().getMisses(), is(1L));
+    assertThat(cache.getRoomCache().getHits(), is(1L));
+
+    // A change made behind the back of the cache is not seen...
+    storage.updateRoom(p000, new RoomRecord("Changed.", CaveStorage.WILL_CROWTHER_ID));
+    assertThat(cache.getRoom(p000).getDescription(), containsString("end of a road"));
+    // ... until the entry expires
+    now = now.plusSeconds(11);
+    assertThat(cache.getRoom(p000).getDescription(), is("Changed."));
+  }
+
+  @Test
+  public void shouldInvalidateOnWrites() {
+    cache.getRoom(p000);
+    cache.updateRoom(p000, new RoomRecord("Changed.", CaveStorage.WILL_CROWTHER_ID));
+    assertThat(cache.getRoom(p000).getDescription(), is("Changed."));
+
+    cache.updatePlayerRecord(new PlayerRecord(sub, p000));
+    assertThat(cache.getPlayerByID("id02").getPositionAsString(), is(p000));
+    cache.updatePlayerRecord(new PlayerRecord(sub, p273));
+    assertThat(cache.getPlayerByID("id02").getPositionAsString(), is(p273));
+  }
+
+  @Test
+  public void shouldInvalidateExitsOfNeighborsOnNewRoom() {
+    String p100 = Point3.of(1, 0, 0).getPositionString();
+    assertThat(cache.getSetOfExitsFromRoom(p100).contains(Direction.NORTH), is(false));
+    cache.getSetOfExitsFromRoom(p100);
+    assertThat(cache.getExitCache().getHits(), is(1L));
+
+    cache.addRoom(Point3.of(1, 1, 0).getPositionString(), new RoomRecord("North of east.", "id02"));
+    assertThat(cache.getSetOfExitsFromRoom(p100).contains(Direction.NORTH), is(true));
+  }
+
+  @Test
+  public void shouldNotShareCachedRecords() {
+    cache.getRoom(p000).setDescription("Hacked.");
+    assertThat(cache.getRoom(p000).getDescription(), containsString("end of a road"));
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() {
+    cache.getRoom(p000);
+    cache.getRoom(Point3.of(0, 1, 0).getPositionString());
+    cache.getRoom(Point3.of(1, 0, 0).getPositionString());
+    // Touch the origin, making (0,1,0) the least recently used
+    cache.getRoom(p000);
+    cache.getRoom(Point3.of(-1, 0, 0).getPositionString());
+    assertThat(cache.getRoomCache().size(), is(3));
+
+    long misses = cache.getRoomCache().getMisses();
+    cache.getRoom(p000);
+    assertThat(cache.getRoomCache().getMisses(), is(misses));
+    cache.getRoom(Point3.of(0, 1, 0).getPositionString());
+    assertThat(cache.getRoomCache().getMisses(), is(misses + 1));
+  }
+
+  @Test
+  public void shouldReadSnapshotThroughCachingAndWriteBehind() {
+    ConcurrentCaveStorage concurrent = new ConcurrentCaveStorage();
+    concurrent.initialize(null, null);
+    WriteBehindCaveStorage writeBehind = new WriteBehindCaveStorage(concurrent, 0);
+    cache = new CachingCaveStorage(writeBehind, 3, 10, () -> now);
+    long packed000 = PackedPosition.parse(p000);
+    long packed010 = PackedPosition.parse(Point3.of(0, 1, 0).getPositionString());
+
+    // Log in at the origin, which is written through, then move north,
+    // which stays pending in the write behind
+    sub.setAccessToken("token-1");
+    cache.updatePlayerRecord(new PlayerRecord(sub, p000));
+    PlayerRecord moved = cache.getPlayerByID("id02");
+    moved.setPositionAsString(Point3.of(0, 1, 0).getPositionString());
+    cache.updatePlayerRecord(moved);
+    assertThat(writeBehind.getPendingCount(), is(1));
+
+    RoomSnapshotRecord snapshot = cache.getRoomSnapshot(packed000, 1);
+    assertThat(snapshot.getRoom().getDescription(), containsString("end of a road"));
+    assertThat(snapshot.getExits().size(), is(4));
+    assertThat(snapshot.getPlayersHere().size(), is(0));
+    snapshot = cache.getRoomSnapshot(packed010, 1);
+    assertThat(snapshot.getPlayersHere().size(), is(1));
+    assertThat(snapshot.getPlayersHere().get(0).getPlayerName(), is("Tutmosis"));
+
+    // The snapshot refreshed the cached room, without decoding it again
+    assertThat(cache.hasRoom(packed000), is(true));
+    assertThat(cache.getRoom(p000).getDescription(), containsString("end of a road"));
+    assertThat(cache.getRoomCache().getMisses(), is(0L));
+
+    // A room changed through the cache is seen by the next snapshot
+    cache.updateRoom(p000, new RoomRecord("Changed.", CaveStorage.WILL_CROWTHER_ID));
+    assertThat(cache.getRoomSnapshot(packed000, 1).getRoom().getDescription(), is("Changed."));
+    assertThat(cache.getRoom(p000).getDescription(), is("Changed."));
+  }
+
+  @Test
+  public void shouldAddRoomsAtTheEdgeOfTheCave() {
+    String edge = Point3.of(PackedPosition.MAX_COORDINATE, 0, PackedPosition.MIN_COORDINATE).getPositionString();
+    assertThat(cache.addRoom(edge, new RoomRecord("At the edge.", "Edgar")), is(HttpServletResponse.SC_CREATED));
+    assertThat(cache.getRoom(edge).getDescription(), is("At the edge."));
+  }
+}
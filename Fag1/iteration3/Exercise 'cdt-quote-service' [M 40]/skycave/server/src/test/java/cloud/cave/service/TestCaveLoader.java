@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import cloud.cave.server.common.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing the bulk loading of a cave definition file.
+ */
+public class TestCaveLoader {
+
+  private static final int CUBE_SIZE = 10;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void shouldLoadCubeOfRoomsInParallelBatches() throws Exception {
+    List<String> lines = new ArrayList<>();
+    lines.add("# A cube of rooms below the origin");
+    for (int x = 0; x < CUBE_SIZE; x++) {
+      for (int y = 0; y < CUBE_SIZE; y++) {
+        for (int z = -1; z >= -CUBE_SIZE; z--) {
+          lines.add(Point3.of(x, y, z).getPositionString() + "\tArneID\tA cellar at depth " + z);
+        }
+      }
+    }
+    lines.add("");
+    lines.add("(0,0,0)\tBlackHat\tThe origin, again.");
+    lines.add("This line is malformed");
+    Path file = directory.resolve("cube.txt");
+    Files.write(file, lines, StandardCharsets.UTF_8);
+
+    ConcurrentCaveStorage storage = new ConcurrentCaveStorage();
+    storage.initialize(null, null);
+    CaveLoader loader = new CaveLoader(storage, 4, 64);
+
+    Map<Integer, Integer> statusCount = loader.load(file);
+    assertThat(statusCount.get(HttpServletResponse.SC_CREATED), is(1000));
+    assertThat(statusCount.get(HttpServletResponse.SC_FORBIDDEN), is(1));
+    assertThat(statusCount.get(HttpServletResponse.SC_BAD_REQUEST), is(1));
+
+    assertThat(storage.toString(), is("ConcurrentCaveStorage (1005 rooms. 0 players)"));
+    assertThat(storage.getRoom(Point3.of(5, 5, -5).getPositionString()).getDescription(),
+        is("A cellar at depth -5"));
+    // An inner room of the cube has all six exits
+    assertThat(storage.getSetOfExitsFromRoom(Point3.of(5, 5, -5).getPositionString()).size(), is(6));
+  }
+
+  @Test
+  public void shouldRejectPositionGivenTwiceInOneBatch() throws Exception {
+    List<String> lines = Arrays.asList(
+        "(0,0,-1)\tArneID\tA damp cellar.",
+        "(0,0,-1)\tBlackHat\tThe damp cellar, overwritten.",
+        "(0,0,-2)\tArneID\tA deeper cellar.");
+    Path file = directory.resolve("twice.txt");
+    Files.write(file, lines, StandardCharsets.UTF_8);
+
+    ConcurrentCaveStorage storage = new ConcurrentCaveStorage();
+    storage.initialize(null, null);
+    CaveLoader loader = new CaveLoader(storage, 1, 64);
+
+    Map<Integer, Integer> statusCount = loader.load(file);
+    assertThat(statusCount.get(HttpServletResponse.SC_CREATED), is(2));
+    assertThat(statusCount.get(HttpServletResponse.SC_FORBIDDEN), is(1));
+    // The first line wins, as it would have over separate batches
+    assertThat(storage.getRoom("(0,0,-1)").getDescription(), is("A damp cellar."));
+  }
+
+  @Test
+  public void shouldRejectPositionGivenAgainInLaterBatch() throws Exception {
+    List<String> lines = new ArrayList<>();
+    lines.add("(0,0,-1)\tArneID\tA damp cellar.");
+    for (int z = -2; z > -40; z--) {
+      lines.add(Point3.of(0, 0, z).getPositionString() + "\tArneID\tA cellar at depth " + z);
+    }
+    // Many batches behind the first, which may be added before it
+    lines.add("(0,0,-1)\tBlackHat\tThe damp cellar, overwritten.");
+    lines.add("(0,0,-01)\tBlackHat\tThe damp cellar, overwritten again.");
+    Path file = directory.resolve("later.txt");
+    Files.write(file, lines, StandardCharsets.UTF_8);
+
+    ConcurrentCaveStorage storage = new ConcurrentCaveStorage();
+    storage.initialize(null, null);
+    CaveLoader loader = new CaveLoader(storage, 4, 2);
+
+    Map<Integer, Integer> statusCount = loader.load(file);
+    assertThat(statusCount.get(HttpServletResponse.SC_CREATED), is(39));
+    assertThat(statusCount.get(HttpServletResponse.SC_FORBIDDEN), is(2));
+    assertThat(storage.getRoom("(0,0,-1)").getDescription(), is("A damp cellar."));
+  }
+}
@@ -27,6 +27,7 @@ import cloud.cave.common.ServerConfiguration;
 import cloud.cave.domain.*;
 import cloud.cave.doubles.*;
 import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -157,6 +158,47 @@ public class TestCaveStorage {
         or(is(id2)));
   }
 
+  @Test
+  public void shouldOnlyListPlayersInCaveAtPosition() {
+    addPlayerRecordToStorageForSubscription(sub1);
+    addPlayerRecordToStorageForSubscription(sub2);
+    assertThat(storage.computeListOfPlayersAt(p000.getPositionString()).size(), is(2));
+
+    // When player one leaves the cave
+    PlayerRecord rec1 = storage.getPlayerByID(id1);
+    rec1.setAccessToken(null);
+    storage.updatePlayerRecord(rec1);
+
+    // Then only player two is listed
+    List<PlayerRecord> ll = storage.computeListOfPlayersAt(p000.getPositionString());
+    assertThat(ll.size(), is(1));
+    assertThat(ll.get(0).getPlayerID(), is(id2));
+
+    // When player one moves while out of the cave and then logs in again
+    rec1 = storage.getPlayerByID(id1);
+    rec1.setPositionAsString(p273.getPositionString());
+    storage.updatePlayerRecord(rec1);
+    assertThat(storage.computeListOfPlayersAt(p273.getPositionString()).size(), is(0));
+    rec1.setAccessToken("new-session");
+    storage.updatePlayerRecord(rec1);
+
+    // Then he is listed at the new position only
+    assertThat(storage.computeListOfPlayersAt(p273.getPositionString()).size(), is(1));
+    assertThat(storage.computeListOfPlayersAt(p000.getPositionString()).size(), is(1));
+  }
+
+  @Test
+  public void shouldNotListPlayerWhoseRecordChangedSinceIndexed() {
+    addPlayerRecordToStorageForSubscription(sub1);
+    addPlayerRecordToStorageForSubscription(sub2);
+
+    // The fake hands out the stored records; a record changed but not
+    // yet written back is not where the index last saw it
+    storage.getPlayerByID(id1).setPositionAsString(p273.getPositionString());
+    storage.getPlayerByID(id2).setAccessToken(null);
+    assertThat(storage.computeListOfPlayersAt(p000.getPositionString()).size(), is(0));
+  }
+
   private void updatePlayerPosition(String id12, String positionString) {
     PlayerRecord pRecord = storage.getPlayerByID(id12);
     pRecord.setPositionAsString(positionString);
@@ -207,6 +249,19 @@ public class TestCaveStorage {
     assertThat(p876.toString(), is("(8,7,6)"));
   }
 
+  @Test
+  public void shouldComputeNeighborWithoutChangingPoint() {
+    Point3 east = p876.neighbor(Direction.EAST);
+    assertThat(east.getPositionString(), is("(9,7,6)"));
+    assertThat(p876.getPositionString(), is("(8,7,6)"));
+    assertThat(east.neighbor(Direction.WEST), is(p876));
+
+    // The entry rooms are shared instances
+    assertThat(Point3.ORIGIN.neighbor(Direction.UP), sameInstance(Point3.of(0, 0, 1)));
+    assertThat(Point3.parseString("(0,0,0)"), sameInstance(Point3.ORIGIN));
+    assertThat(Point3.parseString("(-1,0,0)").neighbor(Direction.EAST), sameInstance(Point3.ORIGIN));
+  }
+
   @Test
   public void shouldIncreaseCoverageForCaveStorage() {
     String t = storage.toString();
@@ -259,4 +314,25 @@ public class TestCaveStorage {
     assertThat(storage.getRoom(p000.getPositionString()).getDescription(),
             containsString("You are standing at the end of a road"));
   }
+  @Test
+  public void shouldNotMistakeInvalidPositionForRoomAtMinusOne() {
+    // PackedPosition.INVALID is -1, whose position string is that
+    // of a real room, which a player may dig
+    String pMinusOne = new Point3(-1, -1, -1).getPositionString();
+    assertThat(storage.addRoom(pMinusOne, new RoomRecord("Far below.", id1)),
+        is(HttpServletResponse.SC_CREATED));
+    storage.addRoom(new Point3(-1, -1, 0).getPositionString(), new RoomRecord("Below.", id1));
+    storage.updatePlayerRecord(new PlayerRecord(sub1, pMinusOne));
+    storage.addMessage(pMinusOne, new MessageRecord("Deep down", id1, "Tutmosis"));
+
+    assertThat(storage.getRoom(PackedPosition.parse(pMinusOne)).getDescription(), is("Far below."));
+    assertThat(storage.getRoom(PackedPosition.INVALID), is(nullValue()));
+    assertThat(storage.hasRoom(PackedPosition.INVALID), is(false));
+    assertThat(storage.getSetOfExitsFromRoom(PackedPosition.INVALID).size(), is(0));
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(PackedPosition.INVALID, 10);
+    assertThat(snapshot.getRoom(), is(nullValue()));
+    assertThat(snapshot.getExits().size(), is(0));
+    assertThat(snapshot.getPlayersHere().size(), is(0));
+    assertThat(snapshot.getWallPage().size(), is(0));
+  }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.cave.domain.*;
+import cloud.cave.invoker.CaveIPCException;
+import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing the thread safe in-memory storage, both
+ * the basic CaveStorage contract and that racing
+ * threads do not lose updates.
+ */
+public class TestConcurrentCaveStorage {
+
+  private static final int THREAD_COUNT = 8;
+
+  private CaveStorage storage;
+  private ExecutorService executor;
+
+  private String p000 = new Point3(0, 0, 0).getPositionString();
+  private String p273 = new Point3(2, 7, 3).getPositionString();
+
+  @BeforeEach
+  public void setUp() {
+    storage = new ConcurrentCaveStorage();
+    storage.initialize(null, null);
+    executor = Executors.newFixedThreadPool(THREAD_COUNT);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+    storage.disconnect();
+  }
+
+  @Test
+  public void shouldNotStoreTextOfRejectedRooms() {
+    ConcurrentCaveStorage concurrentStorage = (ConcurrentCaveStorage) storage;
+    long bytesUsed = concurrentStorage.getTextBytesUsed();
+    assertThat(storage.addRoom(p000, new RoomRecord("Never made.", "BlackHat")),
+        is(HttpServletResponse.SC_FORBIDDEN));
+    assertThat(concurrentStorage.getTextBytesUsed(), is(bytesUsed));
+
+    // Initializing again rejects all the default rooms
+    storage.initialize(null, null);
+    assertThat(concurrentStorage.getTextBytesUsed(), is(bytesUsed));
+  }
+
+  @Test
+  public void shouldBehaveAsStorageForSingleThread() {
+    assertThat(storage.getRoom(p000).getCreatorId(), is(CaveStorage.WILL_CROWTHER_ID));
+    assertThat(storage.getSetOfExitsFromRoom(p000).size(), is(4));
+
+    assertThat(storage.addRoom(p273, new RoomRecord("A dark hall.", "ArneID")),
+        is(HttpServletResponse.SC_CREATED));
+    assertThat(storage.addRoom(p273, new RoomRecord("Never made.", "BlackHat")),
+        is(HttpServletResponse.SC_FORBIDDEN));
+    assertThat(storage.updateRoom(p273, new RoomRecord("Hijacked.", "BlackHat")),
+        is(HttpServletResponse.SC_UNAUTHORIZED));
+    assertThat(storage.updateRoom(p273, new RoomRecord("A bright hall.", "ArneID")),
+        is(HttpServletResponse.SC_OK));
+    assertThat(storage.getRoom(p273).getDescription(), is("A bright hall."));
+
+    assertThat(storage.toString(), is("ConcurrentCaveStorage (6 rooms. 0 players)"));
+  }
+
+  @Test
+  public void shouldMaintainExitsOfNewRoomAndNeighbours() {
+    String pUp = Point3.ORIGIN.neighbor(Direction.UP).getPositionString();
+    String pUpNorth = Point3.parseString(pUp).neighbor(Direction.NORTH).getPositionString();
+    assertThat(storage.getSetOfExitsFromRoom(pUp), is(List.of(Direction.DOWN)));
+
+    // When a room is dug north of (0,0,1), right above (0,1,0)
+    storage.addRoom(pUpNorth, new RoomRecord("A tree top.", "ArneID"));
+
+    // Then the new room has exits to both, and both have exits to it
+    assertThat(storage.getSetOfExitsFromRoom(pUpNorth),
+        is(List.of(Direction.SOUTH, Direction.DOWN)));
+    assertThat(storage.getSetOfExitsFromRoom(pUp),
+        is(List.of(Direction.NORTH, Direction.DOWN)));
+    assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"),
+        is(List.of(Direction.SOUTH, Direction.UP)));
+  }
+
+  @Test
+  public void shouldLinkRoomsDugSideBySideConcurrently() throws Exception {
+    int length = 200;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    // Each thread digs every THREAD_COUNT'th room of a long corridor
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      int first = i;
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int x = first; x < length; x += THREAD_COUNT) {
+          storage.addRoom(Point3.of(x, 10, 0).getPositionString(), new RoomRecord("Corridor", "digger"));
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> f : futures) f.get(5, TimeUnit.SECONDS);
+
+    for (int x = 1; x < length - 1; x++) {
+      assertThat(storage.getSetOfExitsFromRoom(Point3.of(x, 10, 0).getPositionString()),
+          is(List.of(Direction.EAST, Direction.WEST)));
+    }
+  }
+
+  @Test
+  public void shouldNeverShowNewRoomWithoutExitsToExistingRooms() throws Exception {
+    int length = 2000;
+    // A reader waits for each room of the corridor, and reads it
+    // as soon as it appears
+    Future<Integer> unlinkedSeen = executor.submit(() -> {
+      int unlinked = 0;
+      for (int x = 1; x < length; ) {
+        RoomSnapshotRecord snapshot = storage.getRoomSnapshot(PackedPosition.pack(x, 20, 0), 1);
+        if (snapshot.getRoom() == null) { continue; }
+        if (!snapshot.getExits().contains(Direction.WEST)) { unlinked++; }
+        x++;
+      }
+      return unlinked;
+    });
+    for (int x = 0; x < length; x++) {
+      storage.addRoom(Point3.of(x, 20, 0).getPositionString(), new RoomRecord("Corridor", "digger"));
+    }
+    assertThat(unlinkedSeen.get(10, TimeUnit.SECONDS), is(0));
+  }
+
+  @Test
+  public void shouldAddBatchOfRoomsAndLinkThem() {
+    Map<String, RoomRecord> batch = new HashMap<>();
+    // A corridor going down from the origin, 10 rooms deep
+    for (int z = -1; z >= -10; z--) {
+      batch.put(Point3.of(0, 0, z).getPositionString(), new RoomRecord("Cellar " + z, "ArneID"));
+    }
+    batch.put(p000, new RoomRecord("Never made.", "BlackHat"));
+    batch.put("(0,0", new RoomRecord("Nowhere.", "ArneID"));
+
+    Map<String, Integer> result = storage.addRooms(batch);
+    assertThat(result.size(), is(12));
+    assertThat(result.get(Point3.of(0, 0, -5).getPositionString()), is(HttpServletResponse.SC_CREATED));
+    assertThat(result.get(p000), is(HttpServletResponse.SC_FORBIDDEN));
+    assertThat(result.get("(0,0"), is(HttpServletResponse.SC_BAD_REQUEST));
+
+    assertThat(storage.toString(), is("ConcurrentCaveStorage (15 rooms. 0 players)"));
+    assertThat(storage.getRoom(p000).getCreatorId(), is(CaveStorage.WILL_CROWTHER_ID));
+    assertThat(storage.getRoom(Point3.of(0, 0, -5).getPositionString()).getId(), is(notNullValue()));
+    // Linked to the rooms of the batch as well as to the existing
+    assertThat(storage.getSetOfExitsFromRoom(p000).contains(Direction.DOWN), is(true));
+    assertThat(storage.getSetOfExitsFromRoom(Point3.of(0, 0, -5).getPositionString()),
+        is(List.of(Direction.UP, Direction.DOWN)));
+  }
+
+  @Test
+  public void shouldStoreTextsInArenaAcrossChunks() {
+    // Tiny chunks, so texts spill into new chunks, and a
+    // long text gets a chunk of its own
+    TextArena arena = new TextArena(16);
+    long h1 = arena.put("Bærbak's hall");
+    long h2 = arena.put("A very long description of a room");
+    long h3 = arena.put("");
+    assertThat(arena.get(h1), is("Bærbak's hall"));
+    assertThat(arena.get(h2), is("A very long description of a room"));
+    assertThat(arena.get(h3), is(""));
+  }
+
+  @Test
+  public void shouldReuseArenaSlotsOfReplacedTexts() {
+    TextArena arena = new TextArena(64);
+    long h1 = arena.put("Short");
+    long used = arena.getBytesUsed();
+
+    // A text that fits is written in place
+    assertThat(arena.replace(h1, "Tiny"), is(h1));
+    assertThat(arena.get(h1), is("Tiny"));
+    assertThat(arena.getBytesUsed(), is(used));
+
+    // A longer one moves, and the freed slot is reused
+    long h2 = arena.replace(h1, "A description longer than the slot");
+    assertThat(h2 == h1, is(false));
+    assertThat(arena.get(h2), is("A description longer than the slot"));
+    assertThat(arena.put("Again"), is(h1));
+
+    arena.free(h2);
+    assertThat(arena.getBytesUsed(), is(used));
+  }
+
+  @Test
+  public void shouldNotGrowArenaWhenUpdatingRoomsAndMessages() {
+    ConcurrentCaveStorage concurrentStorage = (ConcurrentCaveStorage) storage;
+    storage.addRoom(p273, new RoomRecord("Æblehaven.", "ArneID"));
+    storage.addMessage(p273, new MessageRecord("Hej", "ArneID", "Arne"));
+    String id = storage.getMessageList(p273, 0, 1).get(0).getId();
+    long bytesUsed = concurrentStorage.getTextBytesUsed();
+
+    for (int i = 0; i < 100; i++) {
+      RoomRecord room = storage.getRoom(p273);
+      room.setDescription("Pæretræet " + (i % 10) + ".");
+      assertThat(storage.updateRoom(p273, room), is(HttpServletResponse.SC_OK));
+      storage.updateMessage(p273, id, new MessageRecord("Hej " + (i % 10), "ArneID", "Arne"));
+    }
+    assertThat(storage.getRoom(p273).getDescription(), is("Pæretræet 9."));
+    assertThat(storage.getRoom(p273).getCreatorId(), is("ArneID"));
+    assertThat(storage.getMessageList(p273, 0, 1).get(0).getContents(), is("Hej 9"));
+    assertThat(concurrentStorage.getTextBytesUsed(), is(bytesUsed));
+  }
+
+  @Test
+  public void shouldMaterializeRoomsAndMessagesFromArena() {
+    storage.addRoom(p273, new RoomRecord("Æblehaven.", "ArneID"));
+    RoomRecord room = storage.getRoom(p273);
+    assertThat(room.getDescription(), is("Æblehaven."));
+
+    // Modifying a read record does not change the stored room
+    room.setDescription("Changed.");
+    assertThat(storage.getRoom(p273).getDescription(), is("Æblehaven."));
+
+    storage.addMessage(p273, new MessageRecord("Hej", "ArneID", "Arne"));
+    String id = storage.getMessageList(p273, 0, 1).get(0).getId();
+    storage.updateMessage(p273, id, new MessageRecord("Hej igen", "ArneID", "Arne"));
+    assertThat(storage.getMessageList(p273, 0, 1).get(0).getContents(), is("Hej igen"));
+    assertThat(storage.getMessageList(p273, 0, 1).get(0).getCreatorName(), is("Arne"));
+  }
+
+  @Test
+  public void shouldReadRoomSnapshotInOneOperation() {
+    SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+    storage.updatePlayerRecord(new PlayerRecord(sub, p000));
+    storage.addMessage(p000, new MessageRecord("First", "id02", "Tutmosis"));
+    storage.addMessage(p000, new MessageRecord("Second", "id02", "Tutmosis"));
+
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(PackedPosition.parse(p000), 1);
+    assertThat(snapshot.getRoom().getCreatorId(), is(CaveStorage.WILL_CROWTHER_ID));
+    assertThat(snapshot.getExits().size(), is(4));
+    assertThat(snapshot.getPlayersHere().size(), is(1));
+    assertThat(snapshot.getPlayersHere().get(0).getPlayerName(), is("Tutmosis"));
+    assertThat(snapshot.getWallPage().size(), is(1));
+    assertThat(snapshot.getWallPage().get(0).getContents(), is("Second"));
+
+    // No room, and thus no exits, players or wall
+    snapshot = storage.getRoomSnapshot(PackedPosition.parse(p273), 1);
+    assertThat(snapshot.getRoom(), is(nullValue()));
+    assertThat(snapshot.getExits().size(), is(0));
+    assertThat(snapshot.getWallPage().size(), is(0));
+  }
+
+  @Test
+  public void shouldNotShareMutablePlayerRecords() {
+    SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+    storage.updatePlayerRecord(new PlayerRecord(sub, p000));
+
+    // Modifying a fetched record without writing it back leaves storage untouched
+    PlayerRecord rec = storage.getPlayerByID("id02");
+    rec.setPositionAsString(p273);
+    assertThat(storage.getPlayerByID("id02").getPositionAsString(), is(p000));
+    assertThat(storage.computeListOfPlayersAt(p000).size(), is(1));
+
+    storage.updatePlayerRecord(rec);
+    assertThat(storage.computeListOfPlayersAt(p273).size(), is(1));
+    assertThat(storage.computeListOfPlayersAt(p000).size(), is(0));
+  }
+
+  @Test
+  public void shouldOnlyLetOneOfManyRacingDiggersCreateRoom() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      String creator = "digger" + i;
+      futures.add(executor.submit(() -> {
+        start.await();
+        int status = storage.addRoom(p273, new RoomRecord("Room by " + creator, creator));
+        if (status == HttpServletResponse.SC_CREATED) created.incrementAndGet();
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> f : futures) f.get(5, TimeUnit.SECONDS);
+
+    assertThat(created.get(), is(1));
+  }
+
+  @Test
+  public void shouldNotLoseConcurrentWallPostings() throws Exception {
+    int postsPerThread = 250;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      String creator = "poster" + i;
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int n = 0; n < postsPerThread; n++) {
+          storage.addMessage(p000, new MessageRecord("Msg " + n, creator, creator));
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> f : futures) f.get(5, TimeUnit.SECONDS);
+
+    List<MessageRecord> all = storage.getMessageList(p000, 0, THREAD_COUNT * postsPerThread + 10);
+    assertThat(all.size(), is(THREAD_COUNT * postsPerThread));
+  }
+
+  @Test
+  public void shouldAddRoomsAtTheEdgeOfTheCave() {
+    String edge = new Point3(PackedPosition.MAX_COORDINATE, 0, 0).getPositionString();
+    String inside = new Point3(PackedPosition.MAX_COORDINATE - 1, 0, 0).getPositionString();
+    assertThat(storage.addRoom(edge, new RoomRecord("At the edge.", "Edgar")),
+        is(HttpServletResponse.SC_CREATED));
+    assertThat(storage.addRoom(inside, new RoomRecord("Near the edge.", "Edgar")),
+        is(HttpServletResponse.SC_CREATED));
+    assertThat(storage.getSetOfExitsFromRoom(edge), is(Arrays.asList(Direction.WEST)));
+  }
+
+  @Test
+  public void shouldNeverHaveRoomAtInvalidPosition() {
+    // The invalid position is the free slot marker of the room maps
+    assertThat(storage.hasRoom(PackedPosition.INVALID), is(false));
+    assertThat(storage.getRoom(PackedPosition.INVALID), is(nullValue()));
+    assertThat(storage.getRoomSnapshot(PackedPosition.INVALID, 1).getRoom(), is(nullValue()));
+    assertThat(storage.hasRoom(PackedPosition.parse(p000)), is(true));
+  }
+  // A storage whose journal fails on demand, as a full disk would
+  private static class FailingJournalStorage extends ConcurrentCaveStorage {
+    boolean failing;
+    @Override
+    protected void awaitDurable(long ticket) {
+      if (failing) { throw new CaveIPCException("Journal failed", null); }
+    }
+  }
+
+  @Test
+  public void shouldNotApplyChangesTheJournalFailsToWrite() {
+    FailingJournalStorage failingStorage = new FailingJournalStorage();
+    failingStorage.initialize(null, null);
+    SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+    failingStorage.updatePlayerRecord(new PlayerRecord(sub, p000));
+    failingStorage.addMessage(p000, new MessageRecord("First", "id02", "Tutmosis"));
+    String messageId = failingStorage.getMessageList(p000, 0, 1).get(0).getId();
+    failingStorage.failing = true;
+
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.addRoom(p273, new RoomRecord("Never made.", "id02")));
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.addRooms(Map.of(p273, new RoomRecord("Never made.", "id02"))));
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.updateRoom(p000, new RoomRecord("Never changed.", CaveStorage.WILL_CROWTHER_ID)));
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.updatePlayerRecord(new PlayerRecord(sub, p273)));
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.addMessage(p000, new MessageRecord("Never posted", "id02", "Tutmosis")));
+    assertThrows(CaveIPCException.class,
+        () -> failingStorage.updateMessage(p000, messageId, new MessageRecord("Never edited", "id02", "Tutmosis")));
+
+    // None of the failed changes are seen by readers
+    assertThat(failingStorage.getRoom(p273), is(nullValue()));
+    assertThat(failingStorage.getSetOfExitsFromRoom(p000).size(), is(4));
+    assertThat(failingStorage.getRoom(p000).getDescription(), containsString("brick building"));
+    assertThat(failingStorage.getPlayerByID("id02").getPositionAsString(), is(p000));
+    assertThat(failingStorage.computeListOfPlayersAt(p273).size(), is(0));
+    List<MessageRecord> wall = failingStorage.getMessageList(p000, 0, 10);
+    assertThat(wall.size(), is(1));
+    assertThat(wall.get(0).getContents(), is("First"));
+    // Rejected changes are not journaled at all
+    assertThat(failingStorage.addRoom(p000, new RoomRecord("Taken.", "id02")),
+        is(HttpServletResponse.SC_FORBIDDEN));
+  }
+  @Test
+  public void shouldNotMistakeInvalidPositionForRoomAtMinusOne() {
+    // PackedPosition.INVALID is -1, whose position string is that
+    // of a real room, which a player may dig
+    String pMinusOne = new Point3(-1, -1, -1).getPositionString();
+    assertThat(storage.addRoom(pMinusOne, new RoomRecord("Far below.", "id02")),
+        is(HttpServletResponse.SC_CREATED));
+    storage.addRoom(new Point3(-1, -1, 0).getPositionString(), new RoomRecord("Below.", "id02"));
+    storage.updatePlayerRecord(new PlayerRecord(new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE), pMinusOne));
+    storage.addMessage(pMinusOne, new MessageRecord("Deep down", "id02", "Tutmosis"));
+
+    assertThat(storage.getRoom(PackedPosition.parse(pMinusOne)).getDescription(), is("Far below."));
+    assertThat(storage.getRoom(PackedPosition.INVALID), is(nullValue()));
+    assertThat(storage.hasRoom(PackedPosition.INVALID), is(false));
+    assertThat(storage.getSetOfExitsFromRoom(PackedPosition.INVALID).size(), is(0));
+    RoomSnapshotRecord snapshot = storage.getRoomSnapshot(PackedPosition.INVALID, 10);
+    assertThat(snapshot.getRoom(), is(nullValue()));
+    assertThat(snapshot.getExits().size(), is(0));
+    assertThat(snapshot.getPlayersHere().size(), is(0));
+    assertThat(snapshot.getWallPage().size(), is(0));
+  }
+}
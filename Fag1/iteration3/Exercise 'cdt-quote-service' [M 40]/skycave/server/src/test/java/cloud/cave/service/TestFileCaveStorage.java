@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+
+import cloud.cave.domain.*;
+import cloud.cave.invoker.CaveIPCException;
+import cloud.cave.server.common.*;
+import cloud.cave.service.wall.MessageRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Testing that the file based storage recovers the
+ * cave, both from the log alone, and from a snapshot
+ * followed by more log.
+ */
+public class TestFileCaveStorage {
+
+  @TempDir
+  Path directory;
+
+  private FileCaveStorage storage;
+
+  private String p273 = Point3.of(2, 7, 3).getPositionString();
+  private SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+
+  @BeforeEach
+  public void setUp() {
+    storage = open();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    storage.disconnect();
+  }
+
+  private FileCaveStorage open() {
+    FileCaveStorage s = new FileCaveStorage(directory);
+    s.initialize(null, null);
+    return s;
+  }
+
+  private void addStateToCave() {
+    storage.addRoom(p273, new RoomRecord("A dark hall.", "id02"));
+    storage.updateRoom(p273, new RoomRecord("A bright hall.", "id02"));
+    PlayerRecord player = new PlayerRecord(sub, p273);
+    storage.updatePlayerRecord(player);
+    storage.addMessage(p273, new MessageRecord("First", "id02", "Tutmosis"));
+    storage.addMessage(p273, new MessageRecord("Second", "id02", "Tutmosis"));
+  }
+
+  private void assertStateRecovered(CaveStorage recovered) {
+    assertThat(recovered.toString(), is("FileCaveStorage (6 rooms. 1 players)"));
+    assertThat(recovered.getRoom(p273).getDescription(), is("A bright hall."));
+    assertThat(recovered.getRoom(p273).getId(), is(storage.getRoom(p273).getId()));
+    assertThat(recovered.computeListOfPlayersAt(p273).size(), is(1));
+    List<MessageRecord> wall = recovered.getMessageList(p273, 0, 10);
+    assertThat(wall.size(), is(2));
+    assertThat(wall.get(0).getContents(), is("Second"));
+    assertThat(wall.get(1).getContents(), is("First"));
+  }
+
+  @Test
+  public void shouldCreateDefaultRoomsInNewCave() {
+    assertThat(storage.toString(), is("FileCaveStorage (5 rooms. 0 players)"));
+    assertThat(storage.getSetOfExitsFromRoom(Point3.ORIGIN.getPositionString()).size(), is(4));
+  }
+
+  @Test
+  public void shouldRecoverFromLogAfterCrash() {
+    addStateToCave();
+
+    // Open the directory again, without disconnecting the first
+    // storage, as if the daemon had been killed
+    storage.abandon();
+    FileCaveStorage recovered = open();
+    assertStateRecovered(recovered);
+    // and the exits are rebuilt as well
+    assertThat(recovered.getSetOfExitsFromRoom(Point3.ORIGIN.getPositionString()).size(), is(4));
+    recovered.disconnect();
+  }
+
+  @Test
+  public void shouldRecoverFromSnapshotAndLaterLog() throws Exception {
+    storage.addRoom(p273, new RoomRecord("A dark hall.", "id02"));
+    storage.takeSnapshot();
+    storage.updateRoom(p273, new RoomRecord("A bright hall.", "id02"));
+    storage.updatePlayerRecord(new PlayerRecord(sub, p273));
+    storage.addMessage(p273, new MessageRecord("First", "id02", "Tutmosis"));
+    storage.takeSnapshot();
+    storage.addMessage(p273, new MessageRecord("Second", "id02", "Tutmosis"));
+
+    // Only the log written after the last snapshot is kept
+    long logFiles;
+    try (var files = Files.list(directory)) {
+      logFiles = files.filter(f -> WriteAheadLog.generationOf(f.getFileName().toString()) >= 0).count();
+    }
+    assertThat(logFiles, is(1L));
+
+    storage.abandon();
+    FileCaveStorage recovered = open();
+    assertStateRecovered(recovered);
+    recovered.disconnect();
+  }
+
+  @Test
+  public void shouldRecoverAfterGracefulDisconnect() {
+    addStateToCave();
+    storage.disconnect();
+
+    FileCaveStorage recovered = open();
+    assertStateRecovered(recovered);
+    // Existing rooms are not overwritten
+    assertThat(recovered.addRoom(p273, new RoomRecord("Hijacked.", "BlackHat")),
+        is(HttpServletResponse.SC_FORBIDDEN));
+    recovered.disconnect();
+  }
+
+  @Test
+  public void shouldNotShareDirectoryWithRunningStorage() {
+    CaveIPCException exception = assertThrows(CaveIPCException.class, this::open);
+    assertThat(exception.getMessage(), containsString("Cannot open storage"));
+    assertThat(exception.getCause().getMessage(), containsString("in use by another storage"));
+
+    // The directory is free again after a disconnect
+    storage.disconnect();
+    FileCaveStorage next = open();
+    assertThat(next.toString(), is("FileCaveStorage (5 rooms. 0 players)"));
+    next.disconnect();
+  }
+
+  @Test
+  public void shouldIgnoreTornLastLineOfLog() throws Exception {
+    addStateToCave();
+    // Simulate a crash in the middle of writing a line
+    Path log = WriteAheadLog.pathOf(directory, 0);
+    Files.write(log, "{\"type\":\"room\",\"posi".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    storage.abandon();
+    FileCaveStorage recovered = open();
+    assertStateRecovered(recovered);
+    recovered.disconnect();
+  }
+}
@@ -192,4 +192,30 @@ public class TestWallStorage {
     int status = storage.updateMessage(position123, msg3OnPage2.getId(), newMsg);
     assertThat(status, is(HttpServletResponse.SC_UNAUTHORIZED));
   }
+
+  @Test
+  public void shouldPageAndUpdateAcrossManyMessages() {
+    // Enough messages to span several segments of the wall log
+    int count = 1000;
+    IntStream.range(0, count).forEach(i ->
+        storage.addMessage(position123, new MessageRecord("Msg " + i, "mikkel_aarskort", "Mikkel")));
+
+    // A page in the middle, newest first
+    List<MessageRecord> page = storage.getMessageList(position123, 250, 8);
+    assertThat(page.size(), is(8));
+    assertThat(page.get(0).getContents(), is("Msg 749"));
+    assertThat(page.get(7).getContents(), is("Msg 742"));
+
+    // The last, partial, page and beyond
+    assertThat(storage.getMessageList(position123, 996, 8).size(), is(4));
+    assertThat(storage.getMessageList(position123, 996, 8).get(3).getContents(), is("Msg 0"));
+    assertThat(storage.getMessageList(position123, 2000, 8).size(), is(0));
+
+    // Update the oldest message, it keeps its place on the wall
+    String oldestId = storage.getMessageList(position123, 999, 1).get(0).getId();
+    int status = storage.updateMessage(position123, oldestId,
+        new MessageRecord(COMPLETELY_NEW_MESSAGE, "mikkel_aarskort", "Mikkel"));
+    assertThat(status, is(HttpServletResponse.SC_OK));
+    assertThat(storage.getMessageList(position123, 999, 1).get(0).getContents(), is(COMPLETELY_NEW_MESSAGE));
+  }
 }
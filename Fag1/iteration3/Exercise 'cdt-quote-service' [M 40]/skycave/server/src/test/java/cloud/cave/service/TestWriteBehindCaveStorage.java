@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 - 2023. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package cloud.cave.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.*;
+
+import cloud.cave.domain.*;
+import cloud.cave.server.common.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Testing that player moves are coalesced and written
+ * behind, while sessions always see their own moves, and
+ * logins and logouts are written at once.
+ */
+public class TestWriteBehindCaveStorage {
+
+  private CaveStorage storage;
+  private WriteBehindCaveStorage writeBehind;
+
+  private String p000 = Point3.ORIGIN.getPositionString();
+  private String p010 = Point3.of(0, 1, 0).getPositionString();
+  private String p020 = Point3.of(0, 2, 0).getPositionString();
+  private SubscriptionRecord sub = new SubscriptionRecord("id02", "Tutmosis", "grp01", Region.ODENSE);
+
+  @BeforeEach
+  public void setUp() {
+    storage = new ConcurrentCaveStorage();
+    storage.initialize(null, null);
+    // Only flush explicitly
+    writeBehind = new WriteBehindCaveStorage(storage, 0);
+    sub.setAccessToken("token-1");
+    writeBehind.updatePlayerRecord(new PlayerRecord(sub, p000));
+  }
+
+  private void moveTo(String position) {
+    PlayerRecord record = writeBehind.getPlayerByID("id02");
+    record.setPositionAsString(position);
+    writeBehind.updatePlayerRecord(record);
+  }
+
+  @Test
+  public void shouldWriteLoginThrough() {
+    assertThat(storage.getPlayerByID("id02").isInCave(), is(true));
+    assertThat(writeBehind.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void shouldCoalesceMovesUntilFlush() {
+    moveTo(p010);
+    moveTo(p020);
+    assertThat(writeBehind.getPendingCount(), is(1));
+    assertThat(storage.getPlayerByID("id02").getPositionAsString(), is(p000));
+    // Read your own writes
+    assertThat(writeBehind.getPlayerByID("id02").getPositionAsString(), is(p020));
+    assertThat(writeBehind.computeListOfPlayersAt(p000).size(), is(0));
+    assertThat(writeBehind.computeListOfPlayersAt(p020).size(), is(1));
+
+    writeBehind.flush();
+    assertThat(writeBehind.getPendingCount(), is(0));
+    assertThat(storage.getPlayerByID("id02").getPositionAsString(), is(p020));
+  }
+
+  @Test
+  public void shouldWriteLogoutThroughWithLatestPosition() {
+    moveTo(p010);
+    PlayerRecord record = writeBehind.getPlayerByID("id02");
+    record.setAccessToken(null);
+    writeBehind.updatePlayerRecord(record);
+
+    assertThat(writeBehind.getPendingCount(), is(0));
+    PlayerRecord stored = storage.getPlayerByID("id02");
+    assertThat(stored.isInCave(), is(false));
+    assertThat(stored.getPositionAsString(), is(p010));
+  }
+
+  @Test
+  public void shouldNotFlushMoveQueuedDuringLogout() throws Exception {
+    // A storage that holds the logout while it is being written
+    CountDownLatch inLogout = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+    CaveStorage pausing = new CaveStorageDecorator(storage) {
+      @Override
+      public void updatePlayerRecord(PlayerRecord record) {
+        super.updatePlayerRecord(record);
+        if (!record.isInCave()) {
+          inLogout.countDown();
+          try {
+            resume.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+    WriteBehindCaveStorage racing = new WriteBehindCaveStorage(pausing, 0);
+    racing.updatePlayerRecord(new PlayerRecord(sub, p000));
+    PlayerRecord moving = racing.getPlayerByID("id02");
+    moving.setPositionAsString(p010);
+    PlayerRecord leaving = racing.getPlayerByID("id02");
+    leaving.setAccessToken(null);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> logout = executor.submit(() -> racing.updatePlayerRecord(leaving));
+      assertThat(inLogout.await(5, TimeUnit.SECONDS), is(true));
+      // The move of the old session arrives while the logout is written
+      Future<?> move = executor.submit(() -> racing.updatePlayerRecord(moving));
+      try {
+        move.get(200, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // Waiting for the logout to finish
+      }
+      resume.countDown();
+      logout.get(5, TimeUnit.SECONDS);
+      move.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Whatever order the two were written in, a flush must not
+    // write the old session over the logout
+    boolean isInCave = storage.getPlayerByID("id02").isInCave();
+    racing.flush();
+    assertThat(storage.getPlayerByID("id02").isInCave(), is(isInCave));
+    assertThat(racing.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void shouldFlushOnDisconnect() {
+    moveTo(p010);
+    writeBehind.disconnect();
+    assertThat(storage.getPlayerByID("id02").getPositionAsString(), is(p010));
+  }
+
+  @Test
+  public void shouldFlushOnInterval() throws InterruptedException {
+    WriteBehindCaveStorage timed = new WriteBehindCaveStorage(storage, 10);
+    timed.updatePlayerRecord(new PlayerRecord(sub, p000));
+    PlayerRecord record = timed.getPlayerByID("id02");
+    record.setPositionAsString(p010);
+    timed.updatePlayerRecord(record);
+
+    for (int i = 0; i < 500 && timed.getPendingCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(storage.getPlayerByID("id02").getPositionAsString(), is(p010));
+    timed.disconnect();
+  }
+}